@@ -24,7 +24,9 @@ import org.openremote.model.asset.agent.Agent;
 import org.openremote.model.asset.agent.AgentDescriptor;
 import org.openremote.model.asset.agent.DefaultAgentLink;
 import org.openremote.model.value.AttributeDescriptor;
+import org.openremote.model.value.MetaItemDescriptor;
 import org.openremote.model.value.ValueDescriptor;
+import org.openremote.model.value.ValueType;
 
 import javax.persistence.Entity;
 import java.util.Optional;
@@ -55,6 +57,107 @@ public class CustomAgent extends Agent<CustomAgent, CustomProtocol, DefaultAgent
 
     public static final AttributeDescriptor<Option> OPTION_ATTRIBUTE_DESCRIPTOR = new AttributeDescriptor<>("option", OPTION_VALUE_DESCRIPTOR);
 
+    public enum Transport {
+        UDP,
+        TCP
+    }
+
+    public static final ValueDescriptor<Transport> TRANSPORT_VALUE_DESCRIPTOR = new ValueDescriptor<>("customAgentTransport", Transport.class);
+
+    public static final AttributeDescriptor<Transport> TRANSPORT_ATTRIBUTE_DESCRIPTOR = new AttributeDescriptor<>("transport", TRANSPORT_VALUE_DESCRIPTOR);
+
+    /**
+     * How a {@link CustomProtocol} instance runs its transport and periodic tasks:
+     *
+     * <ul>
+     * <li>{@link #EXECUTOR}: a selector thread per instance and periodic tasks on the shared container executor
+     * <li>{@link #VIRTUAL_THREAD}: blocking loops on virtual threads (one per socket) and a scheduler per instance
+     * that also runs on a virtual thread, so thousands of instances neither need thousands of platform threads nor
+     * queue behind each other on the shared executor; falls back to {@link #EXECUTOR} when the JDK has no virtual
+     * threads
+     * </ul>
+     */
+    public enum ExecutionMode {
+        EXECUTOR,
+        VIRTUAL_THREAD
+    }
+
+    public static final ValueDescriptor<ExecutionMode> EXECUTION_MODE_VALUE_DESCRIPTOR = new ValueDescriptor<>("customAgentExecutionMode", ExecutionMode.class);
+
+    public static final AttributeDescriptor<ExecutionMode> EXECUTION_MODE_ATTRIBUTE_DESCRIPTOR = new AttributeDescriptor<>("executionMode", EXECUTION_MODE_VALUE_DESCRIPTOR);
+
+    /**
+     * Readings for the same linked attribute that arrive within this window (milliseconds) are coalesced into a single
+     * {@link org.openremote.model.attribute.AttributeEvent} carrying the latest value.
+     */
+    public static final AttributeDescriptor<Integer> FLUSH_WINDOW_ATTRIBUTE_DESCRIPTOR = new AttributeDescriptor<>("flushWindow", ValueType.POSITIVE_INTEGER);
+
+    /**
+     * The maximum number of write frames per device that may be awaiting acknowledgement at the same time.
+     */
+    public static final AttributeDescriptor<Integer> WRITE_PIPELINE_DEPTH_ATTRIBUTE_DESCRIPTOR = new AttributeDescriptor<>("writePipelineDepth", ValueType.POSITIVE_INTEGER);
+
+    /**
+     * How long (milliseconds) to wait for a device to acknowledge a write frame before the write is considered failed.
+     */
+    public static final AttributeDescriptor<Integer> WRITE_TIMEOUT_ATTRIBUTE_DESCRIPTOR = new AttributeDescriptor<>("writeTimeout", ValueType.POSITIVE_INTEGER);
+
+    /**
+     * When enabled readings are appended to a journal on disk before they are coalesced so readings that could not be
+     * delivered (e.g. while the manager restarts) are replayed once attribute events can be processed again.
+     */
+    public static final AttributeDescriptor<Boolean> JOURNAL_ATTRIBUTE_DESCRIPTOR = new AttributeDescriptor<>("journal", ValueType.BOOLEAN);
+
+    /**
+     * The maximum number of journalled readings per second that are replayed alongside live readings.
+     */
+    public static final AttributeDescriptor<Integer> JOURNAL_REPLAY_RATE_ATTRIBUTE_DESCRIPTOR = new AttributeDescriptor<>("journalReplayRate", ValueType.POSITIVE_INTEGER);
+
+    /**
+     * Identifies the field device a linked attribute belongs to.
+     */
+    public static final MetaItemDescriptor<Integer> DEVICE_ID_META_ITEM_DESCRIPTOR = new MetaItemDescriptor<>("customDeviceId", ValueType.POSITIVE_INTEGER);
+
+    /**
+     * Identifies the channel of the field device a linked attribute is read from and written to; frames carry it as an
+     * unsigned short so it must not exceed {@link CustomFrameCodec#MAX_CHANNEL}.
+     */
+    public static final MetaItemDescriptor<Integer> DEVICE_CHANNEL_META_ITEM_DESCRIPTOR = new MetaItemDescriptor<>("customDeviceChannel", ValueType.POSITIVE_INTEGER);
+
+    /**
+     * Readings of a linked attribute that differ from the last emitted value by no more than this amount are dropped.
+     */
+    public static final MetaItemDescriptor<Double> DEADBAND_META_ITEM_DESCRIPTOR = new MetaItemDescriptor<>("customDeadband", ValueType.POSITIVE_NUMBER);
+
+    /**
+     * Readings of a linked attribute that differ from the last emitted value by no more than this percentage of it are
+     * dropped.
+     */
+    public static final MetaItemDescriptor<Double> DEADBAND_PERCENT_META_ITEM_DESCRIPTOR = new MetaItemDescriptor<>("customDeadbandPercent", ValueType.POSITIVE_NUMBER);
+
+    /**
+     * Readings of a linked attribute that arrive within this many milliseconds of the last emitted value are dropped.
+     */
+    public static final MetaItemDescriptor<Integer> MIN_INTERVAL_META_ITEM_DESCRIPTOR = new MetaItemDescriptor<>("customMinInterval", ValueType.POSITIVE_INTEGER);
+
+    /**
+     * A reading of a linked attribute is always emitted when nothing has been emitted for this many milliseconds, even
+     * if the deadband or minimum interval would drop it.
+     */
+    public static final MetaItemDescriptor<Integer> MAX_SILENCE_META_ITEM_DESCRIPTOR = new MetaItemDescriptor<>("customMaxSilence", ValueType.POSITIVE_INTEGER);
+
+    /**
+     * Poll the device channel of a linked attribute every this many milliseconds; for devices that do not send
+     * readings by themselves.
+     */
+    public static final MetaItemDescriptor<Integer> POLL_INTERVAL_META_ITEM_DESCRIPTOR = new MetaItemDescriptor<>("customPollInterval", ValueType.POSITIVE_INTEGER);
+
+    /**
+     * The <code>host:port</code> a UDP device can be reached at before it has sent anything; needed to poll devices
+     * that never send unsolicited frames.
+     */
+    public static final MetaItemDescriptor<String> DEVICE_ADDRESS_META_ITEM_DESCRIPTOR = new MetaItemDescriptor<>("customDeviceAddress", ValueType.TEXT);
+
     public static final AgentDescriptor<CustomAgent, CustomProtocol, DefaultAgentLink> DESCRIPTOR = new AgentDescriptor<>(
         CustomAgent.class, CustomProtocol.class, DefaultAgentLink.class
     );
@@ -79,5 +182,67 @@ public class CustomAgent extends Agent<CustomAgent, CustomProtocol, DefaultAgent
         getAttributes().getOrCreate(OPTION_ATTRIBUTE_DESCRIPTOR).setValue(value);
         return this;
     }
-}
 
+    public Optional<Transport> getTransport() {
+        return getAttributes().getValue(TRANSPORT_ATTRIBUTE_DESCRIPTOR);
+    }
+
+    public CustomAgent setTransport(Transport value) {
+        getAttributes().getOrCreate(TRANSPORT_ATTRIBUTE_DESCRIPTOR).setValue(value);
+        return this;
+    }
+
+    public Optional<Integer> getFlushWindow() {
+        return getAttributes().getValue(FLUSH_WINDOW_ATTRIBUTE_DESCRIPTOR);
+    }
+
+    public CustomAgent setFlushWindow(Integer value) {
+        getAttributes().getOrCreate(FLUSH_WINDOW_ATTRIBUTE_DESCRIPTOR).setValue(value);
+        return this;
+    }
+
+    public Optional<Integer> getWritePipelineDepth() {
+        return getAttributes().getValue(WRITE_PIPELINE_DEPTH_ATTRIBUTE_DESCRIPTOR);
+    }
+
+    public CustomAgent setWritePipelineDepth(Integer value) {
+        getAttributes().getOrCreate(WRITE_PIPELINE_DEPTH_ATTRIBUTE_DESCRIPTOR).setValue(value);
+        return this;
+    }
+
+    public Optional<Integer> getWriteTimeout() {
+        return getAttributes().getValue(WRITE_TIMEOUT_ATTRIBUTE_DESCRIPTOR);
+    }
+
+    public CustomAgent setWriteTimeout(Integer value) {
+        getAttributes().getOrCreate(WRITE_TIMEOUT_ATTRIBUTE_DESCRIPTOR).setValue(value);
+        return this;
+    }
+
+    public Optional<Boolean> getJournal() {
+        return getAttributes().getValue(JOURNAL_ATTRIBUTE_DESCRIPTOR);
+    }
+
+    public CustomAgent setJournal(Boolean value) {
+        getAttributes().getOrCreate(JOURNAL_ATTRIBUTE_DESCRIPTOR).setValue(value);
+        return this;
+    }
+
+    public Optional<Integer> getJournalReplayRate() {
+        return getAttributes().getValue(JOURNAL_REPLAY_RATE_ATTRIBUTE_DESCRIPTOR);
+    }
+
+    public CustomAgent setJournalReplayRate(Integer value) {
+        getAttributes().getOrCreate(JOURNAL_REPLAY_RATE_ATTRIBUTE_DESCRIPTOR).setValue(value);
+        return this;
+    }
+
+    public Optional<ExecutionMode> getExecutionMode() {
+        return getAttributes().getValue(EXECUTION_MODE_ATTRIBUTE_DESCRIPTOR);
+    }
+
+    public CustomAgent setExecutionMode(ExecutionMode value) {
+        getAttributes().getOrCreate(EXECUTION_MODE_ATTRIBUTE_DESCRIPTOR).setValue(value);
+        return this;
+    }
+}
@@ -30,31 +30,35 @@ import org.openremote.model.value.ValueDescriptor;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Registers the asset model of the custom agents in this package from {@link CustomAgentModelIndex}, which is
+ * generated at build time, so the manager does not need to scan the classpath for it on startup.
+ */
 public class CustomAgentModelProvider implements AssetModelProvider {
 
     @Override
     public boolean useAutoScan() {
-        return true;
+        return false;
     }
 
     @Override
     public AssetDescriptor<?>[] getAssetDescriptors() {
-        return new AssetDescriptor<?>[0];
+        return CustomAgentModelIndex.getAssetDescriptors();
     }
 
     @Override
     public Map<Class<? extends Asset<?>>, List<AttributeDescriptor<?>>> getAttributeDescriptors() {
-        return null;
+        return CustomAgentModelIndex.getAttributeDescriptors();
     }
 
     @Override
     public Map<Class<? extends Asset<?>>, List<MetaItemDescriptor<?>>> getMetaItemDescriptors() {
-        return null;
+        return CustomAgentModelIndex.getMetaItemDescriptors();
     }
 
     @Override
     public Map<Class<? extends Asset<?>>, List<ValueDescriptor<?>>> getValueDescriptors() {
-        return null;
+        return CustomAgentModelIndex.getValueDescriptors();
     }
 
     @Override
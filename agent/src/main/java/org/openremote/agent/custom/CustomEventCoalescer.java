@@ -0,0 +1,154 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.agent.custom;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Holds the latest reading of every linked attribute slot so that bursts of readings for the same attribute within a
+ * flush window collapse into a single event. Readers (transport threads) call {@link #update} which only stores
+ * primitives and sets a dirty bit; the flusher calls {@link #flush} which claims the dirty bits a word (64 slots) at a
+ * time so slots that did not change cost almost nothing to skip.
+ */
+public class CustomEventCoalescer {
+
+    /**
+     * Receives the latest value of each slot that changed since the previous flush.
+     */
+    @FunctionalInterface
+    public interface Sink {
+        void emit(int slot, double value, long timestamp);
+    }
+
+    protected static final class State {
+        protected final int capacity;
+        protected final AtomicLongArray values;
+        protected final AtomicLongArray timestamps;
+        protected final AtomicLongArray dirty;
+
+        protected State(int capacity) {
+            this.capacity = capacity;
+            values = new AtomicLongArray(capacity);
+            timestamps = new AtomicLongArray(capacity);
+            dirty = new AtomicLongArray((capacity + 63) >>> 6);
+        }
+    }
+
+    protected volatile State state;
+
+    public CustomEventCoalescer(int initialCapacity) {
+        state = new State(Math.max(64, initialCapacity));
+    }
+
+    /**
+     * Grows the slot arrays so the given slot can be stored; only called when attributes are linked.
+     */
+    public synchronized void ensureCapacity(int slot) {
+        State current = state;
+        if (slot < current.capacity) {
+            return;
+        }
+        State grown = new State(Math.max(slot + 1, current.capacity * 2));
+        for (int i = 0; i < current.capacity; i++) {
+            grown.values.set(i, current.values.get(i));
+            grown.timestamps.set(i, current.timestamps.get(i));
+        }
+        for (int i = 0; i < current.dirty.length(); i++) {
+            grown.dirty.set(i, current.dirty.get(i));
+        }
+        state = grown;
+    }
+
+    public void update(int slot, double value, long timestamp) {
+        State current;
+        do {
+            // Repeat against the new arrays if they were swapped while writing so the update cannot get lost
+            current = state;
+            current.values.set(slot, Double.doubleToRawLongBits(value));
+            current.timestamps.set(slot, timestamp);
+            setDirty(current, slot);
+        } while (current != state);
+    }
+
+    /**
+     * The latest value of the slot; only meaningful if {@link #getTimestamp} is not <code>0</code>.
+     */
+    public double getValue(int slot) {
+        State current = state;
+        return slot < current.capacity ? Double.longBitsToDouble(current.values.get(slot)) : Double.NaN;
+    }
+
+    /**
+     * The timestamp of the latest value of the slot or <code>0</code> if no value has been received.
+     */
+    public long getTimestamp(int slot) {
+        State current = state;
+        return slot < current.capacity ? current.timestamps.get(slot) : 0L;
+    }
+
+    /**
+     * Discards the value of the slot; used when the slot is released.
+     */
+    public void clear(int slot) {
+        State current = state;
+        if (slot < current.capacity) {
+            current.timestamps.set(slot, 0L);
+            long mask = 1L << slot;
+            int word = slot >>> 6;
+            long bits;
+            do {
+                bits = current.dirty.get(word);
+            } while ((bits & mask) != 0 && !current.dirty.compareAndSet(word, bits, bits & ~mask));
+        }
+    }
+
+    /**
+     * Emits every dirty slot once and returns the number of slots emitted.
+     */
+    public int flush(Sink sink) {
+        State current = state;
+        int emitted = 0;
+
+        for (int word = 0; word < current.dirty.length(); word++) {
+            if (current.dirty.get(word) == 0L) {
+                continue;
+            }
+            long bits = current.dirty.getAndSet(word, 0L);
+            while (bits != 0L) {
+                int bit = Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                int slot = (word << 6) + bit;
+                sink.emit(slot, Double.longBitsToDouble(current.values.get(slot)), current.timestamps.get(slot));
+                emitted++;
+            }
+        }
+
+        return emitted;
+    }
+
+    protected static void setDirty(State state, int slot) {
+        long mask = 1L << slot;
+        int word = slot >>> 6;
+        long bits;
+        do {
+            bits = state.dirty.get(word);
+        } while ((bits & mask) == 0 && !state.dirty.compareAndSet(word, bits, bits | mask));
+    }
+}
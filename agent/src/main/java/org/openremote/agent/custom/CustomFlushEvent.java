@@ -0,0 +1,49 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.agent.custom;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event covering a {@link CustomProtocol} flush that emitted at least one attribute event; only created and
+ * committed while a recording has it enabled (e.g. <code>jcmd &lt;pid&gt; JFR.start</code>), otherwise the cost is a
+ * single check.
+ */
+@Name("org.openremote.custom.ProtocolFlush")
+@Label("Custom Protocol Flush")
+@Category({"OpenRemote", "Custom"})
+@Description("Coalesced readings of a custom protocol instance emitted as attribute events")
+@StackTrace(false)
+public class CustomFlushEvent extends Event {
+
+    @Label("Agent ID")
+    protected String agentId;
+
+    @Label("Emitted")
+    protected int emitted;
+
+    @Label("Filtered")
+    protected int filtered;
+}
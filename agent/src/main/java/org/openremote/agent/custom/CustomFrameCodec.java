@@ -0,0 +1,204 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.agent.custom;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes the binary frames exchanged with field devices by the {@link CustomProtocol}. All multi-byte
+ * values are big endian and every frame has the following layout:
+ *
+ * <pre>
+ * offset  size  field
+ *      0     1  magic ({@link #MAGIC})
+ *      1     1  frame type
+ *      2     4  device ID
+ *      6     4  sequence number
+ *     10     2  entry count (unsigned)
+ *     12  10*n  entries of: channel (unsigned short), value (double)
+ * </pre>
+ *
+ * Devices send {@link #TYPE_READING} frames and answer {@link #TYPE_WRITE} frames with a {@link #TYPE_ACK} or
+ * {@link #TYPE_NACK} frame that carries the sequence number of the write and no entries. Poll-only devices answer a
+ * {@link #TYPE_READ} frame, whose entries list the channels to read (the values are ignored), with a
+ * {@link #TYPE_READING} frame.
+ *
+ * Decoding works directly on the (typically direct and reused) {@link ByteBuffer} the frame was received into using
+ * absolute reads, nothing is allocated per frame.
+ */
+public final class CustomFrameCodec {
+
+    /**
+     * Receives the content of decoded frames; the arguments are only valid for the duration of the call.
+     */
+    public interface FrameHandler {
+
+        /**
+         * Called once for every frame before its entries with whatever the transport uses to reply to the sender.
+         */
+        default void onFrame(int deviceId, byte type, Object source) {
+        }
+
+        void onReading(int deviceId, int channel, double value, long timestamp);
+
+        default void onWrite(int deviceId, int sequence, int channel, double value) {
+        }
+
+        default void onAck(int deviceId, int sequence, boolean success) {
+        }
+
+        default void onRead(int deviceId, int sequence, int channel) {
+        }
+    }
+
+    public static final byte MAGIC = (byte) 0xCD;
+    public static final byte TYPE_READING = 0x01;
+    public static final byte TYPE_WRITE = 0x02;
+    public static final byte TYPE_ACK = 0x03;
+    public static final byte TYPE_NACK = 0x04;
+    public static final byte TYPE_READ = 0x05;
+    public static final int HEADER_SIZE = 12;
+    public static final int ENTRY_SIZE = 10;
+    public static final int MAX_ENTRIES = 1024;
+    public static final int MAX_CHANNEL = 0xFFFF;
+    public static final int MAX_FRAME_SIZE = HEADER_SIZE + MAX_ENTRIES * ENTRY_SIZE;
+
+    private CustomFrameCodec() {
+    }
+
+    /**
+     * Packs a device ID and channel into the single <code>long</code> address used to identify a linked attribute.
+     */
+    public static long address(int deviceId, int channel) {
+        return ((long) deviceId << 32) | (channel & 0xFFFFFFFFL);
+    }
+
+    public static int deviceId(long address) {
+        return (int) (address >>> 32);
+    }
+
+    public static int channel(long address) {
+        return (int) address;
+    }
+
+    /**
+     * Returns the total length of the frame starting at the given offset, <code>0</code> if not enough bytes are
+     * available to tell yet or <code>-1</code> if the bytes at the offset are not a valid frame header.
+     */
+    public static int frameLength(ByteBuffer buffer, int offset, int limit) {
+        if (limit - offset < HEADER_SIZE) {
+            return 0;
+        }
+        if (buffer.get(offset) != MAGIC) {
+            return -1;
+        }
+        int count = buffer.getShort(offset + 10) & 0xFFFF;
+        if (count > MAX_ENTRIES) {
+            return -1;
+        }
+        return HEADER_SIZE + count * ENTRY_SIZE;
+    }
+
+    /**
+     * Decodes all complete frames between the buffer's position and limit and advances the position past them; a
+     * trailing partial frame is left in place so the caller can compact the buffer and read more. Returns the number
+     * of frames decoded or <code>-1</code> if a malformed frame was found, in which case the position is left at the
+     * start of the malformed frame.
+     */
+    public static int decode(ByteBuffer buffer, long timestamp, Object source, FrameHandler handler) {
+        int frames = 0;
+        int offset = buffer.position();
+        int limit = buffer.limit();
+
+        while (true) {
+            int length = frameLength(buffer, offset, limit);
+            if (length < 0) {
+                buffer.position(offset);
+                return -1;
+            }
+            if (length == 0 || limit - offset < length) {
+                break;
+            }
+            decodeFrame(buffer, offset, timestamp, source, handler);
+            offset += length;
+            frames++;
+        }
+
+        buffer.position(offset);
+        return frames;
+    }
+
+    static void decodeFrame(ByteBuffer buffer, int offset, long timestamp, Object source, FrameHandler handler) {
+        byte type = buffer.get(offset + 1);
+        int deviceId = buffer.getInt(offset + 2);
+        int sequence = buffer.getInt(offset + 6);
+        int count = buffer.getShort(offset + 10) & 0xFFFF;
+        int entry = offset + HEADER_SIZE;
+
+        handler.onFrame(deviceId, type, source);
+
+        switch (type) {
+            case TYPE_READING:
+                for (int i = 0; i < count; i++, entry += ENTRY_SIZE) {
+                    handler.onReading(deviceId, buffer.getShort(entry) & 0xFFFF, buffer.getDouble(entry + 2), timestamp);
+                }
+                break;
+            case TYPE_WRITE:
+                for (int i = 0; i < count; i++, entry += ENTRY_SIZE) {
+                    handler.onWrite(deviceId, sequence, buffer.getShort(entry) & 0xFFFF, buffer.getDouble(entry + 2));
+                }
+                break;
+            case TYPE_ACK:
+            case TYPE_NACK:
+                handler.onAck(deviceId, sequence, type == TYPE_ACK);
+                break;
+            case TYPE_READ:
+                for (int i = 0; i < count; i++, entry += ENTRY_SIZE) {
+                    handler.onRead(deviceId, sequence, buffer.getShort(entry) & 0xFFFF);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Writes a frame header at the buffer's position; entries are then added with {@link #putEntry}.
+     */
+    public static void putHeader(ByteBuffer buffer, byte type, int deviceId, int sequence, int count) {
+        if (count > MAX_ENTRIES) {
+            throw new IllegalArgumentException("Frame cannot contain more than " + MAX_ENTRIES + " entries: " + count);
+        }
+        buffer.put(MAGIC)
+            .put(type)
+            .putInt(deviceId)
+            .putInt(sequence)
+            .putShort((short) count);
+    }
+
+    /**
+     * Writes an entry at the buffer's position; throws an {@link IllegalArgumentException} if the channel does not fit
+     * in the unsigned short of the entry rather than truncating it to another channel.
+     */
+    public static void putEntry(ByteBuffer buffer, int channel, double value) {
+        if (channel < 0 || channel > MAX_CHANNEL) {
+            throw new IllegalArgumentException("Channel must be between 0 and " + MAX_CHANNEL + ": " + channel);
+        }
+        buffer.putShort((short) channel).putDouble(value);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.agent.custom;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Routes decoded frames by device ID to the {@link CustomFrameCodec.FrameHandler}s that registered the device; used
+ * when several {@link CustomProtocol} instances share one {@link CustomTransport} (see {@link CustomTransportPool}).
+ * Frames for devices that no handler registered are dropped.
+ * <p>
+ * Routes are kept in an open addressing table of immutable entries that is updated in place under the router's lock:
+ * a change replaces the entry of a single slot (a removed device leaves a tombstone) so linking or unlinking many
+ * devices costs constant time per device, and the table is only copied when it has to grow or has too many tombstones.
+ * Dispatch is a lock free read of the slots and neither boxes nor allocates.
+ */
+public class CustomFrameRouter implements CustomFrameCodec.FrameHandler {
+
+    protected static final CustomFrameCodec.FrameHandler[] NO_HANDLERS = new CustomFrameCodec.FrameHandler[0];
+    protected static final int MIN_CAPACITY = 16;
+
+    protected static final class Route {
+        protected final int deviceId;
+        protected final CustomFrameCodec.FrameHandler[] handlers;
+
+        protected Route(int deviceId, CustomFrameCodec.FrameHandler[] handlers) {
+            this.deviceId = deviceId;
+            this.handlers = handlers;
+        }
+    }
+
+    /**
+     * Marks a slot whose device was removed; lookups continue probing past it.
+     */
+    protected static final Route TOMBSTONE = new Route(0, NO_HANDLERS);
+
+    protected volatile AtomicReferenceArray<Route> table = new AtomicReferenceArray<>(MIN_CAPACITY);
+    protected volatile int size;
+    protected int tombstones;
+
+    /**
+     * Routes the frames of the device to the handler as well as any other handler already registered for it.
+     */
+    public synchronized void register(int deviceId, CustomFrameCodec.FrameHandler handler) {
+        AtomicReferenceArray<Route> slots = table;
+        int mask = slots.length() - 1;
+        int index = hash(deviceId) & mask;
+        int free = -1;
+        Route route;
+
+        while ((route = slots.get(index)) != null) {
+            if (route == TOMBSTONE) {
+                if (free < 0) {
+                    free = index;
+                }
+            } else if (route.deviceId == deviceId) {
+                for (CustomFrameCodec.FrameHandler existing : route.handlers) {
+                    if (existing == handler) {
+                        return;
+                    }
+                }
+                CustomFrameCodec.FrameHandler[] updated = Arrays.copyOf(route.handlers, route.handlers.length + 1);
+                updated[route.handlers.length] = handler;
+                slots.set(index, new Route(deviceId, updated));
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+
+        if (free >= 0) {
+            tombstones--;
+        } else {
+            free = index;
+        }
+        slots.set(free, new Route(deviceId, new CustomFrameCodec.FrameHandler[]{handler}));
+        size++;
+        // Keep the table at most half full counting tombstones so probes stay short and always end at an empty slot
+        if ((size + tombstones) * 2 > slots.length()) {
+            rebuild();
+        }
+    }
+
+    public synchronized void unregister(int deviceId, CustomFrameCodec.FrameHandler handler) {
+        AtomicReferenceArray<Route> slots = table;
+        int mask = slots.length() - 1;
+        int index = hash(deviceId) & mask;
+        Route route;
+
+        while ((route = slots.get(index)) != null) {
+            if (route != TOMBSTONE && route.deviceId == deviceId) {
+                remove(slots, index, route, handler);
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * Removes the handler from every device it was registered for in a single pass over the table.
+     */
+    public synchronized void unregisterAll(CustomFrameCodec.FrameHandler handler) {
+        AtomicReferenceArray<Route> slots = table;
+        for (int i = 0; i < slots.length(); i++) {
+            Route route = slots.get(i);
+            if (route != null && route != TOMBSTONE) {
+                remove(slots, i, route, handler);
+            }
+        }
+        if (tombstones > size && slots.length() > MIN_CAPACITY) {
+            rebuild();
+        }
+    }
+
+    /**
+     * The number of devices with at least one handler.
+     */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void onFrame(int deviceId, byte type, Object source) {
+        for (CustomFrameCodec.FrameHandler handler : get(deviceId)) {
+            handler.onFrame(deviceId, type, source);
+        }
+    }
+
+    @Override
+    public void onReading(int deviceId, int channel, double value, long timestamp) {
+        for (CustomFrameCodec.FrameHandler handler : get(deviceId)) {
+            handler.onReading(deviceId, channel, value, timestamp);
+        }
+    }
+
+    @Override
+    public void onWrite(int deviceId, int sequence, int channel, double value) {
+        for (CustomFrameCodec.FrameHandler handler : get(deviceId)) {
+            handler.onWrite(deviceId, sequence, channel, value);
+        }
+    }
+
+    @Override
+    public void onAck(int deviceId, int sequence, boolean success) {
+        for (CustomFrameCodec.FrameHandler handler : get(deviceId)) {
+            handler.onAck(deviceId, sequence, success);
+        }
+    }
+
+    @Override
+    public void onRead(int deviceId, int sequence, int channel) {
+        for (CustomFrameCodec.FrameHandler handler : get(deviceId)) {
+            handler.onRead(deviceId, sequence, channel);
+        }
+    }
+
+    protected CustomFrameCodec.FrameHandler[] get(int deviceId) {
+        AtomicReferenceArray<Route> slots = table;
+        int mask = slots.length() - 1;
+        int index = hash(deviceId) & mask;
+        Route route;
+        while ((route = slots.get(index)) != null) {
+            if (route.deviceId == deviceId && route != TOMBSTONE) {
+                return route.handlers;
+            }
+            index = (index + 1) & mask;
+        }
+        return NO_HANDLERS;
+    }
+
+    protected void remove(AtomicReferenceArray<Route> slots, int index, Route route, CustomFrameCodec.FrameHandler handler) {
+        CustomFrameCodec.FrameHandler[] updated = Arrays.stream(route.handlers).filter(existing -> existing != handler).toArray(CustomFrameCodec.FrameHandler[]::new);
+        if (updated.length == route.handlers.length) {
+            return;
+        }
+        if (updated.length > 0) {
+            slots.set(index, new Route(route.deviceId, updated));
+        } else {
+            slots.set(index, TOMBSTONE);
+            size--;
+            tombstones++;
+        }
+    }
+
+    /**
+     * Copies the routes into a new table sized for them without tombstones; readers keep using the old table until the
+     * new one is published.
+     */
+    protected void rebuild() {
+        AtomicReferenceArray<Route> current = table;
+        int capacity = MIN_CAPACITY;
+        // At most a quarter full after a rebuild so many changes can be made before the next one
+        while (capacity < size * 4) {
+            capacity <<= 1;
+        }
+        AtomicReferenceArray<Route> rebuilt = new AtomicReferenceArray<>(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < current.length(); i++) {
+            Route route = current.get(i);
+            if (route != null && route != TOMBSTONE) {
+                int index = hash(route.deviceId) & mask;
+                while (rebuilt.get(index) != null) {
+                    index = (index + 1) & mask;
+                }
+                rebuilt.set(index, route);
+            }
+        }
+        tombstones = 0;
+        table = rebuilt;
+    }
+
+    protected static int hash(int deviceId) {
+        int h = deviceId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
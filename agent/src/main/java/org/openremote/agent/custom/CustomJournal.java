@@ -0,0 +1,318 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.agent.custom;
+
+import org.openremote.model.syslog.SyslogCategory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static org.openremote.model.syslog.SyslogCategory.PROTOCOL;
+
+/**
+ * Append only journal of decoded readings backed by fixed size memory-mapped segment files; used by the
+ * {@link CustomProtocol} to store readings until they have been delivered as attribute events so they can be replayed
+ * after a restart or once event processing recovers.
+ * <p>
+ * Every record is addressed by its position (a sequence number starting at <code>0</code>) and is stored as
+ * {@link #RECORD_SIZE} bytes: the position, timestamp, device ID, channel and value. The position is written last and a
+ * record is only considered valid when its stored position matches the expected one; this detects both torn records
+ * and stale records left behind in a recycled segment so segments never need to be zeroed. Readings that were written
+ * before a process crash survive in the page cache; {@link #sync} forces them to disk and bounds what is lost when the
+ * host itself fails.
+ * <p>
+ * The acknowledged position is stored in a small checkpoint file; segments that only contain acknowledged records are
+ * kept as spares (up to {@link #MAX_SPARE_SEGMENTS}) and renamed for reuse rather than deleted.
+ * <p>
+ * The protocol journals every reading when {@link CustomAgent#JOURNAL_ATTRIBUTE_DESCRIPTOR} is enabled and acknowledges
+ * them as flushes succeed. When a flush fails acknowledgement stops, and once flushes succeed again the readings since
+ * the last acknowledged position are replayed in order with their original timestamp, at most
+ * {@link CustomAgent#JOURNAL_REPLAY_RATE_ATTRIBUTE_DESCRIPTOR} per second alongside live readings; readings left in
+ * the journal when the protocol stopped are replayed the same way on start.
+ */
+public class CustomJournal implements Closeable {
+
+    /**
+     * Receives replayed records in order.
+     */
+    @FunctionalInterface
+    public interface RecordHandler {
+        void onRecord(long position, int deviceId, int channel, double value, long timestamp);
+    }
+
+    private static final Logger LOG = SyslogCategory.getLogger(PROTOCOL, CustomJournal.class);
+    public static final int RECORD_SIZE = 32;
+    public static final int MAX_SPARE_SEGMENTS = 2;
+    public static final String SEGMENT_SUFFIX = ".segment";
+    public static final String CHECKPOINT_FILE = "checkpoint";
+    protected final Path directory;
+    protected final int segmentRecords;
+    protected final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+    protected final ArrayDeque<Path> spareSegments = new ArrayDeque<>();
+    protected final Object appendLock = new Object();
+    protected MappedByteBuffer checkpoint;
+    protected volatile MappedByteBuffer writeSegment;
+    protected long writeSegmentBase;
+    protected volatile long writePosition;
+    protected volatile long ackPosition;
+
+    public CustomJournal(Path directory, int segmentRecords) {
+        this.directory = directory;
+        this.segmentRecords = segmentRecords;
+    }
+
+    /**
+     * Maps the existing segments and recovers the write position by scanning the newest one for its last valid
+     * record.
+     */
+    public synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+        checkpoint = map(directory.resolve(CHECKPOINT_FILE), 16);
+        long acknowledged = checkpoint.getLong(0);
+        ackPosition = acknowledged == ~checkpoint.getLong(8) ? acknowledged : 0L;
+
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX)).forEach(file -> {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), map(file, segmentBytes()));
+                } catch (NumberFormatException e) {
+                    LOG.warning("Ignoring unexpected file in custom journal directory: " + file);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to map custom journal segment: " + file, e);
+                }
+            });
+        }
+
+        if (segments.isEmpty()) {
+            writeSegmentBase = ackPosition - ackPosition % segmentRecords;
+            writeSegment = createSegment(writeSegmentBase);
+            writePosition = ackPosition;
+        } else {
+            Map.Entry<Long, MappedByteBuffer> newest = segments.lastEntry();
+            writeSegmentBase = newest.getKey();
+            writeSegment = newest.getValue();
+            int index = 0;
+            while (index < segmentRecords && writeSegment.getLong(index * RECORD_SIZE) == writeSegmentBase + index) {
+                index++;
+            }
+            writePosition = writeSegmentBase + index;
+            if (ackPosition > writePosition || ackPosition < segments.firstKey()) {
+                LOG.warning("Custom journal checkpoint does not match its segments so replaying everything: " + directory);
+                ackPosition = segments.firstKey();
+            }
+            recycle();
+        }
+    }
+
+    /**
+     * Appends a record and returns its position; safe to call from several threads (e.g. one per connection), appends
+     * are serialised on their own lock so they never wait for a replay or acknowledgement.
+     */
+    public long append(int deviceId, int channel, double value, long timestamp) throws IOException {
+        synchronized (appendLock) {
+            if (writeSegment == null) {
+                throw new IOException("Custom journal is closed: " + directory);
+            }
+            long position = writePosition;
+            int index = (int) (position - writeSegmentBase);
+
+            if (index == segmentRecords) {
+                roll(position);
+                index = 0;
+            }
+
+            int offset = index * RECORD_SIZE;
+            MappedByteBuffer segment = writeSegment;
+            segment.putLong(offset + 8, timestamp);
+            segment.putInt(offset + 16, deviceId);
+            segment.putInt(offset + 20, channel);
+            segment.putDouble(offset + 24, value);
+            segment.putLong(offset, position);
+            writePosition = position + 1;
+            return position;
+        }
+    }
+
+    /**
+     * Passes up to <code>maxRecords</code> records starting at <code>position</code> to the handler and returns the
+     * position after the last record passed; records that can no longer be read (recycled or invalid) are skipped.
+     */
+    public long replay(long position, int maxRecords, RecordHandler handler) {
+        long end = Math.min(writePosition, position + maxRecords);
+
+        while (position < end) {
+            MappedByteBuffer segment;
+            long base;
+            synchronized (this) {
+                Map.Entry<Long, MappedByteBuffer> entry = segments.floorEntry(position);
+                if (entry == null) {
+                    // Already recycled so nothing left to replay before the oldest segment
+                    Long oldest = segments.ceilingKey(position);
+                    position = oldest != null ? Math.min(oldest, end) : end;
+                    continue;
+                }
+                base = entry.getKey();
+                segment = entry.getValue();
+                if (position >= base + segmentRecords) {
+                    // Skip over a segment that is missing
+                    Long next = segments.higherKey(base);
+                    position = next != null ? Math.min(next, end) : end;
+                    continue;
+                }
+            }
+            long segmentEnd = Math.min(end, base + segmentRecords);
+            for (; position < segmentEnd; position++) {
+                int offset = (int) (position - base) * RECORD_SIZE;
+                if (segment.getLong(offset) != position) {
+                    continue;
+                }
+                handler.onRecord(
+                    position,
+                    segment.getInt(offset + 16),
+                    segment.getInt(offset + 20),
+                    segment.getDouble(offset + 24),
+                    segment.getLong(offset + 8)
+                );
+            }
+        }
+
+        return position;
+    }
+
+    /**
+     * Marks every record before the position as delivered; segments that only contain delivered records are recycled.
+     */
+    public synchronized void acknowledge(long position) {
+        if (position <= ackPosition) {
+            return;
+        }
+        ackPosition = Math.min(position, writePosition);
+        checkpoint.putLong(8, ~ackPosition);
+        checkpoint.putLong(0, ackPosition);
+        recycle();
+    }
+
+    /**
+     * Forces the segment being written and the checkpoint to disk.
+     */
+    public void sync() {
+        MappedByteBuffer segment = writeSegment;
+        if (segment != null) {
+            segment.force();
+        }
+        synchronized (this) {
+            if (checkpoint != null) {
+                checkpoint.force();
+            }
+        }
+    }
+
+    public long getWritePosition() {
+        return writePosition;
+    }
+
+    public long getAckPosition() {
+        return ackPosition;
+    }
+
+    /**
+     * The number of records that have not been acknowledged.
+     */
+    public long getBacklog() {
+        return writePosition - ackPosition;
+    }
+
+    @Override
+    public void close() {
+        // Same lock order as append (which may roll a segment) so an append in progress completes first
+        synchronized (appendLock) {
+            synchronized (this) {
+                sync();
+                segments.clear();
+                spareSegments.clear();
+                writeSegment = null;
+                checkpoint = null;
+            }
+        }
+    }
+
+    protected synchronized void roll(long base) throws IOException {
+        writeSegment.force();
+        writeSegment = createSegment(base);
+        writeSegmentBase = base;
+    }
+
+    protected synchronized MappedByteBuffer createSegment(long base) throws IOException {
+        Path file = directory.resolve(String.format("%020d", base) + SEGMENT_SUFFIX);
+        Path spare = spareSegments.poll();
+
+        if (spare != null) {
+            // Stale records in the spare carry old positions so they are never mistaken for new ones
+            Files.move(spare, file, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        MappedByteBuffer segment = map(file, segmentBytes());
+        segments.put(base, segment);
+        return segment;
+    }
+
+    protected void recycle() {
+        while (!segments.isEmpty()) {
+            long base = segments.firstKey();
+            if (base == writeSegmentBase || base + segmentRecords > ackPosition) {
+                return;
+            }
+            segments.remove(base);
+            Path file = directory.resolve(String.format("%020d", base) + SEGMENT_SUFFIX);
+            if (spareSegments.size() < MAX_SPARE_SEGMENTS) {
+                spareSegments.add(file);
+            } else {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    LOG.warning("Failed to delete custom journal segment: " + file + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    protected int segmentBytes() {
+        return segmentRecords * RECORD_SIZE;
+    }
+
+    protected static MappedByteBuffer map(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.agent.custom;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets in the style of HdrHistogram: values below {@link #SUB_BUCKETS}
+ * get a bucket each and every power of two above that is split into <code>SUB_BUCKETS / 2</code> buckets, so a value
+ * is known to within about 3% across the whole range of a <code>long</code> using a fixed array of counts. Recording is
+ * an atomic increment of one bucket and two {@link LongAdder} updates so any number of threads can record at once;
+ * reads are not atomic across buckets which is fine for monitoring.
+ */
+public class CustomLatencyHistogram {
+
+    public static final int SUB_BUCKET_BITS = 6;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    protected static final int HALF_SUB_BUCKETS = SUB_BUCKETS >>> 1;
+    protected final AtomicLongArray counts = new AtomicLongArray(index(Long.MAX_VALUE) + 1);
+    protected final LongAdder sum = new LongAdder();
+
+    /**
+     * Records a value; negative values (e.g. from clock adjustments) are recorded as <code>0</code>.
+     */
+    public void record(long value) {
+        long v = Math.max(0L, value);
+        counts.incrementAndGet(index(v));
+        sum.add(v);
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the number of values recorded at or below each of the ascending bounds followed by the total number of
+     * values recorded; a bucket is counted for a bound when its highest value is at or below the bound.
+     */
+    public long[] getCumulativeCounts(long[] bounds) {
+        long[] cumulative = new long[bounds.length + 1];
+        long running = 0L;
+        int bound = 0;
+
+        for (int i = 0; i < counts.length(); i++) {
+            long count = counts.get(i);
+            if (count == 0L) {
+                continue;
+            }
+            long upper = highestEquivalentValue(i);
+            while (bound < bounds.length && upper > bounds[bound]) {
+                cumulative[bound++] = running;
+            }
+            running += count;
+        }
+        while (bound < bounds.length) {
+            cumulative[bound++] = running;
+        }
+        cumulative[bounds.length] = running;
+        return cumulative;
+    }
+
+    /**
+     * Returns the highest value of the bucket holding the value at the quantile (<code>0</code> to <code>1</code>) or
+     * <code>0</code> if nothing has been recorded.
+     */
+    public long getValueAtQuantile(double quantile) {
+        long total = 0L;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        long target = Math.max(1L, (long) Math.ceil(quantile * total));
+        long running = 0L;
+
+        for (int i = 0; i < counts.length() && total > 0L; i++) {
+            running += counts.get(i);
+            if (running >= target) {
+                return highestEquivalentValue(i);
+            }
+        }
+        return 0L;
+    }
+
+    protected static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    protected static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        long subBucket = index - (long) shift * HALF_SUB_BUCKETS;
+        // Wraps around to Long.MAX_VALUE for the top bucket
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.agent.custom;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per slot filtering of coalesced readings before they become attribute events; configured from the
+ * {@link CustomAgent#DEADBAND_META_ITEM_DESCRIPTOR}, {@link CustomAgent#DEADBAND_PERCENT_META_ITEM_DESCRIPTOR},
+ * {@link CustomAgent#MIN_INTERVAL_META_ITEM_DESCRIPTOR} and {@link CustomAgent#MAX_SILENCE_META_ITEM_DESCRIPTOR} meta
+ * items of the linked attribute. A reading is dropped when it arrives within the minimum interval of the previously
+ * emitted one or when it differs from it by no more than the deadband (the larger of the absolute and percentage
+ * deadband when both are set), unless the previous emission is older than the max silence in which case it is emitted
+ * as a heartbeat.
+ * <p>
+ * All state is kept in primitive arrays indexed by slot; callers must serialise access.
+ */
+public class CustomLinkFilter {
+
+    protected static final double NO_DEADBAND = -1d;
+    protected boolean[] filtered;
+    protected double[] deadbands;
+    protected double[] deadbandPercents;
+    protected long[] minIntervals;
+    protected long[] maxSilences;
+    protected double[] lastValues;
+    protected long[] lastTimestamps;
+    protected long[] suppressed;
+    protected final LongAdder deadbandSuppressed = new LongAdder();
+    protected final LongAdder minIntervalSuppressed = new LongAdder();
+    protected final LongAdder heartbeats = new LongAdder();
+    protected final LongAdder emitted = new LongAdder();
+
+    public CustomLinkFilter(int initialCapacity) {
+        allocate(Math.max(64, initialCapacity));
+    }
+
+    /**
+     * Sets the rules of the slot and forgets what was previously emitted for it; a negative deadband or a
+     * non-positive interval disables that rule.
+     */
+    public void configure(int slot, double deadband, double deadbandPercent, long minInterval, long maxSilence) {
+        ensureCapacity(slot);
+        deadbands[slot] = deadband >= 0 ? deadband : NO_DEADBAND;
+        deadbandPercents[slot] = deadbandPercent >= 0 ? deadbandPercent / 100d : NO_DEADBAND;
+        minIntervals[slot] = Math.max(0L, minInterval);
+        maxSilences[slot] = Math.max(0L, maxSilence);
+        filtered[slot] = deadband >= 0 || deadbandPercent >= 0 || minInterval > 0;
+        lastTimestamps[slot] = 0L;
+        suppressed[slot] = 0L;
+    }
+
+    public void clear(int slot) {
+        if (slot < filtered.length) {
+            configure(slot, NO_DEADBAND, NO_DEADBAND, 0L, 0L);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the reading should be emitted in which case it becomes the reference for the next
+     * one.
+     */
+    public boolean accept(int slot, double value, long timestamp) {
+        if (slot >= filtered.length || !filtered[slot]) {
+            emitted.increment();
+            return true;
+        }
+
+        long lastTimestamp = lastTimestamps[slot];
+
+        if (lastTimestamp != 0L) {
+            long elapsed = timestamp - lastTimestamp;
+            long maxSilence = maxSilences[slot];
+
+            if (maxSilence > 0L && elapsed >= maxSilence) {
+                heartbeats.increment();
+            } else if (elapsed < minIntervals[slot]) {
+                minIntervalSuppressed.increment();
+                suppressed[slot]++;
+                return false;
+            } else if (isWithinDeadband(slot, value)) {
+                deadbandSuppressed.increment();
+                suppressed[slot]++;
+                return false;
+            }
+        }
+
+        update(slot, value, timestamp);
+        emitted.increment();
+        return true;
+    }
+
+    /**
+     * Makes the value the reference for the slot without it having gone through {@link #accept}; used when the
+     * attribute was updated some other way (e.g. an acknowledged write).
+     */
+    public void update(int slot, double value, long timestamp) {
+        if (slot < filtered.length) {
+            lastValues[slot] = value;
+            lastTimestamps[slot] = Math.max(1L, timestamp);
+        }
+    }
+
+    public long getSuppressed(int slot) {
+        return slot < suppressed.length ? suppressed[slot] : 0L;
+    }
+
+    public long getDeadbandSuppressed() {
+        return deadbandSuppressed.sum();
+    }
+
+    public long getMinIntervalSuppressed() {
+        return minIntervalSuppressed.sum();
+    }
+
+    public long getHeartbeats() {
+        return heartbeats.sum();
+    }
+
+    public long getEmitted() {
+        return emitted.sum();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "emitted=" + getEmitted() +
+            ", deadbandSuppressed=" + getDeadbandSuppressed() +
+            ", minIntervalSuppressed=" + getMinIntervalSuppressed() +
+            ", heartbeats=" + getHeartbeats() +
+            '}';
+    }
+
+    protected boolean isWithinDeadband(int slot, double value) {
+        double deadband = deadbands[slot];
+        double deadbandPercent = deadbandPercents[slot];
+
+        if (deadband < 0 && deadbandPercent < 0) {
+            return false;
+        }
+
+        double lastValue = lastValues[slot];
+        double threshold = Math.max(deadband, deadbandPercent * Math.abs(lastValue));
+        // NaN never compares as within the deadband so a change to or from NaN is always emitted
+        return Math.abs(value - lastValue) <= threshold;
+    }
+
+    protected void ensureCapacity(int slot) {
+        if (slot >= filtered.length) {
+            int capacity = Math.max(slot + 1, filtered.length * 2);
+            int previous = filtered.length;
+            filtered = Arrays.copyOf(filtered, capacity);
+            deadbands = Arrays.copyOf(deadbands, capacity);
+            deadbandPercents = Arrays.copyOf(deadbandPercents, capacity);
+            minIntervals = Arrays.copyOf(minIntervals, capacity);
+            maxSilences = Arrays.copyOf(maxSilences, capacity);
+            lastValues = Arrays.copyOf(lastValues, capacity);
+            lastTimestamps = Arrays.copyOf(lastTimestamps, capacity);
+            suppressed = Arrays.copyOf(suppressed, capacity);
+            Arrays.fill(deadbands, previous, capacity, NO_DEADBAND);
+            Arrays.fill(deadbandPercents, previous, capacity, NO_DEADBAND);
+        }
+    }
+
+    protected void allocate(int capacity) {
+        filtered = new boolean[capacity];
+        deadbands = new double[capacity];
+        deadbandPercents = new double[capacity];
+        minIntervals = new long[capacity];
+        maxSilences = new long[capacity];
+        lastValues = new double[capacity];
+        lastTimestamps = new long[capacity];
+        suppressed = new long[capacity];
+        Arrays.fill(deadbands, NO_DEADBAND);
+        Arrays.fill(deadbandPercents, NO_DEADBAND);
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.agent.custom;
+
+import org.openremote.model.asset.agent.DefaultAgentLink;
+import org.openremote.model.attribute.AttributeRef;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntConsumer;
+
+/**
+ * Index of the attributes linked to a {@link CustomProtocol}. Every link is assigned a compact integer slot that the
+ * rest of the protocol uses to keep per-link state in primitive arrays, and device addresses (see
+ * {@link CustomFrameCodec#address}) map to slots through an open addressing <code>long -> int</code> table so that
+ * inbound dispatch neither hashes strings nor allocates.
+ * <p>
+ * The devices of the linked attributes are tracked in the same table (see {@link #deviceKey}) together with the
+ * endpoint the transport last received a frame from, which is where writes for the device are sent.
+ * <p>
+ * Link and unlink take a write lock; lookups are optimistic reads that only fall back to the read lock when they
+ * raced with a modification, so dispatch keeps running while links change.
+ * <p>
+ * Memory per link is 20 bytes of slot arrays plus 24-96 bytes of address table (the table is kept between 12.5% and 50%
+ * full) and the {@link AttributeRef}; the strings and the agent link are shared with the linked attribute.
+ */
+public class CustomLinkRegistry {
+
+    public static final int NO_SLOT = -1;
+    protected static final int MIN_TABLE_SIZE = 64;
+
+    /**
+     * Keys and values live in one object so an optimistic reader always sees a matching pair; a value of
+     * <code>0</code> marks an empty bucket, other values are the slot (or device index) plus one.
+     */
+    protected static final class Table {
+        protected final long[] keys;
+        protected final int[] values;
+        protected final int mask;
+
+        protected Table(int size) {
+            keys = new long[size];
+            values = new int[size];
+            mask = size - 1;
+        }
+    }
+
+    protected final StampedLock lock = new StampedLock();
+    protected final IntConsumer releaseListener;
+    protected Table table = new Table(MIN_TABLE_SIZE);
+    protected AttributeRef[] attributeRefs;
+    protected DefaultAgentLink[] agentLinks;
+    protected Class<?>[] valueTypes;
+    protected long[] addresses;
+    protected int[] slotDevices;
+    protected int[] freeSlots;
+    protected int freeCount;
+    protected int nextSlot;
+    protected int size;
+    protected Object[] deviceEndpoints;
+    protected int[] deviceLinkCounts;
+    protected int[] freeDevices;
+    protected int freeDeviceCount;
+    protected int nextDevice;
+    protected int entries;
+
+    public CustomLinkRegistry(int initialCapacity) {
+        this(initialCapacity, slot -> {
+        });
+    }
+
+    /**
+     * @param releaseListener called with every slot that is released (when unlinked or when its address is linked
+     *                        again) before the slot can be reused, so per-slot state kept elsewhere can be reset; runs
+     *                        while the write lock is held
+     */
+    public CustomLinkRegistry(int initialCapacity, IntConsumer releaseListener) {
+        this.releaseListener = releaseListener;
+        int capacity = Math.max(16, initialCapacity);
+        attributeRefs = new AttributeRef[capacity];
+        agentLinks = new DefaultAgentLink[capacity];
+        valueTypes = new Class<?>[capacity];
+        addresses = new long[capacity];
+        slotDevices = new int[capacity];
+        freeSlots = new int[16];
+        deviceEndpoints = new Object[16];
+        deviceLinkCounts = new int[16];
+        freeDevices = new int[16];
+    }
+
+    /**
+     * The table key of a device; channels are unsigned shorts so this never collides with an attribute address.
+     */
+    public static long deviceKey(int deviceId) {
+        return CustomFrameCodec.address(deviceId, -1);
+    }
+
+    /**
+     * Link an attribute to a device address and return its slot; an existing link for the same address is replaced
+     * and its slot released.
+     */
+    public int link(AttributeRef attributeRef, DefaultAgentLink agentLink, long address, Class<?> valueType) {
+        long stamp = lock.writeLock();
+        try {
+            int existing = find(table, address);
+            if (existing != NO_SLOT) {
+                release(existing);
+            }
+            int slot = freeCount > 0 ? freeSlots[--freeCount] : nextSlot++;
+            if (slot >= attributeRefs.length) {
+                growSlots(slot + 1);
+            }
+            attributeRefs[slot] = attributeRef;
+            agentLinks[slot] = agentLink;
+            valueTypes[slot] = valueType;
+            addresses[slot] = address;
+            slotDevices[slot] = acquireDevice(CustomFrameCodec.deviceId(address));
+            put(address, slot);
+            size++;
+            return slot;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Unlink the attribute and return the released slot or {@link #NO_SLOT} if it was not linked; the address is only
+     * a hint, if it no longer matches the slots are searched for the attribute.
+     */
+    public int unlink(AttributeRef attributeRef, long address) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(table, address);
+            if (slot == NO_SLOT || !attributeRef.equals(attributeRefs[slot])) {
+                slot = NO_SLOT;
+                for (int i = 0; i < nextSlot; i++) {
+                    if (attributeRef.equals(attributeRefs[i])) {
+                        slot = i;
+                        break;
+                    }
+                }
+            }
+            if (slot != NO_SLOT) {
+                release(slot);
+            }
+            return slot;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Hot path lookup of the slot linked to a device address; returns {@link #NO_SLOT} if there is none.
+     */
+    public int lookup(long address) {
+        long stamp = lock.tryOptimisticRead();
+        int slot = find(table, address);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                slot = find(table, address);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return slot;
+    }
+
+    public AttributeRef getAttributeRef(int slot) {
+        long stamp = lock.tryOptimisticRead();
+        AttributeRef[] refs = attributeRefs;
+        AttributeRef attributeRef = slot < refs.length ? refs[slot] : null;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                attributeRef = slot < attributeRefs.length ? attributeRefs[slot] : null;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return attributeRef;
+    }
+
+    public DefaultAgentLink getAgentLink(int slot) {
+        long stamp = lock.readLock();
+        try {
+            return slot < agentLinks.length ? agentLinks[slot] : null;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public Class<?> getValueType(int slot) {
+        long stamp = lock.tryOptimisticRead();
+        Class<?>[] types = valueTypes;
+        Class<?> valueType = slot < types.length ? types[slot] : null;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                valueType = slot < valueTypes.length ? valueTypes[slot] : null;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return valueType;
+    }
+
+    /**
+     * Remember where the last frame of a device came from; does nothing if the device has no linked attributes. Only
+     * takes a lock when the endpoint actually changes.
+     */
+    public void updateDeviceEndpoint(int deviceId, Object endpoint) {
+        long key = deviceKey(deviceId);
+        long stamp = lock.tryOptimisticRead();
+        int device = find(table, key);
+        Object[] endpoints = deviceEndpoints;
+        Object current = device != NO_SLOT && device < endpoints.length ? endpoints[device] : null;
+        if (lock.validate(stamp) && (device == NO_SLOT || current == endpoint)) {
+            return;
+        }
+
+        stamp = lock.readLock();
+        try {
+            device = find(table, key);
+            if (device != NO_SLOT) {
+                deviceEndpoints[device] = endpoint;
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Hot path lookup of the index of a device with linked attributes, which stays the same while it has links and can
+     * be used to keep per-device state in primitive arrays; returns {@link #NO_SLOT} if no attributes are linked to it.
+     */
+    public int lookupDevice(int deviceId) {
+        return lookup(deviceKey(deviceId));
+    }
+
+    /**
+     * Whether at least one attribute is linked to the device.
+     */
+    public boolean isDeviceLinked(int deviceId) {
+        long stamp = lock.readLock();
+        try {
+            return find(table, deviceKey(deviceId)) != NO_SLOT;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * The endpoint the last frame of the device was received from or <code>null</code> if it is not known.
+     */
+    public Object getDeviceEndpoint(int deviceId) {
+        long stamp = lock.readLock();
+        try {
+            int device = find(table, deviceKey(deviceId));
+            return device != NO_SLOT ? deviceEndpoints[device] : null;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public long getAddress(int slot) {
+        long stamp = lock.readLock();
+        try {
+            return slot < addresses.length ? addresses[slot] : 0L;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * The number of linked attributes.
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * One more than the highest slot ever assigned; per-slot state must be at least this big.
+     */
+    public int getSlotLimit() {
+        long stamp = lock.readLock();
+        try {
+            return nextSlot;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    protected int acquireDevice(int deviceId) {
+        long key = deviceKey(deviceId);
+        int device = find(table, key);
+        if (device == NO_SLOT) {
+            device = freeDeviceCount > 0 ? freeDevices[--freeDeviceCount] : nextDevice++;
+            if (device >= deviceEndpoints.length) {
+                deviceEndpoints = Arrays.copyOf(deviceEndpoints, deviceEndpoints.length * 2);
+                deviceLinkCounts = Arrays.copyOf(deviceLinkCounts, deviceLinkCounts.length * 2);
+            }
+            put(key, device);
+        }
+        deviceLinkCounts[device]++;
+        return device;
+    }
+
+    protected void releaseDevice(int device, int deviceId) {
+        if (--deviceLinkCounts[device] > 0) {
+            return;
+        }
+        remove(deviceKey(deviceId));
+        deviceEndpoints[device] = null;
+        if (freeDeviceCount == freeDevices.length) {
+            freeDevices = Arrays.copyOf(freeDevices, freeDevices.length * 2);
+        }
+        freeDevices[freeDeviceCount++] = device;
+    }
+
+    protected void release(int slot) {
+        remove(addresses[slot]);
+        releaseDevice(slotDevices[slot], CustomFrameCodec.deviceId(addresses[slot]));
+        attributeRefs[slot] = null;
+        agentLinks[slot] = null;
+        valueTypes[slot] = null;
+        addresses[slot] = 0L;
+        releaseListener.accept(slot);
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeCount++] = slot;
+        size--;
+    }
+
+    protected void growSlots(int minCapacity) {
+        int capacity = Math.max(minCapacity, attributeRefs.length * 2);
+        attributeRefs = Arrays.copyOf(attributeRefs, capacity);
+        agentLinks = Arrays.copyOf(agentLinks, capacity);
+        valueTypes = Arrays.copyOf(valueTypes, capacity);
+        addresses = Arrays.copyOf(addresses, capacity);
+        slotDevices = Arrays.copyOf(slotDevices, capacity);
+    }
+
+    protected static int find(Table table, long key) {
+        long[] keys = table.keys;
+        int[] values = table.values;
+        int mask = table.mask;
+        int index = hash(key) & mask;
+
+        // Bounded so a reader racing a writer can never spin; the result is discarded if validation fails anyway
+        for (int probes = 0; probes <= mask; probes++) {
+            int value = values[index];
+            if (value == 0) {
+                return NO_SLOT;
+            }
+            if (keys[index] == key) {
+                return value - 1;
+            }
+            index = (index + 1) & mask;
+        }
+        return NO_SLOT;
+    }
+
+    protected void put(long key, int index) {
+        if ((entries + 1) * 2 > table.keys.length) {
+            rehash(table.keys.length * 2);
+        }
+        insert(table, key, index + 1);
+        entries++;
+    }
+
+    protected static void insert(Table table, long key, int value) {
+        int index = hash(key) & table.mask;
+        while (table.values[index] != 0 && table.keys[index] != key) {
+            index = (index + 1) & table.mask;
+        }
+        table.keys[index] = key;
+        table.values[index] = value;
+    }
+
+    /**
+     * Removes the key using backward shift deletion so no tombstones are needed.
+     */
+    protected void remove(long key) {
+        Table t = table;
+        int index = hash(key) & t.mask;
+        while (t.values[index] != 0 && t.keys[index] != key) {
+            index = (index + 1) & t.mask;
+        }
+        if (t.values[index] == 0) {
+            return;
+        }
+
+        int gap = index;
+        int next = (gap + 1) & t.mask;
+        while (t.values[next] != 0) {
+            int home = hash(t.keys[next]) & t.mask;
+            // Move the entry into the gap if its home bucket is not between the gap and its current position
+            if (((next - home) & t.mask) >= ((next - gap) & t.mask)) {
+                t.keys[gap] = t.keys[next];
+                t.values[gap] = t.values[next];
+                gap = next;
+            }
+            next = (next + 1) & t.mask;
+        }
+        t.keys[gap] = 0L;
+        t.values[gap] = 0;
+        entries--;
+
+        if (t.keys.length > MIN_TABLE_SIZE && entries * 8 < t.keys.length) {
+            rehash(t.keys.length / 2);
+        }
+    }
+
+    protected void rehash(int newSize) {
+        Table old = table;
+        Table rehashed = new Table(Math.max(MIN_TABLE_SIZE, newSize));
+        for (int i = 0; i < old.keys.length; i++) {
+            if (old.values[i] != 0) {
+                insert(rehashed, old.keys[i], old.values[i]);
+            }
+        }
+        table = rehashed;
+    }
+
+    protected static int hash(long key) {
+        // Murmur3 64 bit finalizer, device IDs and channels are small sequential numbers
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.agent.custom;
+
+import org.openremote.model.syslog.SyslogCategory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.PROTOCOL;
+
+/**
+ * Polls linked attributes of poll-only devices that have a {@link CustomAgent#POLL_INTERVAL_META_ITEM_DESCRIPTOR}
+ * (the devices answer with ordinary reading frames) using a hashed timer wheel: each polled slot sits in the bucket of
+ * the tick it is next due in (with a round count for intervals longer than the wheel) so a {@link #tick} only looks at
+ * the slots that are due. The slots due in a tick are grouped by device and each device gets a single
+ * {@link CustomFrameCodec#TYPE_READ} frame listing all of its due channels.
+ * <p>
+ * Devices are given a phase within their poll interval derived from the device ID so devices polled at the same
+ * interval are spread over it rather than all polled in the same tick, while the attributes of one device stay aligned
+ * and keep being read together. The interval of a device is doubled (up to {@link #MAX_BACKOFF}) when it did not
+ * answer its previous read or answered slower than the slow response threshold and halved again once it answers
+ * quickly.
+ * <p>
+ * {@link #schedule}, {@link #cancel} and {@link #tick} must be serialised by the caller; {@link #onResponse} may be
+ * called concurrently from the transport and only records the time.
+ */
+public class CustomPollScheduler {
+
+    /**
+     * Sends a read frame for the channels of a device; implementations must not call back into the scheduler.
+     */
+    @FunctionalInterface
+    public interface Sender {
+        void sendRead(int deviceId, int[] channels, int count) throws IOException;
+    }
+
+    private static final Logger LOG = SyslogCategory.getLogger(PROTOCOL, CustomPollScheduler.class);
+    public static final int MAX_BACKOFF = 16;
+    protected static final int NONE = -1;
+    protected final long tickMillis;
+    protected final int wheelMask;
+    protected final int[] buckets;
+    protected final long slowResponseMillis;
+    protected final Sender sender;
+    // Per slot state
+    protected int[] next = new int[0];
+    protected int[] previous = new int[0];
+    protected long[] deadlines = new long[0];
+    protected int[] intervals = new int[0];
+    protected int[] slotDevices = new int[0];
+    protected int[] channels = new int[0];
+    // Per device state
+    protected int[] deviceIds = new int[0];
+    protected int[] backoffs = new int[0];
+    protected long[] requestedAt = new long[0];
+    protected volatile AtomicLongArray respondedAt = new AtomicLongArray(0);
+    // Scratch space reused by every tick
+    protected long[] due = new long[64];
+    protected int[] readChannels = new int[CustomFrameCodec.MAX_ENTRIES];
+    protected long currentTick = -1;
+    protected int scheduled;
+    protected final LongAdder reads = new LongAdder();
+    protected final LongAdder backedOff = new LongAdder();
+
+    /**
+     * @param tickMillis         resolution of the wheel
+     * @param wheelSize          number of buckets, rounded up to a power of two
+     * @param slowResponseMillis devices answering slower than this are polled less often
+     */
+    public CustomPollScheduler(long tickMillis, int wheelSize, long slowResponseMillis, Sender sender) {
+        this.tickMillis = tickMillis;
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.wheelMask = size - 1;
+        this.buckets = new int[size];
+        Arrays.fill(buckets, NONE);
+        this.slowResponseMillis = slowResponseMillis;
+        this.sender = sender;
+    }
+
+    /**
+     * Polls the channel of the device every interval starting from the next time the device is due; replaces any
+     * previous schedule of the slot. The device index is the one assigned by {@link CustomLinkRegistry#lookupDevice}.
+     */
+    public void schedule(int slot, int device, int deviceId, int channel, long intervalMillis, long now) {
+        cancel(slot);
+        ensureSlotCapacity(slot);
+        ensureDeviceCapacity(device);
+
+        if (deviceIds[device] != deviceId) {
+            // Device indexes are reused once a device has no links so forget what was known about the previous one
+            deviceIds[device] = deviceId;
+            backoffs[device] = 1;
+            requestedAt[device] = 0L;
+            respondedAt.set(device, 0L);
+        }
+
+        int interval = (int) Math.max(1L, intervalMillis / tickMillis);
+        long nowTick = Math.max(currentTick, now / tickMillis);
+        long phase = Math.floorMod(mix(deviceId), interval);
+        long deadline = nowTick - Math.floorMod(nowTick, interval) + phase;
+
+        if (deadline <= nowTick) {
+            deadline += interval;
+        }
+
+        intervals[slot] = interval;
+        slotDevices[slot] = device;
+        channels[slot] = channel;
+        insert(slot, deadline);
+        scheduled++;
+    }
+
+    public void cancel(int slot) {
+        if (slot < intervals.length && intervals[slot] > 0) {
+            remove(slot);
+            intervals[slot] = 0;
+            scheduled--;
+        }
+    }
+
+    /**
+     * Records that a reading frame was received from the device; only the first one after a read counts as its
+     * response.
+     */
+    public void onResponse(int device, long now) {
+        AtomicLongArray responded = respondedAt;
+        if (device >= 0 && device < responded.length() && responded.get(device) == 0L) {
+            responded.compareAndSet(device, 0L, now);
+        }
+    }
+
+    /**
+     * Advances the wheel to the given time and sends the reads that are due; returns the number of read frames sent.
+     */
+    public int tick(long now) {
+        long targetTick = now / tickMillis;
+
+        if (currentTick < 0) {
+            currentTick = targetTick - 1;
+        }
+        // After a long stall only one revolution needs visiting as every slot is in one of its buckets
+        long fromTick = Math.max(currentTick + 1, targetTick - wheelMask);
+        int dueCount = 0;
+
+        for (long tick = fromTick; tick <= targetTick; tick++) {
+            int bucket = (int) (tick & wheelMask);
+            int slot = buckets[bucket];
+            while (slot != NONE) {
+                int following = next[slot];
+                if (deadlines[slot] <= targetTick) {
+                    remove(slot);
+                    if (dueCount == due.length) {
+                        due = Arrays.copyOf(due, due.length * 2);
+                    }
+                    due[dueCount++] = ((long) slotDevices[slot] << 32) | slot;
+                }
+                slot = following;
+            }
+        }
+
+        currentTick = targetTick;
+        return dueCount > 0 ? sendDue(dueCount, now, targetTick) : 0;
+    }
+
+    public int getScheduled() {
+        return scheduled;
+    }
+
+    public long getReads() {
+        return reads.sum();
+    }
+
+    public long getBackedOff() {
+        return backedOff.sum();
+    }
+
+    protected int sendDue(int dueCount, long now, long nowTick) {
+        // Sorting by device puts all due slots of a device next to each other
+        Arrays.sort(due, 0, dueCount);
+        int frames = 0;
+        int start = 0;
+
+        while (start < dueCount) {
+            int device = (int) (due[start] >>> 32);
+            int end = start;
+            while (end < dueCount && (int) (due[end] >>> 32) == device) {
+                end++;
+            }
+
+            int backoff = updateBackoff(device, now);
+            // Cleared before sending so a quick answer cannot be missed
+            respondedAt.set(device, 0L);
+            for (int i = start; i < end; i += CustomFrameCodec.MAX_ENTRIES) {
+                int count = Math.min(CustomFrameCodec.MAX_ENTRIES, end - i);
+                for (int j = 0; j < count; j++) {
+                    readChannels[j] = channels[(int) due[i + j]];
+                }
+                try {
+                    sender.sendRead(deviceIds[device], readChannels, count);
+                    frames++;
+                } catch (IOException e) {
+                    LOG.log(Level.FINE, "Failed to send custom poll request: deviceId=" + deviceIds[device], e);
+                }
+            }
+            requestedAt[device] = now;
+
+            for (int i = start; i < end; i++) {
+                int slot = (int) due[i];
+                long deadline = deadlines[slot] + (long) intervals[slot] * backoff;
+                insert(slot, Math.max(deadline, nowTick + 1));
+            }
+            start = end;
+        }
+
+        reads.add(frames);
+        return frames;
+    }
+
+    protected int updateBackoff(int device, long now) {
+        long requested = requestedAt[device];
+        int backoff = backoffs[device];
+
+        if (requested > 0L) {
+            long responded = respondedAt.get(device);
+            boolean slow = responded == 0L || responded - requested > slowResponseMillis;
+            if (slow && backoff < MAX_BACKOFF) {
+                backoff <<= 1;
+                backedOff.increment();
+                LOG.fine("Custom device is slow to answer polls, backing off: deviceId=" + deviceIds[device] + ", factor=" + backoff);
+            } else if (!slow && backoff > 1) {
+                backoff >>= 1;
+            }
+            backoffs[device] = backoff;
+        }
+
+        return backoff;
+    }
+
+    protected void insert(int slot, long deadline) {
+        int bucket = (int) (deadline & wheelMask);
+        deadlines[slot] = deadline;
+        previous[slot] = NONE;
+        next[slot] = buckets[bucket];
+        if (next[slot] != NONE) {
+            previous[next[slot]] = slot;
+        }
+        buckets[bucket] = slot;
+    }
+
+    protected void remove(int slot) {
+        int before = previous[slot];
+        int after = next[slot];
+        if (before != NONE) {
+            next[before] = after;
+        } else {
+            buckets[(int) (deadlines[slot] & wheelMask)] = after;
+        }
+        if (after != NONE) {
+            previous[after] = before;
+        }
+        next[slot] = NONE;
+        previous[slot] = NONE;
+    }
+
+    protected void ensureSlotCapacity(int slot) {
+        if (slot >= intervals.length) {
+            int capacity = Math.max(slot + 1, Math.max(64, intervals.length * 2));
+            next = Arrays.copyOf(next, capacity);
+            previous = Arrays.copyOf(previous, capacity);
+            deadlines = Arrays.copyOf(deadlines, capacity);
+            intervals = Arrays.copyOf(intervals, capacity);
+            slotDevices = Arrays.copyOf(slotDevices, capacity);
+            channels = Arrays.copyOf(channels, capacity);
+        }
+    }
+
+    protected void ensureDeviceCapacity(int device) {
+        if (device >= deviceIds.length) {
+            int capacity = Math.max(device + 1, Math.max(16, deviceIds.length * 2));
+            int previousCapacity = deviceIds.length;
+            deviceIds = Arrays.copyOf(deviceIds, capacity);
+            backoffs = Arrays.copyOf(backoffs, capacity);
+            requestedAt = Arrays.copyOf(requestedAt, capacity);
+            Arrays.fill(deviceIds, previousCapacity, capacity, NONE);
+            AtomicLongArray responded = new AtomicLongArray(capacity);
+            for (int i = 0; i < previousCapacity; i++) {
+                responded.set(i, respondedAt.get(i));
+            }
+            respondedAt = responded;
+        }
+    }
+
+    protected static int mix(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 15);
+    }
+}
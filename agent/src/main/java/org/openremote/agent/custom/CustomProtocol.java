@@ -20,12 +20,27 @@
 package org.openremote.agent.custom;
 
 import org.openremote.agent.protocol.AbstractProtocol;
+import org.openremote.container.util.MapAccess;
 import org.openremote.model.Container;
+import org.openremote.model.asset.agent.ConnectionStatus;
 import org.openremote.model.asset.agent.DefaultAgentLink;
 import org.openremote.model.attribute.Attribute;
 import org.openremote.model.attribute.AttributeEvent;
+import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.attribute.AttributeState;
 import org.openremote.model.syslog.SyslogCategory;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static org.openremote.model.syslog.SyslogCategory.PROTOCOL;
@@ -33,12 +48,91 @@ import static org.openremote.model.syslog.SyslogCategory.PROTOCOL;
 /**
  * A custom protocol that is used by the {@link CustomAgent}; there is a one-to-one mapping between an {@link
  * CustomAgent} {@link org.openremote.model.asset.Asset} and its' {@link org.openremote.model.asset.agent.Protocol}.
- * This example does nothing useful but is intended to show where protocol classes should be created.
+ * <p>
+ * Readings of linked device channels arrive through a shared {@link CustomTransport} and are coalesced into attribute
+ * events once per flush window; polling, writes, journalling and metrics are handled by {@link CustomPollScheduler},
+ * {@link CustomWriteQueue}, {@link CustomJournal} and {@link CustomProtocolMetrics}.
  */
 public class CustomProtocol extends AbstractProtocol<CustomAgent, DefaultAgentLink> {
 
     public static final String PROTOCOL_DISPLAY_NAME = "Custom";
+    public static final int DEFAULT_FLUSH_WINDOW_MILLIS = 100;
+    public static final int DEFAULT_WRITE_PIPELINE_DEPTH = 4;
+    public static final int DEFAULT_WRITE_TIMEOUT_MILLIS = 5000;
+    public static final int DEFAULT_JOURNAL_REPLAY_RATE = 1000;
+    public static final int POLL_TICK_MILLIS = 100;
+    public static final int POLL_WHEEL_SIZE = 1024;
+    public static final int POLL_SLOW_RESPONSE_MILLIS = 2000;
+    public static final int JOURNAL_SEGMENT_RECORDS = 1024 * 1024;
+    public static final int JOURNAL_SYNC_INTERVAL_MILLIS = 1000;
+    public static final int JOURNAL_REPLAY_INTERVAL_MILLIS = 100;
+    /**
+     * The same storage directory setting as used by the manager; journals are kept in a sub directory per agent.
+     */
+    public static final String OR_STORAGE_DIR = "OR_STORAGE_DIR";
+    public static final String OR_STORAGE_DIR_DEFAULT = "tmp";
+    public static final String JOURNAL_DIR = "custom-journal";
     private static final Logger LOG = SyslogCategory.getLogger(PROTOCOL, CustomProtocol.class);
+    protected final CustomEventCoalescer coalescer = new CustomEventCoalescer(1024);
+    // A released slot is reused by the next link so its pending reading must not be emitted for that link
+    protected final CustomLinkRegistry linkRegistry = new CustomLinkRegistry(1024, coalescer::clear);
+    protected final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(CustomFrameCodec.MAX_FRAME_SIZE);
+    protected final CustomPollScheduler pollScheduler = new CustomPollScheduler(POLL_TICK_MILLIS, POLL_WHEEL_SIZE, POLL_SLOW_RESPONSE_MILLIS, this::sendReadFrame);
+    protected final CustomProtocolMetrics metrics = new CustomProtocolMetrics(
+        agent.getId(),
+        linkRegistry::size,
+        () -> {
+            CustomWriteQueue queue = this.writeQueue;
+            return queue != null ? queue.getPendingCount() + queue.getInFlightCount() : 0;
+        },
+        () -> {
+            CustomJournal current = this.journal;
+            return current != null ? current.getBacklog() : 0L;
+        }
+    );
+    protected final CustomFrameCodec.FrameHandler frameHandler = new CustomFrameCodec.FrameHandler() {
+        @Override
+        public void onFrame(int deviceId, byte type, Object source) {
+            metrics.framesReceived.increment();
+            linkRegistry.updateDeviceEndpoint(deviceId, source);
+            if (type == CustomFrameCodec.TYPE_READING && polling) {
+                pollScheduler.onResponse(linkRegistry.lookupDevice(deviceId), System.currentTimeMillis());
+            }
+        }
+
+        @Override
+        public void onReading(int deviceId, int channel, double value, long timestamp) {
+            CustomProtocol.this.onReading(deviceId, channel, value, timestamp);
+        }
+
+        @Override
+        public void onAck(int deviceId, int sequence, boolean success) {
+            writeQueue.onAck(deviceId, sequence, success);
+        }
+    };
+    protected ScheduledExecutorService scheduler;
+    protected CustomTransportPool.Lease transportLease;
+    protected CustomTransport transport;
+    protected CustomWriteQueue writeQueue;
+    protected ScheduledFuture<?> flushTask;
+    protected ScheduledFuture<?> writeTimeoutTask;
+    protected ScheduledFuture<?> pollTask;
+    protected volatile boolean polling;
+    /**
+     * Serialises emitting events (flush and journal replay) together with the state that goes with it
+     */
+    protected final Object emitLock = new Object();
+    protected final CustomLinkFilter linkFilter = new CustomLinkFilter(1024);
+    protected CustomJournal journal;
+    protected ScheduledFuture<?> journalSyncTask;
+    protected ScheduledFuture<?> journalReplayTask;
+    protected int journalReplayBatch;
+    protected int flushFiltered;
+    protected boolean flushSucceeded;
+    protected long flushedPosition;
+    protected boolean replaying;
+    protected long replayPosition;
+    protected long replayEnd;
     protected boolean running;
 
     public CustomProtocol(CustomAgent agent) {
@@ -47,27 +141,180 @@ public class CustomProtocol extends AbstractProtocol<CustomAgent, DefaultAgentLi
 
     @Override
     protected void doStart(Container container) throws Exception {
+        InetSocketAddress bindAddress = agent.getBindHost()
+            .map(host -> new InetSocketAddress(host, agent.getBindPort().orElse(0)))
+            .orElseGet(() -> new InetSocketAddress(agent.getBindPort().orElse(0)));
+        int flushWindow = agent.getFlushWindow().orElse(DEFAULT_FLUSH_WINDOW_MILLIS);
+        int writeTimeout = agent.getWriteTimeout().orElse(DEFAULT_WRITE_TIMEOUT_MILLIS);
+
+        setConnectionStatus(ConnectionStatus.CONNECTING);
+        ThreadFactory threadFactory = null;
+        if (agent.getExecutionMode().orElse(CustomAgent.ExecutionMode.EXECUTOR) == CustomAgent.ExecutionMode.VIRTUAL_THREAD) {
+            threadFactory = CustomThreads.virtualThreadFactory("CustomProtocol-" + agent.getId());
+            if (threadFactory == null) {
+                LOG.warning("Virtual threads are not supported by this JVM so falling back to executor mode: " + getProtocolInstanceUri());
+            }
+        }
+        scheduler = threadFactory != null ? Executors.newSingleThreadScheduledExecutor(threadFactory) : executorService;
+        if (agent.getJournal().orElse(false)) {
+            openJournal(container);
+        }
+        writeQueue = new CustomWriteQueue(
+            agent.getWritePipelineDepth().orElse(DEFAULT_WRITE_PIPELINE_DEPTH),
+            writeTimeout,
+            this::sendWriteFrame,
+            new CustomWriteQueue.Listener() {
+                @Override
+                public void onWriteCompleted(int deviceId, int channel, double value) {
+                    CustomProtocol.this.onWriteCompleted(deviceId, channel, value);
+                }
+
+                @Override
+                public void onWriteFailed(int deviceId, int channel, double value) {
+                    CustomProtocol.this.onWriteFailed(deviceId, channel, value);
+                }
+            }
+        );
+        transportLease = CustomTransportPool.acquire(
+            getProtocolInstanceUri(), agent.getTransport().orElse(CustomAgent.Transport.UDP), bindAddress, threadFactory, frameHandler);
+        transport = transportLease.getTransport();
+        flushTask = scheduler.scheduleWithFixedDelay(this::flush, flushWindow, flushWindow, TimeUnit.MILLISECONDS);
+        writeTimeoutTask = scheduler.scheduleWithFixedDelay(
+            () -> writeQueue.checkTimeouts(System.currentTimeMillis()), writeTimeout, Math.max(100, writeTimeout / 4), TimeUnit.MILLISECONDS);
+        pollTask = scheduler.scheduleWithFixedDelay(this::poll, POLL_TICK_MILLIS, POLL_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        if (journal != null) {
+            journalSyncTask = scheduler.scheduleWithFixedDelay(journal::sync, JOURNAL_SYNC_INTERVAL_MILLIS, JOURNAL_SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            journalReplayTask = scheduler.scheduleWithFixedDelay(this::replay, JOURNAL_REPLAY_INTERVAL_MILLIS, JOURNAL_REPLAY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
         running = true;
+        metrics.register();
+        setConnectionStatus(ConnectionStatus.CONNECTED);
     }
 
     @Override
     protected void doStop(Container container) throws Exception {
-
+        running = false;
+        metrics.unregister();
+        LOG.info("Stopping custom protocol " + getProtocolInstanceUri() + ": " + linkFilter);
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        if (writeTimeoutTask != null) {
+            writeTimeoutTask.cancel(false);
+            writeTimeoutTask = null;
+        }
+        if (pollTask != null) {
+            pollTask.cancel(false);
+            pollTask = null;
+        }
+        if (writeQueue != null) {
+            writeQueue.clear();
+        }
+        if (transportLease != null) {
+            transportLease.close();
+            transportLease = null;
+        }
+        transport = null;
+        if (journalSyncTask != null) {
+            journalSyncTask.cancel(false);
+            journalSyncTask = null;
+        }
+        if (journalReplayTask != null) {
+            journalReplayTask.cancel(false);
+            journalReplayTask = null;
+        }
+        if (scheduler != null && scheduler != executorService) {
+            scheduler.shutdownNow();
+        }
+        scheduler = null;
+        synchronized (emitLock) {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        }
     }
 
     @Override
     protected void doLinkAttribute(String assetId, Attribute<?> attribute, DefaultAgentLink agentLink) throws RuntimeException {
+        long address = getAddress(assetId, attribute);
+
+        if (CustomFrameCodec.channel(address) < 0 || CustomFrameCodec.channel(address) > CustomFrameCodec.MAX_CHANNEL) {
+            // Frames carry the channel as an unsigned short so a larger one could never be read or written
+            throw new IllegalArgumentException("Linked attribute device channel must be between 0 and "
+                + CustomFrameCodec.MAX_CHANNEL + ": " + assetId + ":" + attribute.getName());
+        }
 
+        if (linkRegistry.lookup(address) != CustomLinkRegistry.NO_SLOT) {
+            LOG.warning("Device channel is linked more than once, only the latest link receives readings: deviceId="
+                + CustomFrameCodec.deviceId(address) + ", channel=" + CustomFrameCodec.channel(address));
+        }
+
+        // Size the per-slot state before the slot becomes visible to dispatch
+        coalescer.ensureCapacity(linkRegistry.getSlotLimit());
+        synchronized (emitLock) {
+            int slot = linkRegistry.link(new AttributeRef(assetId, attribute.getName()), agentLink, address, attribute.getType().getType());
+            linkFilter.configure(
+                slot,
+                attribute.getMetaValue(CustomAgent.DEADBAND_META_ITEM_DESCRIPTOR).orElse(-1d),
+                attribute.getMetaValue(CustomAgent.DEADBAND_PERCENT_META_ITEM_DESCRIPTOR).orElse(-1d),
+                attribute.getMetaValue(CustomAgent.MIN_INTERVAL_META_ITEM_DESCRIPTOR).orElse(0),
+                attribute.getMetaValue(CustomAgent.MAX_SILENCE_META_ITEM_DESCRIPTOR).orElse(0)
+            );
+        }
+        updateDeviceRoute(CustomFrameCodec.deviceId(address));
+        attribute.getMetaValue(CustomAgent.DEVICE_ADDRESS_META_ITEM_DESCRIPTOR).ifPresent(deviceAddress ->
+            setDeviceAddress(CustomFrameCodec.deviceId(address), deviceAddress));
+        synchronized (pollScheduler) {
+            int slot = linkRegistry.lookup(address);
+            int pollInterval = attribute.getMetaValue(CustomAgent.POLL_INTERVAL_META_ITEM_DESCRIPTOR).orElse(0);
+            if (pollInterval > 0 && slot != CustomLinkRegistry.NO_SLOT) {
+                int deviceId = CustomFrameCodec.deviceId(address);
+                pollScheduler.schedule(slot, linkRegistry.lookupDevice(deviceId), deviceId, CustomFrameCodec.channel(address), pollInterval, System.currentTimeMillis());
+            } else if (slot != CustomLinkRegistry.NO_SLOT) {
+                pollScheduler.cancel(slot);
+            }
+            polling = pollScheduler.getScheduled() > 0;
+        }
     }
 
     @Override
     protected void doUnlinkAttribute(String assetId, Attribute<?> attribute, DefaultAgentLink agentLink) {
+        long address = getAddress(assetId, attribute);
+        int slot = linkRegistry.unlink(new AttributeRef(assetId, attribute.getName()), address);
 
+        if (slot != CustomLinkRegistry.NO_SLOT) {
+            synchronized (emitLock) {
+                linkFilter.clear(slot);
+            }
+            synchronized (pollScheduler) {
+                pollScheduler.cancel(slot);
+                polling = pollScheduler.getScheduled() > 0;
+            }
+            updateDeviceRoute(CustomFrameCodec.deviceId(address));
+        }
     }
 
     @Override
     protected void doLinkedAttributeWrite(Attribute<?> attribute, DefaultAgentLink agentLink, AttributeEvent event, Object processedValue) {
+        long address = getAddress(event.getAssetId(), attribute);
+        double value = toDeviceValue(processedValue);
+
+        if (Double.isNaN(value)) {
+            LOG.warning("Cannot write value to custom device, it is not numeric: " + event.getAttributeRef() + "=" + processedValue);
+            return;
+        }
 
+        writeQueue.write(CustomFrameCodec.deviceId(address), CustomFrameCodec.channel(address), value);
+    }
+
+    public CustomLinkFilter getLinkFilter() {
+        return linkFilter;
+    }
+
+    public CustomProtocolMetrics getMetrics() {
+        return metrics;
     }
 
     @Override
@@ -79,4 +326,321 @@ public class CustomProtocol extends AbstractProtocol<CustomAgent, DefaultAgentLi
     public String getProtocolInstanceUri() {
         return "custom://" + agent.getOption();
     }
+
+    protected long getAddress(String assetId, Attribute<?> attribute) {
+        int deviceId = attribute.getMetaValue(CustomAgent.DEVICE_ID_META_ITEM_DESCRIPTOR).orElseThrow(() ->
+            new IllegalArgumentException("Linked attribute is missing the device ID meta item: " + assetId + ":" + attribute.getName()));
+        int channel = attribute.getMetaValue(CustomAgent.DEVICE_CHANNEL_META_ITEM_DESCRIPTOR).orElse(0);
+        return CustomFrameCodec.address(deviceId, channel);
+    }
+
+    /**
+     * Make sure the shared transport routes the frames of the device to this instance only while it has attributes
+     * linked to it.
+     */
+    protected synchronized void updateDeviceRoute(int deviceId) {
+        CustomTransportPool.Lease lease = transportLease;
+        if (lease == null) {
+            return;
+        }
+        if (linkRegistry.isDeviceLinked(deviceId)) {
+            lease.register(deviceId);
+        } else {
+            lease.unregister(deviceId);
+        }
+    }
+
+    protected void setDeviceAddress(int deviceId, String deviceAddress) {
+        int separator = deviceAddress.lastIndexOf(':');
+        try {
+            InetSocketAddress endpoint = new InetSocketAddress(deviceAddress.substring(0, separator), Integer.parseInt(deviceAddress.substring(separator + 1)));
+            if (linkRegistry.getDeviceEndpoint(deviceId) == null) {
+                linkRegistry.updateDeviceEndpoint(deviceId, endpoint);
+            }
+        } catch (RuntimeException e) {
+            LOG.warning("Invalid custom device address, expected host:port: deviceId=" + deviceId + ", address=" + deviceAddress);
+        }
+    }
+
+    protected void poll() {
+        if (!polling) {
+            return;
+        }
+        try {
+            synchronized (pollScheduler) {
+                pollScheduler.tick(System.currentTimeMillis());
+            }
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Failed to poll custom devices: " + getProtocolInstanceUri(), e);
+        }
+    }
+
+    protected void sendReadFrame(int deviceId, int[] channels, int count) throws IOException {
+        Object endpoint = linkRegistry.getDeviceEndpoint(deviceId);
+        CustomTransport transport = this.transport;
+
+        if (endpoint == null || transport == null) {
+            throw new IOException("Custom device address is not known so cannot be polled: deviceId=" + deviceId);
+        }
+
+        synchronized (writeBuffer) {
+            writeBuffer.clear();
+            CustomFrameCodec.putHeader(writeBuffer, CustomFrameCodec.TYPE_READ, deviceId, 0, count);
+            for (int i = 0; i < count; i++) {
+                CustomFrameCodec.putEntry(writeBuffer, channels[i], 0d);
+            }
+            writeBuffer.flip();
+            transport.send(endpoint, writeBuffer);
+        }
+    }
+
+    protected void openJournal(Container container) throws IOException {
+        Path directory = Paths.get(MapAccess.getString(container.getConfig(), OR_STORAGE_DIR, OR_STORAGE_DIR_DEFAULT), JOURNAL_DIR, agent.getId());
+        journal = new CustomJournal(directory, JOURNAL_SEGMENT_RECORDS);
+        journal.open();
+        journalReplayBatch = Math.max(1, agent.getJournalReplayRate().orElse(DEFAULT_JOURNAL_REPLAY_RATE) * JOURNAL_REPLAY_INTERVAL_MILLIS / 1000);
+        flushSucceeded = false;
+        flushedPosition = journal.getWritePosition();
+        // Anything left over from the previous run has to be replayed before live readings can be acknowledged
+        replaying = journal.getBacklog() > 0;
+        replayPosition = journal.getAckPosition();
+        replayEnd = journal.getWritePosition();
+
+        if (replaying) {
+            LOG.info("Replaying " + journal.getBacklog() + " journalled reading(s) for custom protocol: " + getProtocolInstanceUri());
+        }
+    }
+
+    protected void onReading(int deviceId, int channel, double value, long timestamp) {
+        metrics.readingsDecoded.increment();
+        int slot = linkRegistry.lookup(CustomFrameCodec.address(deviceId, channel));
+        if (slot != CustomLinkRegistry.NO_SLOT) {
+            coalescer.update(slot, value, timestamp);
+        } else {
+            metrics.readingsUnlinked.increment();
+        }
+
+        CustomJournal journal = this.journal;
+        if (journal != null) {
+            // Appended after the coalescer update so a position captured before a flush only covers flushed readings
+            try {
+                journal.append(deviceId, channel, value, timestamp);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Failed to journal custom device reading: " + getProtocolInstanceUri(), e);
+            }
+        }
+    }
+
+    protected void sendWriteFrame(int deviceId, int sequence, int[] channels, double[] values, int count) throws IOException {
+        Object endpoint = linkRegistry.getDeviceEndpoint(deviceId);
+        CustomTransport transport = this.transport;
+
+        if (endpoint == null || transport == null) {
+            throw new IOException("Custom device has not been heard from yet so cannot be written to: deviceId=" + deviceId);
+        }
+
+        synchronized (writeBuffer) {
+            writeBuffer.clear();
+            CustomFrameCodec.putHeader(writeBuffer, CustomFrameCodec.TYPE_WRITE, deviceId, sequence, count);
+            for (int i = 0; i < count; i++) {
+                CustomFrameCodec.putEntry(writeBuffer, channels[i], values[i]);
+            }
+            writeBuffer.flip();
+            transport.send(endpoint, writeBuffer);
+        }
+    }
+
+    protected void onWriteCompleted(int deviceId, int channel, double value) {
+        int slot = linkRegistry.lookup(CustomFrameCodec.address(deviceId, channel));
+        AttributeRef attributeRef = slot != CustomLinkRegistry.NO_SLOT ? linkRegistry.getAttributeRef(slot) : null;
+
+        if (attributeRef != null) {
+            synchronized (emitLock) {
+                linkFilter.update(slot, value, System.currentTimeMillis());
+            }
+            updateLinkedAttribute(new AttributeState(attributeRef, toAttributeValue(value, linkRegistry.getValueType(slot))));
+        }
+    }
+
+    protected void onWriteFailed(int deviceId, int channel, double value) {
+        int slot = linkRegistry.lookup(CustomFrameCodec.address(deviceId, channel));
+        AttributeRef attributeRef = slot != CustomLinkRegistry.NO_SLOT ? linkRegistry.getAttributeRef(slot) : null;
+
+        if (attributeRef == null) {
+            return;
+        }
+
+        LOG.info("Custom device write failed: " + attributeRef + "=" + value);
+        long timestamp = coalescer.getTimestamp(slot);
+        // Put the attribute back to what the device last reported so it does not show the value that was never applied
+        if (timestamp > 0) {
+            synchronized (emitLock) {
+                linkFilter.update(slot, coalescer.getValue(slot), System.currentTimeMillis());
+            }
+            updateLinkedAttribute(new AttributeState(attributeRef, toAttributeValue(coalescer.getValue(slot), linkRegistry.getValueType(slot))));
+        }
+    }
+
+    protected void flush() {
+        CustomFlushEvent event = new CustomFlushEvent();
+        event.begin();
+        int flushed;
+
+        synchronized (emitLock) {
+            long position = journal != null ? journal.getWritePosition() : 0L;
+            flushFiltered = 0;
+            try {
+                flushed = coalescer.flush(this::emit);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Failed to flush custom protocol readings: " + getProtocolInstanceUri(), e);
+                if (journal != null) {
+                    onFlushFailed();
+                }
+                return;
+            }
+            if (journal != null) {
+                onFlushSucceeded(position);
+            }
+        }
+
+        if (flushed > 0 && event.shouldCommit()) {
+            event.agentId = agent.getId();
+            event.emitted = flushed - flushFiltered;
+            event.filtered = flushFiltered;
+            event.commit();
+        }
+    }
+
+    /**
+     * Readings journalled before the previous successful flush started were either emitted by that flush or by the one
+     * that just completed so they can be acknowledged, unless older readings are still waiting to be replayed.
+     */
+    protected void onFlushSucceeded(long position) {
+        if (flushSucceeded && !replaying) {
+            journal.acknowledge(flushedPosition);
+        }
+        if (replaying && replayEnd == Long.MAX_VALUE) {
+            // Events can be processed again; everything up to the start of this flush may have been lost
+            replayEnd = position;
+            LOG.info("Replaying " + (replayEnd - replayPosition) + " journalled reading(s) for custom protocol: " + getProtocolInstanceUri());
+        }
+        flushSucceeded = true;
+        flushedPosition = position;
+    }
+
+    protected void onFlushFailed() {
+        flushSucceeded = false;
+        if (!replaying) {
+            replaying = true;
+            replayPosition = journal.getAckPosition();
+        }
+        // The end of the backlog is only known once a flush succeeds again
+        replayEnd = Long.MAX_VALUE;
+    }
+
+    /**
+     * Emits the next batch of journalled readings that may not have been delivered; runs every
+     * {@link #JOURNAL_REPLAY_INTERVAL_MILLIS} so replay is limited to the configured rate.
+     */
+    protected void replay() {
+        synchronized (emitLock) {
+            if (journal == null || !replaying || replayEnd == Long.MAX_VALUE) {
+                return;
+            }
+            try {
+                int batch = (int) Math.min(journalReplayBatch, replayEnd - replayPosition);
+                replayPosition = journal.replay(replayPosition, batch, this::emitJournalled);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Failed to replay journalled readings: " + getProtocolInstanceUri(), e);
+                onFlushFailed();
+                return;
+            }
+            journal.acknowledge(replayPosition);
+            if (replayPosition >= replayEnd) {
+                replaying = false;
+                LOG.info("Finished replaying journalled readings for custom protocol: " + getProtocolInstanceUri());
+            }
+        }
+    }
+
+    protected void emitJournalled(long position, int deviceId, int channel, double value, long timestamp) {
+        int slot = linkRegistry.lookup(CustomFrameCodec.address(deviceId, channel));
+        if (slot != CustomLinkRegistry.NO_SLOT) {
+            // Replayed readings are not filtered as they fill in what was lost rather than repeat what was emitted
+            publish(slot, value, timestamp);
+        }
+        // Keep track of each record so a failure part way through the batch does not replay it again
+        replayPosition = position + 1;
+    }
+
+    protected void emit(int slot, double value, long timestamp) {
+        if (linkFilter.accept(slot, value, timestamp)) {
+            // Live readings are timestamped when they are received
+            metrics.decodeToEmitMillis.record(System.currentTimeMillis() - timestamp);
+            publish(slot, value, timestamp);
+        } else {
+            metrics.eventsFiltered.increment();
+            flushFiltered++;
+        }
+    }
+
+    protected void publish(int slot, double value, long timestamp) {
+        AttributeRef attributeRef = linkRegistry.getAttributeRef(slot);
+        if (attributeRef != null) {
+            try {
+                updateLinkedAttribute(new AttributeState(attributeRef, toAttributeValue(value, linkRegistry.getValueType(slot))), timestamp);
+            } catch (RuntimeException e) {
+                metrics.eventsFailed.increment();
+                throw e;
+            }
+            metrics.eventsEmitted.increment();
+        }
+    }
+
+    /**
+     * The inverse of {@link #toAttributeValue}; returns {@link Double#NaN} for values that cannot be sent.
+     */
+    protected static double toDeviceValue(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value ? 1d : 0d;
+        }
+        if (value instanceof Enum) {
+            return ((Enum<?>) value).ordinal();
+        }
+        if (value instanceof String) {
+            try {
+                return Double.parseDouble((String) value);
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Devices only send numbers so convert them to the value type of the linked attribute; enums are sent as ordinals.
+     */
+    protected static Object toAttributeValue(double value, Class<?> valueType) {
+        if (valueType == Boolean.class) {
+            return value != 0d;
+        }
+        if (valueType == Integer.class) {
+            return (int) value;
+        }
+        if (valueType == Long.class) {
+            return (long) value;
+        }
+        if (valueType != null && valueType.isEnum()) {
+            Object[] constants = valueType.getEnumConstants();
+            int ordinal = (int) value;
+            return ordinal >= 0 && ordinal < constants.length ? constants[ordinal] : null;
+        }
+        if (valueType == String.class) {
+            return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+        }
+        return value;
+    }
 }
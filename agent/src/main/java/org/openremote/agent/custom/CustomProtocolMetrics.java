@@ -0,0 +1,140 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.agent.custom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters of a running {@link CustomProtocol}; every running instance registers its metrics so that the metrics of
+ * all instances can be exported together, see {@link #getAll}. Counters are {@link LongAdder}s and latencies
+ * {@link CustomLatencyHistogram}s so transport threads never block on them.
+ * <p>
+ * Covers frame, reading and event counts, the decode to emit latency and the link, write queue and journal backlog
+ * sizes; flushes are also recorded as {@link CustomFlushEvent}s when JFR is recording.
+ */
+public class CustomProtocolMetrics {
+
+    protected static final Map<String, CustomProtocolMetrics> INSTANCES = new ConcurrentHashMap<>();
+    protected final String agentId;
+    protected final IntSupplier linkCount;
+    protected final IntSupplier writeQueueDepth;
+    protected final LongSupplier journalBacklog;
+    protected final LongAdder framesReceived = new LongAdder();
+    protected final LongAdder readingsDecoded = new LongAdder();
+    protected final LongAdder readingsUnlinked = new LongAdder();
+    protected final LongAdder eventsEmitted = new LongAdder();
+    protected final LongAdder eventsFiltered = new LongAdder();
+    protected final LongAdder eventsFailed = new LongAdder();
+    protected final CustomLatencyHistogram decodeToEmitMillis = new CustomLatencyHistogram();
+
+    public CustomProtocolMetrics(String agentId, IntSupplier linkCount, IntSupplier writeQueueDepth, LongSupplier journalBacklog) {
+        this.agentId = agentId;
+        this.linkCount = linkCount;
+        this.writeQueueDepth = writeQueueDepth;
+        this.journalBacklog = journalBacklog;
+    }
+
+    /**
+     * The metrics of every running protocol instance.
+     */
+    public static List<CustomProtocolMetrics> getAll() {
+        return new ArrayList<>(INSTANCES.values());
+    }
+
+    public void register() {
+        INSTANCES.put(agentId, this);
+    }
+
+    public void unregister() {
+        INSTANCES.remove(agentId, this);
+    }
+
+    public String getAgentId() {
+        return agentId;
+    }
+
+    /**
+     * Frames of any type routed to the protocol instance.
+     */
+    public long getFramesReceived() {
+        return framesReceived.sum();
+    }
+
+    /**
+     * Readings decoded from the frames, including those of channels that are not linked.
+     */
+    public long getReadingsDecoded() {
+        return readingsDecoded.sum();
+    }
+
+    public long getReadingsUnlinked() {
+        return readingsUnlinked.sum();
+    }
+
+    /**
+     * Attribute events emitted from live and replayed readings.
+     */
+    public long getEventsEmitted() {
+        return eventsEmitted.sum();
+    }
+
+    /**
+     * Coalesced readings not emitted because the link filter suppressed them.
+     */
+    public long getEventsFiltered() {
+        return eventsFiltered.sum();
+    }
+
+    /**
+     * Attribute events that could not be handed to event processing.
+     */
+    public long getEventsFailed() {
+        return eventsFailed.sum();
+    }
+
+    /**
+     * Time from a reading being decoded to its coalesced value being emitted; readings are timestamped with
+     * millisecond precision when they are received so this is in milliseconds.
+     */
+    public CustomLatencyHistogram getDecodeToEmitMillis() {
+        return decodeToEmitMillis;
+    }
+
+    public int getLinkCount() {
+        return linkCount.getAsInt();
+    }
+
+    /**
+     * Writes waiting to be sent or awaiting acknowledgement.
+     */
+    public int getWriteQueueDepth() {
+        return writeQueueDepth.getAsInt();
+    }
+
+    public long getJournalBacklog() {
+        return journalBacklog.getAsLong();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.agent.custom;
+
+import org.openremote.model.syslog.SyslogCategory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.PROTOCOL;
+
+/**
+ * Creates the threads used by {@link CustomAgent.ExecutionMode#VIRTUAL_THREAD}; virtual threads are looked up
+ * reflectively so the project still builds and runs on a JDK without them, in which case {@link #virtualThreadFactory}
+ * returns <code>null</code> and callers fall back to {@link CustomAgent.ExecutionMode#EXECUTOR}.
+ */
+public final class CustomThreads {
+
+    private static final Logger LOG = SyslogCategory.getLogger(PROTOCOL, CustomThreads.class);
+    /**
+     * Number of frames a blocking read loop processes before yielding its carrier thread; virtual threads are not time
+     * sliced so without this a flooded connection could hold on to a carrier thread other agents are waiting for.
+     */
+    public static final int YIELD_INTERVAL = 64;
+    private static final MethodHandle OF_VIRTUAL;
+    private static final MethodHandle NAME;
+    private static final MethodHandle FACTORY;
+
+    static {
+        MethodHandle ofVirtual = null;
+        MethodHandle name = null;
+        MethodHandle factory = null;
+
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Class<?> ofVirtualClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(ofVirtualClass));
+            name = lookup.findVirtual(ofVirtualClass, "name", MethodType.methodType(ofVirtualClass, String.class, long.class));
+            factory = lookup.findVirtual(builderClass, "factory", MethodType.methodType(ThreadFactory.class));
+            // Preview releases have the API but refuse to create virtual threads unless previews are enabled
+            ofVirtual.invoke();
+        } catch (Throwable t) {
+            LOG.log(Level.FINE, "Virtual threads are not available", t);
+            ofVirtual = null;
+        }
+
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+    }
+
+    private CustomThreads() {
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Returns a factory for virtual threads named with the prefix and a counter or <code>null</code> if virtual
+     * threads are not supported.
+     */
+    public static ThreadFactory virtualThreadFactory(String prefix) {
+        if (OF_VIRTUAL == null) {
+            return null;
+        }
+
+        try {
+            Object builder = OF_VIRTUAL.invoke();
+            builder = NAME.invoke(builder, prefix + "-", 0L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, "Failed to create virtual thread factory", t);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.agent.custom;
+
+import org.openremote.model.syslog.SyslogCategory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.PROTOCOL;
+
+/**
+ * Transport for the {@link CustomProtocol}; a single selector thread serves either one UDP socket or a TCP server
+ * socket and all of its accepted connections, replies are sent directly from the calling thread. Frames are decoded
+ * straight out of direct {@link ByteBuffer}s that are allocated once (one for UDP and one per TCP connection) and
+ * reused for every read.
+ * <p>
+ * A TCP reply that does not fit in the socket buffer of a slow device is never waited for: the remaining bytes are
+ * queued on the connection (up to {@link #MAX_PENDING_BYTES}) and written by the selector thread once the socket is
+ * writable again, so the caller returns straight away and other devices are not held up.
+ * <p>
+ * When constructed with a {@link ThreadFactory} (see {@link CustomAgent.ExecutionMode#VIRTUAL_THREAD}) there is no
+ * selector; channels are used in blocking mode with one thread from the factory receiving datagrams or accepting
+ * connections and one more per accepted connection.
+ */
+public class CustomTransport implements Closeable {
+
+    private static final Logger LOG = SyslogCategory.getLogger(PROTOCOL, CustomTransport.class);
+    public static final int RECEIVE_BUFFER_SIZE = 1024 * 1024;
+    /**
+     * The maximum number of bytes queued for a TCP connection whose socket buffer is full; sending more fails.
+     */
+    public static final int MAX_PENDING_BYTES = 256 * 1024;
+
+    /**
+     * State of an accepted TCP connection served by the selector, guarded by the monitor of its channel.
+     */
+    protected static final class Connection {
+        protected final ByteBuffer readBuffer = ByteBuffer.allocateDirect(CustomFrameCodec.MAX_FRAME_SIZE * 4);
+        protected final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        protected int pendingBytes;
+    }
+
+    protected final CustomAgent.Transport type;
+    protected final InetSocketAddress bindAddress;
+    protected final CustomFrameCodec.FrameHandler handler;
+    protected final ThreadFactory threadFactory;
+    protected final ByteBuffer datagramBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    protected final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+    protected Selector selector;
+    protected DatagramChannel datagramChannel;
+    protected ServerSocketChannel serverChannel;
+    protected Thread thread;
+    protected volatile boolean running;
+
+    public CustomTransport(CustomAgent.Transport type, InetSocketAddress bindAddress, CustomFrameCodec.FrameHandler handler) {
+        this(type, bindAddress, handler, null);
+    }
+
+    public CustomTransport(CustomAgent.Transport type, InetSocketAddress bindAddress, CustomFrameCodec.FrameHandler handler, ThreadFactory threadFactory) {
+        this.type = type;
+        this.bindAddress = bindAddress;
+        this.handler = handler;
+        this.threadFactory = threadFactory;
+    }
+
+    public synchronized void start() throws IOException {
+        if (threadFactory != null) {
+            startBlocking();
+            return;
+        }
+
+        selector = Selector.open();
+
+        try {
+            if (type == CustomAgent.Transport.TCP) {
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(bindAddress);
+                serverChannel.configureBlocking(false);
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            } else {
+                datagramChannel = DatagramChannel.open();
+                datagramChannel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+                datagramChannel.bind(bindAddress);
+                datagramChannel.configureBlocking(false);
+                datagramChannel.register(selector, SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            closeQuietly();
+            throw e;
+        }
+
+        running = true;
+        thread = new Thread(this::run, "CustomTransport-" + type + "-" + getLocalPort());
+        thread.setDaemon(true);
+        thread.start();
+        LOG.info("Custom transport listening: " + type + " " + getLocalAddress());
+    }
+
+    protected void startBlocking() throws IOException {
+        Runnable loop;
+
+        try {
+            if (type == CustomAgent.Transport.TCP) {
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(bindAddress);
+                loop = this::acceptConnections;
+            } else {
+                datagramChannel = DatagramChannel.open();
+                datagramChannel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+                datagramChannel.bind(bindAddress);
+                loop = this::receiveDatagramsBlocking;
+            }
+        } catch (IOException e) {
+            closeQuietly();
+            throw e;
+        }
+
+        running = true;
+        thread = threadFactory.newThread(loop);
+        thread.start();
+        LOG.info("Custom transport listening (blocking): " + type + " " + getLocalAddress());
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        } else {
+            // Blocking loops are released by closing the channels they are blocked on
+            closeQuietly();
+        }
+        if (thread != null) {
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        closeQuietly();
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        try {
+            if (serverChannel != null) {
+                return (InetSocketAddress) serverChannel.getLocalAddress();
+            }
+            if (datagramChannel != null) {
+                return (InetSocketAddress) datagramChannel.getLocalAddress();
+            }
+        } catch (IOException ignored) {
+        }
+        return null;
+    }
+
+    public int getLocalPort() {
+        InetSocketAddress address = getLocalAddress();
+        return address != null ? address.getPort() : -1;
+    }
+
+    /**
+     * Send a complete frame to a device; the endpoint is the source object the transport reported for a frame received
+     * from that device (see {@link CustomFrameCodec.FrameHandler#onFrame}).
+     */
+    public void send(Object endpoint, ByteBuffer frame) throws IOException {
+        if (endpoint instanceof SocketChannel) {
+            SocketChannel channel = (SocketChannel) endpoint;
+            synchronized (channel) {
+                if (channel.isBlocking()) {
+                    while (frame.hasRemaining()) {
+                        channel.write(frame);
+                    }
+                    return;
+                }
+                Selector selector = this.selector;
+                SelectionKey key = selector != null ? channel.keyFor(selector) : null;
+                if (key == null || !key.isValid()) {
+                    throw new ClosedChannelException();
+                }
+                Connection connection = (Connection) key.attachment();
+                // Bytes still queued go first so frames are never reordered
+                if (connection.pending.isEmpty()) {
+                    channel.write(frame);
+                }
+                if (frame.hasRemaining()) {
+                    queue(channel, key, connection, frame);
+                }
+            }
+        } else if (endpoint instanceof SocketAddress && datagramChannel != null) {
+            datagramChannel.send(frame, (SocketAddress) endpoint);
+        } else {
+            throw new IOException("Cannot send to custom transport endpoint: " + endpoint);
+        }
+    }
+
+    protected void queue(SocketChannel channel, SelectionKey key, Connection connection, ByteBuffer frame) throws IOException {
+        if (connection.pendingBytes + frame.remaining() > MAX_PENDING_BYTES) {
+            throw new IOException("Custom transport connection is not keeping up with writes: " + channel.getRemoteAddress());
+        }
+        // The caller reuses its buffer so the remainder is copied
+        ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+        copy.put(frame).flip();
+        connection.pending.addLast(copy);
+        connection.pendingBytes += copy.remaining();
+        try {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (CancelledKeyException e) {
+            throw new ClosedChannelException();
+        }
+        key.selector().wakeup();
+    }
+
+    /**
+     * Writes as much of the queued bytes of the connection as the socket accepts; called by the selector thread once
+     * the socket is writable.
+     */
+    protected void writePending(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+
+        try {
+            synchronized (channel) {
+                ByteBuffer next;
+                while ((next = connection.pending.peekFirst()) != null) {
+                    int written = channel.write(next);
+                    connection.pendingBytes -= written;
+                    if (next.hasRemaining()) {
+                        return;
+                    }
+                    connection.pending.pollFirst();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Closing custom transport connection", e);
+            closeChannel(key);
+        }
+    }
+
+    protected void run() {
+        while (running) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    if (key.isWritable()) {
+                        writePending(key);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        if (key.channel() == datagramChannel) {
+                            receiveDatagrams();
+                        } else {
+                            readStream(key);
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (running) {
+                    LOG.log(Level.WARNING, "Custom transport selector loop failure: " + getLocalAddress(), e);
+                }
+            }
+        }
+    }
+
+    protected void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            // Each connection keeps its own buffer as frames can be split across reads
+            channel.register(selector, SelectionKey.OP_READ, new Connection());
+            LOG.fine("Custom transport connection accepted: " + channel.getRemoteAddress());
+        }
+    }
+
+    protected void receiveDatagrams() throws IOException {
+        ByteBuffer buffer = datagramBuffer;
+
+        while (true) {
+            buffer.clear();
+            SocketAddress source = datagramChannel.receive(buffer);
+            if (source == null) {
+                return;
+            }
+            buffer.flip();
+            // A datagram must contain whole frames; anything left over is malformed and dropped with it
+            if (CustomFrameCodec.decode(buffer, System.currentTimeMillis(), source, handler) < 0 || buffer.hasRemaining()) {
+                LOG.finest("Dropping malformed custom datagram");
+            }
+        }
+    }
+
+    protected void readStream(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer buffer = ((Connection) key.attachment()).readBuffer;
+
+        try {
+            int read;
+            while ((read = channel.read(buffer)) > 0) {
+                buffer.flip();
+                int frames = CustomFrameCodec.decode(buffer, System.currentTimeMillis(), channel, handler);
+                buffer.compact();
+                if (frames < 0) {
+                    throw new IOException("Malformed custom frame received");
+                }
+            }
+            if (read < 0) {
+                closeChannel(key);
+            }
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Closing custom transport connection", e);
+            closeChannel(key);
+        }
+    }
+
+    protected void receiveDatagramsBlocking() {
+        ByteBuffer buffer = datagramBuffer;
+        int received = 0;
+
+        while (running) {
+            try {
+                buffer.clear();
+                SocketAddress source = datagramChannel.receive(buffer);
+                buffer.flip();
+                if (CustomFrameCodec.decode(buffer, System.currentTimeMillis(), source, handler) < 0 || buffer.hasRemaining()) {
+                    LOG.finest("Dropping malformed custom datagram");
+                }
+                if (++received % CustomThreads.YIELD_INTERVAL == 0) {
+                    Thread.yield();
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                if (running) {
+                    LOG.log(Level.WARNING, "Custom transport receive loop failure: " + getLocalAddress(), e);
+                }
+            }
+        }
+    }
+
+    protected void acceptConnections() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connections.add(channel);
+                threadFactory.newThread(() -> readStreamBlocking(channel)).start();
+                LOG.fine("Custom transport connection accepted: " + channel.getRemoteAddress());
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                if (running) {
+                    LOG.log(Level.WARNING, "Custom transport accept loop failure: " + getLocalAddress(), e);
+                }
+            }
+        }
+    }
+
+    protected void readStreamBlocking(SocketChannel channel) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CustomFrameCodec.MAX_FRAME_SIZE * 4);
+        int received = 0;
+
+        try {
+            while (running && channel.read(buffer) >= 0) {
+                buffer.flip();
+                int frames = CustomFrameCodec.decode(buffer, System.currentTimeMillis(), channel, handler);
+                buffer.compact();
+                if (frames < 0) {
+                    throw new IOException("Malformed custom frame received");
+                }
+                received += frames;
+                if (received >= CustomThreads.YIELD_INTERVAL) {
+                    received = 0;
+                    Thread.yield();
+                }
+            }
+        } catch (AsynchronousCloseException e) {
+            // Transport is closing
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Closing custom transport connection", e);
+        } finally {
+            connections.remove(channel);
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    protected void closeChannel(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    protected void closeQuietly() {
+        try {
+            if (selector != null) {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            }
+            if (datagramChannel != null) {
+                datagramChannel.close();
+            }
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            for (SocketChannel connection : connections) {
+                connection.close();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Failed to close custom transport", e);
+        }
+        selector = null;
+        datagramChannel = null;
+        serverChannel = null;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.agent.custom;
+
+import org.openremote.model.syslog.SyslogCategory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import static org.openremote.model.syslog.SyslogCategory.PROTOCOL;
+
+/**
+ * Reference counted {@link CustomTransport}s shared by all {@link CustomProtocol} instances with the same
+ * {@link CustomProtocol#getProtocolInstanceUri}; the first instance to start opens the transport using its own
+ * settings and the last one to stop closes it. Frames are routed to the instances by device ID through a
+ * {@link CustomFrameRouter} so each instance only sees the devices it has linked attributes for.
+ */
+public final class CustomTransportPool {
+
+    /**
+     * A reference to a shared transport; must be closed exactly once when the protocol instance stops.
+     */
+    public static final class Lease implements Closeable {
+        protected final String key;
+        protected final Entry entry;
+        protected final CustomFrameCodec.FrameHandler handler;
+        protected boolean closed;
+
+        protected Lease(String key, Entry entry, CustomFrameCodec.FrameHandler handler) {
+            this.key = key;
+            this.entry = entry;
+            this.handler = handler;
+        }
+
+        public CustomTransport getTransport() {
+            return entry.transport;
+        }
+
+        /**
+         * Receive the frames of the device; does nothing if already registered.
+         */
+        public void register(int deviceId) {
+            entry.router.register(deviceId, handler);
+        }
+
+        public void unregister(int deviceId) {
+            entry.router.unregister(deviceId, handler);
+        }
+
+        @Override
+        public void close() {
+            synchronized (CustomTransportPool.class) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                entry.router.unregisterAll(handler);
+                if (--entry.references == 0) {
+                    ENTRIES.remove(key);
+                    entry.transport.close();
+                    LOG.fine("Closed shared custom transport: " + key);
+                }
+            }
+        }
+    }
+
+    protected static final class Entry {
+        protected final CustomTransport transport;
+        protected final CustomFrameRouter router;
+        protected final CustomAgent.Transport type;
+        protected final InetSocketAddress bindAddress;
+        protected int references;
+
+        protected Entry(CustomTransport transport, CustomFrameRouter router, CustomAgent.Transport type, InetSocketAddress bindAddress) {
+            this.transport = transport;
+            this.router = router;
+            this.type = type;
+            this.bindAddress = bindAddress;
+        }
+    }
+
+    private static final Logger LOG = SyslogCategory.getLogger(PROTOCOL, CustomTransportPool.class);
+    protected static final Map<String, Entry> ENTRIES = new HashMap<>();
+
+    private CustomTransportPool() {
+    }
+
+    /**
+     * Returns a lease on the transport for the key, opening it with the given settings if this is the first lease;
+     * frames of the devices registered through the lease are passed to the handler.
+     */
+    public static synchronized Lease acquire(String key, CustomAgent.Transport type, InetSocketAddress bindAddress, ThreadFactory threadFactory, CustomFrameCodec.FrameHandler handler) throws IOException {
+        Entry entry = ENTRIES.get(key);
+
+        if (entry == null) {
+            CustomFrameRouter router = new CustomFrameRouter();
+            CustomTransport transport = new CustomTransport(type, bindAddress, router, threadFactory);
+            transport.start();
+            entry = new Entry(transport, router, type, bindAddress);
+            ENTRIES.put(key, entry);
+        } else if (entry.type != type || !entry.bindAddress.equals(bindAddress)) {
+            LOG.warning("Custom protocol instances sharing '" + key + "' have different transport settings, using those of the first: "
+                + entry.type + " " + entry.bindAddress);
+        }
+
+        entry.references++;
+        return new Lease(key, entry, handler);
+    }
+
+    /**
+     * The number of transports that are currently open.
+     */
+    public static synchronized int size() {
+        return ENTRIES.size();
+    }
+}
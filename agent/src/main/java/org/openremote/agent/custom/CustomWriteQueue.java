@@ -0,0 +1,252 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.agent.custom;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per device write queues for the {@link CustomProtocol}. Pending writes are keyed by channel so a newer write to the
+ * same channel replaces an older one that has not been sent yet (last write wins), and everything pending for a
+ * device is merged into as few frames as possible. Up to {@link #maxInFlight} frames per device are sent without
+ * waiting for their acknowledgement; outcomes are reported to the {@link Listener} once acknowledged, refused or timed
+ * out, except for channels that have since been written again as the newer write will report for them.
+ * <p>
+ * The protocol only updates an attribute once its write is acknowledged; a refused or timed out write re-emits the
+ * last value read from the device.
+ */
+public class CustomWriteQueue {
+
+    /**
+     * Sends a write frame for a device; implementations must not call back into the queue.
+     */
+    @FunctionalInterface
+    public interface Sender {
+        void send(int deviceId, int sequence, int[] channels, double[] values, int count) throws IOException;
+    }
+
+    public interface Listener {
+        void onWriteCompleted(int deviceId, int channel, double value);
+
+        void onWriteFailed(int deviceId, int channel, double value);
+    }
+
+    protected static final class InFlight {
+        protected final int sequence;
+        protected final int[] channels;
+        protected final double[] values;
+        protected final long sentAt;
+
+        protected InFlight(int sequence, int[] channels, double[] values, long sentAt) {
+            this.sequence = sequence;
+            this.channels = channels;
+            this.values = values;
+            this.sentAt = sentAt;
+        }
+    }
+
+    protected static final class DeviceQueue {
+        protected final int deviceId;
+        protected final Map<Integer, Double> pending = new LinkedHashMap<>();
+        protected final ArrayDeque<InFlight> inFlight = new ArrayDeque<>();
+        protected final Map<Integer, Integer> latestSequences = new HashMap<>();
+
+        protected DeviceQueue(int deviceId) {
+            this.deviceId = deviceId;
+        }
+    }
+
+    protected static final class Outcome {
+        protected final int deviceId;
+        protected final int channel;
+        protected final double value;
+        protected final boolean success;
+
+        protected Outcome(int deviceId, int channel, double value, boolean success) {
+            this.deviceId = deviceId;
+            this.channel = channel;
+            this.value = value;
+            this.success = success;
+        }
+    }
+
+    protected final Map<Integer, DeviceQueue> devices = new ConcurrentHashMap<>();
+    protected final AtomicInteger sequence = new AtomicInteger();
+    protected final int maxInFlight;
+    protected final long timeoutMillis;
+    protected final Sender sender;
+    protected final Listener listener;
+
+    public CustomWriteQueue(int maxInFlight, long timeoutMillis, Sender sender, Listener listener) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.timeoutMillis = timeoutMillis;
+        this.sender = sender;
+        this.listener = listener;
+    }
+
+    public void write(int deviceId, int channel, double value) {
+        DeviceQueue queue = devices.computeIfAbsent(deviceId, DeviceQueue::new);
+        List<Outcome> outcomes = new ArrayList<>(0);
+
+        synchronized (queue) {
+            queue.pending.put(channel, value);
+            send(queue, outcomes);
+        }
+
+        report(outcomes);
+    }
+
+    public void onAck(int deviceId, int sequence, boolean success) {
+        DeviceQueue queue = devices.get(deviceId);
+        if (queue == null) {
+            return;
+        }
+        List<Outcome> outcomes = new ArrayList<>();
+
+        synchronized (queue) {
+            Iterator<InFlight> iterator = queue.inFlight.iterator();
+            while (iterator.hasNext()) {
+                InFlight frame = iterator.next();
+                if (frame.sequence == sequence) {
+                    iterator.remove();
+                    complete(queue, frame, success, outcomes);
+                    break;
+                }
+            }
+            send(queue, outcomes);
+        }
+
+        report(outcomes);
+    }
+
+    /**
+     * Fail every frame that has been waiting for an acknowledgement for longer than the timeout.
+     */
+    public void checkTimeouts(long now) {
+        List<Outcome> outcomes = new ArrayList<>();
+
+        for (DeviceQueue queue : devices.values()) {
+            synchronized (queue) {
+                boolean expired = false;
+                Iterator<InFlight> iterator = queue.inFlight.iterator();
+                while (iterator.hasNext()) {
+                    InFlight frame = iterator.next();
+                    if (now - frame.sentAt >= timeoutMillis) {
+                        iterator.remove();
+                        complete(queue, frame, false, outcomes);
+                        expired = true;
+                    }
+                }
+                if (expired) {
+                    send(queue, outcomes);
+                }
+            }
+        }
+
+        report(outcomes);
+    }
+
+    /**
+     * The number of writes that have not been sent yet.
+     */
+    public int getPendingCount() {
+        int pending = 0;
+        for (DeviceQueue queue : devices.values()) {
+            synchronized (queue) {
+                pending += queue.pending.size();
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * The number of frames awaiting acknowledgement.
+     */
+    public int getInFlightCount() {
+        int inFlight = 0;
+        for (DeviceQueue queue : devices.values()) {
+            synchronized (queue) {
+                inFlight += queue.inFlight.size();
+            }
+        }
+        return inFlight;
+    }
+
+    public void clear() {
+        devices.clear();
+    }
+
+    protected void send(DeviceQueue queue, List<Outcome> outcomes) {
+        while (queue.inFlight.size() < maxInFlight && !queue.pending.isEmpty()) {
+            int count = Math.min(queue.pending.size(), CustomFrameCodec.MAX_ENTRIES);
+            int[] channels = new int[count];
+            double[] values = new double[count];
+            int frameSequence = sequence.incrementAndGet();
+            Iterator<Map.Entry<Integer, Double>> iterator = queue.pending.entrySet().iterator();
+
+            for (int i = 0; i < count; i++) {
+                Map.Entry<Integer, Double> entry = iterator.next();
+                iterator.remove();
+                channels[i] = entry.getKey();
+                values[i] = entry.getValue();
+                queue.latestSequences.put(channels[i], frameSequence);
+            }
+
+            InFlight frame = new InFlight(frameSequence, channels, values, System.currentTimeMillis());
+            try {
+                sender.send(queue.deviceId, frameSequence, channels, values, count);
+                queue.inFlight.add(frame);
+            } catch (IOException | RuntimeException e) {
+                complete(queue, frame, false, outcomes);
+            }
+        }
+    }
+
+    protected void complete(DeviceQueue queue, InFlight frame, boolean success, List<Outcome> outcomes) {
+        for (int i = 0; i < frame.channels.length; i++) {
+            int channel = frame.channels[i];
+            Integer latest = queue.latestSequences.get(channel);
+            // Superseded by a later write to the same channel which will report its own outcome
+            if (latest == null || latest != frame.sequence || queue.pending.containsKey(channel)) {
+                continue;
+            }
+            queue.latestSequences.remove(channel);
+            outcomes.add(new Outcome(queue.deviceId, channel, frame.values[i], success));
+        }
+    }
+
+    protected void report(List<Outcome> outcomes) {
+        for (Outcome outcome : outcomes) {
+            if (outcome.success) {
+                listener.onWriteCompleted(outcome.deviceId, outcome.channel, outcome.value);
+            } else {
+                listener.onWriteFailed(outcome.deviceId, outcome.channel, outcome.value);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.benchmark.custom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openremote.model.custom.CustomAsset;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and writing the {@link CustomAsset#CUSTOM_VALUE_TYPE_ATTRIBUTE_DESCRIPTOR} attribute of a
+ * {@link CustomAsset}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CustomAssetBenchmark {
+
+    protected static final CustomAsset.CustomValueType[] VALUE_TYPES = CustomAsset.CustomValueType.values();
+    protected CustomAsset asset;
+    protected int next;
+
+    @Setup
+    public void setup() {
+        asset = new CustomAsset("Benchmark").setCustomAttribute(VALUE_TYPES[0]);
+    }
+
+    @Benchmark
+    public CustomAsset.CustomValueType getCustomAttribute() {
+        return asset.getAttributes().getValue(CustomAsset.CUSTOM_VALUE_TYPE_ATTRIBUTE_DESCRIPTOR).orElse(null);
+    }
+
+    @Benchmark
+    public CustomAsset setCustomAttribute() {
+        next = (next + 1) % VALUE_TYPES.length;
+        asset.getAttributes().getOrCreate(CustomAsset.CUSTOM_VALUE_TYPE_ATTRIBUTE_DESCRIPTOR).setValue(VALUE_TYPES[next]);
+        return asset;
+    }
+}
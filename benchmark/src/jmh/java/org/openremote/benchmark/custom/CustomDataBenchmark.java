@@ -0,0 +1,130 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.benchmark.custom;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openremote.model.custom.CustomAsset;
+import org.openremote.model.custom.CustomData;
+import org.openremote.model.custom.CustomDataCodec;
+import org.openremote.model.util.ValueUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON and binary ({@link CustomDataCodec}) serialization of {@link CustomData} as done by the custom endpoint for
+ * single and bulk submissions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CustomDataBenchmark {
+
+    public static final int BATCH_SIZE = 100;
+    protected final ObjectReader reader = ValueUtil.JSON.readerFor(CustomData.class);
+    protected final ObjectWriter writer = ValueUtil.JSON.writerFor(CustomData.class);
+    protected final ByteArrayOutputStream output = new ByteArrayOutputStream(64 * 1024);
+    protected List<CustomData> batch;
+    protected CustomData record;
+    protected byte[] json;
+    protected byte[] ndjson;
+    protected byte[] binary;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(1);
+        batch = new ArrayList<>(BATCH_SIZE);
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        long timestamp = 1666000000000L;
+
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            timestamp += random.nextInt(1000);
+            Object value = i % 4 == 0 ? CustomAsset.CustomValueType.values()[i % CustomAsset.CustomValueType.values().length].name() : random.nextDouble() * 100d;
+            CustomData data = new CustomData("asset" + random.nextInt(20), i % 2 == 0 ? "temperature" : "humidity", value, timestamp);
+            batch.add(data);
+            lines.write(writer.writeValueAsBytes(data));
+            lines.write('\n');
+        }
+
+        record = batch.get(1);
+        json = writer.writeValueAsBytes(record);
+        ndjson = lines.toByteArray();
+        CustomDataCodec.Encoder encoder = new CustomDataCodec.Encoder(output);
+        encoder.writeBatch(batch);
+        encoder.flush();
+        binary = output.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] serializeJson() throws IOException {
+        return writer.writeValueAsBytes(record);
+    }
+
+    @Benchmark
+    public CustomData deserializeJson() throws IOException {
+        return reader.readValue(json);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void deserializeNdjsonBatch(Blackhole blackhole) throws IOException {
+        try (MappingIterator<CustomData> iterator = reader.readValues(ndjson)) {
+            while (iterator.hasNextValue()) {
+                blackhole.consume(iterator.nextValue());
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int encodeBinaryBatch() throws IOException {
+        output.reset();
+        CustomDataCodec.Encoder encoder = new CustomDataCodec.Encoder(output);
+        encoder.writeBatch(batch);
+        encoder.flush();
+        return output.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void decodeBinaryBatch(Blackhole blackhole) throws IOException {
+        CustomDataCodec.Decoder decoder = new CustomDataCodec.Decoder(new ByteArrayInputStream(binary));
+        CustomData data;
+        while ((data = decoder.next()) != null) {
+            blackhole.consume(data);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.benchmark.custom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openremote.agent.custom.CustomEventCoalescer;
+import org.openremote.agent.custom.CustomFrameCodec;
+import org.openremote.agent.custom.CustomFrameRouter;
+import org.openremote.agent.custom.CustomLinkRegistry;
+import org.openremote.agent.custom.CustomProtocol;
+import org.openremote.model.asset.agent.DefaultAgentLink;
+import org.openremote.model.attribute.AttributeRef;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The inbound path of the {@link CustomProtocol}: frames received from devices are decoded from the receive buffer,
+ * routed to the protocol handling the device and each reading looked up by address and stored in the coalescer,
+ * exactly as {@link CustomProtocol} does before readings are flushed as attribute events. Scores are per reading.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CustomProtocolBenchmark {
+
+    public static final int DEVICES = 1000;
+    public static final int CHANNELS = 8;
+    public static final int FRAMES = 100;
+    protected final CustomFrameRouter router = new CustomFrameRouter();
+    protected final CustomLinkRegistry linkRegistry = new CustomLinkRegistry(DEVICES * CHANNELS);
+    protected final CustomEventCoalescer coalescer = new CustomEventCoalescer(DEVICES * CHANNELS);
+    protected final ByteBuffer buffer = ByteBuffer.allocateDirect(FRAMES * (CustomFrameCodec.HEADER_SIZE + CHANNELS * CustomFrameCodec.ENTRY_SIZE));
+
+    @Setup
+    public void setup() {
+        CustomFrameCodec.FrameHandler handler = (deviceId, channel, value, timestamp) -> {
+            int slot = linkRegistry.lookup(CustomFrameCodec.address(deviceId, channel));
+            if (slot != CustomLinkRegistry.NO_SLOT) {
+                coalescer.update(slot, value, timestamp);
+            }
+        };
+
+        for (int device = 0; device < DEVICES; device++) {
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                int slot = linkRegistry.link(
+                    new AttributeRef("asset" + device, "channel" + channel),
+                    new DefaultAgentLink("agent"),
+                    CustomFrameCodec.address(device, channel),
+                    Double.class
+                );
+                coalescer.ensureCapacity(slot);
+            }
+            router.register(device, handler);
+        }
+
+        for (int frame = 0; frame < FRAMES; frame++) {
+            int deviceId = (frame * 7919) % DEVICES;
+            CustomFrameCodec.putHeader(buffer, CustomFrameCodec.TYPE_READING, deviceId, frame, CHANNELS);
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                CustomFrameCodec.putEntry(buffer, channel, frame + channel / 10d);
+            }
+        }
+        buffer.flip();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES * CHANNELS)
+    public int decodeAndDispatch() {
+        buffer.position(0);
+        return CustomFrameCodec.decode(buffer, System.currentTimeMillis(), null, router);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES * CHANNELS)
+    public int decodeDispatchAndFlush() {
+        buffer.position(0);
+        CustomFrameCodec.decode(buffer, System.currentTimeMillis(), null, router);
+        return coalescer.flush((slot, value, timestamp) -> {
+        });
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.benchmark.custom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openremote.manager.custom.CustomIngestQueue;
+import org.openremote.manager.custom.CustomService;
+import org.openremote.manager.custom.CustomShardPool;
+import org.openremote.model.attribute.AttributeEvent;
+import org.openremote.model.custom.CustomData;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The submit path of the {@link CustomService}: building the {@link AttributeEvent} of a reading, queueing bulk
+ * submissions on the ingest queue and handing events to the worker shards. The queue writer and shard tasks do nothing
+ * so the scores are the cost of the hand-over alone; queues are sized so offers are never refused.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CustomServiceBenchmark {
+
+    public static final int BATCH_SIZE = 100;
+    protected CustomIngestQueue ingestQueue;
+    protected CustomShardPool shardPool;
+    protected List<CustomData> batch;
+    protected String[] assetIds;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ingestQueue = new CustomIngestQueue(1 << 20, CustomService.CUSTOM_INGEST_BATCH_SIZE_DEFAULT, 1L, (records, realms) -> new BitSet());
+        ingestQueue.start();
+        shardPool = new CustomShardPool(Runtime.getRuntime().availableProcessors(), 1 << 20, CustomService.CUSTOM_SHARD_QUANTUM_DEFAULT, Collections.emptyMap(), 1);
+        shardPool.start();
+        batch = new ArrayList<>(BATCH_SIZE);
+        assetIds = new String[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            assetIds[i] = "asset" + i;
+            batch.add(new CustomData(assetIds[i], "temperature", 20d + i, 1666000000000L + i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        ingestQueue.stop();
+        shardPool.stop();
+    }
+
+    @Benchmark
+    public AttributeEvent attributeEvent() {
+        CustomData data = batch.get(0);
+        return new AttributeEvent(data.getAssetId(), data.getAttributeName(), data.getValue(), data.getTimestamp());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int submitBatch() {
+        return ingestQueue.offerAll(batch, customData -> "master", null);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int offerToShards() {
+        int accepted = 0;
+        for (String assetId : assetIds) {
+            if (shardPool.offer(assetId, "master", () -> {
+            })) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+}
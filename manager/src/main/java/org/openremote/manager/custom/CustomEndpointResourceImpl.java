@@ -0,0 +1,557 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.custom;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.openremote.container.timer.TimerService;
+import org.openremote.manager.security.ManagerIdentityService;
+import org.openremote.manager.web.ManagerWebResource;
+import org.openremote.model.custom.CustomAssetLocation;
+import org.openremote.model.custom.CustomAssetValues;
+import org.openremote.model.custom.CustomCacheStatistics;
+import org.openremote.model.custom.CustomAsset;
+import org.openremote.model.custom.CustomData;
+import org.openremote.model.custom.CustomDataBatchResult;
+import org.openremote.model.custom.CustomDataCodec;
+import org.openremote.model.custom.CustomEndpointResource;
+import org.openremote.model.custom.CustomExportFormat;
+import org.openremote.model.custom.CustomRollup;
+import org.openremote.model.custom.CustomRule;
+import org.openremote.model.custom.CustomShardStatistics;
+import org.openremote.model.custom.CustomValueTypeCounts;
+import org.openremote.model.util.ValueUtil;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.FORBIDDEN;
+import static javax.ws.rs.core.Response.Status.NOT_FOUND;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+import static javax.ws.rs.core.Response.Status.TOO_MANY_REQUESTS;
+
+public class CustomEndpointResourceImpl extends ManagerWebResource implements CustomEndpointResource {
+
+    private static final Logger LOG = Logger.getLogger(CustomEndpointResourceImpl.class.getName());
+    protected static final ObjectReader CUSTOM_DATA_READER = ValueUtil.JSON.readerFor(CustomData.class);
+    protected final CustomService customService;
+
+    public CustomEndpointResourceImpl(TimerService timerService, ManagerIdentityService identityService, CustomService customService) {
+        super(timerService, identityService);
+        this.customService = customService;
+    }
+
+    @Override
+    public void submitData(AsyncResponse asyncResponse, CustomData customData) {
+        if (customData == null) {
+            asyncResponse.resume(Response.status(BAD_REQUEST).build());
+            return;
+        }
+        String realm = customData.hasReading()
+            ? customService.getAssetRealms(Collections.singleton(customData.getAssetId())).get(customData.getAssetId())
+            : null;
+        if (isRestrictedUser() || (customData.hasReading() && !isAccessible(realm, new HashMap<>()))) {
+            asyncResponse.resume(Response.status(FORBIDDEN).build());
+            return;
+        }
+
+        boolean queued = customService.submit(customData, realm, failure -> {
+            if (failure != null) {
+                asyncResponse.resume(failure);
+            } else {
+                asyncResponse.resume(Response.noContent().build());
+            }
+        });
+
+        if (!queued) {
+            asyncResponse.resume(retryLater(TOO_MANY_REQUESTS, null));
+        }
+    }
+
+    @Override
+    public CustomDataBatchResult[] submitDataStream(InputStream data) {
+        // The mapping iterator pulls one record at a time from the parser so only a single batch is ever held
+        return submitStream(() -> {
+            MappingIterator<CustomData> iterator = CUSTOM_DATA_READER.readValues(data);
+            return new RecordReader() {
+                @Override
+                public CustomData next() throws IOException {
+                    return iterator.hasNextValue() ? iterator.nextValue() : null;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    iterator.close();
+                }
+            };
+        });
+    }
+
+    @Override
+    public CustomDataBatchResult[] submitBinaryDataStream(InputStream data) {
+        return submitStream(() -> new CustomDataCodec.Decoder(data)::next);
+    }
+
+    /**
+     * Opens a record reader lazily so a malformed header is answered like any other malformed record.
+     */
+    @FunctionalInterface
+    protected interface RecordReaderFactory {
+        RecordReader open() throws IOException;
+    }
+
+    /**
+     * Returns the next record of a stream or <code>null</code> at its end.
+     */
+    @FunctionalInterface
+    protected interface RecordReader extends Closeable {
+        CustomData next() throws IOException;
+
+        @Override
+        default void close() throws IOException {
+        }
+    }
+
+    /**
+     * A batch handed to the ingest queue; the writer reports the outcome of every accepted record so the response can
+     * wait until the batch has been committed.
+     */
+    protected static class PendingBatch {
+        protected final int received;
+        protected final int[] positions;
+        protected final BitSet completed = new BitSet();
+        protected final BitSet failed = new BitSet();
+        protected int accepted;
+        protected int rejected;
+
+        protected PendingBatch(int received, int[] positions) {
+            this.received = received;
+            this.positions = positions;
+        }
+
+        protected synchronized void complete(Throwable failure, int index) {
+            completed.set(index);
+            if (failure != null) {
+                failed.set(index);
+            }
+            notifyAll();
+        }
+
+        /**
+         * Waits until every accepted record has been committed or the deadline has passed; records whose outcome is
+         * still unknown by then are reported as failed.
+         */
+        protected synchronized CustomDataBatchResult toResult(int batch, long deadlineNanos) {
+            long remaining;
+            while (completed.cardinality() < accepted && (remaining = deadlineNanos - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            int[] failedPositions = new int[accepted - completed.cardinality() + failed.cardinality()];
+            for (int i = 0, j = 0; i < accepted; i++) {
+                if (failed.get(i) || !completed.get(i)) {
+                    failedPositions[j++] = positions[i];
+                }
+            }
+            return new CustomDataBatchResult(batch, received, accepted, rejected, failedPositions);
+        }
+    }
+
+    protected CustomDataBatchResult[] submitStream(RecordReaderFactory readerFactory) {
+        if (isRestrictedUser()) {
+            throw new WebApplicationException(FORBIDDEN);
+        }
+        int batchSize = customService.getBulkBatchSize();
+        List<PendingBatch> pending = new ArrayList<>();
+        List<CustomData> batch = new ArrayList<>(batchSize);
+
+        try (RecordReader reader = readerFactory.open()) {
+            CustomData record;
+            while ((record = reader.next()) != null) {
+                batch.add(record);
+                if (batch.size() == batchSize && !submitBatch(pending, batch)) {
+                    break;
+                }
+            }
+            if (!batch.isEmpty()) {
+                submitBatch(pending, batch);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.FINE, "Failed to read custom data stream after " + pending.size() + " batch(es)", e);
+            throw new WebApplicationException(
+                Response.status(BAD_REQUEST)
+                    .type(MediaType.APPLICATION_JSON)
+                    .entity(toResults(pending))
+                    .build()
+            );
+        }
+
+        CustomDataBatchResult[] results = toResults(pending);
+        PendingBatch last = pending.isEmpty() ? null : pending.get(pending.size() - 1);
+
+        if (last != null && last.accepted + last.rejected < last.received) {
+            // The ingest queue is full; the client can resume from the first record that was neither accepted nor rejected
+            throw new WebApplicationException(retryLater(TOO_MANY_REQUESTS, results));
+        }
+        for (CustomDataBatchResult result : results) {
+            if (result.getFailed().length > 0) {
+                // The client can resubmit the records listed as failed
+                throw new WebApplicationException(retryLater(SERVICE_UNAVAILABLE, results));
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * The results of the batches once their accepted records have been committed, waiting no longer than
+     * {@link CustomService#BULK_COMMIT_TIMEOUT_SECONDS} for all of them.
+     */
+    protected static CustomDataBatchResult[] toResults(List<PendingBatch> pending) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CustomService.BULK_COMMIT_TIMEOUT_SECONDS);
+        CustomDataBatchResult[] results = new CustomDataBatchResult[pending.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = pending.get(i).toResult(i, deadline);
+        }
+        return results;
+    }
+
+    @Override
+    public CustomAssetValues[] getValues(List<String> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return new CustomAssetValues[0];
+        }
+        if (ids.size() > customService.getValuesMaxResults()) {
+            throw new WebApplicationException(BAD_REQUEST);
+        }
+        if (isRestrictedUser()) {
+            throw new WebApplicationException(FORBIDDEN);
+        }
+
+        return customService.getValues(ids).stream()
+            .filter(values -> isRealmActiveAndAccessible(values.getRealm()))
+            .toArray(CustomAssetValues[]::new);
+    }
+
+    @Override
+    public CustomAssetValues[] getRealmValues(String realm, Integer limit) {
+        if (!isRealmActiveAndAccessible(realm) || isRestrictedUser()) {
+            throw new WebApplicationException(FORBIDDEN);
+        }
+
+        return customService.getRealmValues(realm, toLimit(limit)).toArray(new CustomAssetValues[0]);
+    }
+
+    @Override
+    public CustomCacheStatistics getValueCacheStatistics() {
+        return customService.getValueCacheStatistics();
+    }
+
+    @Override
+    public CustomRollup[] getRollups(String assetId, String attributeName, Long from, Long to, Integer maxPoints, CustomRollup.Resolution resolution) {
+        if (from == null || to == null || from >= to) {
+            throw new WebApplicationException(BAD_REQUEST);
+        }
+        if (resolution != null && (to - from) / resolution.getMillis() > customService.getValuesMaxResults()) {
+            throw new WebApplicationException(BAD_REQUEST);
+        }
+        int points = Math.min(maxPoints != null && maxPoints > 0 ? maxPoints : CustomService.ROLLUP_MAX_POINTS_DEFAULT, customService.getValuesMaxResults());
+        if (resolution == null && (to - from) / CustomRollup.Resolution.HOUR.getMillis() >= points) {
+            // Even the coarsest resolution needs more buckets than allowed
+            throw new WebApplicationException(BAD_REQUEST);
+        }
+        if (isRestrictedUser()) {
+            throw new WebApplicationException(FORBIDDEN);
+        }
+
+        String realm = customService.getAssetRealm(assetId);
+
+        if (realm == null) {
+            throw new WebApplicationException(NOT_FOUND);
+        }
+        if (!isRealmActiveAndAccessible(realm)) {
+            throw new WebApplicationException(FORBIDDEN);
+        }
+
+        List<CustomRollup> rollups = resolution != null
+            ? customService.getRollups(assetId, attributeName, resolution, from, to)
+            : customService.getRollups(assetId, attributeName, from, to, points);
+        return rollups.toArray(new CustomRollup[0]);
+    }
+
+    @Override
+    public CustomValueTypeCounts getValueTypeCounts(String realm, String parentId) {
+        if (!isRealmActiveAndAccessible(realm) || isRestrictedUser()) {
+            throw new WebApplicationException(FORBIDDEN);
+        }
+        return customService.getValueTypeCounts(realm, parentId);
+    }
+
+    @Override
+    public CustomValueTypeCounts[] getParentValueTypeCounts(String realm) {
+        if (!isRealmActiveAndAccessible(realm) || isRestrictedUser()) {
+            throw new WebApplicationException(FORBIDDEN);
+        }
+        return customService.getParentValueTypeCounts(realm).toArray(new CustomValueTypeCounts[0]);
+    }
+
+    @Override
+    public CustomAssetLocation[] findAssetsWithin(String realm, Double south, Double west, Double north, Double east, Integer limit) {
+        if (!isLatitude(south) || !isLatitude(north) || !isLongitude(west) || !isLongitude(east) || south > north) {
+            throw new WebApplicationException(BAD_REQUEST);
+        }
+        checkRealmAccess(realm);
+        return customService.findAssetsWithin(realm, south, west, north, east, toLimit(limit)).toArray(new CustomAssetLocation[0]);
+    }
+
+    @Override
+    public CustomAssetLocation[] findAssetsWithinRadius(String realm, Double latitude, Double longitude, Double radius, Integer limit) {
+        if (!isLatitude(latitude) || !isLongitude(longitude) || radius == null || !(radius > 0)) {
+            throw new WebApplicationException(BAD_REQUEST);
+        }
+        checkRealmAccess(realm);
+        return customService.findAssetsWithinRadius(realm, latitude, longitude, radius, toLimit(limit)).toArray(new CustomAssetLocation[0]);
+    }
+
+    @Override
+    public CustomAssetLocation[] findNearestAssets(String realm, Double latitude, Double longitude, Integer k) {
+        if (!isLatitude(latitude) || !isLongitude(longitude) || k == null || k <= 0) {
+            throw new WebApplicationException(BAD_REQUEST);
+        }
+        checkRealmAccess(realm);
+        return customService.findNearestAssets(realm, latitude, longitude, toLimit(k)).toArray(new CustomAssetLocation[0]);
+    }
+
+    @Override
+    public CustomRule[] getRules(String realm) {
+        checkRealmAccess(realm);
+        return customService.getRules(realm).toArray(new CustomRule[0]);
+    }
+
+    @Override
+    public CustomRule putRule(CustomRule rule) {
+        if (rule == null) {
+            throw new WebApplicationException(BAD_REQUEST);
+        }
+        checkRealmAccess(rule.getRealm());
+        if (rule.getAssetId() != null
+            && !rule.getRealm().equals(customService.getAssetRealms(Collections.singleton(rule.getAssetId())).get(rule.getAssetId()))) {
+            // The alert is written to the asset so it must be in the realm of the rule
+            throw new WebApplicationException("Rule asset does not exist in realm: " + rule.getRealm(), BAD_REQUEST);
+        }
+        if (rule.getId() == null) {
+            rule.setId(UUID.randomUUID().toString());
+        } else {
+            CustomRule existing = customService.getRule(rule.getId());
+            if (existing != null) {
+                // Don't allow replacing a rule of a realm the user cannot access
+                checkRealmAccess(existing.getRealm());
+            }
+        }
+
+        try {
+            customService.putRule(rule);
+        } catch (IllegalArgumentException e) {
+            throw new WebApplicationException(e.getMessage(), BAD_REQUEST);
+        }
+        return rule;
+    }
+
+    @Override
+    public void deleteRule(String ruleId) {
+        CustomRule rule = customService.getRule(ruleId);
+        if (rule == null) {
+            throw new WebApplicationException(NOT_FOUND);
+        }
+        checkRealmAccess(rule.getRealm());
+        customService.removeRule(ruleId);
+    }
+
+    @Override
+    public CustomShardStatistics[] getShardStatistics() {
+        checkSuperUser();
+        return customService.getShardStatistics().toArray(new CustomShardStatistics[0]);
+    }
+
+    @Override
+    public String getMetrics() {
+        checkSuperUser();
+        return customService.getMetrics();
+    }
+
+    @Override
+    public Response exportAssets(String realm, String assetType, CustomExportFormat format, String continuation) {
+        checkRealmAccess(realm);
+        CustomExporter.Continuation after = toContinuation(continuation, CustomExporter::parseAssetContinuation);
+        CustomExportFormat exportFormat = format != null ? format : CustomExportFormat.NDJSON;
+        String type = assetType != null ? assetType : CustomAsset.class.getSimpleName();
+
+        return export(exportFormat, out -> customService.exportAssets(realm, type, after, exportFormat, out));
+    }
+
+    @Override
+    public Response exportDatapoints(String realm, String assetType, Long from, Long to, CustomExportFormat format, String continuation) {
+        if (from != null && to != null && from >= to) {
+            throw new WebApplicationException(BAD_REQUEST);
+        }
+        checkRealmAccess(realm);
+        CustomExporter.Continuation after = toContinuation(continuation, CustomExporter::parseDatapointContinuation);
+        CustomExportFormat exportFormat = format != null ? format : CustomExportFormat.NDJSON;
+        String type = assetType != null ? assetType : CustomAsset.class.getSimpleName();
+
+        return export(exportFormat, out -> customService.exportDatapoints(realm, type, from, to, after, exportFormat, out));
+    }
+
+    protected void checkRealmAccess(String realm) {
+        if (realm == null || !isRealmActiveAndAccessible(realm) || isRestrictedUser()) {
+            throw new WebApplicationException(FORBIDDEN);
+        }
+    }
+
+    /**
+     * Statistics and metrics that span every realm (agent IDs, realm names and queue depths) are only available to
+     * super users.
+     */
+    protected void checkSuperUser() {
+        if (!isSuperUser()) {
+            throw new WebApplicationException(FORBIDDEN);
+        }
+    }
+
+    protected static CustomExporter.Continuation toContinuation(String token, Function<String, CustomExporter.Continuation> parser) {
+        if (token == null) {
+            return null;
+        }
+        CustomExporter.Continuation continuation = parser.apply(token);
+        if (continuation == null) {
+            throw new WebApplicationException(BAD_REQUEST);
+        }
+        return continuation;
+    }
+
+    /**
+     * The export runs when the container writes the response so rows reach the client while the cursor is read; a
+     * failure after the first row can only abort the response.
+     */
+    protected static Response export(CustomExportFormat format, StreamingOutput output) {
+        return Response.ok((StreamingOutput) out -> {
+            try {
+                output.write(out);
+            } catch (UncheckedIOException e) {
+                LOG.log(Level.FINE, "Custom export aborted by client", e);
+                throw e;
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Custom export failed", e);
+                throw e;
+            }
+        }, format.getMediaType()).build();
+    }
+
+    protected int toLimit(Integer limit) {
+        int maxResults = customService.getValuesMaxResults();
+        return limit != null && limit > 0 ? Math.min(limit, maxResults) : maxResults;
+    }
+
+    protected static boolean isLatitude(Double value) {
+        return value != null && value >= -90d && value <= 90d;
+    }
+
+    protected static boolean isLongitude(Double value) {
+        return value != null && value >= -180d && value <= 180d;
+    }
+
+    /**
+     * Queue the batch and record it as pending; returns <code>false</code> if not every record was accepted or rejected
+     * in which case no further batches should be submitted. Records with a reading for an asset the caller cannot
+     * access are rejected; only those before the first record refused by the ingest queue are counted so that
+     * <code>accepted + rejected</code> is always the offset to resume the batch from.
+     */
+    protected boolean submitBatch(List<PendingBatch> pending, List<CustomData> batch) {
+        int received = batch.size();
+        Map<String, String> assetRealms = customService.getAssetRealms(
+            batch.stream().filter(customData -> customData != null && customData.hasReading()).map(CustomData::getAssetId).collect(Collectors.toSet())
+        );
+        Map<String, Boolean> realmAccess = new HashMap<>();
+        List<CustomData> permitted = new ArrayList<>(received);
+        int[] positions = new int[received];
+
+        for (int i = 0; i < received; i++) {
+            CustomData customData = batch.get(i);
+            if (customData == null || !customData.hasReading() || isAccessible(assetRealms.get(customData.getAssetId()), realmAccess)) {
+                positions[permitted.size()] = i;
+                permitted.add(customData);
+            }
+        }
+
+        PendingBatch pendingBatch = new PendingBatch(received, positions);
+        int accepted = customService.submit(permitted, assetRealms, pendingBatch::complete);
+        int resumeAt = accepted < permitted.size() ? positions[accepted] : received;
+        // Every record before the first refused one was either accepted or rejected
+        pendingBatch.accepted = accepted;
+        pendingBatch.rejected = resumeAt - accepted;
+        batch.clear();
+        pending.add(pendingBatch);
+        return accepted + pendingBatch.rejected == received;
+    }
+
+    /**
+     * Whether the realm of an asset is accessible to the caller; a <code>null</code> realm (the asset does not exist)
+     * is not. Results are memoized per realm in the supplied map.
+     */
+    protected boolean isAccessible(String realm, Map<String, Boolean> realmAccess) {
+        return realm != null && realmAccess.computeIfAbsent(realm, this::isRealmActiveAndAccessible);
+    }
+
+    protected Response retryLater(Response.Status status, Object entity) {
+        Response.ResponseBuilder builder = Response.status(status)
+            .header(HttpHeaders.RETRY_AFTER, customService.getRetryAfterSeconds());
+
+        if (entity != null) {
+            builder.type(MediaType.APPLICATION_JSON).entity(entity);
+        }
+
+        return builder.build();
+    }
+}
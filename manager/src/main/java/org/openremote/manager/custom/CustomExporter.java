@@ -0,0 +1,342 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.custom;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.hibernate.Session;
+import org.openremote.container.persistence.PersistenceService;
+import org.openremote.model.custom.CustomExportFormat;
+import org.openremote.model.util.ValueUtil;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Base64;
+
+/**
+ * Streams asset state and datapoint history straight from a database cursor to an output stream; rows are fetched
+ * {@link #fetchSize} at a time and written as they are read so memory use does not depend on the size of the export.
+ * <p>
+ * Exports are ordered by a unique key (the asset ID for assets; the timestamp, asset ID and attribute name for
+ * datapoints) and each row carries a continuation token encoding its key, so an interrupted export can be resumed with
+ * a keyset condition rather than an offset that would have to skip over everything already exported.
+ */
+public class CustomExporter {
+
+    public static final String CONTINUATION = "continuation";
+    protected static final String ASSETS_QUERY =
+        "select ID, NAME, PARENT_ID, CREATED_ON, ATTRIBUTES from ASSET where REALM = ? and TYPE = ?";
+    protected static final String ASSETS_AFTER = " and ID > ?";
+    protected static final String ASSETS_ORDER = " order by ID";
+    protected static final String DATAPOINTS_QUERY =
+        "select DP.TIMESTAMP, DP.ENTITY_ID, DP.ATTRIBUTE_NAME, DP.VALUE from ASSET_DATAPOINT DP " +
+            "join ASSET A on A.ID = DP.ENTITY_ID where A.REALM = ? and A.TYPE = ?";
+    protected static final String DATAPOINTS_FROM = " and DP.TIMESTAMP >= ?";
+    protected static final String DATAPOINTS_TO = " and DP.TIMESTAMP < ?";
+    protected static final String DATAPOINTS_AFTER = " and (DP.TIMESTAMP, DP.ENTITY_ID, DP.ATTRIBUTE_NAME) > (?, ?, ?)";
+    protected static final String DATAPOINTS_ORDER = " order by DP.TIMESTAMP, DP.ENTITY_ID, DP.ATTRIBUTE_NAME";
+    protected static final String[] ASSET_COLUMNS = {"id", "name", "parentId", "createdOn", "attributes", CONTINUATION};
+    protected static final String[] DATAPOINT_COLUMNS = {"timestamp", "assetId", "attributeName", "value", CONTINUATION};
+    protected static final char ASSET_KEY = 'A';
+    protected static final char DATAPOINT_KEY = 'D';
+    protected static final char KEY_SEPARATOR = '\n';
+    protected final PersistenceService persistenceService;
+    protected final int fetchSize;
+
+    /**
+     * The key of the last row of an earlier export, decoded from its continuation token.
+     */
+    public static class Continuation {
+        protected final long timestamp;
+        protected final String assetId;
+        protected final String attributeName;
+
+        protected Continuation(long timestamp, String assetId, String attributeName) {
+            this.timestamp = timestamp;
+            this.assetId = assetId;
+            this.attributeName = attributeName;
+        }
+    }
+
+    /**
+     * Receives the rows of a result set one at a time.
+     */
+    @FunctionalInterface
+    protected interface RowWriter {
+        void write(ResultSet resultSet) throws SQLException, IOException;
+    }
+
+    @FunctionalInterface
+    protected interface StatementBinder {
+        void bind(PreparedStatement statement) throws SQLException;
+    }
+
+    @FunctionalInterface
+    protected interface FormatWriter {
+        void write(ResultSet resultSet, JsonGenerator json, Writer csv) throws SQLException, IOException;
+    }
+
+    public CustomExporter(PersistenceService persistenceService, int fetchSize) {
+        this.persistenceService = persistenceService;
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Decodes an asset export continuation token; returns <code>null</code> if the token is not valid for assets.
+     */
+    public static Continuation parseAssetContinuation(String token) {
+        String[] key = decode(token, ASSET_KEY, 1);
+        return key != null ? new Continuation(0L, key[0], null) : null;
+    }
+
+    /**
+     * Decodes a datapoint export continuation token; returns <code>null</code> if the token is not valid for
+     * datapoints.
+     */
+    public static Continuation parseDatapointContinuation(String token) {
+        String[] key = decode(token, DATAPOINT_KEY, 3);
+        if (key == null) {
+            return null;
+        }
+        try {
+            return new Continuation(Long.parseLong(key[0]), key[1], key[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public void exportAssets(String realm, String assetType, Continuation after, CustomExportFormat format, OutputStream out) {
+        String query = ASSETS_QUERY + (after != null ? ASSETS_AFTER : "") + ASSETS_ORDER;
+
+        export(query, statement -> {
+            statement.setString(1, realm);
+            statement.setString(2, assetType);
+            if (after != null) {
+                statement.setString(3, after.assetId);
+            }
+        }, format, out, ASSET_COLUMNS, (resultSet, json, csv) -> {
+            String id = resultSet.getString(1);
+            Timestamp createdOn = resultSet.getTimestamp(4);
+            String token = encode(ASSET_KEY, id);
+            if (json != null) {
+                json.writeStartObject();
+                json.writeStringField("id", id);
+                json.writeStringField("name", resultSet.getString(2));
+                json.writeStringField("parentId", resultSet.getString(3));
+                if (createdOn != null) {
+                    json.writeNumberField("createdOn", createdOn.getTime());
+                }
+                json.writeFieldName("attributes");
+                writeRawJson(json, resultSet.getString(5));
+                json.writeStringField(CONTINUATION, token);
+                json.writeEndObject();
+            } else {
+                writeCsvRow(csv, id, resultSet.getString(2), resultSet.getString(3), createdOn != null ? Long.toString(createdOn.getTime()) : null, resultSet.getString(5), token);
+            }
+        });
+    }
+
+    /**
+     * Either end of the range may be <code>null</code> in which case the datapoints are not bounded on that side; the
+     * predicate is left out rather than bound to an extreme timestamp the database cannot represent.
+     */
+    public void exportDatapoints(String realm, String assetType, Long from, Long to, Continuation after, CustomExportFormat format, OutputStream out) {
+        String query = DATAPOINTS_QUERY
+            + (from != null ? DATAPOINTS_FROM : "")
+            + (to != null ? DATAPOINTS_TO : "")
+            + (after != null ? DATAPOINTS_AFTER : "")
+            + DATAPOINTS_ORDER;
+
+        export(query, statement -> {
+            int index = 1;
+            statement.setString(index++, realm);
+            statement.setString(index++, assetType);
+            if (from != null) {
+                statement.setTimestamp(index++, new Timestamp(from));
+            }
+            if (to != null) {
+                statement.setTimestamp(index++, new Timestamp(to));
+            }
+            if (after != null) {
+                statement.setTimestamp(index++, new Timestamp(after.timestamp));
+                statement.setString(index++, after.assetId);
+                statement.setString(index, after.attributeName);
+            }
+        }, format, out, DATAPOINT_COLUMNS, (resultSet, json, csv) -> {
+            long timestamp = resultSet.getTimestamp(1).getTime();
+            String assetId = resultSet.getString(2);
+            String attributeName = resultSet.getString(3);
+            String token = encode(DATAPOINT_KEY, Long.toString(timestamp), assetId, attributeName);
+            if (json != null) {
+                json.writeStartObject();
+                json.writeNumberField("timestamp", timestamp);
+                json.writeStringField("assetId", assetId);
+                json.writeStringField("attributeName", attributeName);
+                json.writeFieldName("value");
+                writeRawJson(json, resultSet.getString(4));
+                json.writeStringField(CONTINUATION, token);
+                json.writeEndObject();
+            } else {
+                writeCsvRow(csv, Long.toString(timestamp), assetId, attributeName, resultSet.getString(4), token);
+            }
+        });
+    }
+
+    protected void export(String query, StatementBinder binder, CustomExportFormat format, OutputStream out, String[] columns, FormatWriter formatWriter) {
+        try {
+            JsonGenerator json = format == CustomExportFormat.NDJSON ? ValueUtil.JSON.getFactory().createGenerator(out) : null;
+            Writer csv = json == null ? new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)) : null;
+
+            if (csv != null) {
+                writeCsvRow(csv, (Object[]) columns);
+            }
+
+            query(query, binder, new RowWriter() {
+                int rows;
+
+                @Override
+                public void write(ResultSet resultSet) throws SQLException, IOException {
+                    formatWriter.write(resultSet, json, csv);
+                    if (json != null) {
+                        json.writeRaw('\n');
+                    }
+                    // Hand every fetched page to the client before the next one is read
+                    if (++rows % fetchSize == 0) {
+                        if (json != null) {
+                            json.flush();
+                        } else {
+                            csv.flush();
+                        }
+                    }
+                }
+            });
+
+            if (json != null) {
+                json.close();
+            } else {
+                csv.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    protected void query(String query, StatementBinder binder, RowWriter rowWriter) {
+        // The transaction disables auto commit which the driver needs to fetch through a cursor
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            connection.setReadOnly(true);
+            try (PreparedStatement statement = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                statement.setFetchSize(fetchSize);
+                binder.bind(statement);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        rowWriter.write(resultSet);
+                    }
+                }
+            } catch (IOException e) {
+                // The client went away or the output failed; the transaction is rolled back
+                throw new UncheckedIOException(e);
+            } finally {
+                resetReadOnly(connection);
+            }
+        }));
+    }
+
+    protected static void resetReadOnly(Connection connection) {
+        try {
+            connection.setReadOnly(false);
+        } catch (SQLException ignored) {
+        }
+    }
+
+    protected static void writeRawJson(JsonGenerator json, String value) throws IOException {
+        if (value == null) {
+            json.writeNull();
+        } else {
+            json.writeRawValue(value);
+        }
+    }
+
+    protected static void writeCsvRow(Writer csv, Object... values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                csv.write(',');
+            }
+            if (values[i] != null) {
+                writeCsvField(csv, values[i].toString());
+            }
+        }
+        csv.write("\r\n");
+    }
+
+    protected static void writeCsvField(Writer csv, String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            csv.write(value);
+            return;
+        }
+        csv.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                csv.write('"');
+            }
+            csv.write(c);
+        }
+        csv.write('"');
+    }
+
+    protected static String encode(char kind, String... key) {
+        StringBuilder builder = new StringBuilder().append(kind);
+        for (String part : key) {
+            builder.append(KEY_SEPARATOR).append(part);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    protected static String[] decode(String token, char kind, int parts) {
+        String value;
+        try {
+            value = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        String[] split = value.split(String.valueOf(KEY_SEPARATOR), -1);
+        if (split.length != parts + 1 || split[0].length() != 1 || split[0].charAt(0) != kind) {
+            return null;
+        }
+        String[] key = new String[parts];
+        System.arraycopy(split, 1, key, 0, parts);
+        return key;
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.custom;
+
+import org.openremote.agent.custom.CustomLatencyHistogram;
+import org.openremote.model.custom.CustomData;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded queue of {@link CustomData} submissions drained by a single writer thread in group commits: a commit is
+ * made once {@link #batchSize} entries are waiting or {@link #flushIntervalMillis} has passed since the first entry
+ * of the batch arrived, whichever comes first. Submitters never block; when the queue is full the offer is refused
+ * and it is up to the caller to push back on the client.
+ * <p>
+ * Accepted, refused, committed and failed records are counted and the time from a record being queued to its batch
+ * being committed is recorded; commits are also recorded as {@link CustomIngestCommitEvent}s when JFR is recording.
+ */
+public class CustomIngestQueue {
+
+    /**
+     * Commits a batch of records, <code>realms</code> holding the realm of the asset of the record at the same
+     * position, and returns the positions of the records that were not committed. An exception fails every entry of
+     * the batch.
+     */
+    @FunctionalInterface
+    public interface Writer {
+        BitSet write(List<CustomData> batch, List<String> realms) throws Exception;
+    }
+
+    protected static class Entry {
+        protected final CustomData data;
+        protected final String realm;
+        protected final Consumer<Throwable> callback;
+        protected final long queuedNanos = System.nanoTime();
+
+        protected Entry(CustomData data, String realm, Consumer<Throwable> callback) {
+            this.data = data;
+            this.realm = realm;
+            this.callback = callback;
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(CustomIngestQueue.class.getName());
+    protected final BlockingQueue<Entry> queue;
+    protected final int batchSize;
+    protected final long flushIntervalMillis;
+    protected final Writer writer;
+    protected Thread writerThread;
+    protected volatile boolean running;
+    protected final LongAdder accepted = new LongAdder();
+    protected final LongAdder refused = new LongAdder();
+    protected final LongAdder committed = new LongAdder();
+    protected final LongAdder failed = new LongAdder();
+    protected final LongAdder commits = new LongAdder();
+    protected final CustomLatencyHistogram queuedToCommitNanos = new CustomLatencyHistogram();
+
+    public CustomIngestQueue(int capacity, int batchSize, long flushIntervalMillis, Writer writer) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.writer = writer;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        writerThread = new Thread(this::run, "CustomIngestWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Stops accepting entries and waits for the writer to commit what is already queued.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        writerThread.interrupt();
+        writerThread.join(TimeUnit.SECONDS.toMillis(30));
+        writerThread = null;
+    }
+
+    /**
+     * Queue a single record with the realm of its asset; the callback is invoked by the writer once the record is
+     * committed with either <code>null</code> or the failure. Returns <code>false</code> if the queue is full.
+     */
+    public boolean offer(CustomData data, String realm, Consumer<Throwable> callback) {
+        if (running && queue.offer(new Entry(data, realm, callback))) {
+            accepted.increment();
+            return true;
+        }
+        refused.increment();
+        return false;
+    }
+
+    /**
+     * Queue the records in order, each with the realm <code>realms</code> maps it to, and return how many were
+     * accepted; records after the first refused one are not queued so acceptance is always a prefix of the batch. The
+     * callback, if any, is invoked by the writer for every accepted record with either <code>null</code> or the
+     * failure and the position of the record in the batch.
+     */
+    public int offerAll(List<CustomData> batch, Function<CustomData, String> realms, ObjIntConsumer<Throwable> callback) {
+        int accepted = 0;
+        for (CustomData data : batch) {
+            int index = accepted;
+            if (!offer(data, realms.apply(data), callback != null ? failure -> callback.accept(failure, index) : null)) {
+                break;
+            }
+            accepted++;
+        }
+        return accepted;
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public int remainingCapacity() {
+        return queue.remainingCapacity();
+    }
+
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    /**
+     * Offers refused because the queue was full or stopped.
+     */
+    public long getRefused() {
+        return refused.sum();
+    }
+
+    /**
+     * Records that were committed successfully.
+     */
+    public long getCommitted() {
+        return committed.sum();
+    }
+
+    /**
+     * Records that failed to commit.
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * The number of batches committed or failed.
+     */
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    /**
+     * Time from a record being queued until its batch was committed (or failed) in nanoseconds.
+     */
+    public CustomLatencyHistogram getQueuedToCommitNanos() {
+        return queuedToCommitNanos;
+    }
+
+    protected void run() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+        List<CustomData> records = new ArrayList<>(batchSize);
+        List<String> realms = new ArrayList<>(batchSize);
+
+        while (running || !queue.isEmpty()) {
+            try {
+                Entry first = running ? queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS) : queue.poll();
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                fill(batch);
+            } catch (InterruptedException e) {
+                // Stopping; whatever has been collected and is still queued gets committed on the way out
+                Thread.interrupted();
+            }
+
+            if (!batch.isEmpty()) {
+                commit(batch, records, realms);
+                batch.clear();
+                records.clear();
+                realms.clear();
+            }
+        }
+    }
+
+    protected void fill(List<Entry> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+
+        while (batch.size() < batchSize) {
+            queue.drainTo(batch, batchSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= batchSize || remaining <= 0 || !running) {
+                return;
+            }
+            Entry next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    protected void commit(List<Entry> batch, List<CustomData> records, List<String> realms) {
+        CustomIngestCommitEvent event = new CustomIngestCommitEvent();
+        event.begin();
+        Throwable failure = null;
+        BitSet failures;
+
+        for (Entry entry : batch) {
+            records.add(entry.data);
+            realms.add(entry.realm);
+        }
+
+        try {
+            failures = writer.write(records, realms);
+            if (!failures.isEmpty()) {
+                failure = new IllegalStateException("Failed to commit " + failures.cardinality() + " of " + batch.size() + " custom data record(s)");
+            }
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, "Failed to commit batch of " + records.size() + " custom data record(s)", t);
+            failure = t;
+            failures = new BitSet(batch.size());
+            failures.set(0, batch.size());
+        }
+        int written = batch.size() - failures.cardinality();
+
+        long now = System.nanoTime();
+        for (Entry entry : batch) {
+            queuedToCommitNanos.record(now - entry.queuedNanos);
+        }
+        committed.add(written);
+        failed.add(batch.size() - written);
+        commits.increment();
+        if (event.shouldCommit()) {
+            event.records = batch.size();
+            event.failed = failure != null;
+            event.commit();
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            Entry entry = batch.get(i);
+            if (entry.callback != null) {
+                try {
+                    entry.callback.accept(failures.get(i) ? failure : null);
+                } catch (RuntimeException e) {
+                    LOG.log(Level.FINE, "Custom data commit callback failed", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.custom;
+
+import org.openremote.agent.custom.CustomLatencyHistogram;
+
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Writes metrics in the Prometheus text exposition format (version 0.0.4); every family is written with its
+ * <code>HELP</code> and <code>TYPE</code> lines followed by one sample per item so the samples of a family stay
+ * together as the format requires.
+ */
+public class CustomMetricsWriter {
+
+    /**
+     * Bucket bounds in seconds used when exporting a {@link CustomLatencyHistogram}.
+     */
+    public static final double[] LATENCY_BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+    protected final StringBuilder sb = new StringBuilder(4096);
+
+    public CustomMetricsWriter counter(String name, String help, double value) {
+        header(name, help, "counter");
+        sample(name, null, null, value);
+        return this;
+    }
+
+    public CustomMetricsWriter gauge(String name, String help, double value) {
+        header(name, help, "gauge");
+        sample(name, null, null, value);
+        return this;
+    }
+
+    /**
+     * Writes a family with a sample per item labelled with the item's label value.
+     */
+    public <T> CustomMetricsWriter family(String name, String help, String type, String label, List<T> items, Function<T, String> labelValue, ToDoubleFunction<T> value) {
+        if (items.isEmpty()) {
+            return this;
+        }
+        header(name, help, type);
+        for (T item : items) {
+            sample(name, label, labelValue.apply(item), value.applyAsDouble(item));
+        }
+        return this;
+    }
+
+    /**
+     * Writes the histogram as cumulative {@link #LATENCY_BUCKETS}; <code>unitsPerSecond</code> converts from the unit
+     * the histogram values were recorded in.
+     */
+    public <T> CustomMetricsWriter histogram(String name, String help, String label, List<T> items, Function<T, String> labelValue, Function<T, CustomLatencyHistogram> histogram, double unitsPerSecond) {
+        if (items.isEmpty()) {
+            return this;
+        }
+        long[] bounds = new long[LATENCY_BUCKETS.length];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = (long) (LATENCY_BUCKETS[i] * unitsPerSecond);
+        }
+
+        header(name, help, "histogram");
+        for (T item : items) {
+            String value = label != null ? labelValue.apply(item) : null;
+            CustomLatencyHistogram latencies = histogram.apply(item);
+            long[] counts = latencies.getCumulativeCounts(bounds);
+            for (int i = 0; i < bounds.length; i++) {
+                bucket(name, label, value, format(LATENCY_BUCKETS[i]), counts[i]);
+            }
+            bucket(name, label, value, "+Inf", counts[bounds.length]);
+            sample(name + "_sum", label, value, latencies.getSum() / unitsPerSecond);
+            sample(name + "_count", label, value, counts[bounds.length]);
+        }
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+
+    protected void header(String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    protected void sample(String name, String label, String labelValue, double value) {
+        sb.append(name);
+        if (label != null) {
+            sb.append('{').append(label).append("=\"");
+            escape(labelValue);
+            sb.append("\"}");
+        }
+        sb.append(' ').append(format(value)).append('\n');
+    }
+
+    protected void bucket(String name, String label, String labelValue, String bound, long count) {
+        sb.append(name).append("_bucket{");
+        if (label != null) {
+            sb.append(label).append("=\"");
+            escape(labelValue);
+            sb.append("\",");
+        }
+        sb.append("le=\"").append(bound).append("\"} ").append(count).append('\n');
+    }
+
+    protected void escape(String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    protected static String format(double value) {
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.custom;
+
+import org.hibernate.Session;
+import org.openremote.container.persistence.PersistenceService;
+import org.openremote.model.custom.CustomRollup;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Stores the bucket deltas drained from {@link CustomRollups} in the <code>custom_rollup</code> table, merging each
+ * delta into the stored bucket so writing a late correction or the same bucket twice across a restart is safe.
+ */
+public class CustomRollupStore {
+
+    public static final String TABLE = "custom_rollup";
+    public static final int WRITE_BATCH_SIZE = 1000;
+    protected static final String CREATE_TABLE =
+        "create table if not exists " + TABLE + " (" +
+            "asset_id varchar(22) not null, " +
+            "attribute_name varchar(255) not null, " +
+            "resolution smallint not null, " +
+            "bucket_start bigint not null, " +
+            "min_value double precision not null, " +
+            "max_value double precision not null, " +
+            "sum_value double precision not null, " +
+            "value_count bigint not null, " +
+            "primary key (asset_id, attribute_name, resolution, bucket_start))";
+    protected static final String UPSERT =
+        "insert into " + TABLE + " (asset_id, attribute_name, resolution, bucket_start, min_value, max_value, sum_value, value_count) " +
+            "values (?, ?, ?, ?, ?, ?, ?, ?) " +
+            "on conflict (asset_id, attribute_name, resolution, bucket_start) do update set " +
+            "min_value = least(" + TABLE + ".min_value, excluded.min_value), " +
+            "max_value = greatest(" + TABLE + ".max_value, excluded.max_value), " +
+            "sum_value = " + TABLE + ".sum_value + excluded.sum_value, " +
+            "value_count = " + TABLE + ".value_count + excluded.value_count";
+    protected static final String SELECT =
+        "select bucket_start, min_value, max_value, sum_value, value_count from " + TABLE + " " +
+            "where asset_id = ? and attribute_name = ? and resolution = ? and bucket_start >= ? and bucket_start < ? " +
+            "order by bucket_start";
+    protected final PersistenceService persistenceService;
+
+    public CustomRollupStore(PersistenceService persistenceService) {
+        this.persistenceService = persistenceService;
+    }
+
+    public void createTable() {
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(CREATE_TABLE);
+            }
+        }));
+    }
+
+    /**
+     * Merges the deltas into the stored buckets in a single transaction.
+     */
+    public void write(CustomRollups.Batch batch) {
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(UPSERT)) {
+                for (int i = 0; i < batch.size(); i++) {
+                    statement.setString(1, batch.getAssetId(i));
+                    statement.setString(2, batch.getAttributeName(i));
+                    statement.setShort(3, (short) batch.getResolution(i).ordinal());
+                    statement.setLong(4, batch.getStart(i));
+                    statement.setDouble(5, batch.getMin(i));
+                    statement.setDouble(6, batch.getMax(i));
+                    statement.setDouble(7, batch.getSum(i));
+                    statement.setLong(8, batch.getCount(i));
+                    statement.addBatch();
+                    if ((i + 1) % WRITE_BATCH_SIZE == 0) {
+                        statement.executeBatch();
+                    }
+                }
+                statement.executeBatch();
+            }
+        }));
+    }
+
+    /**
+     * Reads the stored buckets of the series with a start within the range.
+     */
+    public CustomRollups.Batch read(String assetId, String attributeName, CustomRollup.Resolution resolution, long from, long to) {
+        CustomRollups.Batch batch = new CustomRollups.Batch(64);
+
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(SELECT)) {
+                statement.setString(1, assetId);
+                statement.setString(2, attributeName);
+                statement.setShort(3, (short) resolution.ordinal());
+                statement.setLong(4, from);
+                statement.setLong(5, to);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        batch.add(
+                            assetId,
+                            attributeName,
+                            resolution,
+                            resultSet.getLong(1),
+                            resultSet.getDouble(2),
+                            resultSet.getDouble(3),
+                            resultSet.getDouble(4),
+                            resultSet.getLong(5)
+                        );
+                    }
+                }
+            }
+        }));
+
+        return batch;
+    }
+}
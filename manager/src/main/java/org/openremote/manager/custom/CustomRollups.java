@@ -0,0 +1,501 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.custom;
+
+import org.openremote.model.custom.CustomRollup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Streaming min/max/avg/count accumulators of numeric attribute values for every {@link CustomRollup.Resolution}.
+ * <p>
+ * Each series (asset attribute) owns a fixed block of slots in primitive arrays, a small ring per resolution sized to
+ * hold every bucket that can still receive values: the open bucket plus the closed ones within the late window. A slot
+ * only holds the values added since the bucket was last drained (a delta) and is freed once drained; storage merges
+ * deltas (least min, greatest max, summed sum and count) so a late value for a bucket that was already written, even
+ * before a restart, simply results in another delta being merged into it. Values older than the late window are
+ * refused. A bucket whose slot is needed before its delta was drained (only possible when draining falls behind) is
+ * moved to an overflow batch rather than lost, as are deltas that failed to be written; the overflow is bounded and
+ * deltas that do not fit are dropped and counted.
+ * <p>
+ * Series are split into segments by asset ID, each with its own lock, so values of different assets are added
+ * concurrently and draining only holds one segment at a time. Series are dropped once none of their slots are in use
+ * and their index is reused.
+ */
+public class CustomRollups {
+
+    /**
+     * Bucket deltas in parallel arrays, used to hand drained deltas to storage and read stored buckets back.
+     */
+    public static class Batch {
+        protected String[] assetIds;
+        protected String[] attributeNames;
+        protected CustomRollup.Resolution[] resolutions;
+        protected long[] starts;
+        protected double[] mins;
+        protected double[] maxs;
+        protected double[] sums;
+        protected long[] counts;
+        protected int size;
+
+        public Batch(int initialCapacity) {
+            int capacity = Math.max(1, initialCapacity);
+            assetIds = new String[capacity];
+            attributeNames = new String[capacity];
+            resolutions = new CustomRollup.Resolution[capacity];
+            starts = new long[capacity];
+            mins = new double[capacity];
+            maxs = new double[capacity];
+            sums = new double[capacity];
+            counts = new long[capacity];
+        }
+
+        public void add(String assetId, String attributeName, CustomRollup.Resolution resolution, long start, double min, double max, double sum, long count) {
+            if (size == starts.length) {
+                int capacity = size * 2;
+                assetIds = Arrays.copyOf(assetIds, capacity);
+                attributeNames = Arrays.copyOf(attributeNames, capacity);
+                resolutions = Arrays.copyOf(resolutions, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                mins = Arrays.copyOf(mins, capacity);
+                maxs = Arrays.copyOf(maxs, capacity);
+                sums = Arrays.copyOf(sums, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+            }
+            assetIds[size] = assetId;
+            attributeNames[size] = attributeName;
+            resolutions[size] = resolution;
+            starts[size] = start;
+            mins[size] = min;
+            maxs[size] = max;
+            sums[size] = sum;
+            counts[size] = count;
+            size++;
+        }
+
+        public void addAll(Batch batch) {
+            for (int i = 0; i < batch.size; i++) {
+                add(batch.assetIds[i], batch.attributeNames[i], batch.resolutions[i], batch.starts[i], batch.mins[i], batch.maxs[i], batch.sums[i], batch.counts[i]);
+            }
+        }
+
+        public void clear() {
+            Arrays.fill(assetIds, 0, size, null);
+            Arrays.fill(attributeNames, 0, size, null);
+            Arrays.fill(resolutions, 0, size, null);
+            size = 0;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public String getAssetId(int index) {
+            return assetIds[index];
+        }
+
+        public String getAttributeName(int index) {
+            return attributeNames[index];
+        }
+
+        public CustomRollup.Resolution getResolution(int index) {
+            return resolutions[index];
+        }
+
+        public long getStart(int index) {
+            return starts[index];
+        }
+
+        public double getMin(int index) {
+            return mins[index];
+        }
+
+        public double getMax(int index) {
+            return maxs[index];
+        }
+
+        public double getSum(int index) {
+            return sums[index];
+        }
+
+        public long getCount(int index) {
+            return counts[index];
+        }
+    }
+
+    /**
+     * How far ahead of the current time a value may be; allows for devices with slightly fast clocks.
+     */
+    public static final long MAX_CLOCK_SKEW_MILLIS = 60000L;
+    protected static final CustomRollup.Resolution[] RESOLUTIONS = CustomRollup.Resolution.values();
+    protected static final long FREE = Long.MIN_VALUE;
+
+    /**
+     * The series of a share of the assets with their own lock.
+     */
+    protected final class Segment {
+        protected final Map<String, Map<String, Integer>> series = new HashMap<>();
+        protected final int maxOverflow;
+        protected String[] seriesAssetIds = new String[0];
+        protected String[] seriesAttributeNames = new String[0];
+        protected int[] freeSeries = new int[16];
+        protected int freeSeriesCount;
+        protected int seriesCount;
+        // Per slot state
+        protected long[] starts = new long[0];
+        protected double[] mins = new double[0];
+        protected double[] maxs = new double[0];
+        protected double[] sums = new double[0];
+        protected long[] counts = new long[0];
+        protected final Batch overflow = new Batch(16);
+        protected long accepted;
+        protected long refused;
+        protected long drained;
+        protected long dropped;
+
+        protected Segment(int maxOverflow) {
+            this.maxOverflow = maxOverflow;
+        }
+
+        protected synchronized boolean add(String assetId, String attributeName, double value, long timestamp, long now) {
+            if (timestamp < now - lateWindowMillis || timestamp > now + MAX_CLOCK_SKEW_MILLIS || !Double.isFinite(value)) {
+                refused++;
+                return false;
+            }
+
+            int index = seriesIndex(assetId, attributeName);
+
+            for (CustomRollup.Resolution resolution : RESOLUTIONS) {
+                long start = resolution.getBucketStart(timestamp);
+                int slot = slot(index, resolution, start);
+
+                if (starts[slot] != start) {
+                    if (starts[slot] != FREE) {
+                        addOverflow(assetId, attributeName, resolution, starts[slot], mins[slot], maxs[slot], sums[slot], counts[slot]);
+                    }
+                    starts[slot] = start;
+                    mins[slot] = value;
+                    maxs[slot] = value;
+                    sums[slot] = value;
+                    counts[slot] = 1L;
+                } else {
+                    mins[slot] = Math.min(mins[slot], value);
+                    maxs[slot] = Math.max(maxs[slot], value);
+                    sums[slot] += value;
+                    counts[slot]++;
+                }
+            }
+
+            accepted++;
+            return true;
+        }
+
+        protected synchronized void drain(long now, Batch into) {
+            int before = into.size();
+            into.addAll(overflow);
+            overflow.clear();
+
+            for (int index = 0; index < seriesCount; index++) {
+                String assetId = seriesAssetIds[index];
+                if (assetId == null) {
+                    continue;
+                }
+                boolean inUse = false;
+                int base = index * slotsPerSeries;
+
+                for (CustomRollup.Resolution resolution : RESOLUTIONS) {
+                    int from = base + ringOffsets[resolution.ordinal()];
+                    int to = from + ringSizes[resolution.ordinal()];
+                    for (int slot = from; slot < to; slot++) {
+                        long start = starts[slot];
+                        if (start == FREE) {
+                            continue;
+                        }
+                        if (start + resolution.getMillis() <= now) {
+                            into.add(assetId, seriesAttributeNames[index], resolution, start, mins[slot], maxs[slot], sums[slot], counts[slot]);
+                            starts[slot] = FREE;
+                        } else {
+                            inUse = true;
+                        }
+                    }
+                }
+
+                if (!inUse) {
+                    removeSeries(index);
+                }
+            }
+
+            drained += into.size() - before;
+        }
+
+        protected synchronized void restore(Batch batch, int index) {
+            addOverflow(batch.assetIds[index], batch.attributeNames[index], batch.resolutions[index], batch.starts[index],
+                batch.mins[index], batch.maxs[index], batch.sums[index], batch.counts[index]);
+        }
+
+        protected synchronized void collect(String assetId, String attributeName, CustomRollup.Resolution resolution, long from, long to, Batch into) {
+            for (int i = 0; i < overflow.size; i++) {
+                if (overflow.resolutions[i] == resolution && overflow.starts[i] >= from && overflow.starts[i] < to
+                    && overflow.assetIds[i].equals(assetId) && overflow.attributeNames[i].equals(attributeName)) {
+                    into.add(assetId, attributeName, resolution, overflow.starts[i], overflow.mins[i], overflow.maxs[i], overflow.sums[i], overflow.counts[i]);
+                }
+            }
+
+            Map<String, Integer> attributes = series.get(assetId);
+            Integer index = attributes != null ? attributes.get(attributeName) : null;
+            if (index == null) {
+                return;
+            }
+
+            int first = index * slotsPerSeries + ringOffsets[resolution.ordinal()];
+            for (int slot = first; slot < first + ringSizes[resolution.ordinal()]; slot++) {
+                long start = starts[slot];
+                if (start != FREE && start >= from && start < to) {
+                    into.add(assetId, attributeName, resolution, start, mins[slot], maxs[slot], sums[slot], counts[slot]);
+                }
+            }
+        }
+
+        protected synchronized int getSeriesCount() {
+            return series.values().stream().mapToInt(Map::size).sum();
+        }
+
+        /**
+         * Keeps a delta that has yet to be written; once the overflow is full (storage keeps failing) the delta is
+         * dropped and counted rather than held without limit.
+         */
+        protected void addOverflow(String assetId, String attributeName, CustomRollup.Resolution resolution, long start, double min, double max, double sum, long count) {
+            if (overflow.size() >= maxOverflow) {
+                dropped++;
+                return;
+            }
+            overflow.add(assetId, attributeName, resolution, start, min, max, sum, count);
+        }
+
+        protected int seriesIndex(String assetId, String attributeName) {
+            Map<String, Integer> attributes = series.computeIfAbsent(assetId, id -> new HashMap<>(4));
+            Integer index = attributes.get(attributeName);
+
+            if (index != null) {
+                return index;
+            }
+
+            index = freeSeriesCount > 0 ? freeSeries[--freeSeriesCount] : seriesCount++;
+            ensureCapacity(index);
+            seriesAssetIds[index] = assetId;
+            seriesAttributeNames[index] = attributeName;
+            attributes.put(attributeName, index);
+            return index;
+        }
+
+        protected void removeSeries(int index) {
+            Map<String, Integer> attributes = series.get(seriesAssetIds[index]);
+            if (attributes != null) {
+                attributes.remove(seriesAttributeNames[index]);
+                if (attributes.isEmpty()) {
+                    series.remove(seriesAssetIds[index]);
+                }
+            }
+            seriesAssetIds[index] = null;
+            seriesAttributeNames[index] = null;
+            if (freeSeriesCount == freeSeries.length) {
+                freeSeries = Arrays.copyOf(freeSeries, freeSeries.length * 2);
+            }
+            freeSeries[freeSeriesCount++] = index;
+        }
+
+        protected void ensureCapacity(int index) {
+            if (index < seriesAssetIds.length) {
+                return;
+            }
+            int capacity = Math.max(index + 1, Math.max(64, seriesAssetIds.length * 2));
+            int slots = capacity * slotsPerSeries;
+            int previousSlots = starts.length;
+            seriesAssetIds = Arrays.copyOf(seriesAssetIds, capacity);
+            seriesAttributeNames = Arrays.copyOf(seriesAttributeNames, capacity);
+            starts = Arrays.copyOf(starts, slots);
+            mins = Arrays.copyOf(mins, slots);
+            maxs = Arrays.copyOf(maxs, slots);
+            sums = Arrays.copyOf(sums, slots);
+            counts = Arrays.copyOf(counts, slots);
+            Arrays.fill(starts, previousSlots, slots, FREE);
+        }
+    }
+
+    protected final long lateWindowMillis;
+    protected final int[] ringSizes = new int[RESOLUTIONS.length];
+    protected final int[] ringOffsets = new int[RESOLUTIONS.length];
+    protected final int slotsPerSeries;
+    protected final Segment[] segments;
+
+    /**
+     * Splits the series into (a power of two of at least) <code>segmentCount</code> segments by asset ID; each segment
+     * keeps up to <code>maxOverflow / segmentCount</code> deltas that have yet to be written.
+     */
+    public CustomRollups(long lateWindowMillis, int segmentCount, int maxOverflow) {
+        this.lateWindowMillis = Math.max(0L, lateWindowMillis);
+        int offset = 0;
+        for (CustomRollup.Resolution resolution : RESOLUTIONS) {
+            long span = this.lateWindowMillis + MAX_CLOCK_SKEW_MILLIS + resolution.getMillis();
+            ringOffsets[resolution.ordinal()] = offset;
+            ringSizes[resolution.ordinal()] = (int) ((span + resolution.getMillis() - 1) / resolution.getMillis()) + 1;
+            offset += ringSizes[resolution.ordinal()];
+        }
+        slotsPerSeries = offset;
+        int count = Integer.highestOneBit(Math.max(1, segmentCount - 1)) << 1;
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(Math.max(1, maxOverflow / count));
+        }
+    }
+
+    /**
+     * Adds the value to the buckets of every resolution; returns <code>false</code> if the value was refused because
+     * it is outside of the late window, too far in the future or not a finite number.
+     */
+    public boolean add(String assetId, String attributeName, double value, long timestamp, long now) {
+        return segment(assetId).add(assetId, attributeName, value, timestamp, now);
+    }
+
+    /**
+     * Moves the deltas of every bucket closed at the given time (and any overflow) into the batch; pass
+     * {@link Long#MAX_VALUE} to drain open buckets too. Segments are drained one at a time so values keep being added
+     * to the others meanwhile.
+     */
+    public void drain(long now, Batch into) {
+        for (Segment segment : segments) {
+            segment.drain(now, into);
+        }
+    }
+
+    /**
+     * Puts back deltas that could not be written so they are drained again next time.
+     */
+    public void restore(Batch batch) {
+        for (int i = 0; i < batch.size; i++) {
+            segment(batch.assetIds[i]).restore(batch, i);
+        }
+    }
+
+    /**
+     * Adds the deltas of the series that have not been drained yet and fall within the range to the batch.
+     */
+    public void collect(String assetId, String attributeName, CustomRollup.Resolution resolution, long from, long to, Batch into) {
+        segment(assetId).collect(assetId, attributeName, resolution, from, to, into);
+    }
+
+    public int getSeriesCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.getSeriesCount();
+        }
+        return count;
+    }
+
+    public long getAccepted() {
+        long count = 0L;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.accepted;
+            }
+        }
+        return count;
+    }
+
+    public long getRefused() {
+        long count = 0L;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.refused;
+            }
+        }
+        return count;
+    }
+
+    public long getDrained() {
+        long count = 0L;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.drained;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Deltas dropped because the overflow was full, i.e. storage kept failing for longer than the overflow covers.
+     */
+    public long getDropped() {
+        long count = 0L;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.dropped;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Merges the deltas of the batches (which must all be for the same series and resolution) into one rollup per
+     * bucket ordered by time.
+     */
+    public static List<CustomRollup> merge(CustomRollup.Resolution resolution, Batch... batches) {
+        TreeMap<Long, double[]> buckets = new TreeMap<>();
+
+        for (Batch batch : batches) {
+            for (int i = 0; i < batch.size; i++) {
+                double[] bucket = buckets.get(batch.starts[i]);
+                if (bucket == null) {
+                    buckets.put(batch.starts[i], new double[]{batch.mins[i], batch.maxs[i], batch.sums[i], batch.counts[i]});
+                } else {
+                    bucket[0] = Math.min(bucket[0], batch.mins[i]);
+                    bucket[1] = Math.max(bucket[1], batch.maxs[i]);
+                    bucket[2] += batch.sums[i];
+                    bucket[3] += batch.counts[i];
+                }
+            }
+        }
+
+        List<CustomRollup> rollups = new ArrayList<>(buckets.size());
+        buckets.forEach((start, bucket) ->
+            rollups.add(new CustomRollup(start, resolution, bucket[0], bucket[1], bucket[2] / bucket[3], (long) bucket[3]))
+        );
+        return rollups;
+    }
+
+    protected int slot(int index, CustomRollup.Resolution resolution, long start) {
+        int ring = ringSizes[resolution.ordinal()];
+        return index * slotsPerSeries + ringOffsets[resolution.ordinal()] + (int) Math.floorMod(start / resolution.getMillis(), ring);
+    }
+
+    protected Segment segment(String assetId) {
+        int h = assetId.hashCode();
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.custom;
+
+import org.openremote.model.custom.CustomAssetLocation;
+import org.openremote.model.custom.CustomRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Evaluates {@link CustomRule}s incrementally as attribute events arrive rather than re-evaluating every asset on a
+ * timer.
+ * <p>
+ * Rules are compiled into an immutable index from attribute name to the rules watching it, split into rules for a
+ * single asset (looked up by asset ID) and rules for every asset of a realm (looked up by realm), so an event only
+ * touches the rules that can match it. Each compiled rule holds its threshold as a primitive or string and compares
+ * the event value converted once per event. The index is replaced rather than modified when rules change so events
+ * never take a lock to find their rules; a single rule change only copies the entries of the attribute it watches.
+ * <p>
+ * The state of a rule for an asset (matching since, fired) is only created once the asset first matches and is guarded
+ * by its own monitor. Timers are only scheduled for rules with a duration, when an asset starts matching, and at
+ * most one is pending per asset; when it expires it fires the rule if the asset has matched for the whole duration
+ * and otherwise reschedules itself for the remainder or lapses if the asset no longer matches. Neighbour conditions count the matching assets within the
+ * radius using the {@link CustomSpatialIndex} and are checked when the asset fires and on each of its later events
+ * while it is not yet firing.
+ */
+public class CustomRuleEngine {
+
+    /**
+     * Receives the alert and clear values of fired rules.
+     */
+    @FunctionalInterface
+    public interface Alerter {
+        void alert(CustomRule rule, String assetId, Object value);
+    }
+
+    protected static final class MatchState {
+        protected boolean matching;
+        protected boolean fired;
+        protected long since;
+        protected ScheduledFuture<?> timer;
+    }
+
+    protected static final class CompiledRule {
+        protected final CustomRule rule;
+        protected final CustomRule.Operator operator;
+        protected final double number;
+        protected final String text;
+        protected final long durationMillis;
+        protected final int neighbourCount;
+        protected final double neighbourRadius;
+        protected final Map<String, MatchState> states = new ConcurrentHashMap<>();
+
+        protected CompiledRule(CustomRule rule) {
+            this.rule = rule;
+            this.operator = rule.getOperator();
+            Object value = rule.getValue();
+            this.number = toNumber(value);
+            this.text = toText(value);
+            this.durationMillis = rule.getDurationMillis() != null ? Math.max(0L, rule.getDurationMillis()) : 0L;
+            this.neighbourCount = rule.getNeighbourCount() != null ? Math.max(0, rule.getNeighbourCount()) : 0;
+            this.neighbourRadius = rule.getNeighbourRadius() != null ? rule.getNeighbourRadius() : 0d;
+        }
+
+        protected boolean test(double value, String valueText) {
+            switch (operator) {
+                case EQUALS:
+                    return !Double.isNaN(number) ? value == number : Objects.equals(text, valueText);
+                case NOT_EQUALS:
+                    return !Double.isNaN(number) ? value != number : !Objects.equals(text, valueText);
+                case GREATER_THAN:
+                    return value > number;
+                case GREATER_EQUALS:
+                    return value >= number;
+                case LESS_THAN:
+                    return value < number;
+                case LESS_EQUALS:
+                    return value <= number;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * Immutable lookup of compiled rules by attribute name and then asset ID or realm.
+     */
+    protected static final class RuleIndex {
+        protected final Map<String, Map<String, CompiledRule[]>> assetRules;
+        protected final Map<String, Map<String, CompiledRule[]>> realmRules;
+
+        protected RuleIndex(Map<String, Map<String, CompiledRule[]>> assetRules, Map<String, Map<String, CompiledRule[]>> realmRules) {
+            this.assetRules = assetRules;
+            this.realmRules = realmRules;
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(CustomRuleEngine.class.getName());
+    protected static final CompiledRule[] NO_RULES = new CompiledRule[0];
+    protected final ScheduledExecutorService executorService;
+    protected final LongSupplier clock;
+    protected final CustomSpatialIndex spatialIndex;
+    protected final Predicate<String> isCustomAsset;
+    protected final Alerter alerter;
+    protected final Map<String, CompiledRule> rules = new LinkedHashMap<>();
+    protected volatile RuleIndex index = new RuleIndex(new HashMap<>(), new HashMap<>());
+    protected final LongAdder evaluations = new LongAdder();
+    protected final LongAdder fired = new LongAdder();
+
+    public CustomRuleEngine(ScheduledExecutorService executorService, LongSupplier clock, CustomSpatialIndex spatialIndex, Predicate<String> isCustomAsset, Alerter alerter) {
+        this.executorService = executorService;
+        this.clock = clock;
+        this.spatialIndex = spatialIndex;
+        this.isCustomAsset = isCustomAsset;
+        this.alerter = alerter;
+    }
+
+    /**
+     * Checks that the rule can be compiled; throws an {@link IllegalArgumentException} describing the problem if not.
+     */
+    public static void validate(CustomRule rule) {
+        if (rule == null || rule.getId() == null || rule.getRealm() == null) {
+            throw new IllegalArgumentException("Rule must have an ID and realm");
+        }
+        if (rule.getAttributeName() == null || rule.getOperator() == null || rule.getValue() == null) {
+            throw new IllegalArgumentException("Rule must have an attribute name, operator and value: " + rule.getId());
+        }
+        if (rule.getOperator() != CustomRule.Operator.EQUALS && rule.getOperator() != CustomRule.Operator.NOT_EQUALS
+            && Double.isNaN(toNumber(rule.getValue()))) {
+            throw new IllegalArgumentException("Rule with a comparison operator must have a numeric value: " + rule.getId());
+        }
+        if (rule.getAlertAttributeName() == null || rule.getAlertAttributeName().equals(rule.getAttributeName())) {
+            throw new IllegalArgumentException("Rule must have an alert attribute other than the one it watches: " + rule.getId());
+        }
+        if (rule.getNeighbourCount() != null && rule.getNeighbourCount() > 1
+            && (rule.getNeighbourRadius() == null || !(rule.getNeighbourRadius() > 0))) {
+            throw new IllegalArgumentException("Rule with a neighbour count must have a positive neighbour radius: " + rule.getId());
+        }
+    }
+
+    /**
+     * Adds or replaces the rule; the state of a replaced rule is discarded.
+     */
+    public synchronized void put(CustomRule rule) {
+        validate(rule);
+        CompiledRule compiled = new CompiledRule(rule);
+        CompiledRule previous = rules.put(rule.getId(), compiled);
+        if (previous != null) {
+            discard(previous);
+        }
+        updateIndex(previous, compiled);
+    }
+
+    /**
+     * Adds or replaces all of the rules with a single rebuild of the index.
+     */
+    public synchronized void putAll(Collection<CustomRule> ruleList) {
+        for (CustomRule rule : ruleList) {
+            try {
+                validate(rule);
+            } catch (IllegalArgumentException e) {
+                LOG.warning("Ignoring invalid custom rule: " + e.getMessage());
+                continue;
+            }
+            CompiledRule previous = rules.put(rule.getId(), new CompiledRule(rule));
+            if (previous != null) {
+                discard(previous);
+            }
+        }
+        rebuildIndex();
+    }
+
+    public synchronized CustomRule remove(String ruleId) {
+        CompiledRule removed = rules.remove(ruleId);
+        if (removed == null) {
+            return null;
+        }
+        discard(removed);
+        updateIndex(removed, null);
+        return removed.rule;
+    }
+
+    public synchronized CustomRule get(String ruleId) {
+        CompiledRule compiled = rules.get(ruleId);
+        return compiled != null ? compiled.rule : null;
+    }
+
+    public synchronized List<CustomRule> getRules(String realm) {
+        List<CustomRule> result = new ArrayList<>();
+        for (CompiledRule compiled : rules.values()) {
+            if (realm.equals(compiled.rule.getRealm())) {
+                result.add(compiled.rule);
+            }
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return rules.size();
+    }
+
+    public long getEvaluations() {
+        return evaluations.sum();
+    }
+
+    public long getFired() {
+        return fired.sum();
+    }
+
+    /**
+     * Evaluates the rules watching the attribute against the new value; rules for a single asset are only evaluated
+     * when the realm of the event is the realm of the rule.
+     */
+    public void onAttributeEvent(String assetId, String realm, String attributeName, Object value) {
+        RuleIndex current = index;
+        Map<String, CompiledRule[]> byAsset = current.assetRules.get(attributeName);
+        Map<String, CompiledRule[]> byRealm = current.realmRules.get(attributeName);
+
+        if (byAsset == null && byRealm == null) {
+            return;
+        }
+
+        CompiledRule[] assetRules = byAsset != null ? byAsset.getOrDefault(assetId, NO_RULES) : NO_RULES;
+        CompiledRule[] realmRules = byRealm != null && realm != null ? byRealm.getOrDefault(realm, NO_RULES) : NO_RULES;
+
+        boolean realmApplies = realmRules.length > 0 && isCustomAsset.test(assetId);
+
+        if (assetRules.length == 0 && !realmApplies) {
+            return;
+        }
+
+        double number = toNumber(value);
+        String text = toText(value);
+        long now = clock.getAsLong();
+
+        int evaluated = 0;
+        for (CompiledRule compiled : assetRules) {
+            // A rule of another realm must never write to the asset, e.g. if it was stored before the asset moved
+            if (realm != null && realm.equals(compiled.rule.getRealm())) {
+                evaluate(compiled, assetId, number, text, now);
+                evaluated++;
+            }
+        }
+        if (realmApplies) {
+            for (CompiledRule compiled : realmRules) {
+                evaluate(compiled, assetId, number, text, now);
+            }
+            evaluated += realmRules.length;
+        }
+        evaluations.add(evaluated);
+    }
+
+    /**
+     * Forgets the state of the asset in every rule, e.g. after it was deleted.
+     */
+    public void onAssetDeleted(String assetId) {
+        List<CompiledRule> compiledRules;
+        synchronized (this) {
+            compiledRules = new ArrayList<>(rules.values());
+        }
+        for (CompiledRule compiled : compiledRules) {
+            MatchState state = compiled.states.remove(assetId);
+            if (state != null) {
+                synchronized (state) {
+                    cancelTimer(state);
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        rules.values().forEach(this::discard);
+        rules.clear();
+        rebuildIndex();
+    }
+
+    protected void evaluate(CompiledRule compiled, String assetId, double number, String text, long now) {
+        boolean matches = compiled.test(number, text);
+        MatchState state = matches ? compiled.states.computeIfAbsent(assetId, id -> new MatchState()) : compiled.states.get(assetId);
+
+        if (state == null) {
+            return;
+        }
+
+        synchronized (state) {
+            if (matches) {
+                if (!state.matching) {
+                    state.matching = true;
+                    state.since = now;
+                    if (compiled.durationMillis > 0L) {
+                        // A timer still pending from an earlier match reschedules itself rather than being replaced so
+                        // a flapping value never leaves more than one timer per asset
+                        if (state.timer == null) {
+                            schedule(compiled, assetId, state, compiled.durationMillis);
+                        }
+                        return;
+                    }
+                }
+                if (!state.fired && now - state.since >= compiled.durationMillis) {
+                    tryFire(compiled, assetId, state);
+                }
+            } else if (state.matching) {
+                state.matching = false;
+                if (state.fired) {
+                    state.fired = false;
+                    if (compiled.rule.getClearValue() != null) {
+                        alert(compiled, assetId, compiled.rule.getClearValue());
+                    }
+                }
+            }
+        }
+    }
+
+    protected void schedule(CompiledRule compiled, String assetId, MatchState state, long delayMillis) {
+        state.timer = executorService.schedule(() -> onTimer(compiled, assetId, state), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    protected void onTimer(CompiledRule compiled, String assetId, MatchState state) {
+        synchronized (state) {
+            state.timer = null;
+            if (!state.matching || state.fired || compiled.states.get(assetId) != state) {
+                return;
+            }
+            long remaining = state.since + compiled.durationMillis - clock.getAsLong();
+            if (remaining > 0L) {
+                // Stopped and started matching again since the timer was scheduled
+                schedule(compiled, assetId, state, remaining);
+            } else {
+                tryFire(compiled, assetId, state);
+            }
+        }
+    }
+
+    protected void tryFire(CompiledRule compiled, String assetId, MatchState state) {
+        if (compiled.neighbourCount > 1 && countMatchingNeighbours(compiled, assetId) < compiled.neighbourCount) {
+            return;
+        }
+        state.fired = true;
+        fired.increment();
+        alert(compiled, assetId, compiled.rule.getAlertValue());
+    }
+
+    protected int countMatchingNeighbours(CompiledRule compiled, String assetId) {
+        double[] location = spatialIndex.getLocation(assetId);
+        if (location == null) {
+            return 1;
+        }
+
+        int count = 0;
+        List<CustomAssetLocation> neighbours = spatialIndex.findWithinRadius(
+            compiled.rule.getRealm(), location[0], location[1], compiled.neighbourRadius, Integer.MAX_VALUE
+        );
+        for (CustomAssetLocation neighbour : neighbours) {
+            MatchState neighbourState = neighbour.getId().equals(assetId) ? null : compiled.states.get(neighbour.getId());
+            if (neighbour.getId().equals(assetId) || (neighbourState != null && neighbourState.matching)) {
+                if (++count >= compiled.neighbourCount) {
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    protected void alert(CompiledRule compiled, String assetId, Object value) {
+        try {
+            alerter.alert(compiled.rule, assetId, value);
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Failed to raise alert of custom rule: " + compiled.rule, e);
+        }
+    }
+
+    protected void discard(CompiledRule compiled) {
+        compiled.states.values().forEach(state -> {
+            synchronized (state) {
+                cancelTimer(state);
+            }
+        });
+        compiled.states.clear();
+    }
+
+    protected static void cancelTimer(MatchState state) {
+        if (state.timer != null) {
+            state.timer.cancel(false);
+            state.timer = null;
+        }
+    }
+
+    protected void rebuildIndex() {
+        Map<String, Map<String, CompiledRule[]>> assetRules = new HashMap<>();
+        Map<String, Map<String, CompiledRule[]>> realmRules = new HashMap<>();
+
+        for (CompiledRule compiled : rules.values()) {
+            CustomRule rule = compiled.rule;
+            Map<String, Map<String, CompiledRule[]>> target = rule.getAssetId() != null ? assetRules : realmRules;
+            String key = rule.getAssetId() != null ? rule.getAssetId() : rule.getRealm();
+            target.computeIfAbsent(rule.getAttributeName(), name -> new HashMap<>())
+                .merge(key, new CompiledRule[]{compiled}, CustomRuleEngine::concat);
+        }
+
+        index = new RuleIndex(assetRules, realmRules);
+    }
+
+    /**
+     * Replaces the index with one where only the entries of the removed and added rules differ; the entries of other
+     * attributes are shared with the current index so a single rule change does not regroup every rule.
+     */
+    protected void updateIndex(CompiledRule removed, CompiledRule added) {
+        RuleIndex current = index;
+        Map<String, Map<String, CompiledRule[]>> assetRules = new HashMap<>(current.assetRules);
+        Map<String, Map<String, CompiledRule[]>> realmRules = new HashMap<>(current.realmRules);
+
+        if (removed != null) {
+            updateEntry(removed.rule.getAssetId() != null ? assetRules : realmRules, removed, false);
+        }
+        if (added != null) {
+            updateEntry(added.rule.getAssetId() != null ? assetRules : realmRules, added, true);
+        }
+
+        index = new RuleIndex(assetRules, realmRules);
+    }
+
+    /**
+     * Adds the rule to or removes it from a copy of the entries of its attribute in the (already copied) index map.
+     */
+    protected static void updateEntry(Map<String, Map<String, CompiledRule[]>> target, CompiledRule compiled, boolean add) {
+        CustomRule rule = compiled.rule;
+        String key = rule.getAssetId() != null ? rule.getAssetId() : rule.getRealm();
+        Map<String, CompiledRule[]> existing = target.get(rule.getAttributeName());
+        Map<String, CompiledRule[]> entries = existing != null ? new HashMap<>(existing) : new HashMap<>();
+        CompiledRule[] keyRules = entries.getOrDefault(key, NO_RULES);
+
+        if (add) {
+            entries.put(key, concat(keyRules, new CompiledRule[]{compiled}));
+        } else {
+            CompiledRule[] remaining = Arrays.stream(keyRules).filter(r -> r != compiled).toArray(CompiledRule[]::new);
+            if (remaining.length > 0) {
+                entries.put(key, remaining);
+            } else {
+                entries.remove(key);
+            }
+        }
+
+        if (entries.isEmpty()) {
+            target.remove(rule.getAttributeName());
+        } else {
+            target.put(rule.getAttributeName(), entries);
+        }
+    }
+
+    protected static CompiledRule[] concat(CompiledRule[] a, CompiledRule[] b) {
+        CompiledRule[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    protected static double toNumber(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value ? 1d : 0d;
+        }
+        return Double.NaN;
+    }
+
+    protected static String toText(Object value) {
+        if (value instanceof Enum<?>) {
+            return ((Enum<?>) value).name();
+        }
+        return value != null ? value.toString() : null;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.custom;
+
+import org.hibernate.Session;
+import org.openremote.container.persistence.PersistenceService;
+import org.openremote.model.custom.CustomRule;
+import org.openremote.model.util.ValueUtil;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Stores {@link CustomRule} definitions as JSON in the <code>custom_rule</code> table so they survive a restart.
+ */
+public class CustomRuleStore {
+
+    private static final Logger LOG = Logger.getLogger(CustomRuleStore.class.getName());
+    public static final String TABLE = "custom_rule";
+    protected static final String CREATE_TABLE =
+        "create table if not exists " + TABLE + " (" +
+            "id varchar(255) not null primary key, " +
+            "realm varchar(255) not null, " +
+            "definition text not null)";
+    protected static final String UPSERT =
+        "insert into " + TABLE + " (id, realm, definition) values (?, ?, ?) " +
+            "on conflict (id) do update set realm = excluded.realm, definition = excluded.definition";
+    protected static final String DELETE = "delete from " + TABLE + " where id = ?";
+    protected static final String SELECT = "select id, definition from " + TABLE;
+    protected final PersistenceService persistenceService;
+
+    public CustomRuleStore(PersistenceService persistenceService) {
+        this.persistenceService = persistenceService;
+    }
+
+    public void createTable() {
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(CREATE_TABLE);
+            }
+        }));
+    }
+
+    public List<CustomRule> loadAll() {
+        List<CustomRule> rules = new ArrayList<>();
+
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(SELECT);
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    try {
+                        rules.add(ValueUtil.JSON.readValue(resultSet.getString(2), CustomRule.class));
+                    } catch (IOException e) {
+                        LOG.warning("Ignoring custom rule that cannot be read: id=" + resultSet.getString(1) + ": " + e.getMessage());
+                    }
+                }
+            }
+        }));
+
+        return rules;
+    }
+
+    public void save(CustomRule rule) {
+        String definition;
+        try {
+            definition = ValueUtil.JSON.writeValueAsString(rule);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(UPSERT)) {
+                statement.setString(1, rule.getId());
+                statement.setString(2, rule.getRealm());
+                statement.setString(3, definition);
+                statement.executeUpdate();
+            }
+        }));
+    }
+
+    public void delete(String ruleId) {
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(DELETE)) {
+                statement.setString(1, ruleId);
+                statement.executeUpdate();
+            }
+        }));
+    }
+}
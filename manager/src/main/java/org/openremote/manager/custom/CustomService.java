@@ -19,22 +19,833 @@
  */
 package org.openremote.manager.custom;
 
+import org.apache.camel.builder.RouteBuilder;
+import org.hibernate.Session;
+import org.openremote.agent.custom.CustomProtocolMetrics;
+import org.openremote.container.message.MessageBrokerService;
+import org.openremote.container.persistence.PersistenceService;
+import org.openremote.container.timer.TimerService;
+import org.openremote.manager.asset.AssetProcessingService;
+import org.openremote.manager.asset.AssetStorageService;
+import org.openremote.manager.event.ClientEventService;
+import org.openremote.manager.security.ManagerIdentityService;
+import org.openremote.manager.web.ManagerWebService;
 import org.openremote.model.Container;
 import org.openremote.model.ContainerService;
+import org.openremote.model.PersistenceEvent;
+import org.openremote.model.asset.Asset;
+import org.openremote.model.asset.AssetEvent;
+import org.openremote.model.attribute.Attribute;
+import org.openremote.model.attribute.AttributeEvent;
+import org.openremote.model.custom.CustomAsset;
+import org.openremote.model.custom.CustomAssetLocation;
+import org.openremote.model.custom.CustomAssetValues;
+import org.openremote.model.custom.CustomCacheStatistics;
+import org.openremote.model.custom.CustomData;
+import org.openremote.model.custom.CustomExportFormat;
+import org.openremote.model.custom.CustomRollup;
+import org.openremote.model.custom.CustomRule;
+import org.openremote.model.custom.CustomShardStatistics;
+import org.openremote.model.custom.CustomValueTypeCounts;
+import org.openremote.model.geo.GeoJSONPoint;
+import org.openremote.model.query.AssetQuery;
+import org.openremote.model.query.filter.RealmPredicate;
+import org.openremote.model.security.Realm;
+
+import java.io.OutputStream;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.openremote.container.persistence.PersistenceService.PERSISTENCE_TOPIC;
+import static org.openremote.container.persistence.PersistenceService.isPersistenceEventForEntityType;
+import static org.openremote.container.util.MapAccess.getInteger;
+import static org.openremote.container.util.MapAccess.getString;
+
+public class CustomService extends RouteBuilder implements ContainerService {
+
+    /**
+     * The realm of an asset marked for a {@link #resync} and the names of the attributes whose events were dropped
+     * (empty when only an asset event was).
+     */
+    protected static class Resync {
+        protected String realm;
+        protected final Set<String> attributeNames = new HashSet<>();
+
+        protected Resync(String realm) {
+            this.realm = realm;
+        }
+    }
+
+    public static final String CUSTOM_BULK_BATCH_SIZE = "CUSTOM_BULK_BATCH_SIZE";
+    public static final int CUSTOM_BULK_BATCH_SIZE_DEFAULT = 1000;
+    public static final String CUSTOM_INGEST_QUEUE_SIZE = "CUSTOM_INGEST_QUEUE_SIZE";
+    public static final int CUSTOM_INGEST_QUEUE_SIZE_DEFAULT = 10000;
+    public static final String CUSTOM_INGEST_BATCH_SIZE = "CUSTOM_INGEST_BATCH_SIZE";
+    public static final int CUSTOM_INGEST_BATCH_SIZE_DEFAULT = 500;
+    public static final String CUSTOM_INGEST_FLUSH_INTERVAL_MILLIS = "CUSTOM_INGEST_FLUSH_INTERVAL_MILLIS";
+    public static final int CUSTOM_INGEST_FLUSH_INTERVAL_MILLIS_DEFAULT = 20;
+    public static final String CUSTOM_INGEST_RETRY_AFTER_SECONDS = "CUSTOM_INGEST_RETRY_AFTER_SECONDS";
+    public static final int CUSTOM_INGEST_RETRY_AFTER_SECONDS_DEFAULT = 1;
+    public static final int BULK_COMMIT_TIMEOUT_SECONDS = 30;
+    public static final String CUSTOM_VALUE_CACHE_SIZE = "CUSTOM_VALUE_CACHE_SIZE";
+    public static final int CUSTOM_VALUE_CACHE_SIZE_DEFAULT = 100000;
+    public static final String CUSTOM_VALUES_MAX_RESULTS = "CUSTOM_VALUES_MAX_RESULTS";
+    public static final int CUSTOM_VALUES_MAX_RESULTS_DEFAULT = 10000;
+    public static final int VALUE_CACHE_SEGMENTS = 64;
+    public static final String CUSTOM_ROLLUP_LATE_WINDOW_MILLIS = "CUSTOM_ROLLUP_LATE_WINDOW_MILLIS";
+    public static final int CUSTOM_ROLLUP_LATE_WINDOW_MILLIS_DEFAULT = 300000;
+    public static final String CUSTOM_ROLLUP_FLUSH_INTERVAL_MILLIS = "CUSTOM_ROLLUP_FLUSH_INTERVAL_MILLIS";
+    public static final int CUSTOM_ROLLUP_FLUSH_INTERVAL_MILLIS_DEFAULT = 10000;
+    public static final String CUSTOM_ROLLUP_MAX_OVERFLOW = "CUSTOM_ROLLUP_MAX_OVERFLOW";
+    public static final int CUSTOM_ROLLUP_MAX_OVERFLOW_DEFAULT = 100000;
+    public static final int ROLLUP_SEGMENTS = 64;
+    public static final int ROLLUP_MAX_POINTS_DEFAULT = 500;
+    public static final String CUSTOM_SPATIAL_CELL_METERS = "CUSTOM_SPATIAL_CELL_METERS";
+    public static final int CUSTOM_SPATIAL_CELL_METERS_DEFAULT = 250;
+    public static final String CUSTOM_SHARD_COUNT = "CUSTOM_SHARD_COUNT";
+    public static final int CUSTOM_SHARD_COUNT_DEFAULT = Runtime.getRuntime().availableProcessors();
+    public static final String CUSTOM_SHARD_REALM_QUEUE_SIZE = "CUSTOM_SHARD_REALM_QUEUE_SIZE";
+    public static final int CUSTOM_SHARD_REALM_QUEUE_SIZE_DEFAULT = 10000;
+    public static final String CUSTOM_SHARD_QUANTUM = "CUSTOM_SHARD_QUANTUM";
+    public static final int CUSTOM_SHARD_QUANTUM_DEFAULT = 32;
+    /**
+     * Fair share weights of realms in the form <code>realm1:weight,realm2:weight</code>; other realms get weight 1.
+     */
+    public static final String CUSTOM_SHARD_REALM_WEIGHTS = "CUSTOM_SHARD_REALM_WEIGHTS";
+    public static final int RESYNC_INTERVAL_MILLIS = 1000;
+    public static final int CUSTOM_ASSETS_FETCH_SIZE = 1000;
+    public static final String CUSTOM_EXPORT_FETCH_SIZE = "CUSTOM_EXPORT_FETCH_SIZE";
+    public static final int CUSTOM_EXPORT_FETCH_SIZE_DEFAULT = 1000;
+    protected static final String CUSTOM_ASSETS_QUERY =
+        "select ID, REALM, PARENT_ID, " +
+            "ATTRIBUTES -> ? ->> 'value', ATTRIBUTES -> ? ->> 'timestamp', " +
+            "ATTRIBUTES -> ? -> 'value' -> 'coordinates' ->> 1, ATTRIBUTES -> ? -> 'value' -> 'coordinates' ->> 0, ATTRIBUTES -> ? ->> 'timestamp' " +
+            "from ASSET where TYPE = ?";
+    protected static final String ASSET_REALMS_QUERY = "select ID, REALM from ASSET where ID = any(?)";
+    private static final Logger LOG = Logger.getLogger(CustomService.class.getName());
+    protected TimerService timerService;
+    protected AssetProcessingService assetProcessingService;
+    protected AssetStorageService assetStorageService;
+    protected PersistenceService persistenceService;
+    protected ClientEventService clientEventService;
+    protected CustomValueCache valueCache;
+    protected int valuesMaxResults;
+    protected CustomValueTypeAggregates aggregates;
+    protected CustomSpatialIndex spatialIndex;
+    protected CustomRuleEngine ruleEngine;
+    protected CustomRuleStore ruleStore;
+    protected CustomRollups rollups;
+    protected CustomRollupStore rollupStore;
+    protected CustomExporter exporter;
+    protected final CustomRollups.Batch rollupBatch = new CustomRollups.Batch(1024);
+    protected int rollupFlushIntervalMillis;
+    protected ScheduledFuture<?> rollupFlushTask;
+    protected CustomIngestQueue ingestQueue;
+    protected CustomShardPool shardPool;
+    /**
+     * Assets whose events could not be queued; the entries are only accessed within <code>compute</code>/
+     * <code>remove</code>.
+     */
+    protected final Map<String, Resync> resyncAssets = new ConcurrentHashMap<>();
+    protected ScheduledFuture<?> resyncTask;
+    protected int bulkBatchSize;
+    protected int retryAfterSeconds;
 
-public class CustomService implements ContainerService {
     @Override
     public void init(Container container) throws Exception {
+        timerService = container.getService(TimerService.class);
+        assetProcessingService = container.getService(AssetProcessingService.class);
+        assetStorageService = container.getService(AssetStorageService.class);
+        clientEventService = container.getService(ClientEventService.class);
+        persistenceService = container.getService(PersistenceService.class);
+        valueCache = new CustomValueCache(
+            Math.max(1, getInteger(container.getConfig(), CUSTOM_VALUE_CACHE_SIZE, CUSTOM_VALUE_CACHE_SIZE_DEFAULT)),
+            VALUE_CACHE_SEGMENTS
+        );
+        valuesMaxResults = Math.max(1, getInteger(container.getConfig(), CUSTOM_VALUES_MAX_RESULTS, CUSTOM_VALUES_MAX_RESULTS_DEFAULT));
+        rollups = new CustomRollups(
+            Math.max(0, getInteger(container.getConfig(), CUSTOM_ROLLUP_LATE_WINDOW_MILLIS, CUSTOM_ROLLUP_LATE_WINDOW_MILLIS_DEFAULT)),
+            ROLLUP_SEGMENTS,
+            Math.max(ROLLUP_SEGMENTS, getInteger(container.getConfig(), CUSTOM_ROLLUP_MAX_OVERFLOW, CUSTOM_ROLLUP_MAX_OVERFLOW_DEFAULT))
+        );
+        aggregates = new CustomValueTypeAggregates();
+        spatialIndex = new CustomSpatialIndex(
+            Math.max(1, getInteger(container.getConfig(), CUSTOM_SPATIAL_CELL_METERS, CUSTOM_SPATIAL_CELL_METERS_DEFAULT))
+        );
+        ruleEngine = new CustomRuleEngine(
+            container.getExecutorService(),
+            timerService::getCurrentTimeMillis,
+            spatialIndex,
+            aggregates::isTracked,
+            this::raiseAlert
+        );
+        ruleStore = new CustomRuleStore(persistenceService);
+        rollupStore = new CustomRollupStore(persistenceService);
+        exporter = new CustomExporter(
+            persistenceService,
+            Math.max(1, getInteger(container.getConfig(), CUSTOM_EXPORT_FETCH_SIZE, CUSTOM_EXPORT_FETCH_SIZE_DEFAULT))
+        );
+        rollupFlushIntervalMillis = Math.max(1000, getInteger(container.getConfig(), CUSTOM_ROLLUP_FLUSH_INTERVAL_MILLIS, CUSTOM_ROLLUP_FLUSH_INTERVAL_MILLIS_DEFAULT));
+        bulkBatchSize = Math.max(1, getInteger(container.getConfig(), CUSTOM_BULK_BATCH_SIZE, CUSTOM_BULK_BATCH_SIZE_DEFAULT));
+        retryAfterSeconds = Math.max(1, getInteger(container.getConfig(), CUSTOM_INGEST_RETRY_AFTER_SECONDS, CUSTOM_INGEST_RETRY_AFTER_SECONDS_DEFAULT));
+        shardPool = new CustomShardPool(
+            Math.max(1, getInteger(container.getConfig(), CUSTOM_SHARD_COUNT, CUSTOM_SHARD_COUNT_DEFAULT)),
+            Math.max(1, getInteger(container.getConfig(), CUSTOM_SHARD_REALM_QUEUE_SIZE, CUSTOM_SHARD_REALM_QUEUE_SIZE_DEFAULT)),
+            Math.max(1, getInteger(container.getConfig(), CUSTOM_SHARD_QUANTUM, CUSTOM_SHARD_QUANTUM_DEFAULT)),
+            CustomShardPool.parseWeights(getString(container.getConfig(), CUSTOM_SHARD_REALM_WEIGHTS, null)),
+            1
+        );
+        ingestQueue = new CustomIngestQueue(
+            Math.max(1, getInteger(container.getConfig(), CUSTOM_INGEST_QUEUE_SIZE, CUSTOM_INGEST_QUEUE_SIZE_DEFAULT)),
+            Math.max(1, getInteger(container.getConfig(), CUSTOM_INGEST_BATCH_SIZE, CUSTOM_INGEST_BATCH_SIZE_DEFAULT)),
+            Math.max(1, getInteger(container.getConfig(), CUSTOM_INGEST_FLUSH_INTERVAL_MILLIS, CUSTOM_INGEST_FLUSH_INTERVAL_MILLIS_DEFAULT)),
+            this::write
+        );
 
+        container.getService(MessageBrokerService.class).getContext().addRoutes(this);
+
+        container.getService(ManagerWebService.class).addApiSingleton(
+            new CustomEndpointResourceImpl(
+                timerService,
+                container.getService(ManagerIdentityService.class),
+                this
+            )
+        );
     }
 
     @Override
-    public void start(Container container) throws Exception {
+    public void configure() throws Exception {
+        from(PERSISTENCE_TOPIC)
+            .routeId("Persistence-CustomRealm")
+            .filter(isPersistenceEventForEntityType(Realm.class))
+            .process(exchange -> {
+                @SuppressWarnings("unchecked")
+                PersistenceEvent<Realm> persistenceEvent = exchange.getIn().getBody(PersistenceEvent.class);
+                onRealmChanged(persistenceEvent.getEntity(), persistenceEvent.getCause());
+            });
+    }
 
+    @Override
+    public void start(Container container) throws Exception {
+        shardPool.start();
+        rollupStore.createTable();
+        rollupFlushTask = container.getExecutorService().scheduleWithFixedDelay(
+            () -> flushRollups(timerService.getCurrentTimeMillis()),
+            rollupFlushIntervalMillis,
+            rollupFlushIntervalMillis,
+            TimeUnit.MILLISECONDS
+        );
+        resyncTask = container.getExecutorService().scheduleWithFixedDelay(
+            this::resync,
+            RESYNC_INTERVAL_MILLIS,
+            RESYNC_INTERVAL_MILLIS,
+            TimeUnit.MILLISECONDS
+        );
+        clientEventService.addInternalSubscription(AttributeEvent.class, null, this::onAttributeEvent);
+        clientEventService.addInternalSubscription(AssetEvent.class, null, this::onAssetEvent);
+        // Subscribed first so that changes made while loading are not missed
+        loadCustomAssetState();
+        ruleStore.createTable();
+        ruleEngine.putAll(ruleStore.loadAll());
+        ingestQueue.start();
     }
 
     @Override
     public void stop(Container container) throws Exception {
+        ingestQueue.stop();
+        if (resyncTask != null) {
+            resyncTask.cancel(false);
+            resyncTask = null;
+        }
+        shardPool.stop();
+        resyncAssets.clear();
+        if (rollupFlushTask != null) {
+            rollupFlushTask.cancel(false);
+            rollupFlushTask = null;
+        }
+        // Open buckets are written too; their deltas are merged with whatever arrives after a restart
+        flushRollups(Long.MAX_VALUE);
+        ruleEngine.clear();
+        valueCache.clear();
+    }
+
+    /**
+     * The maximum number of records the bulk endpoint hands to {@link #submit(List)} in one call.
+     */
+    public int getBulkBatchSize() {
+        return bulkBatchSize;
+    }
+
+    /**
+     * How long clients are asked to back off for when a submission is refused because the ingest queue is full.
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * Queue a single record with the realm of its asset; the callback is invoked once the record has been committed.
+     * Returns <code>false</code> without invoking the callback when the ingest queue is full.
+     */
+    public boolean submit(CustomData customData, String realm, Consumer<Throwable> callback) {
+        return customData != null && ingestQueue.offer(customData, realm, callback);
+    }
+
+    /**
+     * Queue a batch of records with the realms of their assets as read by {@link #getAssetRealms} and return how many
+     * were accepted; acceptance stops at the first record that does not fit in the ingest queue. The callback is
+     * invoked once every accepted record has been committed with either <code>null</code> or the failure and the
+     * position of the record in the batch.
+     */
+    public int submit(List<CustomData> batch, Map<String, String> assetRealms, ObjIntConsumer<Throwable> callback) {
+        return ingestQueue.offerAll(batch, customData -> customData != null ? assetRealms.get(customData.getAssetId()) : null, callback);
+    }
+
+    /**
+     * The maximum number of assets returned by a single values lookup.
+     */
+    public int getValuesMaxResults() {
+        return valuesMaxResults;
+    }
+
+    /**
+     * The latest values of the requested {@link CustomAsset}s in the requested order, served from the value cache with
+     * all misses loaded in a single query; IDs that are not {@link CustomAsset}s are left out.
+     */
+    public List<CustomAssetValues> getValues(Collection<String> assetIds) {
+        return valueCache.getAll(assetIds, this::loadCustomAssets);
+    }
+
+    /**
+     * The latest values of up to <code>limit</code> {@link CustomAsset}s of the realm.
+     */
+    public List<CustomAssetValues> getRealmValues(String realm, int limit) {
+        List<String> assetIds = assetStorageService.findAllIds(
+            new AssetQuery().types(CustomAsset.class).realm(new RealmPredicate(realm)).limit(limit)
+        );
+        return getValues(assetIds);
+    }
+
+    /**
+     * Drop all cached values of the realm, e.g. after its assets were changed directly in storage.
+     */
+    public void invalidateRealm(String realm) {
+        valueCache.invalidateRealm(realm);
+    }
+
+    public CustomCacheStatistics getValueCacheStatistics() {
+        return valueCache.getStatistics();
+    }
+
+    /**
+     * The rollups of the attribute within the range using the resolution that covers it in no more than
+     * <code>maxPoints</code> buckets.
+     */
+    public List<CustomRollup> getRollups(String assetId, String attributeName, long from, long to, int maxPoints) {
+        return getRollups(assetId, attributeName, CustomRollup.Resolution.select(to - from, maxPoints), from, to);
+    }
+
+    /**
+     * The rollups of the attribute for buckets starting within the range, combining stored buckets with the deltas
+     * that have not been written yet.
+     */
+    public List<CustomRollup> getRollups(String assetId, String attributeName, CustomRollup.Resolution resolution, long from, long to) {
+        long start = resolution.getBucketStart(from);
+        CustomRollups.Batch stored = rollupStore.read(assetId, attributeName, resolution, start, to);
+        CustomRollups.Batch pending = new CustomRollups.Batch(16);
+        rollups.collect(assetId, attributeName, resolution, start, to, pending);
+        return CustomRollups.merge(resolution, stored, pending);
+    }
+
+    /**
+     * The number of {@link CustomAsset}s per {@link CustomAsset.CustomValueType} in the realm or, when a parent is
+     * given, among the children of that parent.
+     */
+    public CustomValueTypeCounts getValueTypeCounts(String realm, String parentId) {
+        return parentId != null ? aggregates.getParentCounts(realm, parentId) : aggregates.getRealmCounts(realm);
+    }
+
+    /**
+     * The counts of {@link #getValueTypeCounts} for every parent in the realm.
+     */
+    public List<CustomValueTypeCounts> getParentValueTypeCounts(String realm) {
+        return aggregates.getAllParentCounts(realm);
+    }
+
+    /**
+     * Up to <code>limit</code> {@link CustomAsset}s of the realm located within the bounding box.
+     */
+    public List<CustomAssetLocation> findAssetsWithin(String realm, double south, double west, double north, double east, int limit) {
+        return spatialIndex.findWithin(realm, south, west, north, east, limit);
+    }
+
+    /**
+     * Up to <code>limit</code> {@link CustomAsset}s of the realm located within the radius of the point, nearest
+     * first.
+     */
+    public List<CustomAssetLocation> findAssetsWithinRadius(String realm, double latitude, double longitude, double radiusMeters, int limit) {
+        return spatialIndex.findWithinRadius(realm, latitude, longitude, radiusMeters, limit);
+    }
+
+    /**
+     * The <code>k</code> {@link CustomAsset}s of the realm located nearest to the point, nearest first.
+     */
+    public List<CustomAssetLocation> findNearestAssets(String realm, double latitude, double longitude, int k) {
+        return spatialIndex.findNearest(realm, latitude, longitude, k);
+    }
+
+    /**
+     * Store and start evaluating the rule, replacing any rule with the same ID; throws an
+     * {@link IllegalArgumentException} if the rule is not valid.
+     */
+    public void putRule(CustomRule rule) {
+        CustomRuleEngine.validate(rule);
+        ruleStore.save(rule);
+        ruleEngine.put(rule);
+    }
+
+    /**
+     * Stop evaluating and delete the rule; returns <code>false</code> if it does not exist.
+     */
+    public boolean removeRule(String ruleId) {
+        if (ruleEngine.remove(ruleId) == null) {
+            return false;
+        }
+        ruleStore.delete(ruleId);
+        return true;
+    }
+
+    public CustomRule getRule(String ruleId) {
+        return ruleEngine.get(ruleId);
+    }
+
+    public List<CustomRule> getRules(String realm) {
+        return ruleEngine.getRules(realm);
+    }
+
+    /**
+     * The realm of the asset or <code>null</code> if it does not exist.
+     */
+    public String getAssetRealm(String assetId) {
+        Asset<?> asset = assetStorageService.find(assetId);
+        return asset != null ? asset.getRealm() : null;
+    }
+
+    /**
+     * The realms of the assets that exist among the requested ones, read in a single query without loading the
+     * assets.
+     */
+    public Map<String, String> getAssetRealms(Collection<String> assetIds) {
+        if (assetIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> realms = new HashMap<>(assetIds.size() * 2);
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(ASSET_REALMS_QUERY)) {
+                statement.setArray(1, connection.createArrayOf("varchar", assetIds.toArray()));
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        realms.put(resultSet.getString(1), resultSet.getString(2));
+                    }
+                }
+            }
+        }));
+        return realms;
+    }
+
+    /**
+     * Write the deltas of every bucket closed at the given time; deltas that fail to be written are kept for the next
+     * flush.
+     */
+    protected synchronized void flushRollups(long now) {
+        try {
+            rollups.drain(now, rollupBatch);
+            if (rollupBatch.isEmpty()) {
+                return;
+            }
+            rollupStore.write(rollupBatch);
+            LOG.finest(() -> "Flushed " + rollupBatch.size() + " custom rollup bucket(s)");
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Failed to flush " + rollupBatch.size() + " custom rollup bucket(s), will retry", e);
+            rollups.restore(rollupBatch);
+        } finally {
+            rollupBatch.clear();
+        }
+    }
+
+    /**
+     * Load the realm, parent, value type and location of every {@link CustomAsset} into the aggregates and spatial
+     * index in a single pass over the asset table; only the columns needed are read and rows are streamed with a
+     * cursor rather than loaded at once.
+     */
+    protected void loadCustomAssetState() {
+        long start = System.currentTimeMillis();
+        String valueTypeName = CustomAsset.CUSTOM_VALUE_TYPE_ATTRIBUTE_DESCRIPTOR.getName();
+        String locationName = Asset.LOCATION.getName();
+        aggregates.startRebuild();
+        spatialIndex.startLoad();
+
+        try {
+            persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(CUSTOM_ASSETS_QUERY)) {
+                    statement.setFetchSize(CUSTOM_ASSETS_FETCH_SIZE);
+                    statement.setString(1, valueTypeName);
+                    statement.setString(2, valueTypeName);
+                    statement.setString(3, locationName);
+                    statement.setString(4, locationName);
+                    statement.setString(5, locationName);
+                    statement.setString(6, CustomAsset.class.getSimpleName());
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            String assetId = resultSet.getString(1);
+                            String realm = resultSet.getString(2);
+                            aggregates.load(assetId, realm, resultSet.getString(3), resultSet.getString(4), toLong(resultSet.getString(5)));
+                            spatialIndex.load(assetId, realm, toDouble(resultSet.getString(6)), toDouble(resultSet.getString(7)), toLong(resultSet.getString(8)));
+                        }
+                    }
+                }
+            }));
+        } finally {
+            aggregates.endRebuild();
+            spatialIndex.endLoad();
+        }
+
+        LOG.info("Loaded state of " + aggregates.size() + " custom asset(s) (" + spatialIndex.size() + " indexed) in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * The cached values of a realm that is deleted or no longer active are dropped so they are not served from memory;
+     * if the realm is enabled again they are reloaded from storage on the next lookup.
+     */
+    protected void onRealmChanged(Realm realm, PersistenceEvent.Cause cause) {
+        if (cause == PersistenceEvent.Cause.DELETE || !realm.isActive(timerService.getCurrentTimeMillis())) {
+            LOG.fine(() -> "Invalidating cached values of deleted or inactive realm: " + realm.getName());
+            invalidateRealm(realm.getName());
+        }
+    }
+
+    protected void raiseAlert(CustomRule rule, String assetId, Object value) {
+        LOG.fine(() -> "Custom rule '" + rule.getName() + "' setting " + rule.getAlertAttributeName() + "=" + value + " on asset: " + assetId);
+        assetProcessingService.sendAttributeEvent(new AttributeEvent(assetId, rule.getAlertAttributeName(), value));
+    }
+
+    protected List<? extends Asset<?>> loadCustomAssets(List<String> assetIds) {
+        return assetStorageService.findAll(new AssetQuery().types(CustomAsset.class).ids(assetIds.toArray(new String[0])));
+    }
+
+    /**
+     * Queue depth and lag of every shard of the event processing pool.
+     */
+    public List<CustomShardStatistics> getShardStatistics() {
+        return shardPool.getStatistics();
+    }
+
+    /**
+     * The metrics of every running custom protocol instance, the ingest queue, the event processing shards and the
+     * value cache in the Prometheus text exposition format.
+     */
+    public String getMetrics() {
+        List<CustomProtocolMetrics> protocols = CustomProtocolMetrics.getAll();
+        List<CustomIngestQueue> ingest = Collections.singletonList(ingestQueue);
+        List<CustomShardStatistics> shards = shardPool.getStatistics();
+        CustomCacheStatistics cache = valueCache.getStatistics();
+
+        return new CustomMetricsWriter()
+            .family("custom_protocol_frames_received_total", "Frames routed to the custom protocol instance", "counter",
+                "agent", protocols, CustomProtocolMetrics::getAgentId, CustomProtocolMetrics::getFramesReceived)
+            .family("custom_protocol_readings_decoded_total", "Readings decoded from received frames", "counter",
+                "agent", protocols, CustomProtocolMetrics::getAgentId, CustomProtocolMetrics::getReadingsDecoded)
+            .family("custom_protocol_readings_unlinked_total", "Readings of device channels without a linked attribute", "counter",
+                "agent", protocols, CustomProtocolMetrics::getAgentId, CustomProtocolMetrics::getReadingsUnlinked)
+            .family("custom_protocol_events_emitted_total", "Attribute events emitted", "counter",
+                "agent", protocols, CustomProtocolMetrics::getAgentId, CustomProtocolMetrics::getEventsEmitted)
+            .family("custom_protocol_events_filtered_total", "Coalesced readings dropped by the link filter", "counter",
+                "agent", protocols, CustomProtocolMetrics::getAgentId, CustomProtocolMetrics::getEventsFiltered)
+            .family("custom_protocol_events_failed_total", "Attribute events dropped because they could not be processed", "counter",
+                "agent", protocols, CustomProtocolMetrics::getAgentId, CustomProtocolMetrics::getEventsFailed)
+            .family("custom_protocol_links", "Linked attributes", "gauge",
+                "agent", protocols, CustomProtocolMetrics::getAgentId, CustomProtocolMetrics::getLinkCount)
+            .family("custom_protocol_write_queue_depth", "Writes waiting to be sent or acknowledged", "gauge",
+                "agent", protocols, CustomProtocolMetrics::getAgentId, CustomProtocolMetrics::getWriteQueueDepth)
+            .family("custom_protocol_journal_backlog", "Journalled readings not yet acknowledged", "gauge",
+                "agent", protocols, CustomProtocolMetrics::getAgentId, CustomProtocolMetrics::getJournalBacklog)
+            .histogram("custom_protocol_decode_to_emit_seconds", "Time from a reading being decoded to its attribute event being emitted",
+                "agent", protocols, CustomProtocolMetrics::getAgentId, CustomProtocolMetrics::getDecodeToEmitMillis, 1e3)
+            .counter("custom_ingest_accepted_total", "Custom data records accepted by the ingest queue", ingestQueue.getAccepted())
+            .counter("custom_ingest_refused_total", "Custom data records refused because the ingest queue was full", ingestQueue.getRefused())
+            .counter("custom_ingest_committed_total", "Custom data records committed", ingestQueue.getCommitted())
+            .counter("custom_ingest_failed_total", "Custom data records that failed to commit", ingestQueue.getFailed())
+            .counter("custom_ingest_commits_total", "Batches committed by the ingest writer", ingestQueue.getCommits())
+            .gauge("custom_ingest_queue_depth", "Custom data records waiting in the ingest queue", ingestQueue.size())
+            .histogram("custom_ingest_submit_to_commit_seconds", "Time from a record being submitted to its batch being committed",
+                null, ingest, null, CustomIngestQueue::getQueuedToCommitNanos, 1e9)
+            .family("custom_shard_queue_depth", "Tasks waiting in the event processing shard", "gauge",
+                "shard", shards, shard -> Integer.toString(shard.getShard()), CustomShardStatistics::getDepth)
+            .family("custom_shard_lag_seconds", "Age of the oldest task waiting in the event processing shard", "gauge",
+                "shard", shards, shard -> Integer.toString(shard.getShard()), shard -> shard.getLagMillis() / 1e3)
+            .family("custom_shard_processed_total", "Tasks processed by the event processing shard", "counter",
+                "shard", shards, shard -> Integer.toString(shard.getShard()), CustomShardStatistics::getProcessed)
+            .family("custom_shard_dropped_total", "Events not queued because the shard queue was full; their assets are resynced", "counter",
+                "shard", shards, shard -> Integer.toString(shard.getShard()), CustomShardStatistics::getDropped)
+            .gauge("custom_value_cache_size", "Assets held in the value cache", cache.getSize())
+            .counter("custom_value_cache_hits_total", "Value cache lookups served from the cache", cache.getHits())
+            .counter("custom_value_cache_misses_total", "Value cache lookups loaded from storage", cache.getMisses())
+            .counter("custom_value_cache_evictions_total", "Assets evicted from the value cache", cache.getEvictions())
+            .counter("custom_rollup_dropped_total", "Rollup deltas dropped because the overflow kept while writes fail was full", rollups.getDropped())
+            .toString();
+    }
+
+    /**
+     * Streams the state of the assets of the type in the realm to the output; blocks until the export is complete.
+     */
+    public void exportAssets(String realm, String assetType, CustomExporter.Continuation after, CustomExportFormat format, OutputStream out) {
+        exporter.exportAssets(realm, assetType, after, format, out);
+    }
+
+    /**
+     * Streams the datapoints of the assets of the type in the realm within the range (either end optional) to the
+     * output; blocks until the export is complete.
+     */
+    public void exportDatapoints(String realm, String assetType, Long from, Long to, CustomExporter.Continuation after, CustomExportFormat format, OutputStream out) {
+        exporter.exportDatapoints(realm, assetType, from, to, after, format, out);
+    }
+
+    protected String getRealm(String assetId, String eventRealm) {
+        return eventRealm != null ? eventRealm : aggregates.getRealm(assetId);
+    }
+
+    /**
+     * Attribute events are processed on the shard of their asset without blocking the event bus; when the queue of the
+     * realm is full the event is dropped and the asset is scheduled for a {@link #resync} so the state derived from
+     * its events does not stay wrong.
+     */
+    protected void onAttributeEvent(AttributeEvent event) {
+        String realm = getRealm(event.getAssetId(), event.getRealm());
+        if (!shardPool.offer(event.getAssetId(), realm, () -> processAttributeEvent(event))) {
+            scheduleResync(event.getAssetId(), realm, event.getAttributeName());
+            LOG.fine(() -> "Custom shard queue full, scheduled resync after dropping attribute event: " + event.getAssetId() + "." + event.getAttributeName());
+        }
+    }
+
+    /**
+     * Asset events are processed on the shard of their asset without blocking the event bus; when the queue of the
+     * realm is full the asset is scheduled for a {@link #resync}, which reloads the asset on its shard behind the tasks
+     * already queued for it rather than processing the event out of order.
+     */
+    protected void onAssetEvent(AssetEvent event) {
+        String realm = getRealm(event.getAssetId(), event.getRealm());
+        if (!shardPool.offer(event.getAssetId(), realm, () -> processAssetEvent(event))) {
+            scheduleResync(event.getAssetId(), realm, null);
+            LOG.fine(() -> "Custom shard queue full, scheduled resync after dropping asset event: " + event.getAssetId());
+        }
+    }
+
+    /**
+     * Marks the asset for a resync; the cached values of the asset are invalidated right away so they are reloaded
+     * rather than served stale in the meantime.
+     */
+    protected void scheduleResync(String assetId, String realm, String attributeName) {
+        valueCache.invalidate(assetId);
+        resyncAssets.compute(assetId, (id, resync) -> {
+            if (resync == null) {
+                resync = new Resync(realm);
+            } else if (realm != null) {
+                resync.realm = realm;
+            }
+            if (attributeName != null) {
+                resync.attributeNames.add(attributeName);
+            }
+            return resync;
+        });
+    }
+
+    /**
+     * Queues a resync of every asset marked by {@link #scheduleResync} on the shard of the asset, behind any task
+     * already queued for it; assets whose shard queue is still full stay marked for the next run.
+     */
+    protected void resync() {
+        Map<String, Resync> pending = new HashMap<>();
+
+        for (String assetId : resyncAssets.keySet()) {
+            Resync resync = resyncAssets.remove(assetId);
+            if (resync != null && !shardPool.offer(assetId, resync.realm, () -> resyncAsset(assetId, resync.attributeNames))) {
+                pending.put(assetId, resync);
+            }
+        }
+        // Marked again once the pass is done so the pass never sees them twice
+        pending.forEach((assetId, resync) -> resyncAssets.merge(assetId, resync, (current, previous) -> {
+            if (current.realm == null) {
+                current.realm = previous.realm;
+            }
+            current.attributeNames.addAll(previous.attributeNames);
+            return current;
+        }));
+    }
+
+    /**
+     * Reloads the asset and brings the aggregates, spatial index and value cache in line with it; the rules and
+     * rollups of attributes whose events were dropped are fed the current value of the attribute (so rollups only
+     * miss the intermediate values). Runs on the shard of the asset so it is ordered with the events of the asset.
+     */
+    protected void resyncAsset(String assetId, Set<String> attributeNames) {
+        Asset<?> asset = assetStorageService.find(assetId);
+        valueCache.invalidate(assetId);
+
+        if (asset == null) {
+            removeAssetState(assetId);
+            return;
+        }
+        if (asset instanceof CustomAsset) {
+            putAssetState((CustomAsset) asset);
+        }
+        for (String attributeName : attributeNames) {
+            asset.getAttribute(attributeName).ifPresent(attribute -> {
+                Object value = attribute.getValue().orElse(null);
+                ruleEngine.onAttributeEvent(assetId, asset.getRealm(), attributeName, value);
+                if (value instanceof Number) {
+                    rollups.add(assetId, attributeName, ((Number) value).doubleValue(), attribute.getTimestamp().orElse(0L), timerService.getCurrentTimeMillis());
+                }
+            });
+        }
+        LOG.finest(() -> "Resynced custom asset state: " + assetId);
+    }
+
+    protected void processAttributeEvent(AttributeEvent event) {
+        Object value = event.getValue().orElse(null);
+        valueCache.update(event.getAssetId(), event.getAttributeName(), value, event.getTimestamp());
+        if (CustomAsset.CUSTOM_VALUE_TYPE_ATTRIBUTE_DESCRIPTOR.getName().equals(event.getAttributeName())) {
+            aggregates.update(event.getAssetId(), value, event.getTimestamp());
+        }
+        if (Asset.LOCATION.getName().equals(event.getAttributeName())) {
+            GeoJSONPoint point = value instanceof GeoJSONPoint ? (GeoJSONPoint) value : null;
+            spatialIndex.update(
+                event.getAssetId(),
+                point != null ? point.getY() : Double.NaN,
+                point != null ? point.getX() : Double.NaN,
+                event.getTimestamp()
+            );
+        }
+        ruleEngine.onAttributeEvent(
+            event.getAssetId(),
+            getRealm(event.getAssetId(), event.getRealm()),
+            event.getAttributeName(),
+            value
+        );
+        if (value instanceof Number) {
+            rollups.add(event.getAssetId(), event.getAttributeName(), ((Number) value).doubleValue(), event.getTimestamp(), timerService.getCurrentTimeMillis());
+        }
+    }
+
+    protected void processAssetEvent(AssetEvent event) {
+        // Attributes may have been added, removed or the asset moved so reload it on the next lookup
+        if (event.getCause() == AssetEvent.Cause.UPDATE || event.getCause() == AssetEvent.Cause.DELETE) {
+            valueCache.invalidate(event.getAssetId());
+        }
+
+        if (event.getCause() == AssetEvent.Cause.DELETE) {
+            removeAssetState(event.getAssetId());
+        } else if ((event.getCause() == AssetEvent.Cause.CREATE || event.getCause() == AssetEvent.Cause.UPDATE)
+            && event.getAsset() instanceof CustomAsset) {
+            putAssetState((CustomAsset) event.getAsset());
+        }
+    }
+
+    protected void putAssetState(CustomAsset asset) {
+        Optional<Attribute<CustomAsset.CustomValueType>> attribute = asset.getAttribute(CustomAsset.CUSTOM_VALUE_TYPE_ATTRIBUTE_DESCRIPTOR);
+        aggregates.put(
+            asset.getId(),
+            asset.getRealm(),
+            asset.getParentId(),
+            attribute.flatMap(Attribute::getValue).orElse(null),
+            attribute.flatMap(Attribute::getTimestamp).orElse(0L)
+        );
+        Optional<Attribute<GeoJSONPoint>> location = asset.getAttribute(Asset.LOCATION);
+        GeoJSONPoint point = location.flatMap(Attribute::getValue).orElse(null);
+        spatialIndex.put(
+            asset.getId(),
+            asset.getRealm(),
+            point != null ? point.getY() : Double.NaN,
+            point != null ? point.getX() : Double.NaN,
+            location.flatMap(Attribute::getTimestamp).orElse(0L)
+        );
+    }
+
+    protected void removeAssetState(String assetId) {
+        aggregates.remove(assetId);
+        spatialIndex.remove(assetId);
+        ruleEngine.onAssetDeleted(assetId);
+    }
+
+    /**
+     * Hands the readings of the batch to the shards of their assets, in the realm resolved when they were submitted,
+     * and returns the positions of the records that were not handed over. Offers never wait so a realm whose queue is
+     * full only fails its own readings (and pushes back on its own clients) rather than stalling the readings of every
+     * other realm; once a realm has been refused its later readings in the batch are failed too so they are not
+     * processed ahead of the ones that were refused.
+     */
+    protected BitSet write(List<CustomData> batch, List<String> realms) {
+        BitSet failures = new BitSet(batch.size());
+        Set<String> refusedRealms = null;
+        int readings = 0;
+
+        for (int i = 0; i < batch.size(); i++) {
+            CustomData customData = batch.get(i);
+            if (customData == null || !customData.hasReading()) {
+                continue;
+            }
+            String realm = realms.get(i);
+            AttributeEvent event = customData.getTimestamp() != null
+                ? new AttributeEvent(customData.getAssetId(), customData.getAttributeName(), customData.getValue(), customData.getTimestamp())
+                : new AttributeEvent(customData.getAssetId(), customData.getAttributeName(), customData.getValue());
+            if ((refusedRealms != null && refusedRealms.contains(realm))
+                || !shardPool.offer(customData.getAssetId(), realm, () -> assetProcessingService.sendAttributeEvent(event))) {
+                if (refusedRealms == null) {
+                    refusedRealms = new HashSet<>();
+                }
+                refusedRealms.add(realm);
+                failures.set(i);
+                continue;
+            }
+            readings++;
+        }
+
+        if (refusedRealms != null) {
+            LOG.warning("Custom shard queue is full or stopped, failed " + failures.cardinality() + " reading(s) of realm(s): " + refusedRealms);
+        }
+        int committed = readings;
+        LOG.finest(() -> "Committed " + committed + " reading(s) from " + batch.size() + " custom data record(s)");
+        return failures;
+    }
+
+    protected static long toLong(String value) {
+        try {
+            return value != null ? Long.parseLong(value) : 0L;
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
 
+    protected static double toDouble(String value) {
+        try {
+            return value != null ? Double.parseDouble(value) : Double.NaN;
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
     }
 }
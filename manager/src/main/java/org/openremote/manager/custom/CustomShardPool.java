@@ -0,0 +1,309 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.custom;
+
+import org.openremote.model.custom.CustomShardStatistics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A fixed pool of worker threads (shards) each with its own queues; tasks are assigned to a shard by hashing their key
+ * (the asset ID) so all tasks of an asset run on the same thread in the order they were submitted while different
+ * assets are spread over the shards.
+ * <p>
+ * Within a shard every realm has its own bounded FIFO queue and the queues with work are served by deficit round
+ * robin: each turn a realm may run up to {@link #quantum} times its weight tasks before the next realm gets a turn. A
+ * storm in one realm therefore only grows that realm's queues and delays its own tasks while other realms keep getting
+ * their share of every shard.
+ */
+public class CustomShardPool {
+
+    protected static final class Task {
+        protected final Runnable runnable;
+        protected final long enqueuedAt;
+
+        protected Task(Runnable runnable, long enqueuedAt) {
+            this.runnable = runnable;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    protected static final class RealmQueue {
+        protected final String realm;
+        protected final int weight;
+        protected final ArrayDeque<Task> tasks = new ArrayDeque<>();
+        protected long deficit;
+        protected boolean active;
+
+        protected RealmQueue(String realm, int weight) {
+            this.realm = realm;
+            this.weight = weight;
+        }
+    }
+
+    protected final class Shard implements Runnable {
+        protected final int number;
+        protected final ReentrantLock lock = new ReentrantLock();
+        protected final Condition notEmpty = lock.newCondition();
+        protected final Condition notFull = lock.newCondition();
+        protected final Map<String, RealmQueue> queues = new HashMap<>();
+        protected final ArrayDeque<RealmQueue> active = new ArrayDeque<>();
+        protected final LongAdder processed = new LongAdder();
+        protected final LongAdder dropped = new LongAdder();
+        protected int size;
+        protected Thread thread;
+
+        protected Shard(int number) {
+            this.number = number;
+        }
+
+        protected boolean offer(String realm, Runnable runnable, long timeoutNanos) throws InterruptedException {
+            lock.lock();
+            try {
+                RealmQueue queue = queues.computeIfAbsent(realm != null ? realm : "", r -> new RealmQueue(r, getWeight(r)));
+                while (queue.tasks.size() >= realmCapacity) {
+                    if (timeoutNanos <= 0L || !running) {
+                        dropped.increment();
+                        return false;
+                    }
+                    timeoutNanos = notFull.awaitNanos(timeoutNanos);
+                }
+                queue.tasks.addLast(new Task(runnable, System.nanoTime()));
+                size++;
+                if (!queue.active) {
+                    queue.active = true;
+                    active.addLast(queue);
+                }
+                notEmpty.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            List<Runnable> batch = new ArrayList<>();
+
+            while (true) {
+                lock.lock();
+                try {
+                    while (size == 0) {
+                        if (!running) {
+                            return;
+                        }
+                        notEmpty.await();
+                    }
+                    RealmQueue queue = active.pollFirst();
+                    queue.deficit += (long) quantum * queue.weight;
+                    while (queue.deficit > 0 && !queue.tasks.isEmpty()) {
+                        batch.add(queue.tasks.pollFirst().runnable);
+                        queue.deficit--;
+                    }
+                    size -= batch.size();
+                    if (queue.tasks.isEmpty()) {
+                        // An idle realm does not bank credit for later
+                        queue.deficit = 0;
+                        queue.active = false;
+                    } else {
+                        active.addLast(queue);
+                    }
+                    notFull.signalAll();
+                } catch (InterruptedException e) {
+                    // Interrupted on stop; keep going until the queues are drained
+                    Thread.interrupted();
+                    continue;
+                } finally {
+                    lock.unlock();
+                }
+
+                for (Runnable runnable : batch) {
+                    try {
+                        runnable.run();
+                    } catch (RuntimeException e) {
+                        LOG.log(Level.WARNING, "Custom shard task failed: shard=" + number, e);
+                    }
+                }
+                processed.add(batch.size());
+                batch.clear();
+            }
+        }
+
+        protected CustomShardStatistics getStatistics() {
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                long oldest = now;
+                Map<String, Integer> realmDepths = new TreeMap<>();
+                for (RealmQueue queue : queues.values()) {
+                    Task head = queue.tasks.peekFirst();
+                    if (head != null) {
+                        oldest = Math.min(oldest, head.enqueuedAt);
+                        realmDepths.put(queue.realm, queue.tasks.size());
+                    }
+                }
+                return new CustomShardStatistics(
+                    number,
+                    size,
+                    TimeUnit.NANOSECONDS.toMillis(now - oldest),
+                    processed.sum(),
+                    dropped.sum(),
+                    realmDepths
+                );
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(CustomShardPool.class.getName());
+    protected final Shard[] shards;
+    protected final int realmCapacity;
+    protected final int quantum;
+    protected final Map<String, Integer> weights;
+    protected final int defaultWeight;
+    protected volatile boolean running;
+
+    /**
+     * @param shardCount    number of worker threads
+     * @param realmCapacity maximum number of queued tasks per realm and shard
+     * @param quantum       number of tasks a realm of weight 1 may run per turn
+     * @param weights       weight per realm; realms not listed get the default weight
+     */
+    public CustomShardPool(int shardCount, int realmCapacity, int quantum, Map<String, Integer> weights, int defaultWeight) {
+        this.shards = new Shard[Math.max(1, shardCount)];
+        this.realmCapacity = Math.max(1, realmCapacity);
+        this.quantum = Math.max(1, quantum);
+        this.weights = weights;
+        this.defaultWeight = Math.max(1, defaultWeight);
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    /**
+     * Parses realm weights of the form <code>realm1:weight,realm2:weight</code>; invalid entries are ignored.
+     */
+    public static Map<String, Integer> parseWeights(String value) {
+        Map<String, Integer> weights = new HashMap<>();
+        if (value == null || value.trim().isEmpty()) {
+            return weights;
+        }
+        for (String entry : value.split(",")) {
+            int separator = entry.lastIndexOf(':');
+            try {
+                if (separator > 0) {
+                    weights.put(entry.substring(0, separator).trim(), Math.max(1, Integer.parseInt(entry.substring(separator + 1).trim())));
+                    continue;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+            LOG.warning("Ignoring invalid custom shard realm weight: " + entry);
+        }
+        return weights;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        for (Shard shard : shards) {
+            shard.thread = new Thread(shard, "CustomShard-" + shard.number);
+            shard.thread.setDaemon(true);
+            shard.thread.start();
+        }
+    }
+
+    /**
+     * Stops accepting tasks and waits for the shards to run what is already queued.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                shard.notEmpty.signalAll();
+                shard.notFull.signalAll();
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        for (Shard shard : shards) {
+            shard.thread.join(TimeUnit.SECONDS.toMillis(30));
+            shard.thread = null;
+        }
+    }
+
+    /**
+     * Queue the task on the shard of the key without waiting; returns <code>false</code> if the queue of the realm on
+     * that shard is full or the pool is stopped.
+     */
+    public boolean offer(String key, String realm, Runnable task) {
+        try {
+            return running && shard(key).offer(realm, task, 0L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Queue the task on the shard of the key, waiting up to the timeout for space in the queue of the realm.
+     */
+    public boolean offer(String key, String realm, Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+        return running && shard(key).offer(realm, task, unit.toNanos(timeout));
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public List<CustomShardStatistics> getStatistics() {
+        List<CustomShardStatistics> statistics = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            statistics.add(shard.getStatistics());
+        }
+        return statistics;
+    }
+
+    protected int getWeight(String realm) {
+        return weights.getOrDefault(realm, defaultWeight);
+    }
+
+    protected Shard shard(String key) {
+        int h = key != null ? key.hashCode() : 0;
+        return shards[Math.floorMod(h ^ (h >>> 16), shards.length)];
+    }
+}
@@ -0,0 +1,482 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.custom;
+
+import org.openremote.model.custom.CustomAssetLocation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory grid index of {@link org.openremote.model.custom.CustomAsset} locations for bounding box, radius and
+ * nearest neighbour queries.
+ * <p>
+ * The world is divided into square cells of {@link #cellDegrees} (like a fixed precision geohash) and each cell holds
+ * the indexes of the assets located in it; asset state is kept in primitive arrays indexed by asset so moving an asset
+ * is an O(1) swap-remove from its old cell and an append to its new one. A query only visits the cells overlapping its
+ * area, falling back to visiting every non-empty cell when the area covers more cells than are in use. Nearest
+ * neighbour queries visit rings of cells around the query point until no unvisited cell can hold a closer asset.
+ * <p>
+ * Assets without a location are tracked (so their location events are recognised) but not in any cell. Location
+ * changes carry the attribute timestamp and older ones are ignored. Readers share a read lock and writers take the
+ * write lock; every operation is short. While {@link #loading}, location changes of assets that have not been loaded
+ * yet are kept and applied once loading completes and deletes are remembered so the stored row does not bring the
+ * asset back.
+ */
+public class CustomSpatialIndex {
+
+    protected static final class Cell {
+        protected int[] members = new int[4];
+        protected int size;
+    }
+
+    public static final double METERS_PER_DEGREE = 111195.08;
+    protected static final double EARTH_RADIUS_METERS = 6371008.8;
+    protected final double cellDegrees;
+    protected final long lonCells;
+    protected final long latCells;
+    protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+    protected final Map<String, Integer> indexes = new HashMap<>();
+    protected final Map<Long, Cell> cells = new HashMap<>();
+    // Per asset state
+    protected String[] ids = new String[0];
+    protected String[] realms = new String[0];
+    protected double[] latitudes = new double[0];
+    protected double[] longitudes = new double[0];
+    protected long[] timestamps = new long[0];
+    protected long[] cellKeys = new long[0];
+    protected int[] cellPositions = new int[0];
+    protected int[] free = new int[16];
+    protected int freeCount;
+    protected int count;
+    protected final Map<String, double[]> pendingWhileLoading = new ConcurrentHashMap<>();
+    protected final Map<String, Boolean> deletedWhileLoading = new ConcurrentHashMap<>();
+    protected volatile boolean loading;
+
+    public CustomSpatialIndex(double cellMeters) {
+        cellDegrees = Math.max(1d, cellMeters) / METERS_PER_DEGREE;
+        lonCells = (long) Math.ceil(360d / cellDegrees);
+        latCells = (long) Math.ceil(180d / cellDegrees);
+    }
+
+    /**
+     * Start or replace tracking of an asset; a <code>NaN</code> latitude or longitude means it has no location. The
+     * location is kept when the tracked one is newer.
+     */
+    public void put(String assetId, String realm, double latitude, double longitude, long timestamp) {
+        lock.writeLock().lock();
+        try {
+            Integer index = indexes.get(assetId);
+            if (index == null) {
+                index = allocate(assetId);
+            } else if (timestamps[index] > timestamp) {
+                latitude = latitudes[index];
+                longitude = longitudes[index];
+                timestamp = timestamps[index];
+            }
+            realms[index] = realm;
+            move(index, latitude, longitude, timestamp);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Apply a location change of a tracked asset; changes of assets that are not tracked are ignored.
+     */
+    public void update(String assetId, double latitude, double longitude, long timestamp) {
+        lock.writeLock().lock();
+        try {
+            Integer index = indexes.get(assetId);
+            if (index == null) {
+                if (loading) {
+                    pendingWhileLoading.merge(assetId, new double[]{latitude, longitude, timestamp}, (a, b) -> a[2] >= b[2] ? a : b);
+                }
+                return;
+            }
+            if (timestamps[index] <= timestamp) {
+                move(index, latitude, longitude, timestamp);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String assetId) {
+        lock.writeLock().lock();
+        try {
+            if (loading) {
+                deletedWhileLoading.put(assetId, true);
+            }
+            Integer index = indexes.remove(assetId);
+            if (index == null) {
+                return;
+            }
+            removeFromCell(index);
+            ids[index] = null;
+            realms[index] = null;
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, free.length * 2);
+            }
+            free[freeCount++] = index;
+            count--;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Called before loading every asset from storage through {@link #load}.
+     */
+    public void startLoad() {
+        pendingWhileLoading.clear();
+        deletedWhileLoading.clear();
+        loading = true;
+    }
+
+    /**
+     * Adds an asset read from storage unless it is already tracked or was deleted since loading started.
+     */
+    public void load(String assetId, String realm, double latitude, double longitude, long timestamp) {
+        lock.writeLock().lock();
+        try {
+            if (deletedWhileLoading.containsKey(assetId) || indexes.containsKey(assetId)) {
+                return;
+            }
+            int index = allocate(assetId);
+            realms[index] = realm;
+            move(index, latitude, longitude, timestamp);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void endLoad() {
+        loading = false;
+        pendingWhileLoading.forEach((assetId, pending) -> update(assetId, pending[0], pending[1], (long) pending[2]));
+        pendingWhileLoading.clear();
+        deletedWhileLoading.clear();
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The latitude and longitude of the asset or <code>null</code> if it is not tracked or has no location.
+     */
+    public double[] getLocation(String assetId) {
+        lock.readLock().lock();
+        try {
+            Integer index = indexes.get(assetId);
+            return index != null && cellPositions[index] >= 0 ? new double[]{latitudes[index], longitudes[index]} : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Assets of the realm within the bounding box; the box crosses the antimeridian when the west longitude is greater
+     * than the east one.
+     */
+    public List<CustomAssetLocation> findWithin(String realm, double south, double west, double north, double east, int limit) {
+        List<CustomAssetLocation> result = new ArrayList<>();
+        double eastUnwrapped = east < west ? east + 360d : east;
+
+        lock.readLock().lock();
+        try {
+            visit(south, west, north, eastUnwrapped, index -> {
+                if (result.size() < limit && matches(index, realm)
+                    && latitudes[index] >= south && latitudes[index] <= north
+                    && isWithinLongitudes(longitudes[index], west, eastUnwrapped)) {
+                    result.add(toLocation(index, null));
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return result;
+    }
+
+    /**
+     * Assets of the realm within the radius of the point, nearest first.
+     */
+    public List<CustomAssetLocation> findWithinRadius(String realm, double latitude, double longitude, double radiusMeters, int limit) {
+        double latitudeDelta = radiusMeters / METERS_PER_DEGREE;
+        double cos = Math.cos(Math.toRadians(Math.min(90d, Math.abs(latitude) + latitudeDelta)));
+        double longitudeDelta = cos > 0d ? Math.min(180d, latitudeDelta / cos) : 180d;
+        PriorityQueue<double[]> nearest = new PriorityQueue<>(Math.max(1, Math.min(limit, 1024)), (a, b) -> Double.compare(b[0], a[0]));
+
+        lock.readLock().lock();
+        try {
+            visit(latitude - latitudeDelta, longitude - longitudeDelta, latitude + latitudeDelta, longitude + longitudeDelta, index -> {
+                if (matches(index, realm)) {
+                    double distance = distance(latitude, longitude, latitudes[index], longitudes[index]);
+                    if (distance <= radiusMeters) {
+                        offer(nearest, limit, distance, index);
+                    }
+                }
+            });
+            return toSortedLocations(nearest);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The <code>k</code> assets of the realm nearest to the point, nearest first.
+     */
+    public List<CustomAssetLocation> findNearest(String realm, double latitude, double longitude, int k) {
+        PriorityQueue<double[]> nearest = new PriorityQueue<>(Math.max(1, Math.min(k, 1024)), (a, b) -> Double.compare(b[0], a[0]));
+        IndexVisitor collect = index -> {
+            if (matches(index, realm)) {
+                offer(nearest, k, distance(latitude, longitude, latitudes[index], longitudes[index]), index);
+            }
+        };
+
+        lock.readLock().lock();
+        try {
+            long centreLat = latitudeCell(latitude);
+            long centreLon = longitudeCell(longitude);
+
+            for (long ring = 0; ; ring++) {
+                long side = 2 * ring + 1;
+                if (nearest.size() < k && (side * side > cells.size() || ring > Math.max(latCells, lonCells))) {
+                    // Too few matches nearby (e.g. a sparse realm) so visiting more rings would cost more than looking at
+                    // every cell in use
+                    nearest.clear();
+                    visitAll(collect);
+                    break;
+                }
+                visitRing(centreLat, centreLon, ring, collect);
+                // Anything not visited yet is at least a full ring of cells away (narrowest at the highest latitude)
+                double ringDegrees = ring * cellDegrees;
+                double cos = Math.cos(Math.toRadians(Math.min(90d, Math.abs(latitude) + ringDegrees)));
+                double bound = ringDegrees * METERS_PER_DEGREE * Math.max(0d, cos);
+                if (nearest.size() == k && nearest.peek()[0] <= bound) {
+                    break;
+                }
+            }
+            return toSortedLocations(nearest);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Great circle distance in meters.
+     */
+    public static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double dLat = Math.toRadians(latitude2 - latitude1);
+        double dLon = Math.toRadians(longitude2 - longitude1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+            + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1d, Math.sqrt(a)));
+    }
+
+    @FunctionalInterface
+    protected interface IndexVisitor {
+        void visit(int index);
+    }
+
+    protected void visit(double south, double west, double north, double east, IndexVisitor visitor) {
+        long fromLat = latitudeCell(Math.max(-90d, south));
+        long toLat = latitudeCell(Math.min(90d, north));
+        long fromLon = (long) Math.floor((west + 180d) / cellDegrees);
+        long toLon = (long) Math.floor((east + 180d) / cellDegrees);
+
+        if (toLon - fromLon + 1 >= lonCells) {
+            fromLon = 0;
+            toLon = lonCells - 1;
+        }
+
+        if ((toLat - fromLat + 1) * (toLon - fromLon + 1) > cells.size()) {
+            // Cheaper to check the coordinates of every cell in use than to look up every cell in the area
+            for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+                long latCell = entry.getKey() / lonCells;
+                long lonCell = entry.getKey() % lonCells;
+                if (latCell >= fromLat && latCell <= toLat
+                    && (isCellWithin(lonCell, fromLon, toLon) || isCellWithin(lonCell + lonCells, fromLon, toLon) || isCellWithin(lonCell - lonCells, fromLon, toLon))) {
+                    Cell cell = entry.getValue();
+                    for (int i = 0; i < cell.size; i++) {
+                        visitor.visit(cell.members[i]);
+                    }
+                }
+            }
+            return;
+        }
+
+        for (long latCell = fromLat; latCell <= toLat; latCell++) {
+            for (long lonCell = fromLon; lonCell <= toLon; lonCell++) {
+                visitCell(latCell, Math.floorMod(lonCell, lonCells), visitor);
+            }
+        }
+    }
+
+    protected void visitRing(long centreLat, long centreLon, long ring, IndexVisitor visitor) {
+        if (ring == 0) {
+            visitCell(centreLat, centreLon, visitor);
+            return;
+        }
+        for (long lonCell = centreLon - ring; lonCell <= centreLon + ring; lonCell++) {
+            visitCell(centreLat - ring, Math.floorMod(lonCell, lonCells), visitor);
+            visitCell(centreLat + ring, Math.floorMod(lonCell, lonCells), visitor);
+        }
+        for (long latCell = centreLat - ring + 1; latCell < centreLat + ring; latCell++) {
+            visitCell(latCell, Math.floorMod(centreLon - ring, lonCells), visitor);
+            visitCell(latCell, Math.floorMod(centreLon + ring, lonCells), visitor);
+        }
+    }
+
+    protected void visitCell(long latCell, long lonCell, IndexVisitor visitor) {
+        if (latCell < 0 || latCell >= latCells) {
+            return;
+        }
+        Cell cell = cells.get(latCell * lonCells + lonCell);
+        if (cell != null) {
+            for (int i = 0; i < cell.size; i++) {
+                visitor.visit(cell.members[i]);
+            }
+        }
+    }
+
+    protected void visitAll(IndexVisitor visitor) {
+        for (Cell cell : cells.values()) {
+            for (int i = 0; i < cell.size; i++) {
+                visitor.visit(cell.members[i]);
+            }
+        }
+    }
+
+    protected static boolean isCellWithin(long cell, long from, long to) {
+        return cell >= from && cell <= to;
+    }
+
+    protected boolean matches(int index, String realm) {
+        return realm == null || Objects.equals(realm, realms[index]);
+    }
+
+    protected static boolean isWithinLongitudes(double longitude, double west, double eastUnwrapped) {
+        return (longitude >= west && longitude <= eastUnwrapped) || (longitude + 360d >= west && longitude + 360d <= eastUnwrapped);
+    }
+
+    protected static void offer(PriorityQueue<double[]> nearest, int limit, double distance, int index) {
+        if (nearest.size() < limit) {
+            nearest.add(new double[]{distance, index});
+        } else if (limit > 0 && distance < nearest.peek()[0]) {
+            nearest.poll();
+            nearest.add(new double[]{distance, index});
+        }
+    }
+
+    protected List<CustomAssetLocation> toSortedLocations(PriorityQueue<double[]> nearest) {
+        CustomAssetLocation[] result = new CustomAssetLocation[nearest.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            double[] entry = nearest.poll();
+            result[i] = toLocation((int) entry[1], entry[0]);
+        }
+        return Arrays.asList(result);
+    }
+
+    protected CustomAssetLocation toLocation(int index, Double distance) {
+        return new CustomAssetLocation(ids[index], realms[index], latitudes[index], longitudes[index], distance);
+    }
+
+    protected long latitudeCell(double latitude) {
+        return Math.min(latCells - 1, (long) Math.floor((latitude + 90d) / cellDegrees));
+    }
+
+    protected long longitudeCell(double longitude) {
+        return Math.floorMod((long) Math.floor((longitude + 180d) / cellDegrees), lonCells);
+    }
+
+    protected void move(int index, double latitude, double longitude, long timestamp) {
+        removeFromCell(index);
+        latitudes[index] = latitude;
+        longitudes[index] = longitude;
+        timestamps[index] = timestamp;
+
+        if (Double.isNaN(latitude) || Double.isNaN(longitude) || Math.abs(latitude) > 90d || Math.abs(longitude) > 180d) {
+            return;
+        }
+
+        long key = latitudeCell(latitude) * lonCells + longitudeCell(longitude);
+        Cell cell = cells.computeIfAbsent(key, k -> new Cell());
+        if (cell.size == cell.members.length) {
+            cell.members = Arrays.copyOf(cell.members, cell.size * 2);
+        }
+        cellKeys[index] = key;
+        cellPositions[index] = cell.size;
+        cell.members[cell.size++] = index;
+    }
+
+    protected void removeFromCell(int index) {
+        int position = cellPositions[index];
+        if (position < 0) {
+            return;
+        }
+        Cell cell = cells.get(cellKeys[index]);
+        int last = cell.members[--cell.size];
+        cell.members[position] = last;
+        cellPositions[last] = position;
+        cellPositions[index] = -1;
+        if (cell.size == 0) {
+            cells.remove(cellKeys[index]);
+        }
+    }
+
+    protected int allocate(String assetId) {
+        int index = freeCount > 0 ? free[--freeCount] : count + freeCount;
+        if (index >= ids.length) {
+            int capacity = Math.max(index + 1, Math.max(1024, ids.length * 2));
+            int previous = ids.length;
+            ids = Arrays.copyOf(ids, capacity);
+            realms = Arrays.copyOf(realms, capacity);
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            cellKeys = Arrays.copyOf(cellKeys, capacity);
+            cellPositions = Arrays.copyOf(cellPositions, capacity);
+            Arrays.fill(cellPositions, previous, capacity, -1);
+        }
+        ids[index] = assetId;
+        latitudes[index] = Double.NaN;
+        longitudes[index] = Double.NaN;
+        timestamps[index] = 0L;
+        cellPositions[index] = -1;
+        indexes.put(assetId, index);
+        count++;
+        return index;
+    }
+}
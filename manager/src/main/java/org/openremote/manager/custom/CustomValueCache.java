@@ -0,0 +1,368 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.custom;
+
+import org.openremote.model.asset.Asset;
+import org.openremote.model.attribute.Attribute;
+import org.openremote.model.custom.CustomAsset;
+import org.openremote.model.custom.CustomAssetValues;
+import org.openremote.model.custom.CustomCacheStatistics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Size bounded cache of the latest attribute values of {@link CustomAsset}s kept up to date from attribute events so
+ * that reading the current state of many assets does not load them from the database.
+ * <p>
+ * Entries are compact: attribute names are interned (one shared string per distinct name), the
+ * {@link CustomAsset#CUSTOM_VALUE_TYPE_ATTRIBUTE_DESCRIPTOR} value is held as an enum ordinal and everything else as the
+ * attribute value itself. The cache is split into segments by asset ID, each an access ordered map with its own lock
+ * that evicts its least recently used entry once full, so lookups and updates of different assets rarely contend.
+ * <p>
+ * Only assets that were loaded through {@link #getAll} are updated from events; events for other assets are ignored
+ * as there is nothing to update and storage is the source of truth on the next miss.
+ */
+public class CustomValueCache {
+
+    protected static final byte NO_VALUE_TYPE = -1;
+    protected static final CustomAsset.CustomValueType[] VALUE_TYPES = CustomAsset.CustomValueType.values();
+
+    protected static final class Entry {
+        protected final String realm;
+        protected final String parentId;
+        protected byte customValueType = NO_VALUE_TYPE;
+        protected long customValueTypeTimestamp;
+        protected String[] names = new String[0];
+        protected Object[] values = new Object[0];
+        protected long[] timestamps = new long[0];
+
+        protected Entry(String realm, String parentId) {
+            this.realm = realm;
+            this.parentId = parentId;
+        }
+    }
+
+    /**
+     * A load of an asset after a miss; the version is bumped by every change of the asset made while it is loading so
+     * a load only caches the state it read if the version is still the one it started with. Concurrent loads of an
+     * asset share the same instance which is removed once the last of them is done.
+     */
+    protected static final class Load {
+        protected int loaders;
+        protected long version;
+    }
+
+    protected final class Segment extends LinkedHashMap<String, Entry> {
+        protected final int capacity;
+        /**
+         * Assets of the segment currently being loaded; only accessed while holding the segment lock.
+         */
+        protected final Map<String, Load> loads = new HashMap<>();
+
+        protected Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    protected final Segment[] segments;
+    protected final int capacity;
+    protected final Map<String, String> names = new ConcurrentHashMap<>();
+    protected final LongAdder hits = new LongAdder();
+    protected final LongAdder misses = new LongAdder();
+    protected final LongAdder evictions = new LongAdder();
+    protected final LongAdder lookupNanos = new LongAdder();
+    protected final LongAdder lookups = new LongAdder();
+
+    public CustomValueCache(int capacity, int segmentCount) {
+        int count = Integer.highestOneBit(Math.max(1, segmentCount - 1)) << 1;
+        this.capacity = capacity;
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(Math.max(1, capacity / count));
+        }
+    }
+
+    /**
+     * Returns the values of the requested assets in the requested order, loading all misses with a single call of the
+     * loader; assets that do not exist (or are not {@link CustomAsset}s) are left out.
+     */
+    public List<CustomAssetValues> getAll(Collection<String> assetIds, Function<List<String>, List<? extends Asset<?>>> loader) {
+        long start = System.nanoTime();
+        Map<String, CustomAssetValues> found = new HashMap<>(assetIds.size() * 2);
+        List<String> missing = new ArrayList<>();
+
+        for (String assetId : assetIds) {
+            Segment segment = segment(assetId);
+            CustomAssetValues values;
+            synchronized (segment) {
+                Entry entry = segment.get(assetId);
+                values = entry != null ? toValues(assetId, entry) : null;
+            }
+            if (values != null) {
+                found.put(assetId, values);
+            } else {
+                missing.add(assetId);
+            }
+        }
+
+        hits.add(found.size());
+        misses.add(missing.size());
+
+        if (!missing.isEmpty()) {
+            Map<String, Long> versions = new HashMap<>(missing.size() * 2);
+            for (String assetId : missing) {
+                Segment segment = segment(assetId);
+                synchronized (segment) {
+                    Load load = segment.loads.computeIfAbsent(assetId, id -> new Load());
+                    load.loaders++;
+                    versions.put(assetId, load.version);
+                }
+            }
+            try {
+                for (Asset<?> asset : loader.apply(missing)) {
+                    if (asset instanceof CustomAsset) {
+                        Entry entry = toEntry(asset);
+                        Segment segment = segment(asset.getId());
+                        synchronized (segment) {
+                            // The loaded state is still returned if the asset changed during the load, just not cached
+                            Load load = segment.loads.get(asset.getId());
+                            Long version = versions.get(asset.getId());
+                            if (load != null && version != null && load.version == version) {
+                                Entry existing = segment.putIfAbsent(asset.getId(), entry);
+                                entry = existing != null ? existing : entry;
+                            }
+                            found.put(asset.getId(), toValues(asset.getId(), entry));
+                        }
+                    }
+                }
+            } finally {
+                for (String assetId : missing) {
+                    Segment segment = segment(assetId);
+                    synchronized (segment) {
+                        Load load = segment.loads.get(assetId);
+                        if (load != null && --load.loaders == 0) {
+                            segment.loads.remove(assetId);
+                        }
+                    }
+                }
+            }
+        }
+
+        List<CustomAssetValues> result = new ArrayList<>(found.size());
+        for (String assetId : assetIds) {
+            CustomAssetValues values = found.get(assetId);
+            if (values != null) {
+                result.add(values);
+            }
+        }
+
+        lookupNanos.add(System.nanoTime() - start);
+        lookups.add(assetIds.size());
+        return result;
+    }
+
+    /**
+     * Apply an attribute value change to the cached asset, if it is cached.
+     */
+    public void update(String assetId, String attributeName, Object value, long timestamp) {
+        Segment segment = segment(assetId);
+        synchronized (segment) {
+            Entry entry = segment.get(assetId);
+            if (entry == null) {
+                changedWhileLoading(segment, assetId);
+                return;
+            }
+            if (CustomAsset.CUSTOM_VALUE_TYPE_ATTRIBUTE_DESCRIPTOR.getName().equals(attributeName)) {
+                // Events can be delivered out of order so never go back to an older value
+                if (timestamp >= entry.customValueTypeTimestamp) {
+                    entry.customValueType = toOrdinal(value);
+                    entry.customValueTypeTimestamp = timestamp;
+                }
+            } else {
+                setValue(entry, attributeName, value, timestamp);
+            }
+        }
+    }
+
+    public void invalidate(String assetId) {
+        Segment segment = segment(assetId);
+        synchronized (segment) {
+            segment.remove(assetId);
+            changedWhileLoading(segment, assetId);
+        }
+    }
+
+    /**
+     * Drop every cached asset of the realm. Loads in progress are not cached either as the realm of an asset is only
+     * known once it has been loaded.
+     */
+    public void invalidateRealm(String realm) {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.values().removeIf(entry -> Objects.equals(realm, entry.realm));
+                segment.loads.values().forEach(load -> load.version++);
+            }
+        }
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+                segment.loads.values().forEach(load -> load.version++);
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public CustomCacheStatistics getStatistics() {
+        long count = lookups.sum();
+        return new CustomCacheStatistics(
+            size(),
+            capacity,
+            hits.sum(),
+            misses.sum(),
+            evictions.sum(),
+            count > 0 ? lookupNanos.sum() / 1000d / count : 0d
+        );
+    }
+
+    protected Entry toEntry(Asset<?> asset) {
+        Entry entry = new Entry(intern(asset.getRealm()), asset.getParentId());
+        for (Attribute<?> attribute : asset.getAttributes().values()) {
+            long timestamp = attribute.getTimestamp().orElse(0L);
+            if (CustomAsset.CUSTOM_VALUE_TYPE_ATTRIBUTE_DESCRIPTOR.getName().equals(attribute.getName())) {
+                entry.customValueType = toOrdinal(attribute.getValue().orElse(null));
+                entry.customValueTypeTimestamp = timestamp;
+            } else {
+                setValue(entry, attribute.getName(), attribute.getValue().orElse(null), timestamp);
+            }
+        }
+        return entry;
+    }
+
+    protected CustomAssetValues toValues(String assetId, Entry entry) {
+        Map<String, Object> values = new HashMap<>(entry.names.length * 2);
+        long timestamp = entry.customValueTypeTimestamp;
+        for (int i = 0; i < entry.names.length; i++) {
+            values.put(entry.names[i], entry.values[i]);
+            timestamp = Math.max(timestamp, entry.timestamps[i]);
+        }
+        return new CustomAssetValues(
+            assetId,
+            entry.realm,
+            entry.parentId,
+            entry.customValueType != NO_VALUE_TYPE ? VALUE_TYPES[entry.customValueType] : null,
+            values,
+            timestamp
+        );
+    }
+
+    protected void setValue(Entry entry, String attributeName, Object value, long timestamp) {
+        for (int i = 0; i < entry.names.length; i++) {
+            // Names are interned so identity is enough once the name is in the entry
+            if (entry.names[i] == attributeName || entry.names[i].equals(attributeName)) {
+                if (timestamp >= entry.timestamps[i]) {
+                    entry.values[i] = value;
+                    entry.timestamps[i] = timestamp;
+                }
+                return;
+            }
+        }
+        int length = entry.names.length;
+        entry.names = Arrays.copyOf(entry.names, length + 1);
+        entry.values = Arrays.copyOf(entry.values, length + 1);
+        entry.timestamps = Arrays.copyOf(entry.timestamps, length + 1);
+        entry.names[length] = intern(attributeName);
+        entry.values[length] = value;
+        entry.timestamps[length] = timestamp;
+    }
+
+    protected String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String existing = names.putIfAbsent(value, value);
+        return existing != null ? existing : value;
+    }
+
+    /**
+     * Makes a load of the asset that is in progress return its state without caching it; must be called while holding
+     * the segment lock.
+     */
+    protected static void changedWhileLoading(Segment segment, String assetId) {
+        Load load = segment.loads.get(assetId);
+        if (load != null) {
+            load.version++;
+        }
+    }
+
+    protected Segment segment(String assetId) {
+        int h = assetId.hashCode();
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    protected static byte toOrdinal(Object value) {
+        if (value instanceof CustomAsset.CustomValueType) {
+            return (byte) ((CustomAsset.CustomValueType) value).ordinal();
+        }
+        if (value instanceof String) {
+            for (CustomAsset.CustomValueType valueType : VALUE_TYPES) {
+                if (valueType.name().equals(value)) {
+                    return (byte) valueType.ordinal();
+                }
+            }
+        }
+        if (value instanceof Number) {
+            int ordinal = ((Number) value).intValue();
+            return ordinal >= 0 && ordinal < VALUE_TYPES.length ? (byte) ordinal : NO_VALUE_TYPE;
+        }
+        return NO_VALUE_TYPE;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.custom;
+
+import org.openremote.model.custom.CustomAsset;
+import org.openremote.model.custom.CustomValueTypeCounts;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Materialised counts of {@link CustomAsset}s per realm and per parent by {@link CustomAsset.CustomValueType} ordinal,
+ * maintained in O(1) per event.
+ * <p>
+ * The realm, parent and value type of every tracked asset are held in a concurrent map; each change of an asset is
+ * applied inside a {@link ConcurrentMap#compute} of its own entry, which serialises changes of the same asset (so
+ * counts can never drift) while changes of different assets proceed in parallel. The counters themselves are atomic
+ * arrays; a change increments the new counter before decrementing the old one so a concurrent reader may briefly see
+ * an asset counted twice but never a negative count. Value type changes carry the attribute timestamp and older ones
+ * are ignored as events can be delivered out of order.
+ * <p>
+ * While {@link #rebuilding} the counts are being loaded from storage: assets deleted in the meantime are remembered so
+ * that the (older) stored row does not bring them back, and value changes for assets that have not been loaded yet are
+ * kept and applied once loading is complete.
+ */
+public class CustomValueTypeAggregates {
+
+    protected static final class State {
+        protected final String realm;
+        protected final String parentId;
+        protected final byte valueType;
+        protected final long timestamp;
+
+        protected State(String realm, String parentId, byte valueType, long timestamp) {
+            this.realm = realm;
+            this.parentId = parentId;
+            this.valueType = valueType;
+            this.timestamp = timestamp;
+        }
+    }
+
+    protected static final CustomAsset.CustomValueType[] VALUE_TYPES = CustomAsset.CustomValueType.values();
+    /**
+     * Counter index used for assets without a value type.
+     */
+    protected static final int UNSET = VALUE_TYPES.length;
+    protected final ConcurrentMap<String, State> assets = new ConcurrentHashMap<>();
+    protected final ConcurrentMap<String, AtomicLongArray> realmCounts = new ConcurrentHashMap<>();
+    protected final ConcurrentMap<String, ConcurrentMap<String, AtomicLongArray>> parentCounts = new ConcurrentHashMap<>();
+    protected final Map<String, Boolean> deletedWhileRebuilding = new ConcurrentHashMap<>();
+    protected final Map<String, State> pendingWhileRebuilding = new ConcurrentHashMap<>();
+    protected volatile boolean rebuilding;
+
+    /**
+     * Start or replace tracking of an asset, e.g. after it was created or moved; ignored when the tracked value type
+     * is newer.
+     */
+    public void put(String assetId, String realm, String parentId, Object valueType, long timestamp) {
+        State state = new State(realm, parentId, CustomValueCache.toOrdinal(valueType), timestamp);
+        assets.compute(assetId, (id, previous) -> {
+            State next = state;
+            if (previous != null && previous.timestamp > timestamp) {
+                next = new State(realm, parentId, previous.valueType, previous.timestamp);
+            }
+            return transition(previous, next);
+        });
+    }
+
+    /**
+     * Apply a change of the value type of a tracked asset; changes of assets that are not tracked are ignored.
+     */
+    public void update(String assetId, Object valueType, long timestamp) {
+        update(assetId, CustomValueCache.toOrdinal(valueType), timestamp);
+    }
+
+    public void remove(String assetId) {
+        // Marked within the compute of the asset's entry so it cannot slip in between the check and insert of a load
+        assets.compute(assetId, (id, previous) -> {
+            if (rebuilding) {
+                deletedWhileRebuilding.put(id, true);
+            }
+            return previous != null ? transition(previous, null) : null;
+        });
+    }
+
+    /**
+     * Called before loading every asset from storage through {@link #load}.
+     */
+    public void startRebuild() {
+        deletedWhileRebuilding.clear();
+        pendingWhileRebuilding.clear();
+        rebuilding = true;
+    }
+
+    /**
+     * Adds an asset read from storage unless it is already tracked (from a more recent event) or was deleted since
+     * loading started.
+     */
+    public void load(String assetId, String realm, String parentId, Object valueType, long timestamp) {
+        State state = new State(realm, parentId, CustomValueCache.toOrdinal(valueType), timestamp);
+        assets.compute(assetId, (id, previous) -> {
+            if (previous != null || deletedWhileRebuilding.containsKey(id)) {
+                return previous;
+            }
+            return transition(null, state);
+        });
+    }
+
+    public void endRebuild() {
+        rebuilding = false;
+        pendingWhileRebuilding.forEach((assetId, pending) -> update(assetId, pending.valueType, pending.timestamp));
+        pendingWhileRebuilding.clear();
+        deletedWhileRebuilding.clear();
+    }
+
+    public boolean isTracked(String assetId) {
+        return assets.containsKey(assetId);
+    }
+
+    /**
+     * The realm of the tracked asset or <code>null</code>.
+     */
+    public String getRealm(String assetId) {
+        State state = assets.get(assetId);
+        return state != null ? state.realm : null;
+    }
+
+    public int size() {
+        return assets.size();
+    }
+
+    public CustomValueTypeCounts getRealmCounts(String realm) {
+        return toCounts(realm, null, realmCounts.get(realm));
+    }
+
+    public CustomValueTypeCounts getParentCounts(String realm, String parentId) {
+        ConcurrentMap<String, AtomicLongArray> parents = parentCounts.get(realm);
+        return toCounts(realm, parentId, parents != null ? parents.get(parentId) : null);
+    }
+
+    /**
+     * The counts of every parent in the realm that has (or had) {@link CustomAsset} children.
+     */
+    public List<CustomValueTypeCounts> getAllParentCounts(String realm) {
+        ConcurrentMap<String, AtomicLongArray> parents = parentCounts.get(realm);
+        List<CustomValueTypeCounts> result = new ArrayList<>();
+        if (parents != null) {
+            parents.forEach((parentId, counts) -> result.add(toCounts(realm, parentId, counts)));
+        }
+        return result;
+    }
+
+    protected void update(String assetId, byte ordinal, long timestamp) {
+        State updated = assets.computeIfPresent(assetId, (id, previous) ->
+            previous.timestamp > timestamp ? previous : transition(previous, new State(previous.realm, previous.parentId, ordinal, timestamp))
+        );
+
+        if (updated == null && rebuilding) {
+            pendingWhileRebuilding.merge(assetId, new State(null, null, ordinal, timestamp), (a, b) -> a.timestamp >= b.timestamp ? a : b);
+        }
+    }
+
+    protected State transition(State previous, State next) {
+        if (previous != null && next != null && previous.valueType == next.valueType
+            && Objects.equals(previous.realm, next.realm) && Objects.equals(previous.parentId, next.parentId)) {
+            return next;
+        }
+        if (next != null) {
+            counter(next, 1L);
+        }
+        if (previous != null) {
+            counter(previous, -1L);
+        }
+        return next;
+    }
+
+    protected void counter(State state, long delta) {
+        int index = state.valueType >= 0 ? state.valueType : UNSET;
+        if (state.realm == null) {
+            return;
+        }
+        realmCounts.computeIfAbsent(state.realm, realm -> new AtomicLongArray(UNSET + 1)).addAndGet(index, delta);
+        if (state.parentId != null) {
+            parentCounts.computeIfAbsent(state.realm, realm -> new ConcurrentHashMap<>())
+                .computeIfAbsent(state.parentId, parentId -> new AtomicLongArray(UNSET + 1))
+                .addAndGet(index, delta);
+        }
+    }
+
+    protected static CustomValueTypeCounts toCounts(String realm, String parentId, AtomicLongArray counter) {
+        Map<CustomAsset.CustomValueType, Long> counts = new EnumMap<>(CustomAsset.CustomValueType.class);
+        for (CustomAsset.CustomValueType valueType : VALUE_TYPES) {
+            counts.put(valueType, counter != null ? Math.max(0L, counter.get(valueType.ordinal())) : 0L);
+        }
+        return new CustomValueTypeCounts(realm, parentId, counts, counter != null ? Math.max(0L, counter.get(UNSET)) : 0L);
+    }
+}
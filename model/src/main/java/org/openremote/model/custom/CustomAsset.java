@@ -60,6 +60,13 @@ public class CustomAsset extends Asset<CustomAsset> {
 
     public static final AssetDescriptor<CustomAsset> CUSTOM_ASSET_ASSET_DESCRIPTOR = new AssetDescriptor<>("brightness-auto", "00aaaa", CustomAsset.class);
 
+    protected CustomAsset() {
+    }
+
+    public CustomAsset(String name) {
+        super(name);
+    }
+
     public Optional<CustomValueType> getCustomAttribute() {
         return getAttributes().getValue(CUSTOM_VALUE_TYPE_ATTRIBUTE_DESCRIPTOR);
     }
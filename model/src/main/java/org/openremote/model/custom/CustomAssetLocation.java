@@ -0,0 +1,75 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.custom;
+
+/**
+ * The location of a {@link CustomAsset} returned by the geo queries of {@link CustomEndpointResource}; the distance is
+ * in meters from the query point and only set by radius and nearest queries.
+ */
+public class CustomAssetLocation {
+
+    protected String id;
+    protected String realm;
+    protected double latitude;
+    protected double longitude;
+    protected Double distance;
+
+    protected CustomAssetLocation() {
+    }
+
+    public CustomAssetLocation(String id, String realm, double latitude, double longitude, Double distance) {
+        this.id = id;
+        this.realm = realm;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.distance = distance;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getRealm() {
+        return realm;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public Double getDistance() {
+        return distance;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "id='" + id + '\'' +
+            ", realm='" + realm + '\'' +
+            ", latitude=" + latitude +
+            ", longitude=" + longitude +
+            ", distance=" + distance +
+            '}';
+    }
+}
@@ -29,31 +29,35 @@ import org.openremote.model.value.ValueDescriptor;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Registers the asset model of the custom assets in this package from {@link CustomAssetModelIndex}, which is
+ * generated at build time, so the manager does not need to scan the classpath for it on startup.
+ */
 public class CustomAssetModelProvider implements AssetModelProvider {
 
     @Override
     public boolean useAutoScan() {
-        return true;
+        return false;
     }
 
     @Override
     public AssetDescriptor<?>[] getAssetDescriptors() {
-        return new AssetDescriptor[0];
+        return CustomAssetModelIndex.getAssetDescriptors();
     }
 
     @Override
     public Map<Class<? extends Asset<?>>, List<AttributeDescriptor<?>>> getAttributeDescriptors() {
-        return null;
+        return CustomAssetModelIndex.getAttributeDescriptors();
     }
 
     @Override
     public Map<Class<? extends Asset<?>>, List<MetaItemDescriptor<?>>> getMetaItemDescriptors() {
-        return null;
+        return CustomAssetModelIndex.getMetaItemDescriptors();
     }
 
     @Override
     public Map<Class<? extends Asset<?>>, List<ValueDescriptor<?>>> getValueDescriptors() {
-        return null;
+        return CustomAssetModelIndex.getValueDescriptors();
     }
 
     @Override
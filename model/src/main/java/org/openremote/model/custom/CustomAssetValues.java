@@ -0,0 +1,88 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.custom;
+
+import java.util.Map;
+
+/**
+ * The latest attribute values of a {@link CustomAsset} as returned by {@link CustomEndpointResource#getValues}; a
+ * lightweight alternative to loading the whole asset.
+ */
+public class CustomAssetValues {
+
+    protected String id;
+    protected String realm;
+    protected String parentId;
+    protected CustomAsset.CustomValueType customAttribute;
+    protected Map<String, Object> values;
+    protected long timestamp;
+
+    protected CustomAssetValues() {
+    }
+
+    public CustomAssetValues(String id, String realm, String parentId, CustomAsset.CustomValueType customAttribute, Map<String, Object> values, long timestamp) {
+        this.id = id;
+        this.realm = realm;
+        this.parentId = parentId;
+        this.customAttribute = customAttribute;
+        this.values = values;
+        this.timestamp = timestamp;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getRealm() {
+        return realm;
+    }
+
+    public String getParentId() {
+        return parentId;
+    }
+
+    public CustomAsset.CustomValueType getCustomAttribute() {
+        return customAttribute;
+    }
+
+    /**
+     * Values of all other attributes by attribute name.
+     */
+    public Map<String, Object> getValues() {
+        return values;
+    }
+
+    /**
+     * The time of the most recent attribute update.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "id='" + id + '\'' +
+            ", realm='" + realm + '\'' +
+            ", customAttribute=" + customAttribute +
+            ", timestamp=" + timestamp +
+            '}';
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.custom;
+
+/**
+ * Counters of the latest value cache behind {@link CustomEndpointResource#getValues}.
+ */
+public class CustomCacheStatistics {
+
+    protected long size;
+    protected long capacity;
+    protected long hits;
+    protected long misses;
+    protected long evictions;
+    protected double hitRatio;
+    protected double averageLookupMicros;
+
+    protected CustomCacheStatistics() {
+    }
+
+    public CustomCacheStatistics(long size, long capacity, long hits, long misses, long evictions, double averageLookupMicros) {
+        this.size = size;
+        this.capacity = capacity;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.hitRatio = hits + misses > 0 ? (double) hits / (hits + misses) : 0d;
+        this.averageLookupMicros = averageLookupMicros;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public double getHitRatio() {
+        return hitRatio;
+    }
+
+    /**
+     * Average time a bulk lookup took per requested asset, including loading misses from storage.
+     */
+    public double getAverageLookupMicros() {
+        return averageLookupMicros;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "size=" + size +
+            ", capacity=" + capacity +
+            ", hits=" + hits +
+            ", misses=" + misses +
+            ", evictions=" + evictions +
+            ", hitRatio=" + hitRatio +
+            ", averageLookupMicros=" + averageLookupMicros +
+            '}';
+    }
+}
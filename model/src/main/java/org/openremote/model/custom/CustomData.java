@@ -19,14 +19,30 @@
  */
 package org.openremote.model.custom;
 
+/**
+ * A record submitted through the {@link CustomEndpointResource}; besides the descriptive fields a record can carry a
+ * reading for a single attribute of an asset which is written as an
+ * {@link org.openremote.model.attribute.AttributeEvent} once the record is committed.
+ */
 public class CustomData {
 
     protected String name;
     protected Integer age;
+    protected String assetId;
+    protected String attributeName;
+    protected Object value;
+    protected Long timestamp;
 
     protected CustomData() {
     }
 
+    public CustomData(String assetId, String attributeName, Object value, Long timestamp) {
+        this.assetId = assetId;
+        this.attributeName = attributeName;
+        this.value = value;
+        this.timestamp = timestamp;
+    }
+
     public String getName() {
         return name;
     }
@@ -34,4 +50,24 @@ public class CustomData {
     public Integer getAge() {
         return age;
     }
+
+    public String getAssetId() {
+        return assetId;
+    }
+
+    public String getAttributeName() {
+        return attributeName;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    public Long getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean hasReading() {
+        return assetId != null && attributeName != null;
+    }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.custom;
+
+import java.util.Arrays;
+
+/**
+ * Outcome of a single batch of {@link CustomData} records submitted through
+ * {@link CustomEndpointResource#submitDataStream}; batches are numbered in the order they were read from the request
+ * body. Records with a reading for an asset the caller cannot access (or that does not exist) are rejected and never
+ * queued. Accepted records were queued; the response is only sent once they have been committed and those that
+ * failed to commit are listed by their position within the batch.
+ */
+public class CustomDataBatchResult {
+
+    protected int batch;
+    protected int received;
+    protected int accepted;
+    protected int rejected;
+    protected int[] failed;
+
+    protected CustomDataBatchResult() {
+    }
+
+    public CustomDataBatchResult(int batch, int received, int accepted, int rejected, int[] failed) {
+        this.batch = batch;
+        this.received = received;
+        this.accepted = accepted;
+        this.rejected = rejected;
+        this.failed = failed;
+    }
+
+    public int getBatch() {
+        return batch;
+    }
+
+    public int getReceived() {
+        return received;
+    }
+
+    public int getAccepted() {
+        return accepted;
+    }
+
+    public int getRejected() {
+        return rejected;
+    }
+
+    /**
+     * The positions within the batch of the accepted records that failed to commit, in ascending order.
+     */
+    public int[] getFailed() {
+        return failed;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "batch=" + batch +
+            ", received=" + received +
+            ", accepted=" + accepted +
+            ", rejected=" + rejected +
+            ", failed=" + Arrays.toString(failed) +
+            '}';
+    }
+}
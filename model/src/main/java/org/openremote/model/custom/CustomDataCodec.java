@@ -0,0 +1,369 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.custom;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of a stream of {@link CustomData} records, accepted by
+ * {@link CustomEndpointResource#submitBinaryDataStream} as {@link CustomEndpointResource#APPLICATION_CUSTOM_DATA};
+ * intended for constrained gateways where JSON size and parse cost dominate.
+ * <p>
+ * A stream starts with the {@link #MAGIC} bytes and a {@link #VERSION} byte followed by batches, each a varint record
+ * count followed by that many records. Every record starts with a flags byte saying which fields are present and the
+ * type of the value, followed by the present fields in order: name, age, asset ID, attribute name, value and
+ * timestamp. Integers are zigzag varints, timestamps are stored as the difference to the timestamp of the previous
+ * record and doubles as 8 byte IEEE 754 (4 bytes when the value is exactly representable as a float). Strings are
+ * written once per stream: the first occurrence is a <code>0</code> varint, the UTF-8 length and bytes, later ones
+ * are the varint index of the string plus one, so repeated asset IDs and attribute names cost a byte or two.
+ * <p>
+ * Decoders must reject streams with a newer version; new fields are added by new flags so older records remain valid.
+ */
+public final class CustomDataCodec {
+
+    public static final byte[] MAGIC = {'C', 'D'};
+    public static final int VERSION = 1;
+    public static final int MAX_STRING_BYTES = 65535;
+    public static final int MAX_STRINGS = 65536;
+    public static final int MAX_BATCH_RECORDS = 1 << 20;
+
+    static final int FLAG_NAME = 1;
+    static final int FLAG_AGE = 1 << 1;
+    static final int FLAG_READING = 1 << 2;
+    static final int FLAG_TIMESTAMP = 1 << 3;
+    static final int VALUE_SHIFT = 4;
+    static final int VALUE_NULL = 0;
+    static final int VALUE_FALSE = 1;
+    static final int VALUE_TRUE = 2;
+    static final int VALUE_LONG = 3;
+    static final int VALUE_DOUBLE = 4;
+    static final int VALUE_FLOAT = 5;
+    static final int VALUE_STRING = 6;
+
+    private CustomDataCodec() {
+    }
+
+    /**
+     * Writes records to a stream; not thread safe. Call {@link #flush} once done, the underlying stream is not closed.
+     */
+    public static class Encoder {
+        protected final OutputStream out;
+        protected final Map<String, Integer> strings = new HashMap<>();
+        protected final byte[] buffer = new byte[8192];
+        protected int position;
+        protected long previousTimestamp;
+
+        public Encoder(OutputStream out) throws IOException {
+            this.out = out;
+            writeByte(MAGIC[0]);
+            writeByte(MAGIC[1]);
+            writeByte(VERSION);
+        }
+
+        public void writeBatch(List<CustomData> records) throws IOException {
+            writeVarint(records.size());
+            for (CustomData record : records) {
+                writeRecord(record);
+            }
+        }
+
+        public void flush() throws IOException {
+            out.write(buffer, 0, position);
+            position = 0;
+            out.flush();
+        }
+
+        protected void writeRecord(CustomData record) throws IOException {
+            Object value = record.value;
+            int valueType = valueType(value);
+            int flags = (valueType << VALUE_SHIFT)
+                | (record.name != null ? FLAG_NAME : 0)
+                | (record.age != null ? FLAG_AGE : 0)
+                | (record.hasReading() ? FLAG_READING : 0)
+                | (record.timestamp != null ? FLAG_TIMESTAMP : 0);
+            writeByte(flags);
+
+            if (record.name != null) {
+                writeString(record.name);
+            }
+            if (record.age != null) {
+                writeVarint(zigzag(record.age));
+            }
+            if (record.hasReading()) {
+                writeString(record.assetId);
+                writeString(record.attributeName);
+            }
+            switch (valueType) {
+                case VALUE_LONG:
+                    writeVarint(zigzag(((Number) value).longValue()));
+                    break;
+                case VALUE_FLOAT:
+                    writeInt(Float.floatToIntBits(((Number) value).floatValue()));
+                    break;
+                case VALUE_DOUBLE:
+                    long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+                    writeInt((int) (bits >>> 32));
+                    writeInt((int) bits);
+                    break;
+                case VALUE_STRING:
+                    writeString(value.toString());
+                    break;
+                default:
+                    break;
+            }
+            if (record.timestamp != null) {
+                writeVarint(zigzag(record.timestamp - previousTimestamp));
+                previousTimestamp = record.timestamp;
+            }
+        }
+
+        protected static int valueType(Object value) {
+            if (value == null) {
+                return VALUE_NULL;
+            }
+            if (value instanceof Boolean) {
+                return (Boolean) value ? VALUE_TRUE : VALUE_FALSE;
+            }
+            if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                return VALUE_LONG;
+            }
+            if (value instanceof Number) {
+                double number = ((Number) value).doubleValue();
+                return (double) (float) number == number ? VALUE_FLOAT : VALUE_DOUBLE;
+            }
+            return VALUE_STRING;
+        }
+
+        protected void writeString(String value) throws IOException {
+            Integer index = strings.get(value);
+            if (index != null) {
+                writeVarint(index + 1L);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_STRING_BYTES) {
+                throw new IOException("String is too long to encode: " + bytes.length + " bytes");
+            }
+            writeVarint(0);
+            writeVarint(bytes.length);
+            for (byte b : bytes) {
+                writeByte(b);
+            }
+            if (strings.size() < MAX_STRINGS) {
+                strings.put(value, strings.size());
+            }
+        }
+
+        protected void writeVarint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        protected void writeInt(int value) throws IOException {
+            writeByte(value >>> 24);
+            writeByte(value >>> 16);
+            writeByte(value >>> 8);
+            writeByte(value);
+        }
+
+        protected void writeByte(int value) throws IOException {
+            if (position == buffer.length) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+            buffer[position++] = (byte) value;
+        }
+    }
+
+    /**
+     * Reads records from a stream straight into {@link CustomData} instances without an intermediate tree; the read
+     * buffer, string table and scratch space are reused for the whole stream. Not thread safe.
+     */
+    public static class Decoder {
+        protected final InputStream in;
+        protected final byte[] buffer = new byte[8192];
+        protected final List<String> strings = new ArrayList<>();
+        protected byte[] stringBytes = new byte[64];
+        protected int position;
+        protected int limit;
+        protected long remaining;
+        protected long previousTimestamp;
+
+        /**
+         * Reads and checks the stream header.
+         */
+        public Decoder(InputStream in) throws IOException {
+            this.in = in;
+            if (readByte() != MAGIC[0] || readByte() != MAGIC[1]) {
+                throw new IOException("Not a custom data stream");
+            }
+            int version = readByte();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported custom data stream version: " + version);
+            }
+        }
+
+        /**
+         * Returns the next record or <code>null</code> at the end of the stream; a stream that ends within a batch or
+         * record is malformed.
+         */
+        public CustomData next() throws IOException {
+            while (remaining == 0) {
+                if (!fill()) {
+                    return null;
+                }
+                remaining = readVarint();
+                if (remaining > MAX_BATCH_RECORDS) {
+                    throw new IOException("Custom data batch is too large: " + remaining);
+                }
+            }
+            remaining--;
+            return readRecord();
+        }
+
+        protected CustomData readRecord() throws IOException {
+            int flags = readByte();
+            CustomData record = new CustomData();
+
+            if ((flags & FLAG_NAME) != 0) {
+                record.name = readString();
+            }
+            if ((flags & FLAG_AGE) != 0) {
+                record.age = (int) unzigzag(readVarint());
+            }
+            if ((flags & FLAG_READING) != 0) {
+                record.assetId = readString();
+                record.attributeName = readString();
+            }
+            switch (flags >>> VALUE_SHIFT) {
+                case VALUE_NULL:
+                    break;
+                case VALUE_FALSE:
+                    record.value = false;
+                    break;
+                case VALUE_TRUE:
+                    record.value = true;
+                    break;
+                case VALUE_LONG:
+                    record.value = unzigzag(readVarint());
+                    break;
+                case VALUE_FLOAT:
+                    record.value = (double) Float.intBitsToFloat(readInt());
+                    break;
+                case VALUE_DOUBLE:
+                    record.value = Double.longBitsToDouble(((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL));
+                    break;
+                case VALUE_STRING:
+                    record.value = readString();
+                    break;
+                default:
+                    throw new IOException("Unknown custom data value type: " + (flags >>> VALUE_SHIFT));
+            }
+            if ((flags & FLAG_TIMESTAMP) != 0) {
+                previousTimestamp += unzigzag(readVarint());
+                record.timestamp = previousTimestamp;
+            }
+            return record;
+        }
+
+        protected String readString() throws IOException {
+            long reference = readVarint();
+            if (reference > 0) {
+                if (reference > strings.size()) {
+                    throw new IOException("Unknown custom data string reference: " + reference);
+                }
+                return strings.get((int) reference - 1);
+            }
+            long length = readVarint();
+            if (length > MAX_STRING_BYTES) {
+                throw new IOException("Custom data string is too long: " + length);
+            }
+            if (stringBytes.length < length) {
+                stringBytes = new byte[(int) length];
+            }
+            for (int i = 0; i < length; i++) {
+                stringBytes[i] = (byte) readByte();
+            }
+            String value = new String(stringBytes, 0, (int) length, StandardCharsets.UTF_8);
+            if (strings.size() < MAX_STRINGS) {
+                strings.add(value);
+            }
+            return value;
+        }
+
+        protected long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed custom data varint");
+        }
+
+        protected int readInt() throws IOException {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        protected int readByte() throws IOException {
+            if (position == limit && !fill()) {
+                throw new EOFException("Unexpected end of custom data stream");
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        protected boolean fill() throws IOException {
+            if (position < limit) {
+                return true;
+            }
+            int read;
+            do {
+                read = in.read(buffer, 0, buffer.length);
+            } while (read == 0);
+            if (read < 0) {
+                return false;
+            }
+            position = 0;
+            limit = read;
+            return true;
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
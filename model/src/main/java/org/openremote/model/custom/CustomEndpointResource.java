@@ -19,8 +19,25 @@
  */
 package org.openremote.model.custom;
 
+import org.openremote.model.Constants;
+
+import javax.annotation.security.RolesAllowed;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Response;
+import java.io.InputStream;
+import java.util.List;
+
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 
 /**
  * This is an example custom JAX-RS endpoint; this will be compiled and made available in the typescript model as well
@@ -28,6 +45,238 @@ import javax.ws.rs.Path;
 @Path("custom")
 public interface CustomEndpointResource {
 
+    String APPLICATION_NDJSON = "application/x-ndjson";
+    String APPLICATION_CUSTOM_DATA = "application/vnd.openremote.custom-data";
+    String TEXT_CSV = "text/csv";
+    String TEXT_PROMETHEUS = "text/plain; version=0.0.4";
+
+    /**
+     * Queue a single {@link CustomData} record; the request completes asynchronously once the record has been committed.
+     * When the ingest queue is full the request is answered immediately with
+     * {@link javax.ws.rs.core.Response.Status#TOO_MANY_REQUESTS} and a <code>Retry-After</code> header. A record with a
+     * reading for an asset that does not exist or is not accessible is answered with
+     * {@link javax.ws.rs.core.Response.Status#FORBIDDEN}.
+     */
+    @POST
+    @RolesAllowed({Constants.WRITE_ASSETS_ROLE})
+    void submitData(@Suspended AsyncResponse asyncResponse, CustomData customData);
+
+    /**
+     * Submit a stream of {@link CustomData} records as newline delimited (or simply concatenated) JSON; the body is
+     * parsed incrementally and handed over in batches so it is never buffered as a whole. Returns the acceptance
+     * counts of each batch in the order the batches were read once the accepted records have been committed; a
+     * malformed record stops processing and returns {@link javax.ws.rs.core.Response.Status#BAD_REQUEST} with the
+     * results of the batches accepted until then. When the ingest queue fills up the remainder of the body is not read
+     * and {@link javax.ws.rs.core.Response.Status#TOO_MANY_REQUESTS} is returned with the results so far and a
+     * <code>Retry-After</code> header; the client should resume from the first record that was neither accepted nor
+     * rejected. Otherwise, if any accepted record failed to commit,
+     * {@link javax.ws.rs.core.Response.Status#SERVICE_UNAVAILABLE} is returned with the results and a
+     * <code>Retry-After</code> header and the client should resubmit the records listed as failed. Records with a
+     * reading for an asset that does not exist or is not accessible are rejected rather than queued and counted as
+     * such in the results.
+     */
+    @POST
+    @Path("bulk")
+    @Consumes({APPLICATION_NDJSON, APPLICATION_JSON})
+    @Produces(APPLICATION_JSON)
+    @RolesAllowed({Constants.WRITE_ASSETS_ROLE})
+    CustomDataBatchResult[] submitDataStream(InputStream data);
+
+    /**
+     * Same as {@link #submitDataStream} for a body in the compact binary format described by {@link CustomDataCodec};
+     * records are decoded straight from the stream and batched, accepted and answered exactly like JSON ones.
+     */
     @POST
-    void submitData(CustomData customData);
+    @Path("bulk")
+    @Consumes(APPLICATION_CUSTOM_DATA)
+    @Produces(APPLICATION_JSON)
+    @RolesAllowed({Constants.WRITE_ASSETS_ROLE})
+    CustomDataBatchResult[] submitBinaryDataStream(InputStream data);
+
+    /**
+     * Get the latest values of many {@link CustomAsset}s in one call, in the order requested; IDs that do not exist,
+     * are not {@link CustomAsset}s or are not accessible are left out. Values are served from an in-memory cache that
+     * is kept up to date from attribute events.
+     */
+    @GET
+    @Path("values")
+    @Produces(APPLICATION_JSON)
+    @RolesAllowed({Constants.READ_ASSETS_ROLE})
+    CustomAssetValues[] getValues(@QueryParam("id") List<String> ids);
+
+    /**
+     * Get the latest values of the {@link CustomAsset}s of a realm; at most <code>limit</code> assets are returned
+     * (capped by the server).
+     */
+    @GET
+    @Path("values/realm/{realm}")
+    @Produces(APPLICATION_JSON)
+    @RolesAllowed({Constants.READ_ASSETS_ROLE})
+    CustomAssetValues[] getRealmValues(@PathParam("realm") String realm, @QueryParam("limit") Integer limit);
+
+    /**
+     * Hit ratio and lookup latency of the cache behind {@link #getValues}.
+     */
+    @GET
+    @Path("values/statistics")
+    @Produces(APPLICATION_JSON)
+    @RolesAllowed({Constants.READ_ADMIN_ROLE})
+    CustomCacheStatistics getValueCacheStatistics();
+
+    /**
+     * Get the min/max/avg/count of a numeric attribute per bucket for buckets starting within the range (epoch
+     * millis); the resolution defaults to the one that covers the range in no more than <code>maxPoints</code>
+     * buckets (capped by the server). A range that even hourly buckets cannot cover within that many points is
+     * answered with {@link javax.ws.rs.core.Response.Status#BAD_REQUEST}.
+     */
+    @GET
+    @Path("rollups/{assetId}/{attributeName}")
+    @Produces(APPLICATION_JSON)
+    @RolesAllowed({Constants.READ_ASSETS_ROLE})
+    CustomRollup[] getRollups(@PathParam("assetId") String assetId,
+                              @PathParam("attributeName") String attributeName,
+                              @QueryParam("from") Long from,
+                              @QueryParam("to") Long to,
+                              @QueryParam("maxPoints") Integer maxPoints,
+                              @QueryParam("resolution") CustomRollup.Resolution resolution);
+
+    /**
+     * Get the number of {@link CustomAsset}s per {@link CustomAsset.CustomValueType} in the realm or, when a parent ID
+     * is given, among the children of that parent; counts are maintained as assets change so this does not load any
+     * assets.
+     */
+    @GET
+    @Path("aggregates/{realm}")
+    @Produces(APPLICATION_JSON)
+    @RolesAllowed({Constants.READ_ASSETS_ROLE})
+    CustomValueTypeCounts getValueTypeCounts(@PathParam("realm") String realm, @QueryParam("parentId") String parentId);
+
+    /**
+     * Get the counts of {@link #getValueTypeCounts} for every parent in the realm with {@link CustomAsset} children.
+     */
+    @GET
+    @Path("aggregates/{realm}/parents")
+    @Produces(APPLICATION_JSON)
+    @RolesAllowed({Constants.READ_ASSETS_ROLE})
+    CustomValueTypeCounts[] getParentValueTypeCounts(@PathParam("realm") String realm);
+
+    /**
+     * Get the {@link CustomAsset}s of the realm located within the bounding box (degrees); the box crosses the
+     * antimeridian when west is greater than east.
+     */
+    @GET
+    @Path("geo/{realm}/bbox")
+    @Produces(APPLICATION_JSON)
+    @RolesAllowed({Constants.READ_ASSETS_ROLE})
+    CustomAssetLocation[] findAssetsWithin(@PathParam("realm") String realm,
+                                           @QueryParam("south") Double south,
+                                           @QueryParam("west") Double west,
+                                           @QueryParam("north") Double north,
+                                           @QueryParam("east") Double east,
+                                           @QueryParam("limit") Integer limit);
+
+    /**
+     * Get the {@link CustomAsset}s of the realm located within <code>radius</code> meters of the point, nearest
+     * first.
+     */
+    @GET
+    @Path("geo/{realm}/radius")
+    @Produces(APPLICATION_JSON)
+    @RolesAllowed({Constants.READ_ASSETS_ROLE})
+    CustomAssetLocation[] findAssetsWithinRadius(@PathParam("realm") String realm,
+                                                 @QueryParam("lat") Double latitude,
+                                                 @QueryParam("lng") Double longitude,
+                                                 @QueryParam("radius") Double radius,
+                                                 @QueryParam("limit") Integer limit);
+
+    /**
+     * Get the <code>k</code> {@link CustomAsset}s of the realm located nearest to the point, nearest first.
+     */
+    @GET
+    @Path("geo/{realm}/nearest")
+    @Produces(APPLICATION_JSON)
+    @RolesAllowed({Constants.READ_ASSETS_ROLE})
+    CustomAssetLocation[] findNearestAssets(@PathParam("realm") String realm,
+                                            @QueryParam("lat") Double latitude,
+                                            @QueryParam("lng") Double longitude,
+                                            @QueryParam("k") Integer k);
+
+    /**
+     * Get the {@link CustomRule}s of the realm.
+     */
+    @GET
+    @Path("rules/{realm}")
+    @Produces(APPLICATION_JSON)
+    @RolesAllowed({Constants.READ_ASSETS_ROLE})
+    CustomRule[] getRules(@PathParam("realm") String realm);
+
+    /**
+     * Create or replace a {@link CustomRule}; an ID is generated when the rule has none. Returns the stored rule.
+     */
+    @PUT
+    @Path("rules")
+    @Consumes(APPLICATION_JSON)
+    @Produces(APPLICATION_JSON)
+    @RolesAllowed({Constants.WRITE_ASSETS_ROLE})
+    CustomRule putRule(CustomRule rule);
+
+    /**
+     * Delete a {@link CustomRule}.
+     */
+    @DELETE
+    @Path("rules/{ruleId}")
+    @RolesAllowed({Constants.WRITE_ASSETS_ROLE})
+    void deleteRule(@PathParam("ruleId") String ruleId);
+
+    /**
+     * Queue depth and lag of every worker shard processing custom readings and events; as these cover every realm
+     * only super users have access.
+     */
+    @GET
+    @Path("shards/statistics")
+    @Produces(APPLICATION_JSON)
+    @RolesAllowed({Constants.READ_ADMIN_ROLE})
+    CustomShardStatistics[] getShardStatistics();
+
+    /**
+     * Counters, gauges and latency histograms of the custom protocol instances, the ingest queue, the worker shards
+     * and the value cache in the Prometheus text exposition format; as these cover every realm only super users have
+     * access.
+     */
+    @GET
+    @Path("metrics")
+    @Produces(TEXT_PROMETHEUS)
+    @RolesAllowed({Constants.READ_ADMIN_ROLE})
+    String getMetrics();
+
+    /**
+     * Stream the current state of every asset of the type (defaults to {@link CustomAsset}) in the realm, ordered by
+     * asset ID, as {@link CustomExportFormat#NDJSON} (the default) or {@link CustomExportFormat#CSV}. Rows are read from
+     * a database cursor and written as they arrive so the export is never held in memory. Every row carries a
+     * <code>continuation</code> token; passing the token of the last row received resumes the export after it.
+     */
+    @GET
+    @Path("export/{realm}/assets")
+    @Produces({APPLICATION_NDJSON, TEXT_CSV})
+    @RolesAllowed({Constants.READ_ASSETS_ROLE})
+    Response exportAssets(@PathParam("realm") String realm,
+                          @QueryParam("type") String assetType,
+                          @QueryParam("format") CustomExportFormat format,
+                          @QueryParam("continuation") String continuation);
+
+    /**
+     * Stream the datapoint history of the assets of the type (defaults to {@link CustomAsset}) in the realm with a
+     * timestamp within the range (epoch millis, either end optional), ordered by timestamp, asset ID and attribute
+     * name. Streams and resumes like {@link #exportAssets}.
+     */
+    @GET
+    @Path("export/{realm}/datapoints")
+    @Produces({APPLICATION_NDJSON, TEXT_CSV})
+    @RolesAllowed({Constants.READ_ASSETS_ROLE})
+    Response exportDatapoints(@PathParam("realm") String realm,
+                              @QueryParam("type") String assetType,
+                              @QueryParam("from") Long from,
+                              @QueryParam("to") Long to,
+                              @QueryParam("format") CustomExportFormat format,
+                              @QueryParam("continuation") String continuation);
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.custom;
+
+/**
+ * Formats of the streaming exports of {@link CustomEndpointResource}.
+ */
+public enum CustomExportFormat {
+
+    /**
+     * One JSON object per line.
+     */
+    NDJSON(CustomEndpointResource.APPLICATION_NDJSON),
+
+    /**
+     * RFC 4180 CSV with a header row; JSON values (attributes and datapoint values) are written as quoted JSON text.
+     */
+    CSV(CustomEndpointResource.TEXT_CSV);
+
+    protected final String mediaType;
+
+    CustomExportFormat(String mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    public String getMediaType() {
+        return mediaType;
+    }
+}
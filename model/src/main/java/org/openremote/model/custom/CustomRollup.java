@@ -0,0 +1,121 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.custom;
+
+/**
+ * Aggregate of the numeric values an attribute had within one bucket of a {@link Resolution}; returned by
+ * {@link CustomEndpointResource#getRollups}.
+ */
+public class CustomRollup {
+
+    public enum Resolution {
+        MINUTE(60000L),
+        QUARTER_HOUR(900000L),
+        HOUR(3600000L);
+
+        protected final long millis;
+
+        Resolution(long millis) {
+            this.millis = millis;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * The start of the bucket containing the timestamp.
+         */
+        public long getBucketStart(long timestamp) {
+            return timestamp - Math.floorMod(timestamp, millis);
+        }
+
+        /**
+         * The finest resolution that covers the range in no more than <code>maxPoints</code> buckets, i.e. the
+         * coarsest one needed; {@link #HOUR} when even that needs more.
+         */
+        public static Resolution select(long rangeMillis, int maxPoints) {
+            for (Resolution resolution : values()) {
+                if (rangeMillis / resolution.millis < maxPoints) {
+                    return resolution;
+                }
+            }
+            return HOUR;
+        }
+    }
+
+    protected long timestamp;
+    protected Resolution resolution;
+    protected double min;
+    protected double max;
+    protected double avg;
+    protected long count;
+
+    protected CustomRollup() {
+    }
+
+    public CustomRollup(long timestamp, Resolution resolution, double min, double max, double avg, long count) {
+        this.timestamp = timestamp;
+        this.resolution = resolution;
+        this.min = min;
+        this.max = max;
+        this.avg = avg;
+        this.count = count;
+    }
+
+    /**
+     * Start of the bucket.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Resolution getResolution() {
+        return resolution;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getAvg() {
+        return avg;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "timestamp=" + timestamp +
+            ", resolution=" + resolution +
+            ", min=" + min +
+            ", max=" + max +
+            ", avg=" + avg +
+            ", count=" + count +
+            '}';
+    }
+}
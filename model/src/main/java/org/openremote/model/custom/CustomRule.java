@@ -0,0 +1,168 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.custom;
+
+/**
+ * A threshold rule on an attribute of {@link CustomAsset}s registered through {@link CustomEndpointResource}: the rule
+ * matches an asset while its attribute compares to the value with the operator and fires once it has matched for at
+ * least the duration and, when a neighbour count is set, at least that many assets (including the asset itself) within
+ * the neighbour radius match as well. Firing writes the alert value to the alert attribute of the asset; once the
+ * asset stops matching the clear value (if any) is written.
+ * <p>
+ * Rules without an asset ID apply to every {@link CustomAsset} of the realm.
+ */
+public class CustomRule {
+
+    public enum Operator {
+        EQUALS,
+        NOT_EQUALS,
+        GREATER_THAN,
+        GREATER_EQUALS,
+        LESS_THAN,
+        LESS_EQUALS
+    }
+
+    protected String id;
+    protected String realm;
+    protected String name;
+    protected String assetId;
+    protected String attributeName;
+    protected Operator operator;
+    protected Object value;
+    protected Long durationMillis;
+    protected Integer neighbourCount;
+    protected Double neighbourRadius;
+    protected String alertAttributeName;
+    protected Object alertValue;
+    protected Object clearValue;
+
+    protected CustomRule() {
+    }
+
+    public CustomRule(String id, String realm, String name, String attributeName, Operator operator, Object value, String alertAttributeName, Object alertValue) {
+        this.id = id;
+        this.realm = realm;
+        this.name = name;
+        this.attributeName = attributeName;
+        this.operator = operator;
+        this.value = value;
+        this.alertAttributeName = alertAttributeName;
+        this.alertValue = alertValue;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public CustomRule setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String getRealm() {
+        return realm;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getAssetId() {
+        return assetId;
+    }
+
+    public CustomRule setAssetId(String assetId) {
+        this.assetId = assetId;
+        return this;
+    }
+
+    public String getAttributeName() {
+        return attributeName;
+    }
+
+    public Operator getOperator() {
+        return operator;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    public Long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public CustomRule setDurationMillis(Long durationMillis) {
+        this.durationMillis = durationMillis;
+        return this;
+    }
+
+    public Integer getNeighbourCount() {
+        return neighbourCount;
+    }
+
+    public Double getNeighbourRadius() {
+        return neighbourRadius;
+    }
+
+    /**
+     * Require at least <code>count</code> assets within <code>radius</code> meters (including the asset itself) to
+     * match.
+     */
+    public CustomRule setNeighbours(Integer count, Double radius) {
+        this.neighbourCount = count;
+        this.neighbourRadius = radius;
+        return this;
+    }
+
+    public String getAlertAttributeName() {
+        return alertAttributeName;
+    }
+
+    public Object getAlertValue() {
+        return alertValue;
+    }
+
+    public Object getClearValue() {
+        return clearValue;
+    }
+
+    public CustomRule setClearValue(Object clearValue) {
+        this.clearValue = clearValue;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "id='" + id + '\'' +
+            ", realm='" + realm + '\'' +
+            ", name='" + name + '\'' +
+            ", assetId='" + assetId + '\'' +
+            ", attributeName='" + attributeName + '\'' +
+            ", operator=" + operator +
+            ", value=" + value +
+            ", durationMillis=" + durationMillis +
+            ", neighbourCount=" + neighbourCount +
+            ", neighbourRadius=" + neighbourRadius +
+            ", alertAttributeName='" + alertAttributeName + '\'' +
+            '}';
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.custom;
+
+import java.util.Map;
+
+/**
+ * Queue depth and lag of one worker shard of the custom event processing pool.
+ */
+public class CustomShardStatistics {
+
+    protected int shard;
+    protected int depth;
+    protected long lagMillis;
+    protected long processed;
+    protected long dropped;
+    protected Map<String, Integer> realmDepths;
+
+    protected CustomShardStatistics() {
+    }
+
+    public CustomShardStatistics(int shard, int depth, long lagMillis, long processed, long dropped, Map<String, Integer> realmDepths) {
+        this.shard = shard;
+        this.depth = depth;
+        this.lagMillis = lagMillis;
+        this.processed = processed;
+        this.dropped = dropped;
+        this.realmDepths = realmDepths;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    /**
+     * The number of tasks queued on the shard.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * How long the oldest queued task of the shard has been waiting.
+     */
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    /**
+     * Tasks refused because the queue of their realm on this shard was full.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    public Map<String, Integer> getRealmDepths() {
+        return realmDepths;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "shard=" + shard +
+            ", depth=" + depth +
+            ", lagMillis=" + lagMillis +
+            ", processed=" + processed +
+            ", dropped=" + dropped +
+            ", realmDepths=" + realmDepths +
+            '}';
+    }
+}
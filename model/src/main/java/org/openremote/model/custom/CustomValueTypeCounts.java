@@ -0,0 +1,84 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.custom;
+
+import java.util.Map;
+
+/**
+ * The number of {@link CustomAsset}s of a realm, or of the children of one parent within it, per
+ * {@link CustomAsset.CustomValueType}; assets whose custom attribute has no value are counted as unset.
+ */
+public class CustomValueTypeCounts {
+
+    protected String realm;
+    protected String parentId;
+    protected Map<CustomAsset.CustomValueType, Long> counts;
+    protected long unset;
+    protected long total;
+
+    protected CustomValueTypeCounts() {
+    }
+
+    public CustomValueTypeCounts(String realm, String parentId, Map<CustomAsset.CustomValueType, Long> counts, long unset) {
+        this.realm = realm;
+        this.parentId = parentId;
+        this.counts = counts;
+        this.unset = unset;
+        this.total = unset + counts.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    public String getRealm() {
+        return realm;
+    }
+
+    /**
+     * The parent the counts are for or <code>null</code> when they are for the whole realm.
+     */
+    public String getParentId() {
+        return parentId;
+    }
+
+    public Map<CustomAsset.CustomValueType, Long> getCounts() {
+        return counts;
+    }
+
+    public long getCount(CustomAsset.CustomValueType valueType) {
+        return counts.getOrDefault(valueType, 0L);
+    }
+
+    public long getUnset() {
+        return unset;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "realm='" + realm + '\'' +
+            ", parentId='" + parentId + '\'' +
+            ", counts=" + counts +
+            ", unset=" + unset +
+            ", total=" + total +
+            '}';
+    }
+}
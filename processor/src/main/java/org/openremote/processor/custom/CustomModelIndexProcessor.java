@@ -0,0 +1,213 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.processor.custom;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates a static index of the asset model of every <code>AssetModelProvider</code> compiled with it so the
+ * provider can register its descriptors explicitly instead of having the manager scan the classpath at startup.
+ * <p>
+ * Like the auto scan it replaces, the index of a provider covers the asset classes in the package of the provider and
+ * its sub packages: the <code>public static final</code> asset, attribute, meta item and value descriptor fields
+ * declared by each asset class, in declaration order. The index of <code>FooModelProvider</code> is generated as
+ * <code>FooModelIndex</code> in the same package with static methods matching the provider methods.
+ */
+@SupportedAnnotationTypes("*")
+public class CustomModelIndexProcessor extends AbstractProcessor {
+
+    public static final String INDEX_SUFFIX = "Index";
+    protected static final String PROVIDER_TYPE = "org.openremote.model.AssetModelProvider";
+    protected static final String ASSET_TYPE = "org.openremote.model.asset.Asset";
+    protected static final String ASSET_DESCRIPTOR_TYPE = "org.openremote.model.asset.AssetDescriptor";
+    protected static final String ATTRIBUTE_DESCRIPTOR_TYPE = "org.openremote.model.value.AttributeDescriptor";
+    protected static final String META_ITEM_DESCRIPTOR_TYPE = "org.openremote.model.value.MetaItemDescriptor";
+    protected static final String VALUE_DESCRIPTOR_TYPE = "org.openremote.model.value.ValueDescriptor";
+    protected static final String[] DESCRIPTOR_TYPES = {ASSET_DESCRIPTOR_TYPE, ATTRIBUTE_DESCRIPTOR_TYPE, META_ITEM_DESCRIPTOR_TYPE, VALUE_DESCRIPTOR_TYPE};
+    protected final Set<String> generated = new HashSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        Elements elements = processingEnv.getElementUtils();
+        Types types = processingEnv.getTypeUtils();
+        TypeElement providerType = elements.getTypeElement(PROVIDER_TYPE);
+        TypeElement assetType = elements.getTypeElement(ASSET_TYPE);
+
+        if (roundEnv.processingOver() || providerType == null || assetType == null) {
+            return false;
+        }
+
+        List<TypeElement> providers = new ArrayList<>();
+        List<TypeElement> assets = new ArrayList<>();
+        for (Element element : roundEnv.getRootElements()) {
+            collectTypes(element, types, providerType.asType(), types.erasure(assetType.asType()), providers, assets);
+        }
+
+        for (TypeElement provider : providers) {
+            String indexName = getIndexName(provider);
+            if (generated.add(indexName)) {
+                String packageName = elements.getPackageOf(provider).getQualifiedName().toString();
+                List<TypeElement> providerAssets = new ArrayList<>();
+                for (TypeElement asset : assets) {
+                    String assetPackage = elements.getPackageOf(asset).getQualifiedName().toString();
+                    if (assetPackage.equals(packageName) || assetPackage.startsWith(packageName + ".")) {
+                        providerAssets.add(asset);
+                    }
+                }
+                writeIndex(provider, indexName, providerAssets, elements, types);
+            }
+        }
+
+        return false;
+    }
+
+    protected void collectTypes(Element element, Types types, TypeMirror providerType, TypeMirror assetType, List<TypeElement> providers, List<TypeElement> assets) {
+        if (!(element instanceof TypeElement)) {
+            return;
+        }
+        TypeElement type = (TypeElement) element;
+        if (type.getKind() == ElementKind.CLASS && !type.getModifiers().contains(Modifier.ABSTRACT)) {
+            if (types.isAssignable(type.asType(), providerType)) {
+                providers.add(type);
+            }
+            if (types.isAssignable(types.erasure(type.asType()), assetType)) {
+                assets.add(type);
+            }
+        }
+        for (Element enclosed : type.getEnclosedElements()) {
+            collectTypes(enclosed, types, providerType, assetType, providers, assets);
+        }
+    }
+
+    protected String getIndexName(TypeElement provider) {
+        String name = provider.getQualifiedName().toString();
+        return (name.endsWith("Provider") ? name.substring(0, name.length() - "Provider".length()) : name) + INDEX_SUFFIX;
+    }
+
+    /**
+     * Returns the descriptor fields of each asset class by descriptor type.
+     */
+    protected Map<String, Map<TypeElement, List<VariableElement>>> findDescriptors(List<TypeElement> assets, Elements elements, Types types) {
+        Map<String, Map<TypeElement, List<VariableElement>>> descriptors = new LinkedHashMap<>();
+        for (String descriptorType : DESCRIPTOR_TYPES) {
+            descriptors.put(descriptorType, new LinkedHashMap<>());
+        }
+
+        for (TypeElement asset : assets) {
+            for (Element enclosed : asset.getEnclosedElements()) {
+                if (enclosed.getKind() != ElementKind.FIELD || !enclosed.getModifiers().containsAll(Set.of(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL))) {
+                    continue;
+                }
+                TypeMirror fieldType = types.erasure(enclosed.asType());
+                for (String descriptorType : DESCRIPTOR_TYPES) {
+                    TypeElement descriptorElement = elements.getTypeElement(descriptorType);
+                    if (descriptorElement != null && types.isAssignable(fieldType, types.erasure(descriptorElement.asType()))) {
+                        descriptors.get(descriptorType).computeIfAbsent(asset, key -> new ArrayList<>()).add((VariableElement) enclosed);
+                        break;
+                    }
+                }
+            }
+        }
+
+        return descriptors;
+    }
+
+    protected void writeIndex(TypeElement provider, String indexName, List<TypeElement> assets, Elements elements, Types types) {
+        Map<String, Map<TypeElement, List<VariableElement>>> descriptors = findDescriptors(assets, elements, types);
+        int separator = indexName.lastIndexOf('.');
+        String packageName = indexName.substring(0, separator);
+        String simpleName = indexName.substring(separator + 1);
+        Filer filer = processingEnv.getFiler();
+
+        try (PrintWriter out = new PrintWriter(filer.createSourceFile(indexName, assets.toArray(new Element[0])).openWriter())) {
+            out.println("package " + packageName + ";");
+            out.println();
+            out.println("/**");
+            out.println(" * Asset model of {@link " + provider.getQualifiedName() + "}; generated at build time by");
+            out.println(" * {@link " + getClass().getName() + "}, do not edit.");
+            out.println(" */");
+            out.println("@javax.annotation.processing.Generated(\"" + getClass().getName() + "\")");
+            out.println("public final class " + simpleName + " {");
+            out.println();
+            out.println("    private " + simpleName + "() {");
+            out.println("    }");
+            out.println();
+            out.println("    public static " + ASSET_DESCRIPTOR_TYPE + "<?>[] getAssetDescriptors() {");
+            out.println("        return new " + ASSET_DESCRIPTOR_TYPE + "<?>[]{");
+            List<String> assetDescriptors = new ArrayList<>();
+            descriptors.get(ASSET_DESCRIPTOR_TYPE).forEach((asset, fields) -> fields.forEach(field -> assetDescriptors.add(fieldReference(asset, field))));
+            out.println(String.join(",\n", assetDescriptors.stream().map(reference -> "            " + reference).toArray(String[]::new)));
+            out.println("        };");
+            out.println("    }");
+            writeDescriptorMap(out, "getAttributeDescriptors", ATTRIBUTE_DESCRIPTOR_TYPE, descriptors.get(ATTRIBUTE_DESCRIPTOR_TYPE));
+            writeDescriptorMap(out, "getMetaItemDescriptors", META_ITEM_DESCRIPTOR_TYPE, descriptors.get(META_ITEM_DESCRIPTOR_TYPE));
+            writeDescriptorMap(out, "getValueDescriptors", VALUE_DESCRIPTOR_TYPE, descriptors.get(VALUE_DESCRIPTOR_TYPE));
+            out.println("}");
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to write asset model index " + indexName + ": " + e.getMessage(), provider);
+        }
+    }
+
+    protected void writeDescriptorMap(PrintWriter out, String methodName, String descriptorType, Map<TypeElement, List<VariableElement>> descriptors) {
+        String listType = "java.util.List<" + descriptorType + "<?>>";
+        String mapType = "java.util.Map<java.lang.Class<? extends " + ASSET_TYPE + "<?>>, " + listType + ">";
+        out.println();
+        out.println("    public static " + mapType + " " + methodName + "() {");
+        out.println("        " + mapType + " descriptors = new java.util.HashMap<>();");
+        descriptors.forEach((asset, fields) -> {
+            out.println("        descriptors.put(" + asset.getQualifiedName() + ".class, java.util.Arrays.<" + descriptorType + "<?>>asList(");
+            String[] references = fields.stream().map(field -> "            " + fieldReference(asset, field)).toArray(String[]::new);
+            out.println(String.join(",\n", references));
+            out.println("        ));");
+        });
+        out.println("        return descriptors;");
+        out.println("    }");
+    }
+
+    protected static String fieldReference(TypeElement asset, VariableElement field) {
+        return asset.getQualifiedName() + "." + field.getSimpleName();
+    }
+}
@@ -27,10 +27,17 @@ import org.openremote.model.util.TextUtil;
 
 import static org.openremote.container.util.MapAccess.getString;
 
-public class CustomKeycloakSetup extends AbstractKeycloakSetup {
+public class CustomKeycloakSetup extends AbstractKeycloakSetup implements CustomSetupTask {
 
+    public static final String NAME = "keycloak";
+    /**
+     * Part of the fingerprint; increment when {@link #onStart} provisions something different.
+     */
+    protected static final int VERSION = 1;
     public static final String CUSTOM_USER_PASSWORD = "CUSTOM_USER_PASSWORD";
     public static final String CUSTOM_USER_PASSWORD_DEFAULT = "custom";
+    public static final String CUSTOM_REALM = "custom";
+    public static final String CUSTOM_USERNAME = "custom";
     protected final String customUserPassword;
 
     public CustomKeycloakSetup(Container container, boolean isProduction) {
@@ -43,13 +50,35 @@ public class CustomKeycloakSetup extends AbstractKeycloakSetup {
         }
     }
 
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * The user password is included as a salted HMAC so changing it runs the task again.
+     */
+    @Override
+    public String getFingerprint(String salt) {
+        return CustomSetupTask.fingerprint(VERSION, CustomSetupTask.secret(salt, customUserPassword));
+    }
+
+    /**
+     * Keycloak is not reset along with the manager database, so check the realm and user still exist.
+     */
+    @Override
+    public boolean isProvisioned() {
+        return keycloakProvider.getRealm(CUSTOM_REALM) != null
+            && keycloakProvider.getUserByUsername(CUSTOM_REALM, CUSTOM_USERNAME) != null;
+    }
+
     @Override
     public void onStart() throws Exception {
         // Create custom realm
-        Realm customRealm = createRealm("custom", "Custom", true);
+        Realm customRealm = createRealm(CUSTOM_REALM, "Custom", true);
 
         // Create user(s) for custom realm
-        createUser("custom", "custom", customUserPassword, "First", "Last", null, true, new ClientRole[] {
+        createUser(CUSTOM_REALM, CUSTOM_USERNAME, customUserPassword, "First", "Last", null, true, new ClientRole[] {
             ClientRole.READ,
             ClientRole.WRITE
         });
@@ -23,18 +23,44 @@ import org.openremote.manager.setup.ManagerSetup;
 import org.openremote.model.Constants;
 import org.openremote.model.Container;
 import org.openremote.model.asset.impl.ThingAsset;
+import org.openremote.model.query.AssetQuery;
+import org.openremote.model.query.filter.RealmPredicate;
 
-public class CustomManagerSetup extends ManagerSetup {
+public class CustomManagerSetup extends ManagerSetup implements CustomSetupTask {
+
+    public static final String NAME = "manager";
+    /**
+     * Part of the fingerprint; increment when {@link #onStart} provisions something different.
+     */
+    protected static final int VERSION = 1;
+    public static final String CUSTOM_THING_NAME = "Custom Thing";
 
     public CustomManagerSetup(Container container) {
         super(container);
     }
 
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public String getFingerprint(String salt) {
+        return CustomSetupTask.fingerprint(VERSION);
+    }
+
     @Override
     public void onStart() throws Exception {
         super.onStart();
 
-        ThingAsset thing = new ThingAsset("Custom Thing").setRealm(Constants.MASTER_REALM);
-        thing = assetStorageService.merge(thing);
+        // Only create the thing when it does not exist yet so running again does not add a duplicate
+        boolean exists = !assetStorageService.findAllIds(
+            new AssetQuery().types(ThingAsset.class).realm(new RealmPredicate(Constants.MASTER_REALM)).names(CUSTOM_THING_NAME)
+        ).isEmpty();
+
+        if (!exists) {
+            ThingAsset thing = new ThingAsset(CUSTOM_THING_NAME).setRealm(Constants.MASTER_REALM);
+            thing = assetStorageService.merge(thing);
+        }
     }
 }
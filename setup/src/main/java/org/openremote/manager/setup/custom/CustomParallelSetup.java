@@ -0,0 +1,179 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.setup.custom;
+
+import org.openremote.container.persistence.PersistenceService;
+import org.openremote.model.Container;
+import org.openremote.model.setup.Setup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static org.openremote.container.util.MapAccess.getBoolean;
+import static org.openremote.container.util.MapAccess.getInteger;
+
+/**
+ * Runs {@link CustomSetupTask}s as a single {@link Setup}: each task is started as soon as the tasks it depends on have
+ * completed so independent tasks run concurrently, and a task whose fingerprint matches the one stored after its last
+ * successful run is skipped if it confirms it is still provisioned (unless {@link #CUSTOM_SETUP_FORCE} is set). The time taken by each task and by the whole
+ * setup is logged.
+ */
+public class CustomParallelSetup implements Setup {
+
+    private static final Logger LOG = Logger.getLogger(CustomParallelSetup.class.getName());
+    public static final String CUSTOM_SETUP_FORCE = "CUSTOM_SETUP_FORCE";
+    public static final boolean CUSTOM_SETUP_FORCE_DEFAULT = false;
+    public static final String CUSTOM_SETUP_THREADS = "CUSTOM_SETUP_THREADS";
+    public static final int CUSTOM_SETUP_THREADS_DEFAULT = 4;
+    protected final Container container;
+    protected final String setupType;
+    protected final Map<String, CustomSetupTask> tasks = new LinkedHashMap<>();
+    protected final boolean force;
+    protected final int threads;
+    protected final AtomicInteger ran = new AtomicInteger();
+    protected final AtomicInteger skipped = new AtomicInteger();
+
+    public CustomParallelSetup(Container container, String setupType, List<CustomSetupTask> tasks) {
+        this.container = container;
+        this.setupType = setupType;
+        this.force = getBoolean(container.getConfig(), CUSTOM_SETUP_FORCE, CUSTOM_SETUP_FORCE_DEFAULT);
+        this.threads = Math.max(1, getInteger(container.getConfig(), CUSTOM_SETUP_THREADS, CUSTOM_SETUP_THREADS_DEFAULT));
+
+        for (CustomSetupTask task : tasks) {
+            if (this.tasks.putIfAbsent(task.getName(), task) != null) {
+                throw new IllegalStateException("Duplicate custom setup task: " + task.getName());
+            }
+        }
+        for (CustomSetupTask task : tasks) {
+            for (String dependency : task.getDependencies()) {
+                if (!this.tasks.containsKey(dependency)) {
+                    throw new IllegalStateException("Custom setup task '" + task.getName() + "' depends on unknown task: " + dependency);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onInit() throws Exception {
+        for (CustomSetupTask task : order()) {
+            task.onInit();
+        }
+    }
+
+    @Override
+    public void onStart() throws Exception {
+        long start = System.nanoTime();
+        CustomSetupFingerprintStore store = new CustomSetupFingerprintStore(container.getService(PersistenceService.class));
+        store.createTable();
+        Map<String, String> fingerprints = force ? Collections.emptyMap() : store.loadAll();
+        String salt = store.loadSalt();
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()), runnable -> {
+            Thread thread = new Thread(runnable, "CustomSetup-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+
+        try {
+            for (CustomSetupTask task : order()) {
+                CompletableFuture<?>[] dependencies = task.getDependencies().stream().map(futures::get).toArray(CompletableFuture[]::new);
+                futures.put(
+                    task.getName(),
+                    CompletableFuture.allOf(dependencies).thenRunAsync(() -> run(task, fingerprints.get(task.getName()), salt, store), executor)
+                );
+            }
+            // Waits for every task, including the ones independent of a task that failed
+            CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        LOG.info("Custom setup completed: type=" + setupType + ", ran=" + ran.get() + ", skipped=" + skipped.get()
+            + ", time=" + (System.nanoTime() - start) / 1000000L + "ms");
+    }
+
+    protected void run(CustomSetupTask task, String storedFingerprint, String salt, CustomSetupFingerprintStore store) {
+        long start = System.nanoTime();
+        String fingerprint = task.getFingerprint(salt);
+
+        try {
+            if (fingerprint != null && fingerprint.equals(storedFingerprint)) {
+                if (task.isProvisioned()) {
+                    skipped.incrementAndGet();
+                    LOG.info("Custom setup task already provisioned, skipping: " + task.getName());
+                    return;
+                }
+                LOG.info("Custom setup task fingerprint matches but its target was reset, running again: " + task.getName());
+            }
+
+            task.onStart();
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+
+        if (fingerprint != null) {
+            store.save(task.getName(), fingerprint);
+        }
+        ran.incrementAndGet();
+        LOG.info("Custom setup task completed: " + task.getName() + ", time=" + (System.nanoTime() - start) / 1000000L + "ms");
+    }
+
+    /**
+     * Returns the tasks with every task after its dependencies.
+     */
+    protected List<CustomSetupTask> order() {
+        List<CustomSetupTask> ordered = new ArrayList<>(tasks.size());
+        Set<String> visited = new HashSet<>();
+        for (CustomSetupTask task : tasks.values()) {
+            visit(task, visited, new HashSet<>(), ordered);
+        }
+        return ordered;
+    }
+
+    protected void visit(CustomSetupTask task, Set<String> visited, Set<String> path, List<CustomSetupTask> ordered) {
+        if (visited.contains(task.getName())) {
+            return;
+        }
+        if (!path.add(task.getName())) {
+            throw new IllegalStateException("Custom setup tasks have a dependency cycle: " + path);
+        }
+        for (String dependency : task.getDependencies()) {
+            visit(tasks.get(dependency), visited, path, ordered);
+        }
+        path.remove(task.getName());
+        visited.add(task.getName());
+        ordered.add(task);
+    }
+}
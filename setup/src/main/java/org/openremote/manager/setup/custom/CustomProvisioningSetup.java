@@ -0,0 +1,400 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.setup.custom;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.hibernate.Session;
+import org.openremote.manager.setup.ManagerSetup;
+import org.openremote.model.Container;
+import org.openremote.model.asset.Asset;
+import org.openremote.model.util.ValueUtil;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.ConstraintViolationException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import static org.openremote.container.util.MapAccess.getInteger;
+
+/**
+ * Provisions a large asset tree from a file with one asset per line in the JSON format of the asset REST API (for
+ * example {@link org.openremote.model.custom.CustomAsset}s and the {@link org.openremote.agent.custom.CustomAgent}s
+ * their attributes are linked to); every asset must have an ID and a parent is referenced by its ID, either of an
+ * asset in the file (in any order) or of an asset that already exists.
+ * <p>
+ * The file is read once to work out the depth of every asset and to check that the tree is valid, then once per level
+ * of the tree inserting the assets of that level in batches of {@link #CUSTOM_PROVISIONING_BATCH_SIZE}, each in its
+ * own transaction, on {@link #CUSTOM_PROVISIONING_THREADS} threads; a level is only started once the previous one has
+ * been committed so parents always exist before their children. Assets are validated like the asset storage service
+ * does and then persisted directly rather than merged one by one; an invalid asset fails the provisioning. Assets that already exist are skipped so provisioning resumes where it
+ * stopped when it is run again after a failure.
+ */
+public class CustomProvisioningSetup extends ManagerSetup implements CustomSetupTask {
+
+    private static final Logger LOG = Logger.getLogger(CustomProvisioningSetup.class.getName());
+    public static final String NAME = "provisioning";
+    /**
+     * Part of the fingerprint; increment when {@link #onStart} provisions something different.
+     */
+    protected static final int VERSION = 1;
+    public static final String CUSTOM_PROVISIONING_FILE = "CUSTOM_PROVISIONING_FILE";
+    public static final String CUSTOM_PROVISIONING_BATCH_SIZE = "CUSTOM_PROVISIONING_BATCH_SIZE";
+    public static final int CUSTOM_PROVISIONING_BATCH_SIZE_DEFAULT = 500;
+    public static final String CUSTOM_PROVISIONING_THREADS = "CUSTOM_PROVISIONING_THREADS";
+    public static final int CUSTOM_PROVISIONING_THREADS_DEFAULT = 4;
+    public static final long PROGRESS_INTERVAL_MILLIS = 10000L;
+    protected static final byte NO_LEVEL = -1;
+    protected static final String SELECT_EXISTING = "select ID, REALM from ASSET where ID = any(?)";
+    protected static final ObjectReader ASSET_READER = ValueUtil.JSON.readerFor(Asset.class);
+    protected final Path file;
+    protected final int batchSize;
+    protected final int threads;
+    protected final LongAdder inserted = new LongAdder();
+    protected final LongAdder skipped = new LongAdder();
+    protected final AtomicLong lastProgress = new AtomicLong();
+    protected long total;
+    protected long startMillis;
+
+    public CustomProvisioningSetup(Container container, Path file) {
+        super(container);
+        this.file = file;
+        this.batchSize = Math.max(1, getInteger(container.getConfig(), CUSTOM_PROVISIONING_BATCH_SIZE, CUSTOM_PROVISIONING_BATCH_SIZE_DEFAULT));
+        this.threads = Math.max(1, getInteger(container.getConfig(), CUSTOM_PROVISIONING_THREADS, CUSTOM_PROVISIONING_THREADS_DEFAULT));
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Assets may be in the realms created by the {@link CustomKeycloakSetup} and below the assets of the
+     * {@link CustomManagerSetup}.
+     */
+    @Override
+    public Collection<String> getDependencies() {
+        return Arrays.asList(CustomKeycloakSetup.NAME, CustomManagerSetup.NAME);
+    }
+
+    @Override
+    public String getFingerprint(String salt) {
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return CustomSetupTask.fingerprint(VERSION, Base64.getEncoder().encodeToString(digest.digest()));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read custom provisioning file: " + file, e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void onStart() throws Exception {
+        super.onStart();
+
+        startMillis = System.currentTimeMillis();
+        lastProgress.set(startMillis);
+        byte[] levels = readLevels();
+        int levelCount = 0;
+        for (byte level : levels) {
+            levelCount = Math.max(levelCount, level + 1);
+        }
+
+        LOG.info("Custom provisioning started: file=" + file + ", assets=" + total + ", levels=" + levelCount
+            + ", batchSize=" + batchSize + ", threads=" + threads);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "CustomProvisioning-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            for (int level = 0; level < levelCount; level++) {
+                provisionLevel(level, levels, executor);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long millis = Math.max(1L, System.currentTimeMillis() - startMillis);
+        LOG.info("Custom provisioning completed: inserted=" + inserted.sum() + ", skipped=" + skipped.sum()
+            + ", time=" + millis + "ms, rate=" + (total * 1000L / millis) + " assets/s");
+    }
+
+    /**
+     * Reads the IDs and parents of all assets and returns the level of each line (<code>0</code> for assets whose
+     * parent is not in the file, {@link #NO_LEVEL} for blank lines).
+     */
+    protected byte[] readLevels() throws IOException {
+        List<String> ids = new ArrayList<>();
+        List<String> parentIds = new ArrayList<>();
+        List<String> realms = new ArrayList<>();
+        Map<String, Integer> lines = new HashMap<>();
+        Map<String, String> internedRealms = new HashMap<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String text;
+            while ((text = reader.readLine()) != null) {
+                int line = ids.size();
+                String id = null;
+                String parentId = null;
+                String realm = null;
+                if (!text.trim().isEmpty()) {
+                    JsonNode node = ValueUtil.JSON.readTree(text);
+                    id = node.path("id").textValue();
+                    parentId = node.path("parentId").textValue();
+                    realm = node.path("realm").textValue();
+                    if (id == null || realm == null) {
+                        throw new IllegalStateException("Custom provisioning asset must have an id and realm: line=" + (line + 1));
+                    }
+                    if (lines.putIfAbsent(id, line) != null) {
+                        throw new IllegalStateException("Duplicate custom provisioning asset: line=" + (line + 1) + ", id=" + id);
+                    }
+                    realm = internedRealms.computeIfAbsent(realm, r -> r);
+                    total++;
+                }
+                ids.add(id);
+                parentIds.add(parentId);
+                realms.add(realm);
+            }
+        }
+
+        // Parents that are not in the file must already exist in the same realm
+        Set<String> externalParentIds = new HashSet<>();
+        for (String parentId : parentIds) {
+            if (parentId != null && !lines.containsKey(parentId)) {
+                externalParentIds.add(parentId);
+            }
+        }
+        Map<String, String> externalRealms = selectExisting(externalParentIds);
+
+        byte[] levels = new byte[ids.size()];
+        Arrays.fill(levels, NO_LEVEL);
+        List<Integer> path = new ArrayList<>();
+
+        for (int line = 0; line < ids.size(); line++) {
+            // Walk up until an asset with a known level (or the root) and then assign the levels on the way back down
+            int current = line;
+            int level = -1;
+            while (ids.get(current) != null && levels[current] == NO_LEVEL) {
+                if (path.contains(current)) {
+                    throw new IllegalStateException("Custom provisioning assets have a parent cycle: id=" + ids.get(current));
+                }
+                path.add(current);
+                String parentId = parentIds.get(current);
+                Integer parentLine = parentId != null ? lines.get(parentId) : null;
+                String parentRealm = parentLine != null ? realms.get(parentLine) : parentId != null ? externalRealms.get(parentId) : realms.get(current);
+                if (parentRealm == null) {
+                    throw new IllegalStateException("Custom provisioning asset parent does not exist: id=" + ids.get(current) + ", parentId=" + parentId);
+                }
+                if (!Objects.equals(parentRealm, realms.get(current))) {
+                    throw new IllegalStateException("Custom provisioning asset is not in the realm of its parent: id=" + ids.get(current) + ", parentId=" + parentId);
+                }
+                if (parentLine == null) {
+                    break;
+                }
+                current = parentLine;
+            }
+            if (ids.get(current) != null && levels[current] != NO_LEVEL) {
+                level = levels[current];
+            }
+            for (int i = path.size() - 1; i >= 0; i--) {
+                if (++level > Byte.MAX_VALUE) {
+                    throw new IllegalStateException("Custom provisioning asset tree is too deep: id=" + ids.get(path.get(i)));
+                }
+                levels[path.get(i)] = (byte) level;
+            }
+            path.clear();
+        }
+
+        return levels;
+    }
+
+    protected void provisionLevel(int level, byte[] levels, ExecutorService executor) throws Exception {
+        // Bounds the number of batches read ahead of the threads inserting them
+        Semaphore permits = new Semaphore(threads * 2);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Future<?>> futures = new ArrayList<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            List<String> batch = new ArrayList<>(batchSize);
+            String text;
+            int line = 0;
+            while ((text = reader.readLine()) != null && failure.get() == null) {
+                if (levels[line++] != level) {
+                    continue;
+                }
+                batch.add(text);
+                if (batch.size() == batchSize) {
+                    futures.add(submit(batch, permits, failure, executor));
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty() && failure.get() == null) {
+                futures.add(submit(batch, permits, failure, executor));
+            }
+        }
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // Already recorded as the failure
+            }
+        }
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        LOG.info("Custom provisioning level completed: level=" + level + ", inserted=" + inserted.sum() + ", skipped=" + skipped.sum());
+    }
+
+    protected Future<?> submit(List<String> batch, Semaphore permits, AtomicReference<Exception> failure, ExecutorService executor) throws InterruptedException {
+        permits.acquire();
+        return executor.submit(() -> {
+            try {
+                insertBatch(batch);
+                progress();
+            } catch (Exception e) {
+                failure.compareAndSet(null, e);
+                throw e;
+            } finally {
+                permits.release();
+            }
+            return null;
+        });
+    }
+
+    protected void insertBatch(List<String> batch) throws IOException {
+        List<Asset<?>> assets = new ArrayList<>(batch.size());
+        for (String text : batch) {
+            Asset<?> asset = ASSET_READER.readValue(text);
+            // Persisting directly bypasses the validation done by the asset storage service on merge
+            Set<ConstraintViolation<Asset<?>>> violations = ValueUtil.validate(asset);
+            if (!violations.isEmpty()) {
+                LOG.warning("Custom provisioning asset failed constraint validation: id=" + asset.getId() + ", violations=" + violations);
+                throw new ConstraintViolationException(violations);
+            }
+            assets.add(asset);
+        }
+        int[] counts = new int[2];
+
+        persistenceService.doTransaction(em -> {
+            Session session = em.unwrap(Session.class);
+            session.setJdbcBatchSize(batchSize);
+            Set<String> existing = new HashSet<>();
+            session.doWork(connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(SELECT_EXISTING)) {
+                    statement.setArray(1, connection.createArrayOf("varchar", assets.stream().map(Asset::getId).toArray()));
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            existing.add(resultSet.getString(1));
+                        }
+                    }
+                }
+            });
+            for (Asset<?> asset : assets) {
+                if (existing.contains(asset.getId())) {
+                    counts[1]++;
+                } else {
+                    em.persist(asset);
+                    counts[0]++;
+                }
+            }
+        });
+
+        inserted.add(counts[0]);
+        skipped.add(counts[1]);
+    }
+
+    /**
+     * Returns the realm of each of the assets that exist.
+     */
+    protected Map<String, String> selectExisting(Collection<String> assetIds) {
+        if (assetIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> existing = new HashMap<>();
+
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_EXISTING)) {
+                statement.setArray(1, connection.createArrayOf("varchar", assetIds.toArray()));
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        existing.put(resultSet.getString(1), resultSet.getString(2));
+                    }
+                }
+            }
+        }));
+
+        return existing;
+    }
+
+    protected void progress() {
+        long now = System.currentTimeMillis();
+        long last = lastProgress.get();
+        if (now - last < PROGRESS_INTERVAL_MILLIS || !lastProgress.compareAndSet(last, now)) {
+            return;
+        }
+        long done = inserted.sum() + skipped.sum();
+        long millis = Math.max(1L, now - startMillis);
+        long rate = done * 1000L / millis;
+        LOG.info("Custom provisioning progress: " + done + "/" + total + " (" + (total > 0 ? done * 100L / total : 100L) + "%)"
+            + ", inserted=" + inserted.sum() + ", skipped=" + skipped.sum() + ", rate=" + rate + " assets/s"
+            + ", remaining=" + (rate > 0 ? (total - done) / rate : -1L) + "s");
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.setup.custom;
+
+import org.hibernate.Session;
+import org.openremote.container.persistence.PersistenceService;
+
+import java.security.SecureRandom;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores the fingerprint of each {@link CustomSetupTask} after it ran successfully in the
+ * <code>custom_setup_fingerprint</code> table, along with the random salt used for secrets in fingerprints.
+ */
+public class CustomSetupFingerprintStore {
+
+    public static final String TABLE = "custom_setup_fingerprint";
+    /**
+     * Reserved task name of the row holding the salt.
+     */
+    public static final String SALT_TASK = "#salt";
+    protected static final String CREATE_TABLE =
+        "create table if not exists " + TABLE + " (" +
+            "task varchar(255) not null primary key, " +
+            "fingerprint varchar(64) not null, " +
+            "applied_on timestamp not null default now())";
+    protected static final String UPSERT =
+        "insert into " + TABLE + " (task, fingerprint, applied_on) values (?, ?, now()) " +
+            "on conflict (task) do update set fingerprint = excluded.fingerprint, applied_on = excluded.applied_on";
+    protected static final String SELECT = "select task, fingerprint from " + TABLE + " where task <> '" + SALT_TASK + "'";
+    protected static final String INSERT_SALT =
+        "insert into " + TABLE + " (task, fingerprint) values ('" + SALT_TASK + "', ?) on conflict (task) do nothing";
+    protected static final String SELECT_SALT = "select fingerprint from " + TABLE + " where task = '" + SALT_TASK + "'";
+    protected final PersistenceService persistenceService;
+
+    public CustomSetupFingerprintStore(PersistenceService persistenceService) {
+        this.persistenceService = persistenceService;
+    }
+
+    public void createTable() {
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(CREATE_TABLE);
+            }
+        }));
+    }
+
+    /**
+     * Returns the stored fingerprints by task name.
+     */
+    public Map<String, String> loadAll() {
+        Map<String, String> fingerprints = new HashMap<>();
+
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(SELECT);
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    fingerprints.put(resultSet.getString(1), resultSet.getString(2));
+                }
+            }
+        }));
+
+        return fingerprints;
+    }
+
+    /**
+     * Returns the salt, generating and storing it the first time; concurrent first starts agree on the one stored.
+     */
+    public String loadSalt() {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        String[] salt = new String[1];
+
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_SALT)) {
+                statement.setString(1, CustomSetupTask.hex(bytes));
+                statement.executeUpdate();
+            }
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_SALT);
+                 ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                salt[0] = resultSet.getString(1);
+            }
+        }));
+
+        return salt[0];
+    }
+
+    public void save(String task, String fingerprint) {
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(UPSERT)) {
+                statement.setString(1, task);
+                statement.setString(2, fingerprint);
+                statement.executeUpdate();
+            }
+        }));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.setup.custom;
+
+import org.openremote.model.setup.Setup;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * A setup task run by {@link CustomParallelSetup}; tasks that do not depend on each other are started concurrently and
+ * a task is skipped when its {@link #getFingerprint} matches the one stored after its last successful run and
+ * {@link #isProvisioned} confirms what it provisioned still exists, so {@link #onStart} must be idempotent and should
+ * only be repeated when what it provisions has changed.
+ */
+public interface CustomSetupTask extends Setup {
+
+    /**
+     * Unique name of the task, also used as the key of its stored fingerprint.
+     */
+    String getName();
+
+    /**
+     * Names of the tasks that must have completed before this task is started.
+     */
+    default Collection<String> getDependencies() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Identifies everything the task provisions, including a version of the task itself, so that a change to any of
+     * it runs the task again; <code>null</code> runs the task on every start. The fingerprint is stored in the
+     * database so secrets such as passwords must only be included through {@link #secret} with the given salt, which
+     * is generated once per database.
+     */
+    String getFingerprint(String salt);
+
+    /**
+     * Cheaply checks that what the task provisioned still exists, for targets that can be reset independently of the
+     * stored fingerprints; a task whose fingerprint matches is run again when this returns <code>false</code>.
+     */
+    default boolean isProvisioned() throws Exception {
+        return true;
+    }
+
+    /**
+     * Returns the hex encoded SHA-256 digest of the parts.
+     */
+    static String fingerprint(Object... parts) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (Object part : parts) {
+            // Length prefixed so moving characters between adjacent parts changes the fingerprint
+            String value = String.valueOf(part);
+            digest.update((value.length() + ":" + value + ";").getBytes(StandardCharsets.UTF_8));
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * Returns the hex encoded HMAC-SHA256 of the secret keyed with the salt, to be used as a part of a fingerprint.
+     */
+    static String secret(String salt, String secret) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(salt.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return hex(mac.doFinal(String.valueOf(secret).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
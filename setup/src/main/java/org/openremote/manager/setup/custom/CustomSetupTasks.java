@@ -22,10 +22,16 @@ package org.openremote.manager.setup.custom;
 import org.openremote.model.Container;
 import org.openremote.model.setup.Setup;
 import org.openremote.model.setup.SetupTasks;
+import org.openremote.model.util.TextUtil;
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
+import static org.openremote.container.util.MapAccess.getString;
+
 public class CustomSetupTasks implements SetupTasks {
 
     public static final String PRODUCTION = "production";
@@ -35,10 +41,18 @@ public class CustomSetupTasks implements SetupTasks {
 
         boolean isProduction = PRODUCTION.equalsIgnoreCase(setupType);
 
-        // Add custom Setup task implementations here with tasks optionally dependent on setupType
-        return Arrays.asList(
+        // Add custom Setup task implementations here with tasks optionally dependent on setupType; tasks run
+        // concurrently unless they declare a dependency on another task
+        List<CustomSetupTask> tasks = new ArrayList<>(Arrays.asList(
             new CustomKeycloakSetup(container, isProduction),
             new CustomManagerSetup(container)
-        );
+        ));
+
+        String provisioningFile = getString(container.getConfig(), CustomProvisioningSetup.CUSTOM_PROVISIONING_FILE, null);
+        if (!TextUtil.isNullOrEmpty(provisioningFile)) {
+            tasks.add(new CustomProvisioningSetup(container, Paths.get(provisioningFile)));
+        }
+
+        return Collections.singletonList(new CustomParallelSetup(container, setupType, tasks));
     }
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.model.custom.CustomData
+import org.openremote.model.custom.CustomDataCodec
+import spock.lang.Specification
+
+class CustomDataCodecTest extends Specification {
+
+    static byte[] encode(List<List<CustomData>> batches) {
+        def out = new ByteArrayOutputStream()
+        def encoder = new CustomDataCodec.Encoder(out)
+        batches.each { encoder.writeBatch(it) }
+        encoder.flush()
+        out.toByteArray()
+    }
+
+    static List<CustomData> decode(byte[] bytes) {
+        def decoder = new CustomDataCodec.Decoder(new ByteArrayInputStream(bytes))
+        def records = []
+        CustomData record
+        while ((record = decoder.next()) != null) {
+            records.add(record)
+        }
+        records
+    }
+
+    /**
+     * A stream with a valid header followed by the given varints and bytes.
+     */
+    static byte[] stream(List<Long> varints, byte[] trailer = new byte[0]) {
+        def out = new ByteArrayOutputStream()
+        out.write(CustomDataCodec.MAGIC)
+        out.write(CustomDataCodec.VERSION)
+        varints.each { long value ->
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80))
+                value >>>= 7
+            }
+            out.write((int) value)
+        }
+        out.write(trailer)
+        out.toByteArray()
+    }
+
+    def "Check custom data records decode to what was encoded"() {
+
+        given: "batches of records covering every field and value type"
+        def named = new CustomData("asset1", "temperature", 21.5d, 1000L)
+        named.@name = "Sensor"
+        named.@age = -3
+        def records = [
+            named,
+            new CustomData("asset1", "temperature", 0.1d, 999L),
+            new CustomData("asset2", "count", 42, 5000L),
+            new CustomData("asset2", "count", Long.MIN_VALUE, 4000L),
+            new CustomData("asset1", "enabled", true, null),
+            new CustomData("asset1", "enabled", false, 6000L),
+            new CustomData("asset2", "label", "Ünïcode", 6000L),
+            new CustomData("asset2", "label", null, 7000L),
+            new CustomData(null, null, 1d, null)
+        ]
+        // Enough records to cross the encoder and decoder buffers many times over
+        def bulk = (0..<5000).collect { new CustomData("asset" + it % 10, "reading", it / 7d, 10000L + it * 3) }
+
+        when: "they are encoded and decoded"
+        def decoded = decode(encode([records, [], bulk]))
+
+        then: "every record should match the original"
+        decoded.size() == records.size() + bulk.size()
+        [records + bulk, decoded].transpose().every { CustomData expected, CustomData actual ->
+            assert actual.name == expected.name
+            assert actual.age == expected.age
+            assert actual.assetId == expected.assetId
+            assert actual.attributeName == expected.attributeName
+            assert actual.value == expected.value
+            assert actual.timestamp == expected.timestamp
+            true
+        }
+    }
+
+    def "Check truncated custom data streams are rejected"() {
+
+        given: "an encoded batch"
+        def bytes = encode([(0..<5).collect { new CustomData("asset" + it % 2, "reading", it * 0.1d, 1000L - it) }])
+
+        expect: "every cut short of the end other than right after the header to fail with an end of stream"
+        (0..<bytes.length).findAll { it != 3 }.every { cut ->
+            try {
+                decode(Arrays.copyOf(bytes, cut))
+                assert false: "Truncated stream of ${cut} bytes was accepted"
+            } catch (EOFException ignored) {
+            }
+            true
+        }
+
+        and: "a stream with only the header to hold no records"
+        decode(Arrays.copyOf(bytes, 3)).isEmpty()
+    }
+
+    def "Check custom data streams with an unknown header are rejected"() {
+
+        when: "a stream with a newer version is decoded"
+        decode([CustomDataCodec.MAGIC[0], CustomDataCodec.MAGIC[1], CustomDataCodec.VERSION + 1] as byte[])
+
+        then: "it should be rejected"
+        def e = thrown(IOException)
+        e.message.contains("Unsupported custom data stream version")
+
+        when: "a stream with version zero is decoded"
+        decode([CustomDataCodec.MAGIC[0], CustomDataCodec.MAGIC[1], 0] as byte[])
+
+        then: "it should be rejected"
+        e = thrown(IOException)
+        e.message.contains("Unsupported custom data stream version")
+
+        when: "a stream with the wrong magic bytes is decoded"
+        decode("{\"a\":1}".bytes)
+
+        then: "it should be rejected"
+        e = thrown(IOException)
+        e.message.contains("Not a custom data stream")
+    }
+
+    def "Check custom data streams with oversized or malformed lengths are rejected"() {
+
+        when: "a batch claims more records than allowed"
+        decode(stream([CustomDataCodec.MAX_BATCH_RECORDS + 1L]))
+
+        then: "it should be rejected before any record is read"
+        def e = thrown(IOException)
+        e.message.contains("batch is too large")
+
+        when: "a string claims more bytes than allowed"
+        decode(stream([1L, 1L, 0L, CustomDataCodec.MAX_STRING_BYTES + 1L]))
+
+        then: "it should be rejected before the string is read"
+        e = thrown(IOException)
+        e.message.contains("string is too long")
+
+        when: "a string refers to one that has not been sent"
+        decode(stream([1L, 1L, 5L]))
+
+        then: "it should be rejected"
+        e = thrown(IOException)
+        e.message.contains("Unknown custom data string reference")
+
+        when: "a varint does not end within 64 bits"
+        decode(stream([], ([0xFF] * 10 + [0x01]) as byte[]))
+
+        then: "it should be rejected"
+        e = thrown(IOException)
+        e.message.contains("Malformed custom data varint")
+
+        when: "a record has an unknown value type"
+        decode(stream([1L, 7L << 4]))
+
+        then: "it should be rejected"
+        e = thrown(IOException)
+        e.message.contains("Unknown custom data value type")
+
+        when: "a string that is too long is encoded"
+        encode([[new CustomData("asset1", "label", "x" * (CustomDataCodec.MAX_STRING_BYTES + 1), 1000L)]])
+
+        then: "it should be rejected"
+        e = thrown(IOException)
+        e.message.contains("String is too long to encode")
+    }
+}
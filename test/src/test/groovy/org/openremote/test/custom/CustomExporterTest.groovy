@@ -0,0 +1,141 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import groovy.json.JsonSlurper
+import org.openremote.container.persistence.PersistenceService
+import org.openremote.manager.asset.AssetStorageService
+import org.openremote.manager.custom.CustomExporter
+import org.openremote.model.Constants
+import org.openremote.model.custom.CustomAsset
+import org.openremote.model.custom.CustomExportFormat
+import org.openremote.test.ManagerContainerTrait
+import spock.lang.Specification
+
+import java.sql.Timestamp
+
+class CustomExporterTest extends Specification implements ManagerContainerTrait {
+
+    static final long BASE_TIMESTAMP = 1600000000000L
+    static final String ASSET_TYPE = CustomAsset.class.simpleName
+
+    def "Check custom exports can be resumed from the continuation token of any row"() {
+
+        when: "the container starts"
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort), defaultServices())
+        def assetStorageService = container.getService(AssetStorageService.class)
+        def persistenceService = container.getService(PersistenceService.class)
+        // A small fetch size so every export spans several pages of the cursor
+        def exporter = new CustomExporter(persistenceService, 2)
+        def slurper = new JsonSlurper()
+        def exportRows = { Closure export ->
+            def out = new ByteArrayOutputStream()
+            export(out)
+            out.toString("UTF-8").readLines().collect { slurper.parseText(it) }
+        }
+
+        and: "assets are added with datapoints of two attributes where assets share timestamps"
+        def assetIds = (0..<3).collect {
+            assetStorageService.merge(new CustomAsset("Export Asset, " + it)
+                .setRealm(Constants.MASTER_REALM)
+                .setCustomAttribute(CustomAsset.CustomValueType.ONE)).id
+        }
+        persistenceService.doTransaction { em ->
+            assetIds.each { assetId ->
+                ["a", "b"].each { attributeName ->
+                    (0..<3).each { step ->
+                        em.createNativeQuery("insert into ASSET_DATAPOINT (TIMESTAMP, ENTITY_ID, ATTRIBUTE_NAME, VALUE) values (?1, ?2, ?3, cast(?4 as jsonb))")
+                            .setParameter(1, new Timestamp(BASE_TIMESTAMP + step * 1000L))
+                            .setParameter(2, assetId)
+                            .setParameter(3, attributeName)
+                            .setParameter(4, Integer.toString(step))
+                            .executeUpdate()
+                    }
+                }
+            }
+        }
+
+        and: "the assets are exported"
+        def assets = exportRows { exporter.exportAssets(Constants.MASTER_REALM, ASSET_TYPE, null, CustomExportFormat.NDJSON, it) }
+
+        then: "every asset should be exported once with a continuation token"
+        assets*.id.findAll { it in assetIds }.sort() == assetIds.sort()
+        assets*.id.unique(false).size() == assets.size()
+        assets.every { CustomExporter.parseAssetContinuation(it.continuation) != null }
+
+        and: "resuming after any asset should export exactly the assets that followed it"
+        assets.indices.every { index ->
+            def after = CustomExporter.parseAssetContinuation(assets[index].continuation)
+            assert exportRows { exporter.exportAssets(Constants.MASTER_REALM, ASSET_TYPE, after, CustomExportFormat.NDJSON, it) }*.id == assets.drop(index + 1)*.id
+            true
+        }
+
+        when: "the datapoints are exported without a range"
+        def datapoints = exportRows { exporter.exportDatapoints(Constants.MASTER_REALM, ASSET_TYPE, null, null, null, CustomExportFormat.NDJSON, it) }
+        def ours = datapoints.findAll { it.assetId in assetIds }
+
+        then: "every datapoint should be exported once in timestamp order"
+        ours.size() == 18
+        ours.collect { [it.timestamp, it.assetId, it.attributeName] }.unique(false).size() == 18
+        datapoints*.timestamp == datapoints*.timestamp.sort(false)
+
+        and: "resuming after any datapoint should export exactly the datapoints that followed it, also between rows sharing a timestamp"
+        datapoints.indices.every { index ->
+            def after = CustomExporter.parseDatapointContinuation(datapoints[index].continuation)
+            def resumed = exportRows { exporter.exportDatapoints(Constants.MASTER_REALM, ASSET_TYPE, null, null, after, CustomExportFormat.NDJSON, it) }
+            assert resumed*.continuation == datapoints.drop(index + 1)*.continuation
+            true
+        }
+
+        when: "the datapoints of a range are exported and resumed"
+        def from = BASE_TIMESTAMP + 1000L
+        def to = BASE_TIMESTAMP + 2000L
+        def range = exportRows { exporter.exportDatapoints(Constants.MASTER_REALM, ASSET_TYPE, from, to, null, CustomExportFormat.NDJSON, it) }
+        def rangeResumed = exportRows {
+            exporter.exportDatapoints(Constants.MASTER_REALM, ASSET_TYPE, from, to, CustomExporter.parseDatapointContinuation(range[0].continuation), CustomExportFormat.NDJSON, it)
+        }
+
+        then: "only the datapoints within the range should be exported"
+        range.findAll { it.assetId in assetIds }.size() == 6
+        range.every { it.timestamp >= from && it.timestamp < to }
+        rangeResumed*.continuation == range.drop(1)*.continuation
+
+        when: "the assets are exported as CSV"
+        def out = new ByteArrayOutputStream()
+        exporter.exportAssets(Constants.MASTER_REALM, ASSET_TYPE, null, CustomExportFormat.CSV, out)
+        def lines = out.toString("UTF-8").readLines()
+
+        then: "every row should carry the same continuation token with fields quoted where needed"
+        lines[0] == "id,name,parentId,createdOn,attributes,continuation"
+        lines.size() == assets.size() + 1
+        assets.every { asset ->
+            lines.any { it.startsWith(asset.id + ",") && it.endsWith("," + asset.continuation) }
+        }
+        assetIds.every { assetId ->
+            lines.any { it.startsWith(assetId + ",\"Export Asset, ") }
+        }
+
+        and: "tokens of the wrong kind or encoding should be refused"
+        CustomExporter.parseDatapointContinuation(assets[0].continuation) == null
+        CustomExporter.parseAssetContinuation(datapoints[0].continuation) == null
+        CustomExporter.parseAssetContinuation("not a token!") == null
+    }
+}
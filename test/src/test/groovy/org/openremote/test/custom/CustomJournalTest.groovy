@@ -0,0 +1,232 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.agent.custom.CustomAgent
+import org.openremote.agent.custom.CustomJournal
+import org.openremote.agent.custom.CustomProtocol
+import org.openremote.manager.agent.AgentService
+import org.openremote.manager.asset.AssetStorageService
+import org.openremote.model.Constants
+import org.openremote.model.asset.agent.DefaultAgentLink
+import org.openremote.model.attribute.AttributeRef
+import org.openremote.model.attribute.MetaItem
+import org.openremote.model.custom.CustomAsset
+import org.openremote.model.value.MetaItemType
+import org.openremote.test.ManagerContainerTrait
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+import static org.openremote.model.custom.CustomAsset.CUSTOM_VALUE_TYPE_ATTRIBUTE_DESCRIPTOR
+
+class CustomJournalTest extends Specification implements ManagerContainerTrait {
+
+    static long segmentCount(Path directory) {
+        Files.list(directory).withCloseable { files ->
+            files.filter { it.fileName.toString().endsWith(CustomJournal.SEGMENT_SUFFIX) }.count()
+        }
+    }
+
+    static List<Long> replayPositions(CustomJournal journal, long position) {
+        def positions = []
+        journal.replay(position, Integer.MAX_VALUE, { long recordPosition, int deviceId, int channel, double value, long timestamp ->
+            assert deviceId == 7
+            assert channel == 1
+            assert value == recordPosition * 10
+            assert timestamp == 1000 + recordPosition
+            positions.add(recordPosition)
+        } as CustomJournal.RecordHandler)
+        positions
+    }
+
+    def "Check custom journal appends, rolls segments, replays after a crash and recycles acknowledged segments"() {
+
+        given: "a journal with small segments"
+        def directory = Files.createTempDirectory("custom-journal")
+        def journal = new CustomJournal(directory, 4)
+        journal.open()
+
+        when: "readings are appended"
+        10.times { journal.append(7, 1, it * 10, 1000 + it) }
+
+        then: "they should be written in order over several segments"
+        journal.writePosition == 10
+        journal.backlog == 10
+        segmentCount(directory) == 3
+        replayPositions(journal, 0) == (0L..9L).toList()
+
+        when: "part of the journal is acknowledged"
+        journal.acknowledge(6)
+
+        and: "the process crashes while the last reading is being written"
+        def tornRecord = directory.resolve(String.format("%020d", 8) + CustomJournal.SEGMENT_SUFFIX).toFile()
+        new RandomAccessFile(tornRecord, "rw").withCloseable {
+            it.seek(CustomJournal.RECORD_SIZE)
+            it.writeLong(-1)
+        }
+
+        and: "the journal is opened again without having been closed"
+        def recovered = new CustomJournal(directory, 4)
+        recovered.open()
+
+        then: "only the unacknowledged readings that were completely written should be replayed"
+        recovered.ackPosition == 6
+        recovered.writePosition == 9
+        replayPositions(recovered, recovered.ackPosition) == [6L, 7L, 8L]
+
+        when: "the replayed readings are acknowledged and more readings are appended than the spare segments hold"
+        recovered.acknowledge(9)
+        (9..20).each { recovered.append(7, 1, it * 10, 1000 + it) }
+
+        then: "the new readings should follow on from the recovered position"
+        recovered.writePosition == 21
+        replayPositions(recovered, 9) == (9L..20L).toList()
+        segmentCount(directory) == 4
+
+        when: "everything is acknowledged"
+        recovered.acknowledge(recovered.writePosition)
+
+        then: "nothing should be left to replay and only the spare segments should be kept"
+        recovered.backlog == 0
+        replayPositions(recovered, recovered.ackPosition).isEmpty()
+        segmentCount(directory) == 1 + CustomJournal.MAX_SPARE_SEGMENTS
+
+        when: "the journal is closed and opened again"
+        recovered.close()
+        recovered = new CustomJournal(directory, 4)
+        recovered.open()
+
+        then: "it should continue from where it was closed with nothing to replay"
+        recovered.writePosition == 21
+        recovered.ackPosition == 21
+        recovered.backlog == 0
+
+        cleanup: "the journals are closed"
+        journal?.close()
+        recovered?.close()
+        directory?.toFile()?.deleteDir()
+    }
+
+    def "Check custom protocol replays unacknowledged readings exactly once after a restart"() {
+
+        given: "expected conditions"
+        def conditions = new PollingConditions(timeout: 10, delay: 0.2)
+
+        when: "the container starts"
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort), defaultServices())
+        def assetStorageService = container.getService(AssetStorageService.class)
+        def agentService = container.getService(AgentService.class)
+
+        and: "a journalled custom agent is added that does not flush within the test"
+        def agent = new CustomAgent("Test Agent")
+            .setRealm(Constants.MASTER_REALM)
+            .setOption(CustomAgent.Option.ONE)
+            .setTransport(CustomAgent.Transport.UDP)
+            .setFlushWindow(600000)
+            .setJournal(true)
+        agent = assetStorageService.merge(agent)
+
+        then: "the protocol should be listening"
+        CustomProtocol protocol = null
+        conditions.eventually {
+            protocol = agentService.protocolInstanceMap.get(agent.id) as CustomProtocol
+            assert protocol != null
+            assert protocol.running
+            assert protocol.transport.localPort > 0
+        }
+
+        when: "an asset with an attribute linked to a device channel is added"
+        def asset = new CustomAsset("Test Asset")
+            .setRealm(Constants.MASTER_REALM)
+            .setCustomAttribute(CustomAsset.CustomValueType.ONE)
+        asset.getAttribute(CUSTOM_VALUE_TYPE_ATTRIBUTE_DESCRIPTOR).get().addOrReplaceMeta(
+            new MetaItem<>(MetaItemType.AGENT_LINK, new DefaultAgentLink(agent.id)),
+            new MetaItem<>(CustomAgent.DEVICE_ID_META_ITEM_DESCRIPTOR, 7),
+            new MetaItem<>(CustomAgent.DEVICE_CHANNEL_META_ITEM_DESCRIPTOR, 1)
+        )
+        asset = assetStorageService.merge(asset)
+
+        then: "the attribute should be linked"
+        conditions.eventually {
+            assert protocol.linkedAttributes.containsKey(new AttributeRef(asset.id, CUSTOM_VALUE_TYPE_ATTRIBUTE_DESCRIPTOR.name))
+        }
+
+        when: "a simulated device sends readings"
+        def simulator = new CustomDeviceSimulator(CustomAgent.Transport.UDP, new InetSocketAddress("127.0.0.1", protocol.transport.localPort)).connect()
+        250.times { simulator.send(7, 1, (it + 1) % 3) }
+
+        then: "the readings should be journalled but not acknowledged"
+        conditions.eventually {
+            assert protocol.journal.writePosition == 250
+        }
+        protocol.journal.ackPosition == 0
+        protocol.metrics.eventsEmitted == 0
+
+        when: "the protocol is restarted with a flush window that lets events through"
+        agent.setFlushWindow(50)
+        agent = assetStorageService.merge(agent)
+
+        then: "the journalled readings should be replayed exactly once and acknowledged"
+        CustomProtocol restarted = null
+        conditions.eventually {
+            restarted = agentService.protocolInstanceMap.get(agent.id) as CustomProtocol
+            assert restarted != null
+            assert restarted != protocol
+            assert restarted.running
+            assert restarted.journal.ackPosition == 250
+            assert !restarted.replaying
+        }
+        restarted.journal.backlog == 0
+        restarted.metrics.eventsEmitted == 250
+        restarted.metrics.eventsFailed == 0
+
+        and: "the attribute should hold the last replayed reading"
+        conditions.eventually {
+            def customAsset = assetStorageService.find(asset.id) as CustomAsset
+            assert customAsset.customAttribute.orElse(null) == CustomAsset.CustomValueType.TWO
+        }
+
+        when: "the protocol is restarted again"
+        agent.setFlushWindow(100)
+        agent = assetStorageService.merge(agent)
+
+        then: "nothing should be replayed a second time"
+        CustomProtocol restartedAgain = null
+        conditions.eventually {
+            restartedAgain = agentService.protocolInstanceMap.get(agent.id) as CustomProtocol
+            assert restartedAgain != null
+            assert restartedAgain != restarted
+            assert restartedAgain.running
+        }
+        restartedAgain.journal.writePosition == 250
+        restartedAgain.journal.backlog == 0
+        !restartedAgain.replaying
+        new PollingConditions(timeout: 1, initialDelay: 1).eventually {
+            assert restartedAgain.metrics.eventsEmitted == 0
+        }
+
+        cleanup: "the simulator is closed"
+        simulator?.close()
+    }
+}
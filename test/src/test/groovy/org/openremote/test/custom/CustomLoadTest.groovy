@@ -0,0 +1,178 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.agent.custom.CustomAgent
+import org.openremote.agent.custom.CustomProtocol
+import org.openremote.manager.agent.AgentService
+import org.openremote.manager.asset.AssetStorageService
+import org.openremote.manager.event.ClientEventService
+import org.openremote.model.Constants
+import org.openremote.model.asset.agent.DefaultAgentLink
+import org.openremote.model.attribute.Attribute
+import org.openremote.model.attribute.AttributeEvent
+import org.openremote.model.attribute.MetaItem
+import org.openremote.model.custom.CustomAsset
+import org.openremote.model.value.MetaItemType
+import org.openremote.model.value.ValueType
+import org.openremote.test.ManagerContainerTrait
+import spock.lang.IgnoreIf
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryType
+import java.util.concurrent.TimeUnit
+
+/**
+ * Load and soak test of the custom agent ingest path; only runs when the <code>custom.load.test</code> system property
+ * is <code>true</code>, e.g. <code>./gradlew :test:test --tests '*CustomLoadTest' -Dcustom.load.test=true</code>. The
+ * load is configured with the following system properties:
+ * <ul>
+ * <li><code>custom.load.agents</code> - number of {@link CustomAgent}s, each with its own simulator (default 4)
+ * <li><code>custom.load.assets</code> - number of linked {@link CustomAsset}s spread over the agents (default 1000)
+ * <li><code>custom.load.rate</code> - device readings per second over all agents (default 5000)
+ * <li><code>custom.load.minutes</code> - duration of the soak (default 30)
+ * <li><code>custom.load.reportSeconds</code> - interval of the progress reports (default 60)
+ * <li><code>custom.load.maxP99Millis</code> - optional bound on the p99 latency of every report interval
+ * <li><code>custom.load.maxHeapGrowthMb</code> - optional bound on the growth of the heap retained after GC
+ * </ul>
+ */
+@IgnoreIf({ !Boolean.getBoolean("custom.load.test") })
+class CustomLoadTest extends Specification implements ManagerContainerTrait {
+
+    static final String READING_ATTRIBUTE = "reading"
+    static final int READING_CHANNEL = 1
+
+    def "Soak custom agents with simulated device readings"() {
+
+        given: "the load settings"
+        def assetCount = Math.max(1, Integer.getInteger("custom.load.assets", 1000))
+        def agentCount = Math.min(assetCount, Math.max(1, Integer.getInteger("custom.load.agents", 4)))
+        def rate = Integer.getInteger("custom.load.rate", 5000)
+        def minutes = Integer.getInteger("custom.load.minutes", 30)
+        def reportSeconds = Integer.getInteger("custom.load.reportSeconds", 60)
+        def maxP99Millis = Long.getLong("custom.load.maxP99Millis")
+        def maxHeapGrowthMb = Long.getLong("custom.load.maxHeapGrowthMb")
+        def conditions = new PollingConditions(timeout: 120, delay: 1)
+
+        when: "the container starts"
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort), defaultServices())
+        def assetStorageService = container.getService(AssetStorageService.class)
+        def agentService = container.getService(AgentService.class)
+        def clientEventService = container.getService(ClientEventService.class)
+
+        and: "the custom agents are added"
+        def agents = (0..<agentCount).collect {
+            assetStorageService.merge(new CustomAgent("Load Agent " + it)
+                .setRealm(Constants.MASTER_REALM)
+                .setOption(CustomAgent.Option.ONE)
+                .setTransport(CustomAgent.Transport.UDP)
+                .setFlushWindow(50))
+        }
+
+        then: "every protocol should be listening"
+        List<CustomProtocol> protocols = []
+        conditions.eventually {
+            protocols = agents.collect { agentService.protocolInstanceMap.get(it.id) as CustomProtocol }
+            assert protocols.every { it != null && it.running && it.transport.localPort > 0 }
+        }
+
+        when: "the assets are added with a numeric attribute linked to a device of one of the agents"
+        int[][] deviceIds = new int[agentCount][]
+        (0..<agentCount).each { deviceIds[it] = new int[(assetCount - it + agentCount - 1).intdiv(agentCount)] }
+        (0..<assetCount).each {
+            def agentIndex = it % agentCount
+            def deviceId = it + 1
+            deviceIds[agentIndex][it.intdiv(agentCount)] = deviceId
+            def asset = new CustomAsset("Load Asset " + it)
+                .setRealm(Constants.MASTER_REALM)
+                .setCustomAttribute(CustomAsset.CustomValueType.ONE)
+            def reading = new Attribute<>(READING_ATTRIBUTE, ValueType.NUMBER)
+            reading.addOrReplaceMeta(
+                new MetaItem<>(MetaItemType.AGENT_LINK, new DefaultAgentLink(agents[agentIndex].id)),
+                new MetaItem<>(CustomAgent.DEVICE_ID_META_ITEM_DESCRIPTOR, deviceId),
+                new MetaItem<>(CustomAgent.DEVICE_CHANNEL_META_ITEM_DESCRIPTOR, READING_CHANNEL)
+            )
+            asset.getAttributes().addOrReplace(reading)
+            assetStorageService.merge(asset)
+        }
+
+        then: "every attribute should be linked"
+        conditions.eventually {
+            assert protocols.sum { it.linkedAttributes.size() } == assetCount
+        }
+
+        when: "the simulators are driven at the configured rate for the duration of the soak"
+        def simulators = protocols.collect {
+            new CustomDeviceSimulator(CustomAgent.Transport.UDP, new InetSocketAddress("127.0.0.1", it.transport.localPort)).connect()
+        } as CustomDeviceSimulator[]
+        def generator = new CustomLoadGenerator(simulators, deviceIds, READING_CHANNEL, rate)
+        clientEventService.addInternalSubscription(AttributeEvent.class, null, { AttributeEvent event ->
+            if (event.attributeName == READING_ATTRIBUTE) {
+                generator.onValue(event.value.orElse(null))
+            }
+        })
+        def gcBeans = ManagementFactory.getGarbageCollectorMXBeans()
+        def gcMillis = { gcBeans.sum { Math.max(0L, it.collectionTime) } as long }
+        // Heap retained after the most recent collection of each pool; unlike the current usage this does not swing
+        // with allocation between collections so it shows what the soak leaves behind
+        def retainedHeapMb = {
+            ManagementFactory.getMemoryPoolMXBeans()
+                .findAll { it.type == MemoryType.HEAP && it.collectionUsage != null }
+                .sum { it.collectionUsage.used }
+                .intdiv(1024 * 1024) as long
+        }
+        def reports = []
+        generator.start()
+        // The first interval includes JIT warm up so the heap baseline is taken after it
+        Thread.sleep(TimeUnit.SECONDS.toMillis(reportSeconds))
+        generator.snapshot()
+        def startHeapMb = retainedHeapMb()
+        def startGcMillis = gcMillis()
+        def previousGcMillis = startGcMillis
+        def end = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(minutes)
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(reportSeconds), Math.max(1L, end - System.currentTimeMillis())))
+            def window = generator.snapshot()
+            def currentGcMillis = gcMillis()
+            def report = [window: window, gcMillis: currentGcMillis - previousGcMillis, heapMb: retainedHeapMb()]
+            previousGcMillis = currentGcMillis
+            reports.add(report)
+            println("Custom load: ${window}, GC pauses=${report.gcMillis}ms, retained heap=${report.heapMb}MB")
+        }
+        generator.stop()
+        def heapGrowthMb = retainedHeapMb() - startHeapMb
+        println("Custom load summary: agents=${agentCount}, assets=${assetCount}, rate=${rate}/s, minutes=${minutes}, " +
+            "sent=${generator.sent}, received=${generator.received}, failed=${generator.failed}, " +
+            "worst p99=${reports*.window*.p99Millis.max()}ms, GC pauses=${gcMillis() - startGcMillis}ms, heap growth=${heapGrowthMb}MB")
+
+        then: "readings should have been delivered throughout the soak within the configured bounds"
+        generator.failed == 0
+        reports.every { it.window.received > 0 }
+        maxP99Millis == null || reports.every { it.window.p99Millis <= maxP99Millis }
+        maxHeapGrowthMb == null || heapGrowthMb <= maxHeapGrowthMb
+
+        cleanup: "the simulators are closed"
+        generator?.stop()
+        simulators?.each { it.close() }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.agent.custom.CustomPollScheduler
+import spock.lang.Specification
+
+class CustomPollSchedulerTest extends Specification {
+
+    static final long TICK_MILLIS = 100L
+    // One revolution of the wheel is 800ms so every interval below takes more than one round
+    static final int WHEEL_SIZE = 8
+    static final long SLOW_RESPONSE_MILLIS = 50L
+
+    // The wheel is ticked by the spec against a clock it controls
+    long now = 100000L
+    boolean responding
+    Map<Integer, Integer> devices = [:]
+    List<Map> reads = []
+    CustomPollScheduler scheduler = new CustomPollScheduler(TICK_MILLIS, WHEEL_SIZE, SLOW_RESPONSE_MILLIS, { int deviceId, int[] channels, int count ->
+        reads.add([deviceId: deviceId, channels: channels.toList().take(count), at: now])
+    } as CustomPollScheduler.Sender)
+
+    void schedule(int slot, int device, int deviceId, int channel, long intervalMillis) {
+        devices[deviceId] = device
+        scheduler.schedule(slot, device, deviceId, channel, intervalMillis, now)
+    }
+
+    /**
+     * Moves the clock forward in a single tick; devices answer straight away while {@link #responding}.
+     */
+    void jump(long millis) {
+        now += millis
+        scheduler.tick(now)
+        if (responding) {
+            reads.findAll { it.at == now }.each { scheduler.onResponse(devices[it.deviceId], now) }
+        }
+    }
+
+    void advance(long millis) {
+        long until = now + millis
+        while (now < until) {
+            jump(TICK_MILLIS)
+        }
+    }
+
+    void advanceUntil(Closure<Boolean> condition) {
+        int ticks = 0
+        while (!condition()) {
+            assert ticks++ < 10000
+            jump(TICK_MILLIS)
+        }
+    }
+
+    List<Long> readTimes(int deviceId) {
+        reads.findAll { it.deviceId == deviceId }*.at
+    }
+
+    static List<Long> gaps(List<Long> times) {
+        (1..<times.size()).collect { times[it] - times[it - 1] }
+    }
+
+    def "Check custom poll scheduler reads intervals longer than the wheel on time, also after a stall"() {
+
+        given: "two channels of one device and a channel of another device polled every 2 seconds"
+        responding = true
+        schedule(0, 0, 7, 1, 2000L)
+        schedule(1, 0, 7, 2, 2000L)
+        schedule(2, 1, 9, 1, 2000L)
+
+        when: "the wheel is ticked for three intervals"
+        advance(6000L)
+
+        then: "each device should be read once per interval with the channels of a device in a single frame"
+        readTimes(7).size() == 3
+        gaps(readTimes(7)) == [2000L, 2000L]
+        reads.findAll { it.deviceId == 7 }.every { it.channels == [1, 2] }
+        readTimes(9).size() == 3
+        gaps(readTimes(9)) == [2000L, 2000L]
+
+        when: "the wheel stalls for longer than a revolution past the next read of the first device"
+        long due = readTimes(7).last() + 2000L
+        jump(due + 1000L - now)
+
+        then: "the missed read should be sent once when the wheel catches up"
+        readTimes(7).last() == now
+        readTimes(7).size() == 4
+        reads.findAll { it.deviceId == 7 }.last().channels == [1, 2]
+
+        when: "the wheel keeps ticking"
+        advance(3000L)
+
+        then: "the device should be read on its original phase again"
+        readTimes(7).takeRight(3) == [due + 1000L, due + 2000L, due + 4000L]
+    }
+
+    def "Check custom poll scheduler backs off devices that do not answer and recovers once they do"() {
+
+        given: "a channel polled every second of a device that does not answer"
+        schedule(0, 0, 7, 1, 1000L)
+
+        when: "the device is read a few times"
+        advanceUntil { readTimes(7).size() == 4 }
+
+        then: "the interval should double after every unanswered read"
+        gaps(readTimes(7)) == [1000L, 2000L, 4000L]
+        scheduler.backedOff == 3
+
+        when: "the device answers the last read and every read after it"
+        scheduler.onResponse(0, now)
+        responding = true
+        advanceUntil { readTimes(7).size() == 8 }
+
+        then: "the interval should halve after every quick answer until it is back to the configured interval"
+        gaps(readTimes(7)) == [1000L, 2000L, 4000L, 8000L, 4000L, 2000L, 1000L]
+        scheduler.backedOff == 3
+
+        when: "the device keeps answering"
+        advanceUntil { readTimes(7).size() == 10 }
+
+        then: "the interval should stay at the configured interval"
+        gaps(readTimes(7)).takeRight(2) == [1000L, 1000L]
+    }
+
+    def "Check custom poll scheduler forgets the backoff of a device when its index is reused"() {
+
+        given: "a channel polled every second of a device that does not answer"
+        schedule(0, 0, 7, 1, 1000L)
+
+        when: "the device is backed off"
+        advanceUntil { readTimes(7).size() == 3 }
+
+        then: "its interval should have grown"
+        gaps(readTimes(7)) == [1000L, 2000L]
+
+        when: "the device is unlinked and its index is reused for another device"
+        scheduler.cancel(0)
+        long rescheduled = now
+        schedule(0, 0, 8, 1, 1000L)
+        advanceUntil { readTimes(8).size() == 3 }
+
+        then: "the other device should be polled from the configured interval rather than the backoff of the first one"
+        readTimes(8)[0] - rescheduled <= 1000L
+        gaps(readTimes(8)) == [1000L, 2000L]
+
+        and: "the first device should no longer be read"
+        readTimes(7).size() == 3
+        scheduler.scheduled == 1
+    }
+}
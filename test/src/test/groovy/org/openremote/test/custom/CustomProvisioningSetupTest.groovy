@@ -0,0 +1,216 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.manager.asset.AssetStorageService
+import org.openremote.manager.setup.custom.CustomProvisioningSetup
+import org.openremote.model.Constants
+import org.openremote.model.custom.CustomAsset
+import org.openremote.model.query.AssetQuery
+import org.openremote.model.util.UniqueIdentifierGenerator
+import org.openremote.model.util.ValueUtil
+import org.openremote.test.ManagerContainerTrait
+import spock.lang.Shared
+import spock.lang.Specification
+
+import javax.validation.ConstraintViolationException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.atomic.AtomicInteger
+
+import static org.openremote.manager.setup.custom.CustomProvisioningSetup.CUSTOM_PROVISIONING_BATCH_SIZE
+import static org.openremote.manager.setup.custom.CustomProvisioningSetup.CUSTOM_PROVISIONING_THREADS
+
+class CustomProvisioningSetupTest extends Specification implements ManagerContainerTrait {
+
+    static final String OTHER_REALM = "other"
+
+    @Shared
+    def container
+    @Shared
+    AssetStorageService assetStorageService
+    @Shared
+    String existingId
+
+    def setupSpec() {
+        def serverPort = findEphemeralPort()
+        def config = defaultConfig(serverPort)
+        config.put(CUSTOM_PROVISIONING_BATCH_SIZE, "5")
+        config.put(CUSTOM_PROVISIONING_THREADS, "2")
+        container = startContainer(config, defaultServices())
+        assetStorageService = container.getService(AssetStorageService.class)
+        existingId = assetStorageService.merge(new CustomAsset("Provisioning Parent").setRealm(Constants.MASTER_REALM)).id
+    }
+
+    static CustomAsset asset(String id, String realm, String parentId) {
+        new CustomAsset("Provisioned " + id).setRealm(realm).setId(id).setParentId(parentId) as CustomAsset
+    }
+
+    /**
+     * Writes the assets one per line; <code>null</code> entries become blank lines.
+     */
+    static Path writeTree(List<CustomAsset> assets) {
+        def file = Files.createTempFile("custom-provisioning", ".ndjson")
+        file.toFile().deleteOnExit()
+        file.text = assets.collect { it != null ? ValueUtil.JSON.writeValueAsString(it) : "" }.join("\n")
+        file
+    }
+
+    static String id() {
+        UniqueIdentifierGenerator.generateId()
+    }
+
+    int countExisting(List<String> ids) {
+        assetStorageService.findAll(new AssetQuery().ids(ids as String[])).size()
+    }
+
+    def "Check custom provisioning assigns levels to assets in any order"() {
+
+        given: "a tree listed leaves first below an existing asset with a blank line in between"
+        def root = id()
+        def child = id()
+        def grandchild = id()
+        def other = id()
+        def file = writeTree([
+            asset(grandchild, Constants.MASTER_REALM, child),
+            asset(child, Constants.MASTER_REALM, root),
+            null,
+            asset(root, Constants.MASTER_REALM, existingId),
+            asset(other, OTHER_REALM, null)
+        ])
+
+        when: "the levels are read"
+        def levels = new CustomProvisioningSetup(container, file).readLevels()
+
+        then: "every asset should be one level below its parent and parents outside the file should be the top level"
+        levels.toList() == [2, 1, -1, 0, 0]
+    }
+
+    def "Check custom provisioning refuses trees with cycles, missing parents or parents in another realm"() {
+
+        when: "the levels of a tree with a cycle are read"
+        def first = id()
+        def second = id()
+        new CustomProvisioningSetup(container, writeTree([
+            asset(first, Constants.MASTER_REALM, second),
+            asset(second, Constants.MASTER_REALM, first)
+        ])).readLevels()
+
+        then: "the cycle should be refused"
+        def cycle = thrown(IllegalStateException)
+        cycle.message.contains("cycle")
+
+        when: "the levels of a tree with a parent that is neither in the file nor exists are read"
+        new CustomProvisioningSetup(container, writeTree([asset(id(), Constants.MASTER_REALM, id())])).readLevels()
+
+        then: "the missing parent should be refused"
+        def missing = thrown(IllegalStateException)
+        missing.message.contains("does not exist")
+
+        when: "the levels of a tree with an asset in another realm than its parent in the file are read"
+        def parent = id()
+        new CustomProvisioningSetup(container, writeTree([
+            asset(parent, Constants.MASTER_REALM, null),
+            asset(id(), OTHER_REALM, parent)
+        ])).readLevels()
+
+        then: "the asset should be refused"
+        def fileRealm = thrown(IllegalStateException)
+        fileRealm.message.contains("realm of its parent")
+
+        when: "the levels of a tree with an asset in another realm than its existing parent are read"
+        new CustomProvisioningSetup(container, writeTree([asset(id(), OTHER_REALM, existingId)])).readLevels()
+
+        then: "the asset should be refused"
+        def existingRealm = thrown(IllegalStateException)
+        existingRealm.message.contains("realm of its parent")
+    }
+
+    def "Check custom provisioning resumes where a failed run stopped"() {
+
+        given: "a generated tree of a root, 4 children and 16 grandchildren below an existing asset, listed leaves first"
+        def root = id()
+        def children = (0..<4).collect { id() }
+        def grandchildren = children.collectEntries { child -> [(child): (0..<4).collect { id() }] }
+        def ids = [root] + children + grandchildren.values().flatten()
+        def file = writeTree(
+            grandchildren.collectMany { child, leaves -> leaves.collect { asset(it, Constants.MASTER_REALM, child) } }
+                + children.collect { asset(it, Constants.MASTER_REALM, root) }
+                + [asset(root, Constants.MASTER_REALM, existingId)]
+        )
+
+        when: "provisioning fails half way through the grandchildren (the fourth of six batches of 5)"
+        def batches = new AtomicInteger()
+        def failing = new CustomProvisioningSetup(container, file) {
+            @Override
+            protected void insertBatch(List<String> batch) throws IOException {
+                if (batches.incrementAndGet() > 3) {
+                    throw new IOException("Simulated provisioning failure")
+                }
+                super.insertBatch(batch)
+            }
+        }
+        failing.onStart()
+
+        then: "the failure should stop provisioning with the levels before it and the batches that succeeded committed"
+        thrown(IOException)
+        failing.inserted.sum() == 10
+        countExisting(ids) == 10
+        countExisting([root] + children) == 5
+
+        when: "provisioning is run again"
+        def resumed = new CustomProvisioningSetup(container, file)
+        resumed.onStart()
+
+        then: "the assets inserted by the failed run should be skipped and the rest inserted below their parents"
+        resumed.skipped.sum() == 10
+        resumed.inserted.sum() == 11
+        countExisting(ids) == 21
+        assetStorageService.find(root).parentId == existingId
+        grandchildren.every { child, leaves -> leaves.every { assetStorageService.find(it).parentId == child } }
+
+        when: "provisioning is run once more"
+        def repeated = new CustomProvisioningSetup(container, file)
+        repeated.onStart()
+
+        then: "every asset should be skipped"
+        repeated.skipped.sum() == 21
+        repeated.inserted.sum() == 0
+    }
+
+    def "Check custom provisioning validates assets before persisting them"() {
+
+        given: "a tree with a child without a name"
+        def root = id()
+        def invalid = id()
+        def file = writeTree([
+            asset(root, Constants.MASTER_REALM, existingId),
+            asset(invalid, Constants.MASTER_REALM, root).setName("") as CustomAsset
+        ])
+
+        when: "the tree is provisioned"
+        new CustomProvisioningSetup(container, file).onStart()
+
+        then: "the invalid asset should fail provisioning without being stored"
+        thrown(ConstraintViolationException)
+        assetStorageService.find(root) != null
+        assetStorageService.find(invalid) == null
+    }
+}
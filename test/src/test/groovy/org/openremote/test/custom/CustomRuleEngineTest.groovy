@@ -0,0 +1,224 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.manager.custom.CustomRuleEngine
+import org.openremote.manager.custom.CustomSpatialIndex
+import org.openremote.model.custom.CustomRule
+import spock.lang.Specification
+
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.function.LongSupplier
+import java.util.function.Predicate
+
+class CustomRuleEngineTest extends Specification {
+
+    static final String REALM = "city"
+    static final String OTHER_REALM = "other"
+
+    // Timers are run by the spec against a clock it controls
+    long now
+    List<List> timers = []
+    List<List> alerts = []
+    CustomSpatialIndex spatialIndex = new CustomSpatialIndex(100)
+    CustomRuleEngine engine
+
+    def setup() {
+        def future = Stub(ScheduledFuture)
+        def executorService = Stub(ScheduledExecutorService) {
+            schedule(_ as Runnable, _, _) >> { Runnable task, long delay, TimeUnit unit ->
+                timers.add([task, unit.toMillis(delay)])
+                future
+            }
+        }
+        engine = new CustomRuleEngine(
+            executorService,
+            { now } as LongSupplier,
+            spatialIndex,
+            { true } as Predicate<String>,
+            { CustomRule rule, String assetId, Object value -> alerts.add([rule.id, assetId, value]) } as CustomRuleEngine.Alerter
+        )
+    }
+
+    void runTimer() {
+        def timer = timers.remove(0)
+        (timer[0] as Runnable).run()
+    }
+
+    def "Check custom rules with a duration only fire once the asset has matched for the whole duration"() {
+
+        given: "a realm rule that fires once the temperature has been above 30 for a second"
+        engine.put(new CustomRule("hot", REALM, "Hot", "temperature", CustomRule.Operator.GREATER_THAN, 30, "alarm", true)
+            .setDurationMillis(1000L)
+            .setClearValue(false))
+
+        when: "an asset starts matching"
+        now = 0
+        engine.onAttributeEvent("asset1", REALM, "temperature", 35)
+
+        then: "a timer should be scheduled for the duration and nothing fired"
+        timers*.get(1) == [1000L]
+        alerts.isEmpty()
+
+        when: "the asset keeps matching for part of the duration"
+        now = 500
+        engine.onAttributeEvent("asset1", REALM, "temperature", 36)
+
+        then: "nothing should fire"
+        alerts.isEmpty()
+
+        when: "the asset stops and starts matching again before the timer expires"
+        now = 600
+        engine.onAttributeEvent("asset1", REALM, "temperature", 20)
+        now = 700
+        engine.onAttributeEvent("asset1", REALM, "temperature", 40)
+
+        then: "the pending timer should be kept rather than another one scheduled"
+        timers.size() == 1
+
+        when: "the timer expires"
+        now = 1000
+        runTimer()
+
+        then: "it should reschedule itself for the rest of the duration since the asset matched again"
+        timers*.get(1) == [700L]
+        alerts.isEmpty()
+
+        when: "the rescheduled timer expires"
+        now = 1700
+        runTimer()
+
+        then: "the rule should fire"
+        alerts == [["hot", "asset1", true]]
+        engine.fired == 1
+        timers.isEmpty()
+
+        when: "the asset keeps matching"
+        now = 1800
+        engine.onAttributeEvent("asset1", REALM, "temperature", 41)
+
+        then: "the rule should not fire again"
+        alerts.size() == 1
+
+        when: "the asset stops matching"
+        engine.onAttributeEvent("asset1", REALM, "temperature", 10)
+
+        then: "the alert should be cleared"
+        alerts.last() == ["hot", "asset1", false]
+
+        when: "an asset starts matching and stops before its timer expires"
+        now = 2000
+        engine.onAttributeEvent("asset2", REALM, "temperature", 35)
+        now = 2500
+        engine.onAttributeEvent("asset2", REALM, "temperature", 25)
+        now = 3000
+        runTimer()
+
+        then: "nothing should fire or be rescheduled"
+        alerts.size() == 2
+        timers.isEmpty()
+    }
+
+    def "Check custom rules only evaluate events of their realm and stop once removed"() {
+
+        given: "a rule for every asset of the realm and a rule for a single asset"
+        engine.put(new CustomRule("realm", REALM, "Realm", "temperature", CustomRule.Operator.GREATER_THAN, 30, "alarm", true))
+        engine.put(new CustomRule("asset", REALM, "Asset", "temperature", CustomRule.Operator.LESS_THAN, 0, "alarm", true)
+            .setAssetId("asset1"))
+
+        when: "events arrive for assets of another realm"
+        engine.onAttributeEvent("asset2", OTHER_REALM, "temperature", 35)
+        engine.onAttributeEvent("asset1", OTHER_REALM, "temperature", -5)
+
+        then: "no rule should be evaluated"
+        engine.evaluations == 0
+        alerts.isEmpty()
+
+        when: "events arrive for assets of the realm"
+        engine.onAttributeEvent("asset2", REALM, "temperature", 35)
+        engine.onAttributeEvent("asset1", REALM, "temperature", -5)
+
+        then: "both rules should fire"
+        alerts == [["realm", "asset2", true], ["asset", "asset1", true]]
+
+        when: "events arrive for an attribute no rule watches"
+        def evaluations = engine.evaluations
+        engine.onAttributeEvent("asset2", REALM, "humidity", 35)
+
+        then: "no rule should be evaluated"
+        engine.evaluations == evaluations
+
+        when: "the realm rule is removed"
+        engine.remove("realm")
+        engine.onAttributeEvent("asset3", REALM, "temperature", 35)
+
+        then: "it should no longer be evaluated"
+        engine.evaluations == evaluations
+        engine.size() == 1
+
+        when: "an event arrives for the asset of the remaining rule"
+        engine.onAttributeEvent("asset1", REALM, "temperature", -6)
+
+        then: "the remaining rule should still be evaluated"
+        engine.evaluations == evaluations + 1
+    }
+
+    def "Check custom rules with a neighbour condition only fire once enough nearby assets match"() {
+
+        given: "three assets close together and one far away"
+        spatialIndex.put("near1", REALM, 51.4500, 5.4700, 0L)
+        spatialIndex.put("near2", REALM, 51.4501, 5.4701, 0L)
+        spatialIndex.put("near3", REALM, 51.4502, 5.4702, 0L)
+        spatialIndex.put("far", REALM, 51.5000, 5.5000, 0L)
+
+        and: "a rule that needs three matching assets within 500m"
+        engine.put(new CustomRule("flood", REALM, "Flood", "level", CustomRule.Operator.GREATER_EQUALS, 1.5, "alarm", true)
+            .setNeighbours(3, 500d))
+
+        when: "two nearby assets and the far one match"
+        engine.onAttributeEvent("near1", REALM, "level", 2)
+        engine.onAttributeEvent("near2", REALM, "level", 2)
+        engine.onAttributeEvent("far", REALM, "level", 2)
+
+        then: "nothing should fire as no asset has enough matching neighbours"
+        alerts.isEmpty()
+
+        when: "the third nearby asset matches"
+        engine.onAttributeEvent("near3", REALM, "level", 1.5)
+
+        then: "it should fire"
+        alerts == [["flood", "near3", true]]
+
+        when: "another event arrives for a nearby asset that matched earlier"
+        engine.onAttributeEvent("near1", REALM, "level", 2.5)
+
+        then: "its neighbour condition should be checked again and it should fire too"
+        alerts == [["flood", "near3", true], ["flood", "near1", true]]
+
+        when: "a rule with a neighbour count but no radius is added"
+        engine.put(new CustomRule("invalid", REALM, "Invalid", "level", CustomRule.Operator.GREATER_EQUALS, 1, "alarm", true)
+            .setNeighbours(2, null))
+
+        then: "it should be rejected"
+        thrown(IllegalArgumentException)
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.manager.custom.CustomShardPool
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class CustomShardPoolTest extends Specification {
+
+    CustomShardPool pool
+
+    def cleanup() {
+        pool?.stop()
+    }
+
+    /**
+     * Occupies the only shard until the returned latch is released so the tasks queued meanwhile are served in the
+     * order the pool chooses rather than the order they were offered.
+     */
+    CountDownLatch blockShard() {
+        def started = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        assert pool.offer("blocker", "blocker", {
+            started.countDown()
+            release.await()
+        })
+        assert started.await(10, TimeUnit.SECONDS)
+        release
+    }
+
+    def "Check custom shard pool runs the tasks of an asset in order on a single thread"() {
+
+        given: "a pool with several shards"
+        pool = new CustomShardPool(4, 10000, 16, [:], 1)
+        pool.start()
+        def executed = new ConcurrentHashMap<String, List<Integer>>()
+        def threads = new ConcurrentHashMap<String, Set<Thread>>()
+
+        when: "tasks for many assets are offered concurrently from several threads"
+        def producers = Executors.newFixedThreadPool(4)
+        def futures = (0..<4).collect { producer ->
+            producers.submit({
+                (0..<50).each { asset ->
+                    if (asset % 4 == producer) {
+                        def assetId = "asset" + asset
+                        (0..<200).each { sequence ->
+                            assert pool.offer(assetId, "realm" + asset % 3, {
+                                executed.computeIfAbsent(assetId, { Collections.synchronizedList([]) }).add(sequence)
+                                threads.computeIfAbsent(assetId, { ConcurrentHashMap.newKeySet() }).add(Thread.currentThread())
+                            }, 10, TimeUnit.SECONDS)
+                        }
+                    }
+                }
+            } as Runnable)
+        }
+        producers.shutdown()
+
+        then: "every task should run once, in order, and always on the same shard for an asset"
+        futures.each { it.get(10, TimeUnit.SECONDS) }
+        new PollingConditions(timeout: 10, delay: 0.1).eventually {
+            assert pool.statistics.sum { it.processed } == 50 * 200
+        }
+        executed.size() == 50
+        executed.values().every { it == (0..<200).toList() }
+        threads.values().every { it.size() == 1 }
+        pool.statistics.sum { it.dropped } == 0
+    }
+
+    def "Check custom shard pool shares each shard fairly between realms by weight"() {
+
+        given: "a single shard where the gold realm has three times the default weight"
+        pool = new CustomShardPool(1, 1000, 1, [gold: 3], 1)
+        pool.start()
+        def order = Collections.synchronizedList([])
+
+        when: "a storm of tasks is queued for one realm before a few tasks of other realms"
+        def release = blockShard()
+        100.times { pool.offer("storm" + it, "storm", { order.add("storm") }) }
+        10.times { pool.offer("quiet" + it, "quiet", { order.add("quiet") }) }
+        9.times { pool.offer("gold" + it, "gold", { order.add("gold") }) }
+        release.countDown()
+
+        then: "every task should run"
+        new PollingConditions(timeout: 10, delay: 0.1).eventually {
+            assert order.size() == 119
+        }
+
+        and: "each realm should get its share of every round rather than waiting for the storm to drain"
+        order.take(15) == ["storm", "quiet", "gold", "gold", "gold"] * 3
+        order.lastIndexOf("gold") == 14
+        order.subList(15, 29) == ["storm", "quiet"] * 7
+        order.subList(29, 119).every { it == "storm" }
+    }
+
+    def "Check custom shard pool only drops tasks of the realm whose queue is full"() {
+
+        given: "a single shard with room for five tasks per realm"
+        pool = new CustomShardPool(1, 5, 1, [:], 1)
+        pool.start()
+        def executed = Collections.synchronizedList([])
+
+        when: "more tasks are offered for one realm than its queue holds while the shard is busy"
+        def release = blockShard()
+        def accepted = (0..<10).collect { index -> pool.offer("storm" + index, "storm", { executed.add("storm" + index) }) }
+
+        then: "only the tasks that fit should be accepted"
+        accepted == [true] * 5 + [false] * 5
+        pool.statistics[0].dropped == 5
+        pool.statistics[0].realmDepths == [storm: 5]
+
+        and: "other realms should still be accepted"
+        pool.offer("quiet", "quiet", { executed.add("quiet") })
+
+        when: "an offer waits for space while the shard is released"
+        def waited = Executors.newSingleThreadExecutor().submit({
+            pool.offer("storm10", "storm", { executed.add("storm10") }, 10, TimeUnit.SECONDS)
+        } as Callable<Boolean>)
+        release.countDown()
+
+        then: "it should be accepted once there is space and every accepted task should run"
+        waited.get(10, TimeUnit.SECONDS)
+        new PollingConditions(timeout: 10, delay: 0.1).eventually {
+            assert executed.size() == 7
+        }
+        executed.findAll { it.startsWith("storm") } == ["storm0", "storm1", "storm2", "storm3", "storm4", "storm10"]
+
+        when: "the pool is stopped with tasks queued"
+        release = blockShard()
+        3.times { index -> pool.offer("late" + index, "late", { executed.add("late" + index) }) }
+        def stopping = Executors.newSingleThreadExecutor().submit({ pool.stop() } as Runnable)
+        release.countDown()
+        stopping.get(10, TimeUnit.SECONDS)
+
+        then: "the queued tasks should have run and no more should be accepted"
+        executed.takeRight(3) == ["late0", "late1", "late2"]
+        !pool.offer("late3", "late", { executed.add("late3") })
+    }
+}
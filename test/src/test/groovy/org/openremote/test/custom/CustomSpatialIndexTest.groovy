@@ -0,0 +1,146 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.manager.custom.CustomSpatialIndex
+import spock.lang.Specification
+
+class CustomSpatialIndexTest extends Specification {
+
+    static final String REALM = "city"
+    static final String OTHER_REALM = "other"
+
+    def "Check custom spatial index queries match a scan of every asset"() {
+
+        given: "assets spread over a city in two realms and some without a location"
+        def random = new Random(42)
+        def index = new CustomSpatialIndex(250)
+        def locations = [:]
+        2000.times {
+            def id = "asset" + it
+            def realm = it % 4 == 0 ? OTHER_REALM : REALM
+            def latitude = 51.4 + random.nextDouble() * 0.1
+            def longitude = 5.4 + random.nextDouble() * 0.15
+            index.put(id, realm, latitude, longitude, 1000L)
+            locations[id] = [realm: realm, latitude: latitude, longitude: longitude]
+        }
+        10.times { index.put("unlocated" + it, REALM, Double.NaN, Double.NaN, 1000L) }
+        def inRealm = locations.findAll { it.value.realm == REALM }
+        def distanceTo = { double latitude, double longitude, Map location ->
+            CustomSpatialIndex.distance(latitude, longitude, location.latitude as double, location.longitude as double)
+        }
+
+        expect: "every asset to be tracked"
+        index.size() == 2010
+        index.getLocation("asset1") == [locations.asset1.latitude, locations.asset1.longitude] as double[]
+        index.getLocation("unlocated0") == null
+
+        when: "a bounding box query is made"
+        def within = index.findWithin(REALM, 51.42, 5.45, 51.46, 5.50, Integer.MAX_VALUE)
+
+        then: "exactly the assets of the realm inside the box should be found"
+        within*.id as Set == inRealm.findAll {
+            it.value.latitude >= 51.42 && it.value.latitude <= 51.46 && it.value.longitude >= 5.45 && it.value.longitude <= 5.50
+        }.keySet()
+        within.every { it.realm == REALM }
+
+        and: "the limit should be respected"
+        index.findWithin(REALM, 51.42, 5.45, 51.46, 5.50, 5).size() == 5
+
+        when: "a radius query is made"
+        def radius = index.findWithinRadius(REALM, 51.45, 5.47, 1500, Integer.MAX_VALUE)
+        def expectedRadius = inRealm.findAll { distanceTo(51.45, 5.47, it.value) <= 1500 }
+            .sort { distanceTo(51.45, 5.47, it.value) }
+            .keySet() as List
+
+        then: "exactly the assets of the realm within the radius should be found nearest first"
+        !radius.isEmpty()
+        radius*.id == expectedRadius
+        radius.every { it.distance <= 1500 }
+
+        and: "a limited radius query should return the nearest of those"
+        index.findWithinRadius(REALM, 51.45, 5.47, 1500, 10)*.id == expectedRadius.take(10)
+
+        when: "nearest neighbour queries are made inside, at the edge of and far away from the assets"
+        def points = [[51.45, 5.47], [51.4, 5.4], [52.37, 4.89]]
+        def nearest = points.collect { index.findNearest(REALM, it[0], it[1], 25) }
+
+        then: "the nearest assets of the realm should be found in order"
+        points.indices.every { i ->
+            assert nearest[i]*.id == inRealm.sort { distanceTo(points[i][0], points[i][1], it.value) }.keySet().take(25) as List
+            true
+        }
+
+        and: "a query for more assets than the realm has should return all of them"
+        index.findNearest(OTHER_REALM, 51.45, 5.47, 1000).size() == 500
+
+        and: "a query without a realm should cover every realm"
+        index.findNearest(null, 51.45, 5.47, 2000).size() == 2000
+    }
+
+    def "Check custom spatial index follows moves, removes and queries across the antimeridian"() {
+
+        given: "assets either side of the antimeridian"
+        def index = new CustomSpatialIndex(1000)
+        index.put("east", REALM, -17.0, 179.9, 1000L)
+        index.put("west", REALM, -17.0, -179.9, 1000L)
+        index.put("far", REALM, -17.0, 170.0, 1000L)
+
+        expect: "a box crossing the antimeridian to find the assets either side of it"
+        index.findWithin(REALM, -18.0, 179.5, -16.0, -179.5, 10)*.id as Set == ["east", "west"] as Set
+
+        and: "the nearest asset to the east of the antimeridian to be the one just west of it"
+        index.findNearest(REALM, -17.0, -179.95, 1)*.id == ["west"]
+        index.findWithinRadius(REALM, -17.0, 180.0, 20000, 10)*.id as Set == ["east", "west"] as Set
+
+        when: "an asset moves"
+        index.update("far", -17.0, -179.95, 2000L)
+
+        then: "it should be found at its new location only"
+        index.findNearest(REALM, -17.0, -179.95, 1)*.id == ["far"]
+        index.findWithin(REALM, -18.0, 169.5, -16.0, 170.5, 10).isEmpty()
+
+        when: "an older location change arrives"
+        index.update("far", -17.0, 170.0, 1500L)
+
+        then: "it should be ignored"
+        index.getLocation("far") == [-17.0d, -179.95d] as double[]
+
+        when: "an asset is removed"
+        index.remove("west")
+
+        then: "it should no longer be found"
+        index.size() == 2
+        index.findWithin(REALM, -18.0, 179.5, -16.0, -179.5, 10)*.id as Set == ["east", "far"] as Set
+
+        when: "assets are loaded while events for them arrive"
+        index.startLoad()
+        index.update("late", 10.0, 10.0, 3000L)
+        index.remove("east")
+        index.load("east", REALM, -17.0, 179.9, 1000L)
+        index.load("late", REALM, 0.0, 0.0, 1000L)
+        index.endLoad()
+
+        then: "the newer location should win and a deleted asset should not come back"
+        index.getLocation("late") == [10.0d, 10.0d] as double[]
+        index.getLocation("east") == null
+        index.size() == 2
+    }
+}
@@ -20,15 +20,26 @@
 package org.openremote.test.custom
 
 import org.openremote.agent.custom.CustomAgent
+import org.openremote.agent.custom.CustomFrameCodec
 import org.openremote.agent.custom.CustomProtocol
 import org.openremote.manager.agent.AgentService
+import org.openremote.manager.asset.AssetProcessingService
 import org.openremote.manager.asset.AssetStorageService
+import org.openremote.manager.custom.CustomService
 import org.openremote.model.Constants
 import org.openremote.model.asset.agent.ConnectionStatus
+import org.openremote.model.asset.agent.DefaultAgentLink
+import org.openremote.model.attribute.AttributeEvent
+import org.openremote.model.attribute.AttributeRef
+import org.openremote.model.attribute.MetaItem
+import org.openremote.model.custom.CustomAsset
+import org.openremote.model.value.MetaItemType
 import org.openremote.test.ManagerContainerTrait
 import spock.lang.Specification
 import spock.util.concurrent.PollingConditions
 
+import static org.openremote.model.custom.CustomAsset.CUSTOM_VALUE_TYPE_ATTRIBUTE_DESCRIPTOR
+
 class CustomTest extends Specification implements ManagerContainerTrait {
 
     def "Check custom agent and protocol"() {
@@ -61,4 +72,94 @@ class CustomTest extends Specification implements ManagerContainerTrait {
             assert (agentService.protocolInstanceMap.get(agent.id) as CustomProtocol).running
         }
     }
+
+    def "Check custom protocol coalesces device readings into attribute events"() {
+
+        given: "expected conditions"
+        def conditions = new PollingConditions(timeout: 10, delay: 0.2)
+
+        when: "the container starts"
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort), defaultServices())
+        def assetStorageService = container.getService(AssetStorageService.class)
+        def agentService = container.getService(AgentService.class)
+
+        and: "a custom agent listening on UDP is added"
+        def agent = new CustomAgent("Test Agent")
+            .setRealm(Constants.MASTER_REALM)
+            .setOption(CustomAgent.Option.ONE)
+            .setTransport(CustomAgent.Transport.UDP)
+            .setFlushWindow(50)
+        agent = assetStorageService.merge(agent)
+
+        then: "the protocol should be listening"
+        CustomProtocol protocol = null
+        conditions.eventually {
+            protocol = agentService.protocolInstanceMap.get(agent.id) as CustomProtocol
+            assert protocol != null
+            assert protocol.running
+            assert protocol.transport.localPort > 0
+        }
+
+        when: "an asset with an attribute linked to a device channel is added"
+        def asset = new CustomAsset("Test Asset")
+            .setRealm(Constants.MASTER_REALM)
+            .setCustomAttribute(CustomAsset.CustomValueType.ONE)
+        asset.getAttribute(CUSTOM_VALUE_TYPE_ATTRIBUTE_DESCRIPTOR).get().addOrReplaceMeta(
+            new MetaItem<>(MetaItemType.AGENT_LINK, new DefaultAgentLink(agent.id)),
+            new MetaItem<>(CustomAgent.DEVICE_ID_META_ITEM_DESCRIPTOR, 7),
+            new MetaItem<>(CustomAgent.DEVICE_CHANNEL_META_ITEM_DESCRIPTOR, 1)
+        )
+        asset = assetStorageService.merge(asset)
+
+        then: "the attribute should be linked"
+        conditions.eventually {
+            assert protocol.linkedAttributes.containsKey(new AttributeRef(asset.id, CUSTOM_VALUE_TYPE_ATTRIBUTE_DESCRIPTOR.name))
+        }
+
+        when: "a simulated device sends a burst of readings for the linked channel"
+        def simulator = new CustomDeviceSimulator(CustomAgent.Transport.UDP, new InetSocketAddress("127.0.0.1", protocol.transport.localPort)).connect()
+        1000.times { simulator.send(7, 1, it % 2) }
+        simulator.send(7, 1, 2)
+
+        then: "the attribute should end up with the latest reading"
+        conditions.eventually {
+            def customAsset = assetStorageService.find(asset.id) as CustomAsset
+            assert customAsset.customAttribute.orElse(null) == CustomAsset.CustomValueType.THREE
+        }
+
+        and: "the protocol metrics should account for the readings"
+        def metrics = protocol.metrics
+        assert metrics.readingsDecoded > 0
+        assert metrics.eventsEmitted > 0
+        assert metrics.eventsFailed == 0
+        assert container.getService(CustomService.class).getMetrics().contains("custom_protocol_events_emitted_total{agent=\"${agent.id}\"}")
+
+        when: "the linked attribute is written to several times in a row"
+        def assetProcessingService = container.getService(AssetProcessingService.class)
+        assetProcessingService.sendAttributeEvent(new AttributeEvent(asset.id, CUSTOM_VALUE_TYPE_ATTRIBUTE_DESCRIPTOR.name, CustomAsset.CustomValueType.ONE))
+        assetProcessingService.sendAttributeEvent(new AttributeEvent(asset.id, CUSTOM_VALUE_TYPE_ATTRIBUTE_DESCRIPTOR.name, CustomAsset.CustomValueType.TWO))
+
+        then: "the device should receive the writes and once acknowledged the attribute should hold the last value"
+        def written = []
+        conditions.eventually {
+            simulator.acknowledgeWrites(new CustomFrameCodec.FrameHandler() {
+                @Override
+                void onReading(int deviceId, int channel, double value, long timestamp) {
+                }
+
+                @Override
+                void onWrite(int deviceId, int sequence, int channel, double value) {
+                    written.add(value)
+                }
+            }, true, 100)
+            assert !written.isEmpty()
+            assert written.last() == 1d
+            def customAsset = assetStorageService.find(asset.id) as CustomAsset
+            assert customAsset.customAttribute.orElse(null) == CustomAsset.CustomValueType.TWO
+        }
+
+        cleanup: "the simulator is closed"
+        simulator?.close()
+    }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.manager.custom.CustomValueTypeAggregates
+import spock.lang.Specification
+
+import static org.openremote.model.custom.CustomAsset.CustomValueType.ONE
+import static org.openremote.model.custom.CustomAsset.CustomValueType.THREE
+import static org.openremote.model.custom.CustomAsset.CustomValueType.TWO
+
+class CustomValueTypeAggregatesTest extends Specification {
+
+    static final String REALM = "city"
+    static final String PARENT = "parent1"
+    static final String OTHER_PARENT = "parent2"
+
+    CustomValueTypeAggregates aggregates = new CustomValueTypeAggregates()
+
+    List<Long> realmCounts() {
+        def counts = aggregates.getRealmCounts(REALM)
+        [counts.getCount(ONE), counts.getCount(TWO), counts.getCount(THREE), counts.unset]
+    }
+
+    List<Long> parentCounts(String parentId) {
+        def counts = aggregates.getParentCounts(REALM, parentId)
+        [counts.getCount(ONE), counts.getCount(TWO), counts.getCount(THREE), counts.unset]
+    }
+
+    def "Check custom value type aggregates ignore changes older than the tracked value type"() {
+
+        given: "a tracked asset"
+        aggregates.put("asset1", REALM, PARENT, ONE, 100L)
+
+        expect: "it should be counted in its realm and parent"
+        realmCounts() == [1, 0, 0, 0]
+        parentCounts(PARENT) == [1, 0, 0, 0]
+
+        when: "an older value type change arrives after the current one"
+        aggregates.update("asset1", TWO, 50L)
+
+        then: "it should be ignored"
+        realmCounts() == [1, 0, 0, 0]
+
+        when: "a newer value type change arrives"
+        aggregates.update("asset1", TWO.name(), 200L)
+
+        then: "the asset should move to the new value type"
+        realmCounts() == [0, 1, 0, 0]
+        parentCounts(PARENT) == [0, 1, 0, 0]
+
+        when: "the asset is moved with a value type older than the tracked one"
+        aggregates.put("asset1", REALM, OTHER_PARENT, THREE, 150L)
+
+        then: "it should move to the other parent keeping the newer value type"
+        realmCounts() == [0, 1, 0, 0]
+        parentCounts(PARENT) == [0, 0, 0, 0]
+        parentCounts(OTHER_PARENT) == [0, 1, 0, 0]
+
+        when: "a value type change arrives for an asset that is not tracked"
+        aggregates.update("asset2", ONE, 300L)
+
+        then: "it should be ignored"
+        !aggregates.isTracked("asset2")
+        realmCounts() == [0, 1, 0, 0]
+
+        when: "an asset without a value type is added and the tracked asset is removed twice"
+        aggregates.put("asset3", REALM, PARENT, null, 100L)
+        aggregates.remove("asset1")
+        aggregates.remove("asset1")
+
+        then: "the counts should never drop below zero"
+        realmCounts() == [0, 0, 0, 1]
+        parentCounts(OTHER_PARENT) == [0, 0, 0, 0]
+        aggregates.size() == 1
+    }
+
+    def "Check custom value type aggregates keep changes made while rebuilding from storage"() {
+
+        when: "a rebuild starts"
+        aggregates.startRebuild()
+
+        and: "an asset is created before its (older) row is loaded"
+        aggregates.put("created", REALM, PARENT, TWO, 300L)
+        aggregates.load("created", REALM, PARENT, ONE, 100L)
+
+        and: "an asset is deleted before its row is loaded"
+        aggregates.remove("deleted")
+        aggregates.load("deleted", REALM, PARENT, ONE, 100L)
+
+        and: "the value type of an asset changes before its row is loaded"
+        aggregates.update("changed", THREE, 500L)
+        aggregates.load("changed", REALM, PARENT, ONE, 100L)
+
+        and: "an older value type change of an asset arrives before its row is loaded"
+        aggregates.update("stale", TWO, 50L)
+        aggregates.load("stale", REALM, PARENT, ONE, 100L)
+
+        and: "value type changes of an asset arrive out of order before its row is loaded"
+        aggregates.update("reordered", TWO, 600L)
+        aggregates.update("reordered", ONE, 550L)
+        aggregates.load("reordered", REALM, OTHER_PARENT, THREE, 100L)
+
+        and: "an asset is loaded without any change"
+        aggregates.load("loaded", REALM, OTHER_PARENT, ONE, 100L)
+
+        then: "the newer state should win and the deleted asset should not be brought back"
+        aggregates.isTracked("created")
+        !aggregates.isTracked("deleted")
+        realmCounts() == [3, 1, 1, 0]
+
+        when: "the rebuild ends"
+        aggregates.endRebuild()
+
+        then: "the newest change of every asset loaded meanwhile should have been applied"
+        realmCounts() == [2, 2, 1, 0]
+        parentCounts(PARENT) == [1, 1, 1, 0]
+        parentCounts(OTHER_PARENT) == [1, 1, 0, 0]
+        aggregates.size() == 5
+        aggregates.getAllParentCounts(REALM)*.parentId.sort() == [PARENT, OTHER_PARENT]
+
+        when: "a change of an asset that is not tracked arrives after the rebuild and the asset is loaded by another rebuild"
+        aggregates.update("later", TWO, 700L)
+        aggregates.startRebuild()
+        aggregates.load("later", REALM, PARENT, THREE, 100L)
+        aggregates.load("deleted", REALM, PARENT, ONE, 100L)
+        aggregates.endRebuild()
+
+        then: "the change should not have been kept and assets deleted during the previous rebuild should load again"
+        parentCounts(PARENT) == [2, 1, 2, 0]
+        aggregates.isTracked("deleted")
+    }
+}
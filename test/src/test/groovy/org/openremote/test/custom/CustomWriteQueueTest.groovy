@@ -0,0 +1,159 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom
+
+import org.openremote.agent.custom.CustomWriteQueue
+import spock.lang.Specification
+
+class CustomWriteQueueTest extends Specification {
+
+    static final long TIMEOUT_MILLIS = 1000L
+
+    // Frames are recorded by a fake sender rather than sent to a device
+    List<Map> frames = []
+    List<List> outcomes = []
+    boolean failSend
+
+    CustomWriteQueue queue(int maxInFlight) {
+        new CustomWriteQueue(
+            maxInFlight,
+            TIMEOUT_MILLIS,
+            { int deviceId, int sequence, int[] channels, double[] values, int count ->
+                if (failSend) {
+                    throw new IOException("Device unreachable")
+                }
+                frames.add([deviceId: deviceId, sequence: sequence, channels: channels.toList(), values: values.toList()])
+            } as CustomWriteQueue.Sender,
+            [
+                onWriteCompleted: { int deviceId, int channel, double value -> outcomes.add(["completed", deviceId, channel, value]) },
+                onWriteFailed   : { int deviceId, int channel, double value -> outcomes.add(["failed", deviceId, channel, value]) }
+            ] as CustomWriteQueue.Listener
+        )
+    }
+
+    def "Check custom write queue merges pending writes and only reports the latest write of a channel"() {
+
+        given: "a queue with one frame in flight per device"
+        def queue = queue(1)
+
+        when: "a write is made"
+        queue.write(1, 10, 1d)
+
+        then: "it should be sent straight away"
+        frames*.channels == [[10]]
+        queue.inFlightCount == 1
+
+        when: "more writes are made while the frame is in flight, one replacing another before it is sent"
+        queue.write(1, 10, 2d)
+        queue.write(1, 11, 3d)
+        queue.write(1, 10, 4d)
+
+        then: "they should wait with only the latest value of each channel"
+        frames.size() == 1
+        queue.pendingCount == 2
+
+        when: "the frame in flight is acknowledged"
+        queue.onAck(1, frames[0].sequence, true)
+
+        then: "nothing should be reported as the channel has been written again since"
+        outcomes.isEmpty()
+
+        and: "the pending writes should be sent merged into a single frame"
+        frames.size() == 2
+        frames[1].channels == [10, 11]
+        frames[1].values == [4d, 3d]
+        queue.pendingCount == 0
+
+        when: "a channel of the frame in flight is written again and the frame is acknowledged"
+        queue.write(1, 11, 5d)
+        queue.onAck(1, frames[1].sequence, true)
+
+        then: "only the channel that was not written again should be reported"
+        outcomes == [["completed", 1, 10, 4d]]
+        frames[2].channels == [11]
+
+        when: "the last frame is acknowledged"
+        queue.onAck(1, frames[2].sequence, true)
+
+        then: "the latest value should be reported"
+        outcomes.last() == ["completed", 1, 11, 5d]
+        queue.inFlightCount == 0
+    }
+
+    def "Check custom write queue reports refused, timed out and unsent writes as failed"() {
+
+        given: "a queue with two frames in flight per device"
+        def queue = queue(2)
+
+        when: "a channel is written twice so both frames are in flight"
+        queue.write(1, 10, 1d)
+        queue.write(1, 10, 2d)
+
+        then: "both should have been sent without waiting"
+        frames*.values == [[1d], [2d]]
+
+        when: "the newer frame is refused and the older one acknowledged afterwards"
+        queue.onAck(1, frames[1].sequence, false)
+        queue.onAck(1, frames[0].sequence, true)
+
+        then: "only the failure of the newer write should be reported"
+        outcomes == [["failed", 1, 10, 2d]]
+        queue.inFlightCount == 0
+
+        when: "a frame is not acknowledged within the timeout"
+        queue.write(1, 20, 7d)
+        queue.checkTimeouts(System.currentTimeMillis() - TIMEOUT_MILLIS)
+
+        then: "it should not have timed out yet"
+        queue.inFlightCount == 1
+
+        when: "the timeout passes"
+        queue.checkTimeouts(System.currentTimeMillis() + TIMEOUT_MILLIS)
+
+        then: "it should be reported as failed"
+        outcomes.last() == ["failed", 1, 20, 7d]
+        queue.inFlightCount == 0
+
+        when: "the frame is acknowledged late"
+        def reported = outcomes.size()
+        queue.onAck(1, frames.last().sequence, true)
+
+        then: "nothing more should be reported"
+        outcomes.size() == reported
+
+        when: "a frame cannot be sent"
+        failSend = true
+        queue.write(2, 30, 9d)
+
+        then: "its write should be reported as failed without being left pending or in flight"
+        outcomes.last() == ["failed", 2, 30, 9d]
+        queue.pendingCount == 0
+        queue.inFlightCount == 0
+
+        when: "the device can be reached again"
+        failSend = false
+        queue.write(2, 30, 10d)
+        queue.onAck(2, frames.last().sequence, true)
+
+        then: "the next write should be sent and reported"
+        frames.last().deviceId == 2
+        outcomes.last() == ["completed", 2, 30, 10d]
+    }
+}
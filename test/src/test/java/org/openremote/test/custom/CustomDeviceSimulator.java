@@ -0,0 +1,179 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom;
+
+import org.openremote.agent.custom.CustomAgent;
+import org.openremote.agent.custom.CustomFrameCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simulates field devices talking to a {@link org.openremote.agent.custom.CustomProtocol} over the loopback interface;
+ * frames are encoded into a single reused buffer so the simulator itself adds no allocation pressure when driven hard.
+ */
+public class CustomDeviceSimulator implements Closeable {
+
+    protected final CustomAgent.Transport transport;
+    protected final InetSocketAddress target;
+    protected final ByteBuffer buffer = ByteBuffer.allocateDirect(CustomFrameCodec.MAX_FRAME_SIZE);
+    protected final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(CustomFrameCodec.MAX_FRAME_SIZE * 4);
+    protected DatagramChannel datagramChannel;
+    protected SocketChannel socketChannel;
+    protected int sequence;
+    protected long framesSent;
+
+    public CustomDeviceSimulator(CustomAgent.Transport transport, InetSocketAddress target) {
+        this.transport = transport;
+        this.target = target;
+    }
+
+    public CustomDeviceSimulator connect() throws IOException {
+        if (transport == CustomAgent.Transport.TCP) {
+            socketChannel = SocketChannel.open(target);
+        } else {
+            datagramChannel = DatagramChannel.open();
+            datagramChannel.connect(target);
+        }
+        return this;
+    }
+
+    /**
+     * Send a reading frame for a single channel of a device.
+     */
+    public void send(int deviceId, int channel, double value) throws IOException {
+        buffer.clear();
+        CustomFrameCodec.putHeader(buffer, CustomFrameCodec.TYPE_READING, deviceId, sequence++, 1);
+        CustomFrameCodec.putEntry(buffer, channel, value);
+        flush();
+    }
+
+    /**
+     * Send a reading frame for several channels of a device.
+     */
+    public void send(int deviceId, int[] channels, double[] values) throws IOException {
+        buffer.clear();
+        CustomFrameCodec.putHeader(buffer, CustomFrameCodec.TYPE_READING, deviceId, sequence++, channels.length);
+        for (int i = 0; i < channels.length; i++) {
+            CustomFrameCodec.putEntry(buffer, channels[i], values[i]);
+        }
+        flush();
+    }
+
+    /**
+     * Decode the frames sent to this simulator, waiting up to the timeout for them to arrive; returns the number of
+     * frames decoded.
+     */
+    public int receive(CustomFrameCodec.FrameHandler handler, long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        int frames = 0;
+        receiveBuffer.clear();
+
+        setBlocking(false);
+        try {
+            while (frames == 0 && System.currentTimeMillis() < deadline) {
+                int read = datagramChannel != null ? datagramChannel.read(receiveBuffer) : socketChannel.read(receiveBuffer);
+                if (read <= 0) {
+                    Thread.sleep(1);
+                    continue;
+                }
+                receiveBuffer.flip();
+                frames += Math.max(0, CustomFrameCodec.decode(receiveBuffer, System.currentTimeMillis(), this, handler));
+                receiveBuffer.compact();
+            }
+        } finally {
+            setBlocking(true);
+        }
+        return frames;
+    }
+
+    /**
+     * Receive write frames and acknowledge each of them with the given outcome; the written values are passed to the
+     * handler. Returns the number of frames acknowledged.
+     */
+    public int acknowledgeWrites(CustomFrameCodec.FrameHandler handler, boolean success, long timeoutMillis) throws IOException, InterruptedException {
+        List<int[]> writes = new ArrayList<>();
+        receive(new CustomFrameCodec.FrameHandler() {
+            @Override
+            public void onFrame(int deviceId, byte type, Object source) {
+                if (type == CustomFrameCodec.TYPE_WRITE) {
+                    writes.add(new int[]{deviceId, 0});
+                }
+            }
+
+            @Override
+            public void onReading(int deviceId, int channel, double value, long timestamp) {
+            }
+
+            @Override
+            public void onWrite(int deviceId, int sequence, int channel, double value) {
+                writes.get(writes.size() - 1)[1] = sequence;
+                handler.onWrite(deviceId, sequence, channel, value);
+            }
+        }, timeoutMillis);
+
+        for (int[] write : writes) {
+            buffer.clear();
+            CustomFrameCodec.putHeader(buffer, success ? CustomFrameCodec.TYPE_ACK : CustomFrameCodec.TYPE_NACK, write[0], write[1], 0);
+            flush();
+        }
+        return writes.size();
+    }
+
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (datagramChannel != null) {
+            datagramChannel.close();
+        }
+        if (socketChannel != null) {
+            socketChannel.close();
+        }
+    }
+
+    protected void setBlocking(boolean blocking) throws IOException {
+        if (datagramChannel != null) {
+            datagramChannel.configureBlocking(blocking);
+        } else {
+            socketChannel.configureBlocking(blocking);
+        }
+    }
+
+    protected void flush() throws IOException {
+        buffer.flip();
+        if (datagramChannel != null) {
+            datagramChannel.write(buffer);
+        } else {
+            while (buffer.hasRemaining()) {
+                socketChannel.write(buffer);
+            }
+        }
+        framesSent++;
+    }
+}
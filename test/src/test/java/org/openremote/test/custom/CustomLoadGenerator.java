@@ -0,0 +1,215 @@
+/*
+ * Copyright 2022, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.custom;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives {@link CustomDeviceSimulator}s at a fixed rate of single channel readings and measures the end-to-end latency
+ * of the readings that come back as attribute events. Every reading carries its sequence number as the value so the
+ * event can be matched with the time the reading was sent; readings the protocol coalesces away are counted as sent
+ * but not received. Latencies are kept in a histogram of 1ms buckets so memory use stays constant over a soak run.
+ */
+public class CustomLoadGenerator {
+
+    /**
+     * Counters and latency percentiles since the previous snapshot.
+     */
+    public static class Window {
+        public final long millis;
+        public final long sent;
+        public final long received;
+        public final long p50Millis;
+        public final long p99Millis;
+        public final long p999Millis;
+        public final long maxMillis;
+
+        protected Window(long millis, long sent, long received, long[] histogram) {
+            this.millis = millis;
+            this.sent = sent;
+            this.received = received;
+            this.p50Millis = percentile(histogram, received, 0.5d);
+            this.p99Millis = percentile(histogram, received, 0.99d);
+            this.p999Millis = percentile(histogram, received, 0.999d);
+            this.maxMillis = percentile(histogram, received, 1d);
+        }
+
+        public double getSentPerSecond() {
+            return millis > 0 ? sent * 1000d / millis : 0d;
+        }
+
+        public double getReceivedPerSecond() {
+            return millis > 0 ? received * 1000d / millis : 0d;
+        }
+
+        protected static long percentile(long[] histogram, long count, double percentile) {
+            long rank = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank && seen > 0) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "sent=%.0f/s, received=%.0f/s, latency p50=%dms, p99=%dms, p99.9=%dms, max=%dms",
+                getSentPerSecond(), getReceivedPerSecond(), p50Millis, p99Millis, p999Millis, maxMillis
+            );
+        }
+    }
+
+    /**
+     * Latencies of a second and more all end up in the last bucket.
+     */
+    public static final int LATENCY_BUCKETS = 10001;
+    protected static final int SEND_TIMES = 1 << 20;
+    protected final CustomDeviceSimulator[] simulators;
+    protected final int[][] deviceIds;
+    protected final int channel;
+    protected final long intervalNanos;
+    protected final AtomicLongArray sendTimes = new AtomicLongArray(SEND_TIMES);
+    protected final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BUCKETS);
+    protected final LongAdder sent = new LongAdder();
+    protected final LongAdder received = new LongAdder();
+    protected final LongAdder failed = new LongAdder();
+    protected volatile long sequence;
+    protected volatile boolean running;
+    protected Thread thread;
+    protected long windowStart;
+    protected long windowSent;
+
+    /**
+     * @param simulators one simulator per agent
+     * @param deviceIds  the device IDs linked through the agent of the simulator at the same index
+     * @param rate       readings per second over all simulators
+     */
+    public CustomLoadGenerator(CustomDeviceSimulator[] simulators, int[][] deviceIds, int channel, double rate) {
+        this.simulators = simulators;
+        this.deviceIds = deviceIds;
+        this.channel = channel;
+        this.intervalNanos = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        windowStart = System.nanoTime();
+        thread = new Thread(this::run, "CustomLoadGenerator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        thread.join(TimeUnit.SECONDS.toMillis(10));
+        thread = null;
+    }
+
+    /**
+     * Records the latency of a reading that arrived as an attribute event with the given value.
+     */
+    public void onValue(Object value) {
+        if (!(value instanceof Number)) {
+            return;
+        }
+        long now = System.nanoTime();
+        long readingSequence = ((Number) value).longValue();
+        // Send times are overwritten once the ring wraps so very late readings cannot be measured
+        if (readingSequence < 0 || readingSequence >= sequence || sequence - readingSequence > SEND_TIMES) {
+            return;
+        }
+        long latencyMillis = TimeUnit.NANOSECONDS.toMillis(now - sendTimes.get((int) (readingSequence & (SEND_TIMES - 1))));
+        latencies.incrementAndGet((int) Math.min(LATENCY_BUCKETS - 1, Math.max(0L, latencyMillis)));
+        received.increment();
+    }
+
+    /**
+     * Returns what happened since the previous call (or the start) and starts a new window.
+     */
+    public synchronized Window snapshot() {
+        long now = System.nanoTime();
+        long[] histogram = new long[LATENCY_BUCKETS];
+        long count = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            histogram[i] = latencies.getAndSet(i, 0L);
+            count += histogram[i];
+        }
+        long totalSent = sent.sum();
+        Window window = new Window(TimeUnit.NANOSECONDS.toMillis(now - windowStart), totalSent - windowSent, count, histogram);
+        windowStart = now;
+        windowSent = totalSent;
+        return window;
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    protected void run() {
+        long next = System.nanoTime();
+        long readingSequence = 0L;
+
+        while (running) {
+            long now = System.nanoTime();
+            if (now < next) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            // Catch up in a burst after oversleeping so the average rate is kept
+            while (next <= now && running) {
+                int simulator = (int) (readingSequence % simulators.length);
+                int[] devices = deviceIds[simulator];
+                int deviceId = devices[(int) ((readingSequence / simulators.length) % devices.length)];
+                sendTimes.set((int) (readingSequence & (SEND_TIMES - 1)), System.nanoTime());
+                sequence = readingSequence + 1;
+                try {
+                    simulators[simulator].send(deviceId, channel, readingSequence);
+                    sent.increment();
+                } catch (IOException e) {
+                    failed.increment();
+                }
+                readingSequence++;
+                next += intervalNanos;
+            }
+        }
+    }
+}